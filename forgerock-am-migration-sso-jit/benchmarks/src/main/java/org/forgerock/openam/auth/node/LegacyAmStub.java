@@ -0,0 +1,137 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.auth.node;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded stub of the legacy AM REST endpoints called by the JIT migration
+ * nodes: <b>/json/authenticate</b>, <b>/json/sessions</b> and
+ * <b>/json/users/</b>. Every response is delayed by the configured latency, and
+ * the user profiles are padded to the configured payload size.
+ */
+final class LegacyAmStub implements AutoCloseable {
+
+	static final String COOKIE_NAME = "iPlanetDirectoryPro";
+	static final String TOKEN_ID = "AQIC5wM2LY4SfcxNzY0MjQ3NzE4MDA2MDQ2ODA0.*";
+	static final String USER = "demo";
+
+	private static final String CALLBACKS = "{\"authId\":\"stub\",\"callbacks\":["
+			+ "{\"type\":\"NameCallback\",\"output\":[{\"name\":\"prompt\",\"value\":\"User Name\"}],"
+			+ "\"input\":[{\"name\":\"IDToken1\",\"value\":\"\"}]},"
+			+ "{\"type\":\"PasswordCallback\",\"output\":[{\"name\":\"prompt\",\"value\":\"Password\"}],"
+			+ "\"input\":[{\"name\":\"IDToken2\",\"value\":\"\"}]}]}";
+	private static final String AUTHENTICATED = "{\"tokenId\":\"" + TOKEN_ID + "\",\"successUrl\":\"/openam/console\"}";
+	private static final String VALID_SESSION = "{\"valid\":true,\"uid\":\"" + USER + "\",\"realm\":\"/\"}";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final long latencyMillis;
+	private final byte[] profile;
+
+	/**
+	 * Starts the stub on an ephemeral port of the loopback interface.
+	 *
+	 * @param latencyMillis the latency added to every response, in milliseconds.
+	 * @param payloadSize   the minimum size of the user profiles, in bytes.
+	 * @param threads       the number of threads serving the requests.
+	 * @throws IOException if the server cannot be started.
+	 */
+	LegacyAmStub(long latencyMillis, int payloadSize, int threads) throws IOException {
+		this.latencyMillis = latencyMillis;
+		this.profile = createProfile(payloadSize);
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		server.createContext("/openam/json/authenticate", this::authenticate);
+		server.createContext("/openam/json/sessions", exchange -> respond(exchange, VALID_SESSION.getBytes(UTF_8)));
+		server.createContext("/openam/json/users/", exchange -> respond(exchange, profile));
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return the base URL of the stub, such as
+	 *         <b>http://127.0.0.1:port/openam</b>.
+	 */
+	String getBaseUrl() {
+		return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/openam";
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void authenticate(HttpExchange exchange) throws IOException {
+		boolean credentialsSent = exchange.getRequestHeaders().containsKey("X-OpenAM-Username")
+				|| readBody(exchange) > 0;
+		if (credentialsSent) {
+			exchange.getResponseHeaders().add("Set-Cookie", COOKIE_NAME + "=" + TOKEN_ID + "; Path=/; HttpOnly");
+			respond(exchange, AUTHENTICATED.getBytes(UTF_8));
+		} else {
+			respond(exchange, CALLBACKS.getBytes(UTF_8));
+		}
+	}
+
+	private void respond(HttpExchange exchange, byte[] body) throws IOException {
+		readBody(exchange);
+		if (latencyMillis > 0) {
+			try {
+				Thread.sleep(latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream responseBody = exchange.getResponseBody()) {
+			responseBody.write(body);
+		}
+	}
+
+	private static int readBody(HttpExchange exchange) throws IOException {
+		int length = 0;
+		byte[] buffer = new byte[4096];
+		InputStream requestBody = exchange.getRequestBody();
+		for (int read = requestBody.read(buffer); read > 0; read = requestBody.read(buffer)) {
+			length += read;
+		}
+		return length;
+	}
+
+	private static byte[] createProfile(int payloadSize) {
+		StringBuilder profile = new StringBuilder("{\"username\":\"").append(USER).append("\",")
+				.append("\"uid\":[\"").append(USER).append("\"],").append("\"cn\":[\"Demo User\"],")
+				.append("\"givenName\":[\"Demo\"],").append("\"sn\":[\"User\"],")
+				.append("\"mail\":[\"demo@example.com\"],").append("\"description\":[\"");
+		while (profile.length() < payloadSize - 3) {
+			profile.append('x');
+		}
+		return profile.append("\"]}").toString().getBytes(UTF_8);
+	}
+}
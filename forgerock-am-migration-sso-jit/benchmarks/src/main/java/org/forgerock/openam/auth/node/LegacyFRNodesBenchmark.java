@@ -0,0 +1,214 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.auth.node;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.PASSWORD;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.forgerock.openam.modernize.utils.NodeConstants.LEGACY_COOKIE_SHARED_STATE_PARAM;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.LegacyFRHttpClientProvider;
+import org.forgerock.openam.modernize.legacy.LegacyFRMetrics;
+import org.forgerock.openam.modernize.legacy.LegacySessionValidationCache;
+import org.forgerock.openam.modernize.utils.LegacyFRObjectAttributesHandler;
+import org.forgerock.openam.services.LegacyFRService;
+import org.forgerock.openam.sm.AnnotatedServiceRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Drives the JIT migration nodes against an embedded {@link LegacyAmStub},
+ * measuring the throughput and the latency distribution of each node. The
+ * allocation rate per operation is reported when the GC profiler is enabled, as
+ * done by {@link LegacyFRNodesBenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(8)
+public class LegacyFRNodesBenchmark {
+
+	private static final String USER_PASSWORD = "Password1";
+	private static final Map<String, String> MIGRATION_ATTRIBUTES = ImmutableMap.of("cn", "cn", "givenName",
+			"givenName", "sn", "sn", "mail", "mail");
+
+	/**
+	 * The latency added by the stub to every legacy AM response, in milliseconds.
+	 */
+	@Param({ "0", "5", "50" })
+	public long latencyMillis;
+
+	/**
+	 * The size of the legacy user profiles returned by the stub, in bytes.
+	 */
+	@Param({ "512", "8192", "65536" })
+	public int payloadSize;
+
+	private LegacyAmStub stub;
+	private LegacyFRHttpClientProvider httpClientProvider;
+	private LegacyFRLogin legacyFRLogin;
+	private LegacyFRValidateToken legacyFRValidateToken;
+	private LegacyFRCreateForgeRockUser legacyFRCreateForgeRockUser;
+	private AddAttributesToObjectAttributesNode addAttributesToObjectAttributesNode;
+
+	/**
+	 * Starts the stub and creates the nodes, configured to call it.
+	 *
+	 * @throws Exception if the stub cannot be started.
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		stub = new LegacyAmStub(latencyMillis, payloadSize, 64);
+
+		Realm realm = mock(Realm.class);
+		when(realm.asPath()).thenReturn("/");
+		AnnotatedServiceRegistry serviceRegistry = mock(AnnotatedServiceRegistry.class);
+		when(serviceRegistry.getRealmSingleton(LegacyFRService.class, realm))
+				.thenReturn(Optional.of(legacyFRService(stub.getBaseUrl())));
+
+		LegacyFRMetrics metrics = new LegacyFRMetrics();
+		httpClientProvider = new LegacyFRHttpClientProvider(metrics);
+		legacyFRLogin = new LegacyFRLogin(realm, new LegacyFRLogin.LegacyFRConfig() {
+		}, UUID.randomUUID(), serviceRegistry, httpClientProvider);
+		legacyFRValidateToken = new LegacyFRValidateToken(realm, new LegacyFRValidateToken.LegacyFRConfig() {
+		}, serviceRegistry, httpClientProvider, new LegacySessionValidationCache(metrics));
+		legacyFRCreateForgeRockUser = new LegacyFRCreateForgeRockUser(realm,
+				new LegacyFRCreateForgeRockUser.LegacyFRCreateForgeRockUserConfig() {
+					@Override
+					public Map<String, String> migrationAttributesMap() {
+						return MIGRATION_ATTRIBUTES;
+					}
+
+					@Override
+					public boolean setPasswordReset() {
+						return false;
+					}
+				}, serviceRegistry, httpClientProvider, new LegacyFRObjectAttributesHandler());
+		addAttributesToObjectAttributesNode = new AddAttributesToObjectAttributesNode(
+				new AddAttributesToObjectAttributesNode.Config() {
+					@Override
+					public Map<String, String> attributesList() {
+						return ImmutableMap.of(USERNAME, "userName", PASSWORD, "password");
+					}
+				});
+	}
+
+	/**
+	 * Stops the stub and releases the pooled connections.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		httpClientProvider.shutdown();
+		stub.close();
+	}
+
+	/**
+	 * @return the action of a legacy login.
+	 */
+	@Benchmark
+	public Action legacyFRLogin() {
+		return legacyFRLogin.process(TreeContextFactory.newTreeContext(
+				json(object(field(USERNAME, LegacyAmStub.USER))), json(object(field(PASSWORD, USER_PASSWORD))),
+				Collections.emptyMap()));
+	}
+
+	/**
+	 * @return the action of a legacy session validation.
+	 * @throws NodeProcessException if the node fails
+	 */
+	@Benchmark
+	public Action legacyFRValidateToken() throws NodeProcessException {
+		return legacyFRValidateToken.process(TreeContextFactory.newTreeContext(json(object()), json(object()),
+				Collections.singletonMap(LegacyAmStub.COOKIE_NAME, LegacyAmStub.TOKEN_ID)));
+	}
+
+	/**
+	 * @return the action of a legacy profile migration.
+	 */
+	@Benchmark
+	public Action legacyFRCreateForgeRockUser() {
+		return legacyFRCreateForgeRockUser.process(TreeContextFactory.newTreeContext(
+				json(object(field(USERNAME, LegacyAmStub.USER), field(LEGACY_COOKIE_SHARED_STATE_PARAM,
+						LegacyAmStub.COOKIE_NAME + "=" + LegacyAmStub.TOKEN_ID))),
+				json(object(field(PASSWORD, USER_PASSWORD))), Collections.emptyMap()));
+	}
+
+	/**
+	 * @return the action adding the attributes to the object attributes.
+	 */
+	@Benchmark
+	public Action addAttributesToObjectAttributes() {
+		return addAttributesToObjectAttributesNode.process(TreeContextFactory.newTreeContext(
+				json(object(field(USERNAME, LegacyAmStub.USER))), json(object(field(PASSWORD, USER_PASSWORD))),
+				Collections.emptyMap()));
+	}
+
+	private static LegacyFRService legacyFRService(String baseUrl) {
+		return new LegacyFRService() {
+			@Override
+			public String legacyEnvURL() {
+				return baseUrl + "/json/users/";
+			}
+
+			@Override
+			public String legacyLoginUri() {
+				return baseUrl + "/json/authenticate";
+			}
+
+			@Override
+			public String legacyCookieName() {
+				return LegacyAmStub.COOKIE_NAME;
+			}
+
+			@Override
+			public String checkLegacyTokenUri() {
+				return baseUrl + "/json/sessions?tokenId=";
+			}
+		};
+	}
+}
@@ -0,0 +1,56 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.auth.node;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link LegacyFRNodesBenchmark} with the GC profiler, reporting the
+ * allocation rate per operation, and writes the results as JSON so that runs
+ * before and after a change can be compared. The other JMH command line
+ * options are passed through, for example <b>-p latencyMillis=5</b> or
+ * <b>-rff baseline.json</b>, and all the benchmarks of the class are run unless
+ * some are selected, for example with <b>LegacyFRNodesBenchmark.legacyFRLogin</b>.
+ */
+public final class LegacyFRNodesBenchmarkRunner {
+
+	private LegacyFRNodesBenchmarkRunner() {
+	}
+
+	/**
+	 * Runs the benchmarks.
+	 *
+	 * @param args the JMH command line options.
+	 * @throws CommandLineOptionException if the options are invalid.
+	 * @throws RunnerException            if the benchmarks fail.
+	 */
+	public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+		CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(commandLineOptions).addProfiler(GCProfiler.class).resultFormat(ResultFormatType.JSON);
+		// The includes of the parent are merged with ours, so only default to all the benchmarks when none is given
+		if (commandLineOptions.getIncludes().isEmpty()) {
+			builder.include(LegacyFRNodesBenchmark.class.getSimpleName());
+		}
+		new Runner(builder.build()).run();
+	}
+}
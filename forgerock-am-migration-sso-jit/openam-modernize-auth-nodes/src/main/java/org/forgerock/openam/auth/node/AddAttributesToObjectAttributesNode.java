@@ -18,8 +18,9 @@ package org.forgerock.openam.auth.node;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.OBJECT_ATTRIBUTES;
 
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 
 import javax.inject.Inject;
 
@@ -60,47 +61,57 @@ public class AddAttributesToObjectAttributesNode extends SingleOutcomeNode {
 
 	@Override
 	public Action process(TreeContext context) {
-		JsonValue newSharedState = context.sharedState.copy();
-		JsonValue newTransientState = context.transientState.copy();
-
-		newSharedState = putObjectAttributes(newSharedState);
-		newTransientState = putObjectAttributes(newTransientState);
+		JsonValue newTransientState = putObjectAttributes(context.transientState);
+		JsonValue newSharedState = putObjectAttributes(context.sharedState);
 
 		return goToNext().replaceTransientState(newTransientState).replaceSharedState(newSharedState).build();
 	}
 
 	/**
 	 * Adds attributes defined in config on <b>attributesList</b> to the
-	 * OBJECT_ATTRIBUTES of the shared state or transient state in case it wasn't
-	 * defined already
+	 * OBJECT_ATTRIBUTES of the shared state or transient state.
+	 * <p>
+	 * Only the attributes which are missing or have a different value are added.
+	 * When there are none, the state is returned as is. Otherwise, only the
+	 * OBJECT_ATTRIBUTES are copied and replaced in the state, the other keys of
+	 * the state are left untouched.
+	 * </p>
 	 *
-	 * @param copyState Copy the shared state or transient state
-	 * @return The copied shared/transient state
+	 * @param state The shared state or transient state
+	 * @return The updated shared/transient state
 	 */
-	public JsonValue putObjectAttributes(JsonValue copyState) {
-		// Initialize shared/transient state as map accordingly
-		Map<String, Object> mapSharedState;
-		if (copyState.isDefined(OBJECT_ATTRIBUTES)) {
-			// If object attributes are defined, start with existing object attributes and
-			// preserve them
-			mapSharedState = copyState.get(OBJECT_ATTRIBUTES).asMap();
-		} else {
-			// If object attributes aren't defined, we'll build one with the given
-			// attributes
-			mapSharedState = new HashMap<>();
+	public JsonValue putObjectAttributes(JsonValue state) {
+		if (!state.isMap()) {
+			return state;
 		}
+		JsonValue objectAttributes = state.get(OBJECT_ATTRIBUTES);
+		Map<String, Object> changes = null;
 
 		for (Map.Entry<String, String> entry : config.attributesList().entrySet()) {
 			String key = entry.getKey();
-			String value = entry.getValue();
-
-			if (copyState.isDefined(key)) {
-				mapSharedState.put(value, copyState.get(key).asString());
+			String attribute = entry.getValue();
+
+			if (state.isDefined(key)) {
+				String value = state.get(key).asString();
+				if (!objectAttributes.isDefined(attribute)
+						|| !Objects.equals(value, objectAttributes.get(attribute).getObject())) {
+					if (changes == null) {
+						changes = new LinkedHashMap<>();
+					}
+					changes.put(attribute, value);
+				}
 			}
 		}
 
-		copyState.remove(OBJECT_ATTRIBUTES);
-		copyState.put(OBJECT_ATTRIBUTES, JsonValue.json(mapSharedState));
-		return copyState;
+		if (changes == null) {
+			return state;
+		}
+
+		// Copy on write: the existing object attributes are preserved in a new map
+		Map<String, Object> newObjectAttributes = objectAttributes.isMap()
+				? new LinkedHashMap<>(objectAttributes.asMap())
+				: new LinkedHashMap<>();
+		newObjectAttributes.putAll(changes);
+		return state.put(OBJECT_ATTRIBUTES, newObjectAttributes);
 	}
 }
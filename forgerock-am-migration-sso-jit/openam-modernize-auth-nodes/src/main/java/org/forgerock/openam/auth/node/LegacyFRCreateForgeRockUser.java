@@ -30,9 +30,7 @@ import java.util.Map;
 
 import javax.inject.Inject;
 
-import org.forgerock.http.Client;
 import org.forgerock.http.HttpApplicationException;
-import org.forgerock.http.handler.HttpClientHandler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.json.JsonValue;
@@ -42,6 +40,11 @@ import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.auth.node.base.AbstractLegacyCreateForgeRockUserNode;
 import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.LatencyBudget;
+import org.forgerock.openam.modernize.legacy.LegacyCallRejectedException;
+import org.forgerock.openam.modernize.legacy.LegacyFRHttpClientProvider;
+import org.forgerock.openam.modernize.legacy.LegacyFRMetrics.LegacyCall;
+import org.forgerock.openam.modernize.utils.AttributeMappingPlan;
 import org.forgerock.openam.modernize.utils.LegacyFRObjectAttributesHandler;
 import org.forgerock.openam.services.LegacyFRService;
 import org.forgerock.openam.sm.AnnotatedServiceRegistry;
@@ -63,28 +66,50 @@ public class LegacyFRCreateForgeRockUser extends AbstractLegacyCreateForgeRockUs
 
 	private final Logger logger = LoggerFactory.getLogger(LegacyFRCreateForgeRockUser.class);
 	private final LegacyFRCreateForgeRockUserConfig config;
-	LegacyFRObjectAttributesHandler legacyFRObjectAttributesHandler;
+	private final Realm realm;
+	private final LegacyFRHttpClientProvider httpClientProvider;
+	private final LegacyFRObjectAttributesHandler legacyFRObjectAttributesHandler;
+	private final AttributeMappingPlan mappingPlan;
 	LegacyFRService legacyFRService;
 
 	public interface LegacyFRCreateForgeRockUserConfig extends AbstractLegacyCreateForgeRockUserNode.Config {
 
 		@Attribute(order = 2, validators = { RequiredValueValidator.class })
 		Map<String, String> migrationAttributesMap();
+
+		/**
+		 * Defines the time, in milliseconds, the node may spend waiting for the
+		 * legacy IAM. 0 only bounds the calls with the legacy IAM timeouts.
+		 *
+		 * @return the latency budget in milliseconds
+		 */
+		@Attribute(order = 3)
+		default int legacyLatencyBudget() {
+			return 0;
+		}
 	}
 
 	/**
 	 * Creates a LegacyFRUserAttributesCollector node with the provided
 	 * configuration
 	 *
-	 * @param config          the configuration for this Node.
-	 * @param realm           the realm of the current Node.
-	 * @param serviceRegistry instance of the tree's service config.
+	 * @param config             the configuration for this Node.
+	 * @param realm              the realm of the current Node.
+	 * @param serviceRegistry    instance of the tree's service config.
+	 * @param httpClientProvider the provider of the realm's legacy IAM HTTP
+	 *                           client.
+	 * @param attributesHandler  the handler copying the legacy attributes on the
+	 *                           object attributes.
 	 */
 	@Inject
 	public LegacyFRCreateForgeRockUser(@Assisted Realm realm, @Assisted LegacyFRCreateForgeRockUserConfig config,
-			AnnotatedServiceRegistry serviceRegistry) {
+			AnnotatedServiceRegistry serviceRegistry, LegacyFRHttpClientProvider httpClientProvider,
+			LegacyFRObjectAttributesHandler attributesHandler) {
 		this.config = config;
-		this.legacyFRObjectAttributesHandler = LegacyFRObjectAttributesHandler.getInstance();
+		this.realm = realm;
+		this.httpClientProvider = httpClientProvider;
+		this.legacyFRObjectAttributesHandler = attributesHandler;
+		this.mappingPlan = attributesHandler.getMappingPlan(config.migrationAttributesMap());
 		try {
 			legacyFRService = serviceRegistry.getRealmSingleton(LegacyFRService.class, realm).get();
 		} catch (SSOException | SMSException e) {
@@ -97,23 +122,38 @@ public class LegacyFRCreateForgeRockUser extends AbstractLegacyCreateForgeRockUs
 	 */
 	@Override
 	public Action process(TreeContext context) {
+		Action action = collectUserAttributes(context);
+		httpClientProvider.getMetrics().recordNodeOutcome(LegacyFRCreateForgeRockUser.class.getSimpleName(),
+				action.outcome);
+		return action;
+	}
+
+	/**
+	 * Gets the user's legacy profile and prepares the attributes for migration.
+	 *
+	 * @param context the tree context
+	 * @return the action
+	 */
+	private Action collectUserAttributes(TreeContext context) {
 		logger.info("LegacyFRCreateForgeRockUser::process > Started");
 		String legacyCookie = context.sharedState.get(LEGACY_COOKIE_SHARED_STATE_PARAM).asString();
 		String userName = context.sharedState.get(USERNAME).asString();
 
 		if (legacyCookie != null) {
-			Response response;
 			JsonValue entity;
 
-			try {
-				response = getUser(legacyFRService.legacyEnvURL() + userName, legacyCookie);
-				if (!response.getStatus().isSuccessful()) {
+			LatencyBudget budget = LatencyBudget.start(config.legacyLatencyBudget());
+			try (Response response = getUser(createUserEndpoint(userName), legacyCookie, budget)) {
+				// getUser has already logged why no response could be received
+				if (response == null || !response.getStatus().isSuccessful()) {
 					return goTo(false).build();
 				}
 				entity = JsonValue.json(response.getEntity().getJson());
 				return updateStates(context, entity);
 			} catch (RuntimeException e) {
 				logger.error("LegacyFRCreateForgeRockUser::process > RuntimeException: ", e);
+			} catch (LegacyCallRejectedException e) {
+				logger.warn("LegacyFRCreateForgeRockUser::process > Legacy call rejected: {}", e.getMessage());
 			} catch (IOException e) {
 				logger.error("LegacyFRCreateForgeRockUser::process > IOException: ", e);
 			} catch (InterruptedException e) {
@@ -126,6 +166,22 @@ public class LegacyFRCreateForgeRockUser extends AbstractLegacyCreateForgeRockUs
 		return goTo(false).build();
 	}
 
+	/**
+	 * Builds the legacy profile URL of a user, requesting only the attributes that
+	 * are migrated.
+	 *
+	 * @param userName the username
+	 * @return the legacy profile URL of the user
+	 */
+	private String createUserEndpoint(String userName) {
+		String endpoint = legacyFRService.legacyEnvURL() + userName;
+		String fieldsProjection = mappingPlan.getFieldsProjection();
+		if (fieldsProjection.isEmpty()) {
+			return endpoint;
+		}
+		return endpoint + (endpoint.contains("?") ? "&" : "?") + fieldsProjection;
+	}
+
 	/**
 	 * Updates both the sharedState and the transientState (if it's the case)
 	 * SharedState will receive an OBJECT_ATTRIBUTES object which will contain all
@@ -137,11 +193,10 @@ public class LegacyFRCreateForgeRockUser extends AbstractLegacyCreateForgeRockUs
 	 * @return the action
 	 */
 	public Action updateStates(TreeContext context, JsonValue entity) {
-		JsonValue copySharedState = context.sharedState.copy();
 		Action.ActionBuilder resultedAction = goTo(true);
 
-		JsonValue userAttributes = legacyFRObjectAttributesHandler.updateObjectAttributes(entity, copySharedState,
-				config.migrationAttributesMap());
+		JsonValue userAttributes = legacyFRObjectAttributesHandler.updateObjectAttributes(entity, context.sharedState,
+				mappingPlan);
 		if (config.setPasswordReset()) {
 			JsonValue userAttributesTransientState = setPassword(context);
 
@@ -198,10 +253,14 @@ public class LegacyFRCreateForgeRockUser extends AbstractLegacyCreateForgeRockUs
 	 *
 	 * @param endpoint     the endpoint
 	 * @param legacyCookie the legacy cookie
-	 * @return the client response
-	 * @throws InterruptedException when exception occurs
+	 * @param budget       the latency budget of the node
+	 * @return the client response, which must be closed by the caller, or null if
+	 *         the request could not be sent
+	 * @throws LegacyCallRejectedException when the legacy call is rejected
+	 * @throws InterruptedException        when exception occurs
 	 */
-	public Response getUser(String endpoint, String legacyCookie) throws InterruptedException {
+	public Response getUser(String endpoint, String legacyCookie, LatencyBudget budget)
+			throws LegacyCallRejectedException, InterruptedException {
 		try (Request request = new Request()) {
 			request.setMethod(GET).setUri(endpoint);
 
@@ -209,9 +268,9 @@ public class LegacyFRCreateForgeRockUser extends AbstractLegacyCreateForgeRockUs
 			request.getHeaders().add(CONTENT_TYPE, APPLICATION_JSON);
 			logger.info("LegacyFRCreateForgeRockUser::getUser > Sending request");
 
-			try (HttpClientHandler httpClientHandler = new HttpClientHandler()) {
-				return new Client(httpClientHandler).send(request).getOrThrow();
-			}
+			return httpClientProvider.send(realm, legacyFRService, request, budget, LegacyCall.PROFILE);
+		} catch (LegacyCallRejectedException e) {
+			throw e;
 		} catch (URISyntaxException | HttpApplicationException | IOException e) {
 			logger.error("LegacyFRCreateForgeRockUser::getUser > Failed. Exception: ", e);
 		}
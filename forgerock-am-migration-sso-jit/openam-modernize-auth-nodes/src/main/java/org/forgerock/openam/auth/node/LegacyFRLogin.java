@@ -22,6 +22,8 @@ import static org.forgerock.openam.auth.node.utils.HttpConstants.Headers.API_VER
 import static org.forgerock.openam.auth.node.utils.HttpConstants.Headers.APPLICATION_JSON;
 import static org.forgerock.openam.auth.node.utils.HttpConstants.Headers.CONTENT_TYPE;
 import static org.forgerock.openam.auth.node.utils.HttpConstants.Headers.SET_COOKIE;
+import static org.forgerock.openam.auth.node.utils.HttpConstants.Headers.X_OPENAM_PASSWORD;
+import static org.forgerock.openam.auth.node.utils.HttpConstants.Headers.X_OPENAM_USERNAME;
 import static org.forgerock.openam.auth.node.utils.HttpConstants.Methods.POST;
 import static org.forgerock.openam.modernize.utils.NodeConstants.CALLBACKS_KEY;
 import static org.forgerock.openam.modernize.utils.NodeConstants.CALLBACK_INPUT;
@@ -32,23 +34,28 @@ import static org.forgerock.openam.modernize.utils.NodeConstants.SESSION_LEGACY_
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 import javax.inject.Inject;
 
-import org.forgerock.http.Client;
 import org.forgerock.http.HttpApplicationException;
-import org.forgerock.http.handler.HttpClientHandler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
+import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.auth.node.base.AbstractLegacyLoginNode;
 import org.forgerock.openam.auth.node.treehook.LegacySessionTreeHook;
 import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.LatencyBudget;
+import org.forgerock.openam.modernize.legacy.LegacyCallRejectedException;
+import org.forgerock.openam.modernize.legacy.LegacyFRHttpClientProvider;
+import org.forgerock.openam.modernize.legacy.LegacyFRMetrics.LegacyCall;
 import org.forgerock.openam.services.LegacyFRService;
 import org.forgerock.openam.sm.AnnotatedServiceRegistry;
 import org.slf4j.Logger;
@@ -74,6 +81,8 @@ public class LegacyFRLogin extends AbstractLegacyLoginNode {
 
 	private final LegacyFRConfig config;
 	private final UUID nodeId;
+	private final Realm realm;
+	private final LegacyFRHttpClientProvider httpClientProvider;
 	LegacyFRService legacyFRService;
 
 	/**
@@ -81,23 +90,38 @@ public class LegacyFRLogin extends AbstractLegacyLoginNode {
 	 * {@link AbstractLegacyLoginNode}
 	 */
 	public interface LegacyFRConfig extends AbstractLegacyLoginNode.Config {
+
+		/**
+		 * Defines the time, in milliseconds, the node may spend waiting for the
+		 * legacy IAM. 0 only bounds the calls with the legacy IAM timeouts.
+		 *
+		 * @return the latency budget in milliseconds
+		 */
+		@Attribute(order = 1)
+		default int legacyLatencyBudget() {
+			return 0;
+		}
 	}
 
 	/**
 	 * Creates a LegacyFRLogin node with the provided configuration
 	 *
-	 * @param realm           the current realm of the node.
-	 * @param config          the configuration for this Node.
-	 * @param nodeId          the ID of this node, used to bind the
-	 *                        {@link LegacySessionTreeHook} execution at the end of
-	 *                        the tree.
-	 * @param serviceRegistry instance of the tree's service config.
+	 * @param realm              the current realm of the node.
+	 * @param config             the configuration for this Node.
+	 * @param nodeId             the ID of this node, used to bind the
+	 *                           {@link LegacySessionTreeHook} execution at the end
+	 *                           of the tree.
+	 * @param serviceRegistry    instance of the tree's service config.
+	 * @param httpClientProvider the provider of the realm's legacy IAM HTTP
+	 *                           client.
 	 */
 	@Inject
 	public LegacyFRLogin(@Assisted Realm realm, @Assisted LegacyFRConfig config, @Assisted UUID nodeId,
-			AnnotatedServiceRegistry serviceRegistry) {
+			AnnotatedServiceRegistry serviceRegistry, LegacyFRHttpClientProvider httpClientProvider) {
 		this.config = config;
 		this.nodeId = nodeId;
+		this.realm = realm;
+		this.httpClientProvider = httpClientProvider;
 		try {
 			legacyFRService = serviceRegistry.getRealmSingleton(LegacyFRService.class, realm).get();
 		} catch (SSOException | SMSException e) {
@@ -110,16 +134,29 @@ public class LegacyFRLogin extends AbstractLegacyLoginNode {
 	 */
 	@Override
 	public Action process(TreeContext context) {
+		Action action = login(context);
+		httpClientProvider.getMetrics().recordNodeOutcome(LegacyFRLogin.class.getSimpleName(), action.outcome);
+		return action;
+	}
+
+	/**
+	 * Authenticates the user from the shared state in the legacy IAM.
+	 *
+	 * @param context the tree context
+	 * @return the action
+	 */
+	private Action login(TreeContext context) {
 		String username = context.sharedState.get(USERNAME).asString();
 		String password = context.transientState.get(PASSWORD).asString();
 
-		String callback;
-		String callbackBody;
+		LatencyBudget budget = LatencyBudget.start(config.legacyLatencyBudget());
 		String responseCookie;
 		try {
-			callback = getCallbacks(legacyFRService.legacyLoginUri());
-			callbackBody = createAuthenticationCallbacks(callback, username, password);
-			responseCookie = getLegacyCookie(legacyFRService.legacyLoginUri(), callbackBody);
+			if (Boolean.TRUE.equals(legacyFRService.legacyZeroPageLogin())) {
+				responseCookie = zeroPageLogin(legacyFRService.legacyLoginUri(), username, password, budget);
+			} else {
+				responseCookie = callbackLogin(legacyFRService.legacyLoginUri(), username, password, budget);
+			}
 
 			if (responseCookie != null) {
 				logger.info("LegacyFRLogin::process > Successful login in legacy system.");
@@ -136,30 +173,110 @@ public class LegacyFRLogin extends AbstractLegacyLoginNode {
 		} catch (InterruptedException e) {
 			logger.error("LegacyFRLogin::process > InterruptedException: ", e);
 			Thread.currentThread().interrupt();
+		} catch (LegacyCallRejectedException e) {
+			logger.warn("LegacyFRLogin::process > Legacy call rejected: {}", e.getMessage());
 		} catch (IOException e) {
 			logger.error("LegacyFRLogin::process > IOException: ", e);
 		}
 		return goTo(false).build();
 	}
 
+	/**
+	 * Authenticates the user in the legacy IAM by requesting the authentication
+	 * callbacks, and submitting them filled in with the user credentials.
+	 *
+	 * @param url      the URL for the legacy IAM login service.
+	 * @param username the username that will be authenticated
+	 * @param password the password of the user
+	 * @param budget   the latency budget of the node
+	 * @return the legacy IAM session cookie if successful, <b>null</b> otherwise.
+	 * @throws InterruptedException when exception occurs
+	 * @throws IOException          when exception occurs
+	 */
+	private String callbackLogin(String url, String username, String password, LatencyBudget budget)
+			throws IOException, InterruptedException {
+		String callback = getCallbacks(url, budget);
+		String callbackBody = createAuthenticationCallbacks(callback, username, password);
+		return getLegacyCookie(url, callbackBody, budget);
+	}
+
+	/**
+	 * Authenticates the user in the legacy IAM with a single request, sending the
+	 * credentials in the zero page login headers. Falls back to
+	 * {@link #callbackLogin(String, String, String, LatencyBudget)} when the legacy
+	 * authentication chain asks for more than a username and a password.
+	 *
+	 * @param url      the URL for the legacy IAM login service.
+	 * @param username the username that will be authenticated
+	 * @param password the password of the user
+	 * @param budget   the latency budget of the node
+	 * @return the legacy IAM session cookie if successful, <b>null</b> otherwise.
+	 * @throws InterruptedException when exception occurs
+	 * @throws IOException          when exception occurs
+	 */
+	private String zeroPageLogin(String url, String username, String password, LatencyBudget budget)
+			throws IOException, InterruptedException {
+		try (Request request = new Request()) {
+			request.setMethod(POST).setUri(url);
+
+			request.getHeaders().add(ACCEPT_API_VERSION, API_VERSION);
+			request.getHeaders().add(CONTENT_TYPE, APPLICATION_JSON);
+			request.getHeaders().add(X_OPENAM_USERNAME, encodeHeaderValue(username));
+			request.getHeaders().add(X_OPENAM_PASSWORD, encodeHeaderValue(password));
+
+			try (Response response = httpClientProvider.send(realm, legacyFRService, request, budget,
+					LegacyCall.LOGIN)) {
+				if (!response.getStatus().isSuccessful()) {
+					return null;
+				}
+				String cookie = getCookieFromResponse(response);
+				if (cookie != null || !mapper.readTree(response.getEntity().getString()).has(CALLBACKS_KEY)) {
+					return cookie;
+				}
+			}
+		} catch (URISyntaxException | HttpApplicationException e) {
+			logger.error("LegacyFRLogin::zeroPageLogin > Failed. Exception: ", e);
+			return null;
+		}
+
+		logger.info("LegacyFRLogin::zeroPageLogin > Legacy chain requires callbacks. Using the callback login.");
+		return callbackLogin(url, username, password, budget);
+	}
+
+	/**
+	 * Encodes a zero page login header value as described in RFC 2047, when it
+	 * contains non ASCII characters.
+	 *
+	 * @param value the header value
+	 * @return the value that can be sent in the header
+	 */
+	private static String encodeHeaderValue(String value) {
+		if (StandardCharsets.US_ASCII.newEncoder().canEncode(value)) {
+			return value;
+		}
+		return "=?UTF-8?B?" + Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8)) + "?=";
+	}
+
 	/**
 	 * Initializes communication with the legacy IAM requesting the authentication
 	 * callbacks.
 	 *
-	 * @param url the URL for the legacy IAM login service.
+	 * @param url    the URL for the legacy IAM login service.
+	 * @param budget the latency budget of the node
 	 * @return the authentication callbacks
 	 * @throws InterruptedException when exception occurs
 	 * @throws IOException          when exception occurs
 	 */
-	private String getCallbacks(String url) throws IOException, InterruptedException {
+	private String getCallbacks(String url, LatencyBudget budget) throws IOException, InterruptedException {
 		try (Request request = new Request()) {
 			request.setMethod(POST).setUri(url);
 
 			request.getHeaders().add(ACCEPT_API_VERSION, API_VERSION);
 			request.getHeaders().add(CONTENT_TYPE, APPLICATION_JSON);
 
-			try (HttpClientHandler httpClientHandler = new HttpClientHandler()) {
-				return new Client(httpClientHandler).send(request).getOrThrow().getEntity().getString();
+			try (Response response = httpClientProvider.send(realm, legacyFRService, request, budget,
+					LegacyCall.CALLBACKS)) {
+				return response.getEntity().getString();
 			}
 		} catch (URISyntaxException | HttpApplicationException e) {
 			logger.error("LegacyFRLogin::getCallbacks > Failed. Exception: ", e);
@@ -199,12 +316,13 @@ public class LegacyFRLogin extends AbstractLegacyLoginNode {
 	 * @param jsonBody the authentication callbacks with credentials previously
 	 *                 filled in, and ready to be sent for the authentication
 	 *                 request.
+	 * @param budget   the latency budget of the node
 	 * @return <b>null</b> if no cookie could be found following the authentication
 	 *         request. Otherwise, return the legacy IAM session cookie if
 	 *         successful.
 	 * @throws InterruptedException when exception occurs
 	 */
-	public String getLegacyCookie(String url, String jsonBody) throws InterruptedException {
+	public String getLegacyCookie(String url, String jsonBody, LatencyBudget budget) throws InterruptedException {
 		try (Request request = new Request()) {
 			request.setMethod(POST).setUri(url);
 
@@ -212,19 +330,33 @@ public class LegacyFRLogin extends AbstractLegacyLoginNode {
 			request.getHeaders().add(ACCEPT_API_VERSION, API_VERSION);
 			request.getHeaders().add(CONTENT_TYPE, APPLICATION_JSON);
 
-			try (HttpClientHandler httpClientHandler = new HttpClientHandler()) {
-				Client client = new Client(httpClientHandler);
-				Response responseEntity = client.send(request).getOrThrow();
-
-				Map<String, List<String>> headers = responseEntity.getHeaders().copyAsMultiMapOfStrings();
-				List<String> cookiesSet = headers.get(SET_COOKIE);
-				return cookiesSet.stream().filter(x -> x.contains(legacyFRService.legacyCookieName())).findFirst()
-						.orElse(null);
+			try (Response responseEntity = httpClientProvider.send(realm, legacyFRService, request, budget,
+					LegacyCall.LOGIN)) {
+				return getCookieFromResponse(responseEntity);
 			}
+		} catch (LegacyCallRejectedException e) {
+			logger.warn("LegacyFRLogin::getLegacyCookie > Legacy call rejected: {}", e.getMessage());
 		} catch (URISyntaxException | IOException | HttpApplicationException e) {
 			logger.error("LegacyFRLogin::getLegacyCookie > Failed. Exception: ", e);
 		}
 
 		return null;
 	}
+
+	/**
+	 * Reads the legacy IAM session cookie set by an authentication response.
+	 *
+	 * @param response the authentication response
+	 * @return the legacy IAM session cookie, or <b>null</b> if the response does
+	 *         not set it.
+	 */
+	private String getCookieFromResponse(Response response) {
+		Map<String, List<String>> headers = response.getHeaders().copyAsMultiMapOfStrings();
+		List<String> cookiesSet = headers.get(SET_COOKIE);
+		if (cookiesSet == null) {
+			return null;
+		}
+		return cookiesSet.stream().filter(x -> x.contains(legacyFRService.legacyCookieName())).findFirst()
+				.orElse(null);
+	}
 }
\ No newline at end of file
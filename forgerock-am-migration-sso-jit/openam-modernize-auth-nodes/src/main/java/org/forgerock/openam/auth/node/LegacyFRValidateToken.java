@@ -30,18 +30,23 @@ import java.net.UnknownHostException;
 
 import javax.inject.Inject;
 
-import org.forgerock.http.Client;
 import org.forgerock.http.HttpApplicationException;
-import org.forgerock.http.handler.HttpClientHandler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.json.JsonValue;
+import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.auth.node.base.AbstractValidateTokenNode;
 import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.LatencyBudget;
+import org.forgerock.openam.modernize.legacy.LegacyCallRejectedException;
+import org.forgerock.openam.modernize.legacy.LegacyFRHttpClientProvider;
+import org.forgerock.openam.modernize.legacy.LegacyFRMetrics.LegacyCall;
+import org.forgerock.openam.modernize.legacy.LegacySessionValidationCache;
+import org.forgerock.openam.modernize.legacy.LegacySessionValidationCache.ValidationResult;
 import org.forgerock.openam.services.LegacyFRService;
 import org.forgerock.openam.sm.AnnotatedServiceRegistry;
 import org.slf4j.Logger;
@@ -65,23 +70,44 @@ public class LegacyFRValidateToken extends AbstractValidateTokenNode {
 
 	private final Logger logger = LoggerFactory.getLogger(LegacyFRValidateToken.class);
 	private final LegacyFRConfig config;
+	private final Realm realm;
+	private final LegacyFRHttpClientProvider httpClientProvider;
+	private final LegacySessionValidationCache sessionValidationCache;
 	LegacyFRService legacyFRService;
 
 	public interface LegacyFRConfig extends AbstractValidateTokenNode.Config {
 
+		/**
+		 * Defines the time, in milliseconds, the node may spend waiting for the
+		 * legacy IAM. 0 only bounds the calls with the legacy IAM timeouts.
+		 *
+		 * @return the latency budget in milliseconds
+		 */
+		@Attribute(order = 1)
+		default int legacyLatencyBudget() {
+			return 0;
+		}
 	}
 
 	/**
 	 * Creates a LegacyFRValidateToken node with the provided configuration
 	 *
-	 * @param realm           the current realm of the node.
-	 * @param config          the configuration for this Node.
-	 * @param serviceRegistry instance of the tree's service config.
+	 * @param realm                  the current realm of the node.
+	 * @param config                 the configuration for this Node.
+	 * @param serviceRegistry        instance of the tree's service config.
+	 * @param httpClientProvider     the provider of the realm's legacy IAM HTTP
+	 *                               client.
+	 * @param sessionValidationCache the cache of the legacy session validation
+	 *                               results.
 	 */
 	@Inject
 	public LegacyFRValidateToken(@Assisted Realm realm, @Assisted LegacyFRConfig config,
-			AnnotatedServiceRegistry serviceRegistry) {
+			AnnotatedServiceRegistry serviceRegistry, LegacyFRHttpClientProvider httpClientProvider,
+			LegacySessionValidationCache sessionValidationCache) {
 		this.config = config;
+		this.realm = realm;
+		this.httpClientProvider = httpClientProvider;
+		this.sessionValidationCache = sessionValidationCache;
 		try {
 			legacyFRService = serviceRegistry.getRealmSingleton(LegacyFRService.class, realm).get();
 		} catch (SSOException | SMSException e) {
@@ -94,16 +120,32 @@ public class LegacyFRValidateToken extends AbstractValidateTokenNode {
 	 */
 	@Override
 	public Action process(TreeContext context) throws NodeProcessException {
+		Action action = validateToken(context);
+		httpClientProvider.getMetrics().recordNodeOutcome(LegacyFRValidateToken.class.getSimpleName(),
+				action.outcome);
+		return action;
+	}
+
+	/**
+	 * Validates the legacy IAM cookie of the request.
+	 *
+	 * @param context the tree context
+	 * @return the action
+	 * @throws NodeProcessException when the legacy IAM cannot be called
+	 */
+	private Action validateToken(TreeContext context) throws NodeProcessException {
 		String legacyCookie = context.request.cookies.get(legacyFRService.legacyCookieName());
 		String uid = null;
 		logger.info("LegacyFRValidateToken::process > Start process");
 		logger.info("LegacyFRValidateToken::process > legacyCookie: {}", legacyCookie);
 
 		try {
-			uid = validateLegacySession(legacyCookie);
+			uid = validateLegacySession(legacyCookie, LatencyBudget.start(config.legacyLatencyBudget()));
 		}catch (InterruptedException e) {
 			logger.error("LegacyFRValidateToken::process > InterruptedException: ", e);
 			Thread.currentThread().interrupt();
+		} catch (LegacyCallRejectedException e) {
+			logger.warn("LegacyFRValidateToken::process > Legacy call rejected: {}", e.getMessage());
 		} catch (UnknownHostException e) {
 			logger.error("LegacyFRValidateToken::process > UnknownHostException in async call: ", e);
 		} catch (IOException e) {
@@ -126,37 +168,62 @@ public class LegacyFRValidateToken extends AbstractValidateTokenNode {
 	}
 
 	/**
-	 * Validates a legacy IAM cookie by calling the session validation endpoint.
+	 * Validates a legacy IAM cookie, using the cached validation result if there
+	 * is one, or sharing the result of a concurrent validation of the same cookie.
 	 *
 	 * @param legacyCookie the user's legacy SSO token
+	 * @param budget       the latency budget of the node
 	 * @return the user id if the session is valid, or <b>null</b> if the session is
 	 *         invalid or something unexpected happened.
 	 * @throws InterruptedException when an exception occurs
 	 * @throws IOException          when an exception occurs
 	 */
-	private String validateLegacySession(String legacyCookie) throws InterruptedException, IOException {
+	private String validateLegacySession(String legacyCookie, LatencyBudget budget)
+			throws InterruptedException, IOException {
 		if (legacyCookie != null && legacyCookie.length() > 0) {
-			try (Request request = new Request()) {
-				request.setMethod(POST)
-						.setUri(legacyFRService.checkLegacyTokenUri() + legacyCookie + "&" + SESSION_VALIDATION_ACTION);
-
-				request.getHeaders().add(ACCEPT_API_VERSION, LEGACY_API_VERSION);
-				request.getHeaders().add(CONTENT_TYPE, APPLICATION_JSON);
-
-				try (HttpClientHandler httpClientHandler = new HttpClientHandler()) {
-					Response response = new Client(httpClientHandler).send(request).getOrThrow();
-					JsonValue responseValue = JsonValue.json(response.getEntity().getJson());
-
-					if (Boolean.TRUE.equals(responseValue.get("valid").asBoolean())) {
-						return responseValue.get("uid").asString();
-					}
-				} catch (HttpApplicationException | UnknownHostException e) {
-					logger.error("LegacyFRValidateToken::validateLegacySession > Failed. Exception: ", e);
+			ValidationResult result = sessionValidationCache.validate(realm, legacyFRService, legacyCookie, budget,
+					cookie -> requestLegacySessionValidation(cookie, budget));
+			return result != null ? result.getUid() : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Validates a legacy IAM cookie by calling the session validation endpoint.
+	 *
+	 * @param legacyCookie the user's legacy SSO token
+	 * @param budget       the latency budget of the node
+	 * @return the validation result, or <b>null</b> if the legacy IAM could not
+	 *         tell whether the session is valid.
+	 * @throws InterruptedException when an exception occurs
+	 * @throws IOException          when an exception occurs
+	 */
+	private ValidationResult requestLegacySessionValidation(String legacyCookie, LatencyBudget budget)
+			throws InterruptedException, IOException {
+		try (Request request = new Request()) {
+			request.setMethod(POST)
+					.setUri(legacyFRService.checkLegacyTokenUri() + legacyCookie + "&" + SESSION_VALIDATION_ACTION);
+
+			request.getHeaders().add(ACCEPT_API_VERSION, LEGACY_API_VERSION);
+			request.getHeaders().add(CONTENT_TYPE, APPLICATION_JSON);
+
+			try (Response response = httpClientProvider.send(realm, legacyFRService, request, budget,
+					LegacyCall.SESSION_VALIDATION)) {
+				if (!response.getStatus().isSuccessful()) {
+					return null;
 				}
+				JsonValue responseValue = JsonValue.json(response.getEntity().getJson());
 
-			} catch (URISyntaxException | UnknownHostException e) {
-				logger.error("LegacyFRValidateToken::validateLegacySession > Failed. Exception: ", e);
+				if (Boolean.TRUE.equals(responseValue.get("valid").asBoolean())) {
+					return ValidationResult.valid(responseValue.get("uid").asString());
+				}
+				return ValidationResult.invalid();
+			} catch (HttpApplicationException | UnknownHostException e) {
+				logger.error("LegacyFRValidateToken::requestLegacySessionValidation > Failed. Exception: ", e);
 			}
+
+		} catch (URISyntaxException | UnknownHostException e) {
+			logger.error("LegacyFRValidateToken::requestLegacySessionValidation > Failed. Exception: ", e);
 		}
 		return null;
 	}
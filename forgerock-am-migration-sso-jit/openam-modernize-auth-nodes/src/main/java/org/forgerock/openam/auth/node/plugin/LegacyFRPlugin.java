@@ -18,14 +18,17 @@ package org.forgerock.openam.auth.node.plugin;
 import java.util.Arrays;
 import java.util.Map;
 
+import org.forgerock.guice.core.InjectorHolder;
 import org.forgerock.openam.auth.node.AddAttributesToObjectAttributesNode;
 import org.forgerock.openam.auth.node.LegacyFRCreateForgeRockUser;
 import org.forgerock.openam.auth.node.LegacyFRLogin;
 import org.forgerock.openam.auth.node.LegacyFRValidateToken;
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
 import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.modernize.legacy.LegacyFRHttpClientProvider;
 import org.forgerock.openam.plugins.PluginException;
 import org.forgerock.openam.services.LegacyFRService;
+import org.forgerock.util.thread.listener.ShutdownManager;
 
 import com.google.common.collect.ImmutableMap;
 
@@ -60,6 +63,17 @@ public class LegacyFRPlugin extends AbstractNodeAmPlugin {
 				LegacyFRCreateForgeRockUser.class, AddAttributesToObjectAttributesNode.class));
 	}
 
+	/**
+	 * Registers the nodes, and the closing of the HTTP clients shared by the nodes
+	 * when AM shuts down.
+	 */
+	@Override
+	public void onStartup() throws PluginException {
+		super.onStartup();
+		LegacyFRHttpClientProvider httpClientProvider = InjectorHolder.getInstance(LegacyFRHttpClientProvider.class);
+		InjectorHolder.getInstance(ShutdownManager.class).addShutdownListener(httpClientProvider::shutdown);
+	}
+
 	/**
 	 * This method will be called when the version returned by
 	 * {@link #getPluginVersion()} is higher than the version already installed.
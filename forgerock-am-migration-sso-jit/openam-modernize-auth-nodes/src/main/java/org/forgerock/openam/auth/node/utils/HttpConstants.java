@@ -33,6 +33,8 @@ public final class HttpConstants {
 		public static final String ACCEPT_API_VERSION = "Accept-API-Version";
 		public static final String COOKIE = "Cookie";
 		public static final String SET_COOKIE = "Set-Cookie";
+		public static final String X_OPENAM_USERNAME = "X-OpenAM-Username";
+		public static final String X_OPENAM_PASSWORD = "X-OpenAM-Password";
 
 		// Header values
 		public static final String API_VERSION = "resource=2.0, protocol=1.0";
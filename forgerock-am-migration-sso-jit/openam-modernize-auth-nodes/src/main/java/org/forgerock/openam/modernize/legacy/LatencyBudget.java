@@ -0,0 +1,67 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+/**
+ * The time a node may spend waiting for the legacy IAM, shared by all the
+ * legacy calls made during one execution of the node.
+ */
+public final class LatencyBudget {
+
+	private static final LatencyBudget UNBOUNDED = new LatencyBudget(Long.MAX_VALUE);
+
+	private final long deadline;
+
+	private LatencyBudget(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Starts a budget of the given duration.
+	 *
+	 * @param budgetMillis the budget in milliseconds. 0 or less means that the
+	 *                     calls are only bounded by the HTTP client timeouts.
+	 * @return the started budget.
+	 */
+	public static LatencyBudget start(long budgetMillis) {
+		if (budgetMillis <= 0) {
+			return UNBOUNDED;
+		}
+		return new LatencyBudget(System.currentTimeMillis() + budgetMillis);
+	}
+
+	/**
+	 * @return a budget which does not bound the calls.
+	 */
+	public static LatencyBudget unbounded() {
+		return UNBOUNDED;
+	}
+
+	/**
+	 * @return true if the budget bounds the calls, false otherwise.
+	 */
+	public boolean isBounded() {
+		return deadline != Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return the remaining time in milliseconds, which is 0 when the budget is
+	 *         exhausted.
+	 */
+	public long remainingMillis() {
+		return Math.max(deadline - System.currentTimeMillis(), 0);
+	}
+}
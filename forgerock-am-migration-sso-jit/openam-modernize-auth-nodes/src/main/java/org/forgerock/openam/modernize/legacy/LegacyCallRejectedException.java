@@ -0,0 +1,37 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a call to the legacy IAM is not sent, or is abandoned, because
+ * the circuit breaker of the realm is open or the latency budget of the node is
+ * exhausted.
+ */
+public class LegacyCallRejectedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates a new exception with the given message.
+	 *
+	 * @param message the reason why the call was rejected.
+	 */
+	public LegacyCallRejectedException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,273 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.services.LegacyFRService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Realm-scoped circuit breakers protecting the AM nodes from a degraded legacy
+ * IAM.
+ * <p>
+ * The outcome of the most recent legacy calls of a realm is kept in a window.
+ * Once the window is full, the breaker opens when the failure rate or the slow
+ * call rate reaches its threshold. An open breaker rejects all the calls for
+ * the configured open duration, then becomes half-open and lets a few probe
+ * calls through: it closes when all of them succeed, and opens again as soon as
+ * one of them fails or is slow.
+ * </p>
+ * <p>
+ * The breaker of a realm is rebuilt, closed, when the circuit breaker settings
+ * of the {@link LegacyFRService} change.
+ * </p>
+ */
+public class LegacyFRCircuitBreaker {
+
+	private final Logger logger = LoggerFactory.getLogger(LegacyFRCircuitBreaker.class);
+	private final ConcurrentMap<String, RealmBreaker> breakers = new ConcurrentHashMap<>();
+
+	/**
+	 * Acquires the permission to call the legacy IAM.
+	 *
+	 * @param realm           the realm of the calling node.
+	 * @param legacyFRService the legacy IAM configuration of the realm.
+	 * @return true if the call can be sent, false if the breaker is open.
+	 */
+	public boolean tryAcquire(Realm realm, LegacyFRService legacyFRService) {
+		RealmBreaker breaker = getBreaker(realm, legacyFRService);
+		return breaker == null || breaker.tryAcquire(System.currentTimeMillis());
+	}
+
+	/**
+	 * Records the outcome of a call permitted by
+	 * {@link #tryAcquire(Realm, LegacyFRService)}.
+	 *
+	 * @param realm           the realm of the calling node.
+	 * @param legacyFRService the legacy IAM configuration of the realm.
+	 * @param failed          true if the legacy IAM did not answer or answered
+	 *                        with a server error.
+	 * @param durationMillis  the duration of the call in milliseconds.
+	 */
+	public void record(Realm realm, LegacyFRService legacyFRService, boolean failed, long durationMillis) {
+		RealmBreaker breaker = getBreaker(realm, legacyFRService);
+		if (breaker != null) {
+			breaker.record(failed, durationMillis >= breaker.settings.slowCallDuration, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Returns the state of the breaker of a realm.
+	 *
+	 * @param realm the realm.
+	 * @return the state of the breaker, which is {@link State#CLOSED} when the
+	 *         realm has no breaker.
+	 */
+	public State getState(Realm realm) {
+		RealmBreaker breaker = breakers.get(String.valueOf(realm.asPath()));
+		return breaker == null ? State.CLOSED : breaker.getState();
+	}
+
+	/**
+	 * Counts the realms whose breaker is in the given state.
+	 *
+	 * @param state the state.
+	 * @return the number of realms.
+	 */
+	public long countRealms(State state) {
+		return breakers.values().stream().filter(breaker -> breaker.getState() == state).count();
+	}
+
+	private RealmBreaker getBreaker(Realm realm, LegacyFRService legacyFRService) {
+		BreakerSettings settings = new BreakerSettings(legacyFRService);
+		if (settings.failureRateThreshold <= 0 || settings.windowSize <= 0) {
+			return null;
+		}
+		String realmKey = String.valueOf(realm.asPath());
+		RealmBreaker breaker = breakers.get(realmKey);
+		if (breaker != null && breaker.settings.equals(settings)) {
+			return breaker;
+		}
+		return breakers.compute(realmKey, (key, current) -> current != null && current.settings.equals(settings)
+				? current
+				: new RealmBreaker(key, settings));
+	}
+
+	/**
+	 * The states of a circuit breaker.
+	 */
+	public enum State {
+		/** The calls are sent and their outcome recorded. */
+		CLOSED,
+		/** The calls are rejected. */
+		OPEN,
+		/** Only the probe calls are sent. */
+		HALF_OPEN
+	}
+
+	/**
+	 * The circuit breaker settings of a {@link LegacyFRService}.
+	 */
+	private static final class BreakerSettings {
+		private final int failureRateThreshold;
+		private final int slowCallDuration;
+		private final int slowCallRateThreshold;
+		private final int windowSize;
+		private final int openDuration;
+		private final int halfOpenProbes;
+
+		private BreakerSettings(LegacyFRService legacyFRService) {
+			this.failureRateThreshold = legacyFRService.legacyCircuitBreakerFailureRateThreshold();
+			this.slowCallDuration = legacyFRService.legacyCircuitBreakerSlowCallDuration();
+			this.slowCallRateThreshold = legacyFRService.legacyCircuitBreakerSlowCallRateThreshold();
+			this.windowSize = legacyFRService.legacyCircuitBreakerWindowSize();
+			this.openDuration = legacyFRService.legacyCircuitBreakerOpenDuration();
+			this.halfOpenProbes = Math.max(legacyFRService.legacyCircuitBreakerHalfOpenProbes(), 1);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof BreakerSettings)) {
+				return false;
+			}
+			BreakerSettings that = (BreakerSettings) o;
+			return failureRateThreshold == that.failureRateThreshold && slowCallDuration == that.slowCallDuration
+					&& slowCallRateThreshold == that.slowCallRateThreshold && windowSize == that.windowSize
+					&& openDuration == that.openDuration && halfOpenProbes == that.halfOpenProbes;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(failureRateThreshold, slowCallDuration, slowCallRateThreshold, windowSize,
+					openDuration, halfOpenProbes);
+		}
+	}
+
+	/**
+	 * The breaker of a realm. The window is a ring buffer of the most recent call
+	 * outcomes, with running counts of the failed and slow calls.
+	 */
+	private final class RealmBreaker {
+		private final String realmKey;
+		private final BreakerSettings settings;
+		private final boolean[] failedCalls;
+		private final boolean[] slowCalls;
+		private int next;
+		private int recordedCalls;
+		private int failedCount;
+		private int slowCount;
+		private State state = State.CLOSED;
+		private long openedAt;
+		private int startedProbes;
+		private int succeededProbes;
+
+		private RealmBreaker(String realmKey, BreakerSettings settings) {
+			this.realmKey = realmKey;
+			this.settings = settings;
+			this.failedCalls = new boolean[settings.windowSize];
+			this.slowCalls = new boolean[settings.windowSize];
+		}
+
+		private synchronized State getState() {
+			return state;
+		}
+
+		private synchronized boolean tryAcquire(long now) {
+			if (state == State.OPEN) {
+				if (now - openedAt < SECONDS.toMillis(settings.openDuration)) {
+					return false;
+				}
+				state = State.HALF_OPEN;
+				startedProbes = 0;
+				succeededProbes = 0;
+				logger.info("LegacyFRCircuitBreaker::tryAcquire > Breaker of realm {} is half-open", realmKey);
+			}
+			if (state == State.HALF_OPEN) {
+				if (startedProbes >= settings.halfOpenProbes) {
+					return false;
+				}
+				startedProbes++;
+			}
+			return true;
+		}
+
+		private synchronized void record(boolean failed, boolean slow, long now) {
+			if (state == State.OPEN) {
+				// Late outcome of a call sent before the breaker opened
+				return;
+			}
+			boolean slowCall = slow && settings.slowCallRateThreshold > 0;
+			if (state == State.HALF_OPEN) {
+				if (failed || slowCall) {
+					open(now);
+				} else if (++succeededProbes >= settings.halfOpenProbes) {
+					close();
+				}
+				return;
+			}
+
+			if (recordedCalls == settings.windowSize) {
+				failedCount -= failedCalls[next] ? 1 : 0;
+				slowCount -= slowCalls[next] ? 1 : 0;
+			} else {
+				recordedCalls++;
+			}
+			failedCalls[next] = failed;
+			slowCalls[next] = slowCall;
+			failedCount += failed ? 1 : 0;
+			slowCount += slowCall ? 1 : 0;
+			next = (next + 1) % settings.windowSize;
+
+			if (recordedCalls == settings.windowSize && (isAboveRate(failedCount, settings.failureRateThreshold)
+					|| isAboveRate(slowCount, settings.slowCallRateThreshold))) {
+				open(now);
+			}
+		}
+
+		private boolean isAboveRate(int count, int rateThreshold) {
+			return rateThreshold > 0 && count * 100 >= rateThreshold * recordedCalls;
+		}
+
+		private void open(long now) {
+			state = State.OPEN;
+			openedAt = now;
+			logger.warn("LegacyFRCircuitBreaker::record > Breaker of realm {} is open for {} seconds", realmKey,
+					settings.openDuration);
+		}
+
+		private void close() {
+			state = State.CLOSED;
+			next = 0;
+			recordedCalls = 0;
+			failedCount = 0;
+			slowCount = 0;
+			Arrays.fill(failedCalls, false);
+			Arrays.fill(slowCalls, false);
+			logger.info("LegacyFRCircuitBreaker::record > Breaker of realm {} is closed", realmKey);
+		}
+	}
+}
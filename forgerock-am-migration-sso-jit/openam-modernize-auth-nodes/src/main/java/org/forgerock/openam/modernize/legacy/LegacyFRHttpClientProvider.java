@@ -0,0 +1,352 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.http.Client;
+import org.forgerock.http.HttpApplicationException;
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.http.header.ContentLengthHeader;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.LegacyFRMetrics.LegacyCall;
+import org.forgerock.openam.services.LegacyFRService;
+import org.forgerock.util.Options;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds one long-lived, connection-pooled HTTP client per realm, shared by all
+ * the nodes that call the legacy IAM. Keeping the client (and its SSL context)
+ * alive lets the pooled connections and the TLS sessions be reused between
+ * tree executions.
+ * <p>
+ * The client of a realm is rebuilt when the connection settings of the
+ * {@link LegacyFRService} change, or when it has not been used for longer than
+ * the configured idle timeout, which releases all the idle pooled connections.
+ * A replaced client is only closed once the calls sent through it have
+ * completed.
+ * </p>
+ * <p>
+ * The legacy calls sent through {@link #send(Realm, LegacyFRService, Request, LatencyBudget, LegacyCall)}
+ * are guarded by the {@link LegacyFRCircuitBreaker} of the realm, and bounded by
+ * the latency budget of the calling node.
+ * </p>
+ */
+@Singleton
+public class LegacyFRHttpClientProvider {
+
+	private final Logger logger = LoggerFactory.getLogger(LegacyFRHttpClientProvider.class);
+	private final ConcurrentMap<String, PooledClient> clients = new ConcurrentHashMap<>();
+	private final LegacyFRCircuitBreaker circuitBreaker = new LegacyFRCircuitBreaker();
+	private final LegacyFRMetrics metrics;
+
+	/**
+	 * Creates a provider recording the legacy calls in the given metrics.
+	 *
+	 * @param metrics the metrics of the JIT migration nodes.
+	 */
+	@Inject
+	public LegacyFRHttpClientProvider(LegacyFRMetrics metrics) {
+		this.metrics = metrics;
+		metrics.gauge("HttpClientPool", clients::size, "statistic", "clients");
+		metrics.gauge("HttpClientPool", () -> clients.values().stream()
+				.mapToLong(pooledClient -> pooledClient.settings.maxConnectionsPerRoute).sum(), "statistic",
+				"maxConnectionsPerRoute");
+		metrics.gauge("CircuitBreaker", () -> circuitBreaker.countRealms(LegacyFRCircuitBreaker.State.OPEN),
+				"state", "open");
+	}
+
+	/**
+	 * Returns the HTTP client for the given realm, creating or rebuilding it if
+	 * needed. The client is not accounted for as in use, so it may be closed at
+	 * any time; the calls must go through
+	 * {@link #send(Realm, LegacyFRService, Request, LatencyBudget, LegacyCall)}.
+	 *
+	 * @param realm           the realm of the calling node.
+	 * @param legacyFRService the legacy IAM configuration of the realm.
+	 * @return the shared HTTP client for the realm.
+	 * @throws HttpApplicationException if the HTTP client cannot be created.
+	 */
+	Client getClient(Realm realm, LegacyFRService legacyFRService) throws HttpApplicationException {
+		return getPooledClient(realm, legacyFRService).client;
+	}
+
+	private PooledClient getPooledClient(Realm realm, LegacyFRService legacyFRService)
+			throws HttpApplicationException {
+		String realmKey = String.valueOf(realm.asPath());
+		ClientSettings settings = new ClientSettings(legacyFRService);
+		long now = System.currentTimeMillis();
+
+		PooledClient pooledClient = clients.get(realmKey);
+		if (pooledClient == null || !pooledClient.isUsable(settings, now)) {
+			pooledClient = rebuildClient(realmKey, settings, now);
+		}
+		pooledClient.lastUsed = now;
+		return pooledClient;
+	}
+
+	/**
+	 * Gets the client of the realm for a call, which must then be released. A
+	 * client replaced in the meantime is skipped for the current one.
+	 */
+	private PooledClient acquireClient(Realm realm, LegacyFRService legacyFRService)
+			throws HttpApplicationException {
+		while (true) {
+			PooledClient pooledClient = getPooledClient(realm, legacyFRService);
+			if (pooledClient.tryAcquire()) {
+				return pooledClient;
+			}
+		}
+	}
+
+	private void release(PooledClient pooledClient) {
+		if (pooledClient.release()) {
+			close(pooledClient);
+		}
+	}
+
+	/**
+	 * Sends a request to the legacy IAM with the realm's HTTP client, unless the
+	 * circuit breaker of the realm is open or the latency budget is exhausted. The
+	 * outcome of the call is recorded by the circuit breaker: responses with a
+	 * server error status, including the 502 returned when the legacy IAM cannot
+	 * be reached, and calls exceeding the budget count as failures.
+	 *
+	 * @param realm           the realm of the calling node.
+	 * @param legacyFRService the legacy IAM configuration of the realm.
+	 * @param request         the request to send.
+	 * @param budget          the latency budget of the calling node.
+	 * @param call            the kind of call, under which it is recorded in the
+	 *                        metrics.
+	 * @return the response, which must be closed by the caller.
+	 * @throws LegacyCallRejectedException if the call is rejected by the circuit
+	 *                                     breaker or exceeds the budget.
+	 * @throws HttpApplicationException    if the HTTP client cannot be created.
+	 * @throws InterruptedException        if the calling thread is interrupted.
+	 */
+	public Response send(Realm realm, LegacyFRService legacyFRService, Request request, LatencyBudget budget,
+			LegacyCall call) throws LegacyCallRejectedException, HttpApplicationException, InterruptedException {
+		if (budget.isBounded() && budget.remainingMillis() == 0) {
+			metrics.recordRejectedCall(call);
+			throw new LegacyCallRejectedException("The latency budget is exhausted");
+		}
+		if (!circuitBreaker.tryAcquire(realm, legacyFRService)) {
+			metrics.recordRejectedCall(call);
+			throw new LegacyCallRejectedException("The legacy IAM circuit breaker is open");
+		}
+
+		long start = System.nanoTime();
+		boolean failed = true;
+		long bytesReceived = -1;
+		try {
+			PooledClient pooledClient = acquireClient(realm, legacyFRService);
+			Promise<Response, NeverThrowsException> promise;
+			try {
+				promise = pooledClient.client.send(request);
+			} catch (RuntimeException e) {
+				release(pooledClient);
+				throw e;
+			}
+			promise.thenAlways(() -> release(pooledClient));
+			Response response;
+			if (budget.isBounded()) {
+				try {
+					response = promise.getOrThrow(budget.remainingMillis(), MILLISECONDS);
+				} catch (TimeoutException e) {
+					promise.cancel(true);
+					// A response arriving after the timeout must still release its connection
+					promise.thenOnResult(Response::close);
+					throw new LegacyCallRejectedException("The latency budget was exhausted waiting for the legacy IAM");
+				}
+			} else {
+				response = promise.getOrThrow();
+			}
+			failed = response.getStatus().isServerError();
+			bytesReceived = ContentLengthHeader.valueOf(response).getLength();
+			return response;
+		} finally {
+			long duration = System.nanoTime() - start;
+			circuitBreaker.record(realm, legacyFRService, failed, NANOSECONDS.toMillis(duration));
+			metrics.recordLegacyCall(call, failed, duration, bytesReceived);
+		}
+	}
+
+	/**
+	 * @return the metrics in which the legacy calls are recorded.
+	 */
+	public LegacyFRMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the circuit breakers guarding the legacy calls.
+	 */
+	public LegacyFRCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Closes all the HTTP clients held by this provider. Called by {@link
+	 * org.forgerock.openam.auth.node.plugin.LegacyFRPlugin} when AM shuts down.
+	 */
+	public void shutdown() {
+		clients.values().forEach(this::close);
+		clients.clear();
+	}
+
+	private synchronized PooledClient rebuildClient(String realmKey, ClientSettings settings, long now)
+			throws HttpApplicationException {
+		PooledClient current = clients.get(realmKey);
+		if (current != null && current.isUsable(settings, now)) {
+			// Another thread rebuilt the client in the meantime
+			return current;
+		}
+
+		PooledClient pooledClient = new PooledClient(settings, now);
+		clients.put(realmKey, pooledClient);
+		logger.info("LegacyFRHttpClientProvider::rebuildClient > Created HTTP client for realm {}", realmKey);
+		if (current != null && current.retire()) {
+			close(current);
+		}
+		return pooledClient;
+	}
+
+	private void close(PooledClient pooledClient) {
+		try {
+			pooledClient.httpClientHandler.close();
+		} catch (IOException e) {
+			logger.warn("LegacyFRHttpClientProvider::close > Failed to close HTTP client. Exception: ", e);
+		}
+	}
+
+	/**
+	 * The connection settings of a {@link LegacyFRService} used to build a
+	 * client. Two equal settings can share the same client.
+	 */
+	private static final class ClientSettings {
+		private final int maxConnectionsPerRoute;
+		private final int connectTimeout;
+		private final int readTimeout;
+		private final int idleConnectionTimeout;
+
+		private ClientSettings(LegacyFRService legacyFRService) {
+			this.maxConnectionsPerRoute = legacyFRService.legacyMaxConnectionsPerRoute();
+			this.connectTimeout = legacyFRService.legacyConnectTimeout();
+			this.readTimeout = legacyFRService.legacyReadTimeout();
+			this.idleConnectionTimeout = legacyFRService.legacyIdleConnectionTimeout();
+		}
+
+		private Options toOptions() {
+			return Options.defaultOptions()
+					.set(HttpClientHandler.OPTION_MAX_CONNECTIONS, maxConnectionsPerRoute)
+					.set(HttpClientHandler.OPTION_CONNECT_TIMEOUT, duration(connectTimeout, SECONDS))
+					.set(HttpClientHandler.OPTION_SO_TIMEOUT, duration(readTimeout, SECONDS))
+					.set(HttpClientHandler.OPTION_REUSE_CONNECTIONS, true);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof ClientSettings)) {
+				return false;
+			}
+			ClientSettings that = (ClientSettings) o;
+			return maxConnectionsPerRoute == that.maxConnectionsPerRoute && connectTimeout == that.connectTimeout
+					&& readTimeout == that.readTimeout && idleConnectionTimeout == that.idleConnectionTimeout;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(maxConnectionsPerRoute, connectTimeout, readTimeout, idleConnectionTimeout);
+		}
+	}
+
+	/**
+	 * A realm's HTTP client, together with the settings it was built with, and the
+	 * number of calls in flight through it. Once retired, the client is closed by
+	 * the last of these calls, or right away if there is none.
+	 */
+	private static final class PooledClient {
+		private static final int CLOSED = -1;
+
+		private final ClientSettings settings;
+		private final HttpClientHandler httpClientHandler;
+		private final Client client;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private volatile boolean retired;
+		private volatile long lastUsed;
+
+		private PooledClient(ClientSettings settings, long now) throws HttpApplicationException {
+			this.settings = settings;
+			this.httpClientHandler = new HttpClientHandler(settings.toOptions());
+			this.client = new Client(httpClientHandler);
+			this.lastUsed = now;
+		}
+
+		private boolean isUsable(ClientSettings expectedSettings, long now) {
+			boolean idle = settings.idleConnectionTimeout > 0
+					&& now - lastUsed > SECONDS.toMillis(settings.idleConnectionTimeout);
+			return !idle && settings.equals(expectedSettings);
+		}
+
+		private boolean tryAcquire() {
+			while (true) {
+				int calls = inFlight.get();
+				if (calls == CLOSED) {
+					return false;
+				}
+				if (inFlight.compareAndSet(calls, calls + 1)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return true if the client is retired and must now be closed.
+		 */
+		private boolean release() {
+			return inFlight.decrementAndGet() == 0 && retired && inFlight.compareAndSet(0, CLOSED);
+		}
+
+		/**
+		 * @return true if the client has no call in flight and must now be closed.
+		 */
+		private boolean retire() {
+			retired = true;
+			return inFlight.compareAndSet(0, CLOSED);
+		}
+	}
+}
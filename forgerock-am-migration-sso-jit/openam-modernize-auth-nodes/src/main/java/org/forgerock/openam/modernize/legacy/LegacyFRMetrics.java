@@ -0,0 +1,409 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The metrics of the JIT migration nodes: the count, latency and received bytes
+ * of each kind of legacy IAM call, the outcomes of the nodes, and the
+ * statistics of the caches and connection pools.
+ * <p>
+ * Each metric is published as an MXBean of the platform MBean server, under
+ * the <b>org.forgerock.openam.modernize</b> domain, where it can be read by AM's
+ * JMX monitoring or scraped by the Prometheus JMX exporter.
+ * </p>
+ * <p>
+ * A single instance is bound by the injector and shared by the nodes'
+ * collaborators. A metric published under the same name by another instance,
+ * such as one left over by a previous deployment of the nodes, is replaced.
+ * </p>
+ */
+@Singleton
+public class LegacyFRMetrics {
+
+	static final String DOMAIN = "org.forgerock.openam.modernize";
+	private static final String SUCCESS = "success";
+	private static final String FAILURE = "failure";
+
+	private final Logger logger = LoggerFactory.getLogger(LegacyFRMetrics.class);
+	private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+	/**
+	 * Records a call to the legacy IAM.
+	 *
+	 * @param call          the kind of call.
+	 * @param failed        true if the legacy IAM did not answer or answered with
+	 *                      a server error.
+	 * @param durationNanos the duration of the call in nanoseconds.
+	 * @param bytesReceived the length of the response body, or a negative value
+	 *                      if it is unknown.
+	 */
+	public void recordLegacyCall(LegacyCall call, boolean failed, long durationNanos, long bytesReceived) {
+		String outcome = failed ? FAILURE : SUCCESS;
+		counter("LegacyCall", "call", call.tag, "outcome", outcome).increment();
+		histogram("LegacyCallLatency", "call", call.tag).record(durationNanos);
+		if (bytesReceived > 0) {
+			counter("LegacyBytesReceived", "call", call.tag).add(bytesReceived);
+		}
+	}
+
+	/**
+	 * Records a legacy IAM call rejected by the circuit breaker or the latency
+	 * budget.
+	 *
+	 * @param call the kind of call.
+	 */
+	public void recordRejectedCall(LegacyCall call) {
+		counter("LegacyCall", "call", call.tag, "outcome", "rejected").increment();
+	}
+
+	/**
+	 * Records the outcome of a node execution.
+	 *
+	 * @param node    the node name.
+	 * @param outcome the outcome id.
+	 */
+	public void recordNodeOutcome(String node, String outcome) {
+		counter("NodeOutcome", "node", node, "outcome", outcome).increment();
+	}
+
+	/**
+	 * Records a lookup in a cache.
+	 *
+	 * @param cache the cache name.
+	 * @param hit   true if the value was cached, false otherwise.
+	 */
+	public void recordCacheLookup(String cache, boolean hit) {
+		counter("CacheLookup", "cache", cache, "result", hit ? "hit" : "miss").increment();
+	}
+
+	/**
+	 * Publishes a gauge, unless this instance already published a gauge with the
+	 * same name and tags.
+	 *
+	 * @param name     the gauge name.
+	 * @param supplier the supplier of the gauge value.
+	 * @param tags     the tag names and values, in pairs.
+	 */
+	public void gauge(String name, LongSupplier supplier, String... tags) {
+		getOrRegister(name, tags, () -> new Gauge(supplier));
+	}
+
+	/**
+	 * Returns a counter, publishing it on its first use.
+	 *
+	 * @param name the counter name.
+	 * @param tags the tag names and values, in pairs.
+	 * @return the counter.
+	 */
+	public Counter counter(String name, String... tags) {
+		return (Counter) getOrRegister(name, tags, Counter::new);
+	}
+
+	/**
+	 * Returns a latency histogram, publishing it on its first use.
+	 *
+	 * @param name the histogram name.
+	 * @param tags the tag names and values, in pairs.
+	 * @return the histogram.
+	 */
+	public LatencyHistogram histogram(String name, String... tags) {
+		return (LatencyHistogram) getOrRegister(name, tags, LatencyHistogram::new);
+	}
+
+	private Object getOrRegister(String name, String[] tags, Supplier<Object> factory) {
+		String key = objectName(name, tags);
+		Object metric = metrics.get(key);
+		if (metric != null) {
+			return metric;
+		}
+		return metrics.computeIfAbsent(key, k -> {
+			Object newMetric = factory.get();
+			register(k, newMetric);
+			return newMetric;
+		});
+	}
+
+	private void register(String objectName, Object metric) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(objectName);
+			if (server.isRegistered(name)) {
+				// Published by another instance, such as one left over by a previous deployment of the nodes
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(metric, name);
+		} catch (JMException | RuntimeException e) {
+			logger.warn("LegacyFRMetrics::register > Failed to publish {}. Exception: ", objectName, e);
+		}
+	}
+
+	private static String objectName(String name, String[] tags) {
+		StringBuilder objectName = new StringBuilder(DOMAIN).append(":type=").append(name);
+		for (int i = 0; i + 1 < tags.length; i += 2) {
+			objectName.append(',').append(tags[i]).append('=').append(ObjectName.quote(tags[i + 1]));
+		}
+		return objectName.toString();
+	}
+
+	/**
+	 * The kinds of calls made to the legacy IAM.
+	 */
+	public enum LegacyCall {
+		/** The request of the authentication callbacks. */
+		CALLBACKS("callbacks"),
+		/** The authentication of the user credentials. */
+		LOGIN("login"),
+		/** The validation of a legacy session. */
+		SESSION_VALIDATION("sessionValidation"),
+		/** The request of the user profile. */
+		PROFILE("profile");
+
+		private final String tag;
+
+		LegacyCall(String tag) {
+			this.tag = tag;
+		}
+	}
+
+	/**
+	 * The JMX view of a {@link Counter}.
+	 */
+	public interface CounterMXBean {
+
+		/**
+		 * @return the counter value.
+		 */
+		long getCount();
+	}
+
+	/**
+	 * A monotonic counter.
+	 */
+	public static final class Counter implements CounterMXBean {
+		private final LongAdder count = new LongAdder();
+
+		/**
+		 * Increments the counter.
+		 */
+		public void increment() {
+			count.increment();
+		}
+
+		/**
+		 * Adds a value to the counter.
+		 *
+		 * @param value the value to add.
+		 */
+		public void add(long value) {
+			count.add(value);
+		}
+
+		@Override
+		public long getCount() {
+			return count.sum();
+		}
+	}
+
+	/**
+	 * The JMX view of a {@link Gauge}.
+	 */
+	public interface GaugeMXBean {
+
+		/**
+		 * @return the current gauge value.
+		 */
+		long getValue();
+	}
+
+	/**
+	 * A gauge reading its value when it is published.
+	 */
+	public static final class Gauge implements GaugeMXBean {
+		private final LongSupplier supplier;
+
+		private Gauge(LongSupplier supplier) {
+			this.supplier = supplier;
+		}
+
+		@Override
+		public long getValue() {
+			return supplier.getAsLong();
+		}
+	}
+
+	/**
+	 * The JMX view of a {@link LatencyHistogram}.
+	 */
+	public interface LatencyHistogramMXBean {
+
+		/**
+		 * @return the number of recorded durations.
+		 */
+		long getCount();
+
+		/**
+		 * @return the sum of the recorded durations in milliseconds.
+		 */
+		long getSumMillis();
+
+		/**
+		 * @return the longest recorded duration in milliseconds.
+		 */
+		long getMaxMillis();
+
+		/**
+		 * @return the upper bounds of the buckets in milliseconds. The last bucket
+		 *         has no upper bound.
+		 */
+		long[] getBucketBoundsMillis();
+
+		/**
+		 * @return the number of recorded durations in each bucket.
+		 */
+		long[] getBucketCounts();
+
+		/**
+		 * @return the upper bound of the bucket holding the median duration.
+		 */
+		long getP50Millis();
+
+		/**
+		 * @return the upper bound of the bucket holding the 95th percentile.
+		 */
+		long getP95Millis();
+
+		/**
+		 * @return the upper bound of the bucket holding the 99th percentile.
+		 */
+		long getP99Millis();
+	}
+
+	/**
+	 * A latency histogram with fixed buckets.
+	 */
+	public static final class LatencyHistogram implements LatencyHistogramMXBean {
+		private static final long[] BOUNDS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+		private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+		private final LongAdder sumMillis = new LongAdder();
+		private final LongAccumulator maxMillis = new LongAccumulator(Math::max, 0);
+
+		private LatencyHistogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		/**
+		 * Records a duration.
+		 *
+		 * @param durationNanos the duration in nanoseconds.
+		 */
+		public void record(long durationNanos) {
+			long millis = NANOSECONDS.toMillis(durationNanos);
+			int bucket = 0;
+			while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+				bucket++;
+			}
+			buckets[bucket].increment();
+			sumMillis.add(millis);
+			maxMillis.accumulate(millis);
+		}
+
+		@Override
+		public long getCount() {
+			long count = 0;
+			for (LongAdder bucket : buckets) {
+				count += bucket.sum();
+			}
+			return count;
+		}
+
+		@Override
+		public long getSumMillis() {
+			return sumMillis.sum();
+		}
+
+		@Override
+		public long getMaxMillis() {
+			return maxMillis.get();
+		}
+
+		@Override
+		public long[] getBucketBoundsMillis() {
+			return BOUNDS.clone();
+		}
+
+		@Override
+		public long[] getBucketCounts() {
+			long[] counts = new long[buckets.length];
+			for (int i = 0; i < buckets.length; i++) {
+				counts[i] = buckets[i].sum();
+			}
+			return counts;
+		}
+
+		@Override
+		public long getP50Millis() {
+			return percentile(50);
+		}
+
+		@Override
+		public long getP95Millis() {
+			return percentile(95);
+		}
+
+		@Override
+		public long getP99Millis() {
+			return percentile(99);
+		}
+
+		private long percentile(int percent) {
+			long[] counts = getBucketCounts();
+			long total = 0;
+			for (long count : counts) {
+				total += count;
+			}
+			long rank = (total * percent + 99) / 100;
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (total > 0 && seen >= rank) {
+					return i < BOUNDS.length ? BOUNDS[i] : getMaxMillis();
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,329 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.services.LegacyFRService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+/**
+ * Realm-scoped, size-bounded cache of the legacy IAM session validation
+ * results. Entries are keyed by a SHA-256 digest of the legacy cookie, so the
+ * cookies themselves are never kept in memory.
+ * <p>
+ * Valid sessions are kept for the positive TTL configured in the
+ * {@link LegacyFRService}, and invalid sessions for the (shorter) negative TTL.
+ * A positive TTL of 0 disables the cache. The cache of a realm is rebuilt when
+ * its settings change.
+ * </p>
+ * <p>
+ * Concurrent validations of the same cookie are coalesced: only the first one
+ * calls the legacy IAM, and the others wait for its result, for at most the
+ * remaining latency budget of their node, or the configured connect and read
+ * timeouts when the budget is unbounded.
+ * </p>
+ */
+@Singleton
+public class LegacySessionValidationCache {
+
+	private final Logger logger = LoggerFactory.getLogger(LegacySessionValidationCache.class);
+	private final ConcurrentMap<String, RealmCache> caches = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, CompletableFuture<ValidationResult>> inFlightValidations =
+			new ConcurrentHashMap<>();
+	private final LegacyFRMetrics metrics;
+
+	/**
+	 * Creates a cache recording its statistics in the given metrics.
+	 *
+	 * @param metrics the metrics of the JIT migration nodes.
+	 */
+	@Inject
+	public LegacySessionValidationCache(LegacyFRMetrics metrics) {
+		this.metrics = metrics;
+		metrics.gauge("SessionValidationCache", () -> caches.values().stream()
+				.mapToLong(realmCache -> realmCache.validSessions.size() + realmCache.invalidSessions.size()).sum(),
+				"statistic", "size");
+		metrics.gauge("SessionValidationCache", inFlightValidations::size, "statistic", "inFlight");
+	}
+
+	/**
+	 * Validates a legacy cookie, returning the cached result if there is one.
+	 * Otherwise, the validation is done by the given validator, unless another
+	 * thread is already validating the same cookie, in which case its result is
+	 * awaited and shared.
+	 *
+	 * @param realm           the realm of the calling node.
+	 * @param legacyFRService the legacy IAM configuration of the realm.
+	 * @param legacyCookie    the legacy cookie.
+	 * @param budget          the latency budget of the calling node, bounding the
+	 *                        wait for a concurrent validation.
+	 * @param validator       the call to the legacy IAM validating the cookie.
+	 * @return the validation result, or <b>null</b> if the legacy IAM could not
+	 *         tell whether the session is valid.
+	 * @throws InterruptedException when an exception occurs
+	 * @throws IOException          when an exception occurs
+	 */
+	public ValidationResult validate(Realm realm, LegacyFRService legacyFRService, String legacyCookie,
+			LatencyBudget budget, SessionValidator validator) throws InterruptedException, IOException {
+		ValidationResult result = get(realm, legacyFRService, legacyCookie);
+		metrics.recordCacheLookup("sessionValidation", result != null);
+		if (result != null) {
+			return result;
+		}
+
+		String flightKey = realm.asPath() + "|" + digest(legacyCookie);
+		CompletableFuture<ValidationResult> flight = new CompletableFuture<>();
+		CompletableFuture<ValidationResult> currentFlight = inFlightValidations.putIfAbsent(flightKey, flight);
+		if (currentFlight != null) {
+			metrics.counter("SessionValidationCache", "statistic", "coalesced").increment();
+			return await(currentFlight, legacyFRService, budget);
+		}
+
+		try {
+			result = validator.validate(legacyCookie);
+			if (result != null) {
+				put(realm, legacyFRService, legacyCookie, result);
+			}
+			flight.complete(result);
+			return result;
+		} finally {
+			// Releases the waiters when the validation failed with an exception
+			flight.complete(null);
+			inFlightValidations.remove(flightKey, flight);
+		}
+	}
+
+	private ValidationResult await(CompletableFuture<ValidationResult> flight, LegacyFRService legacyFRService,
+			LatencyBudget budget) throws InterruptedException {
+		long timeoutMillis = budget.isBounded() ? budget.remainingMillis()
+				: SECONDS.toMillis((long) legacyFRService.legacyConnectTimeout() + legacyFRService.legacyReadTimeout());
+		try {
+			return flight.get(timeoutMillis, MILLISECONDS);
+		} catch (TimeoutException e) {
+			logger.warn("LegacySessionValidationCache::await > Timed out waiting for a concurrent validation");
+		} catch (ExecutionException e) {
+			logger.error("LegacySessionValidationCache::await > Concurrent validation failed. Exception: ", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the cached validation result of a legacy cookie.
+	 *
+	 * @param realm           the realm of the calling node.
+	 * @param legacyFRService the legacy IAM configuration of the realm.
+	 * @param legacyCookie    the legacy cookie.
+	 * @return the cached result, or <b>null</b> if the cookie has no cached
+	 *         result.
+	 */
+	public ValidationResult get(Realm realm, LegacyFRService legacyFRService, String legacyCookie) {
+		RealmCache realmCache = getRealmCache(realm, legacyFRService);
+		if (realmCache == null) {
+			return null;
+		}
+		String key = digest(legacyCookie);
+		ValidationResult result = realmCache.validSessions.getIfPresent(key);
+		return result != null ? result : realmCache.invalidSessions.getIfPresent(key);
+	}
+
+	/**
+	 * Caches the validation result of a legacy cookie.
+	 *
+	 * @param realm           the realm of the calling node.
+	 * @param legacyFRService the legacy IAM configuration of the realm.
+	 * @param legacyCookie    the legacy cookie.
+	 * @param result          the result returned by the legacy IAM.
+	 */
+	public void put(Realm realm, LegacyFRService legacyFRService, String legacyCookie, ValidationResult result) {
+		RealmCache realmCache = getRealmCache(realm, legacyFRService);
+		if (realmCache == null) {
+			return;
+		}
+		String key = digest(legacyCookie);
+		if (result.isValid()) {
+			realmCache.invalidSessions.invalidate(key);
+			realmCache.validSessions.put(key, result);
+		} else {
+			realmCache.validSessions.invalidate(key);
+			realmCache.invalidSessions.put(key, result);
+		}
+	}
+
+	/**
+	 * Returns the number of valid and invalid sessions cached for a realm.
+	 *
+	 * @param realm the realm.
+	 * @return the number of cached sessions.
+	 */
+	public long size(Realm realm) {
+		RealmCache realmCache = caches.get(String.valueOf(realm.asPath()));
+		return realmCache == null ? 0 : realmCache.validSessions.size() + realmCache.invalidSessions.size();
+	}
+
+	private RealmCache getRealmCache(Realm realm, LegacyFRService legacyFRService) {
+		CacheSettings settings = new CacheSettings(legacyFRService);
+		if (settings.ttl <= 0 || settings.capacity <= 0) {
+			return null;
+		}
+		String realmKey = String.valueOf(realm.asPath());
+		RealmCache realmCache = caches.get(realmKey);
+		if (realmCache != null && realmCache.settings.equals(settings)) {
+			return realmCache;
+		}
+		return caches.compute(realmKey, (key, current) -> current != null && current.settings.equals(settings)
+				? current
+				: new RealmCache(settings));
+	}
+
+	private static String digest(String legacyCookie) {
+		return Hashing.sha256().hashString(legacyCookie, UTF_8).toString();
+	}
+
+	/**
+	 * A call to the legacy IAM validating a legacy cookie.
+	 */
+	@FunctionalInterface
+	public interface SessionValidator {
+
+		/**
+		 * Validates a legacy cookie.
+		 *
+		 * @param legacyCookie the legacy cookie.
+		 * @return the validation result, or <b>null</b> if the legacy IAM could not
+		 *         tell whether the session is valid.
+		 * @throws InterruptedException when an exception occurs
+		 * @throws IOException          when an exception occurs
+		 */
+		ValidationResult validate(String legacyCookie) throws InterruptedException, IOException;
+	}
+
+	/**
+	 * The outcome of a legacy session validation.
+	 */
+	public static final class ValidationResult {
+		private static final ValidationResult INVALID = new ValidationResult(null);
+
+		private final String uid;
+
+		private ValidationResult(String uid) {
+			this.uid = uid;
+		}
+
+		/**
+		 * Creates the result of a valid session.
+		 *
+		 * @param uid the user id owning the session.
+		 * @return the validation result.
+		 */
+		public static ValidationResult valid(String uid) {
+			return new ValidationResult(uid);
+		}
+
+		/**
+		 * Returns the result of an invalid session.
+		 *
+		 * @return the validation result.
+		 */
+		public static ValidationResult invalid() {
+			return INVALID;
+		}
+
+		/**
+		 * @return true if the legacy session is valid, false otherwise.
+		 */
+		public boolean isValid() {
+			return uid != null;
+		}
+
+		/**
+		 * @return the user id owning the session, or <b>null</b> if the session is
+		 *         invalid.
+		 */
+		public String getUid() {
+			return uid;
+		}
+	}
+
+	/**
+	 * The cache settings of a {@link LegacyFRService}.
+	 */
+	private static final class CacheSettings {
+		private final int ttl;
+		private final int negativeTtl;
+		private final int capacity;
+
+		private CacheSettings(LegacyFRService legacyFRService) {
+			this.ttl = legacyFRService.legacySessionCacheTtl();
+			this.negativeTtl = legacyFRService.legacySessionCacheNegativeTtl();
+			this.capacity = legacyFRService.legacySessionCacheCapacity();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof CacheSettings)) {
+				return false;
+			}
+			CacheSettings that = (CacheSettings) o;
+			return ttl == that.ttl && negativeTtl == that.negativeTtl && capacity == that.capacity;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(ttl, negativeTtl, capacity);
+		}
+	}
+
+	/**
+	 * The valid and invalid sessions cached for a realm.
+	 */
+	private static final class RealmCache {
+		private final CacheSettings settings;
+		private final Cache<String, ValidationResult> validSessions;
+		private final Cache<String, ValidationResult> invalidSessions;
+
+		private RealmCache(CacheSettings settings) {
+			this.settings = settings;
+			this.validSessions = CacheBuilder.newBuilder().maximumSize(settings.capacity)
+					.expireAfterWrite(settings.ttl, SECONDS).build();
+			// A negative TTL of 0 keeps nothing, so invalid sessions are always checked
+			this.invalidSessions = CacheBuilder.newBuilder().maximumSize(settings.capacity)
+					.expireAfterWrite(Math.max(settings.negativeTtl, 0), SECONDS).build();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.utils;
+
+import static org.forgerock.openam.modernize.utils.NodeConstants.FIELDS_QUERY_PARAM;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.forgerock.json.JsonValue;
+
+/**
+ * An immutable plan copying legacy profile attributes to the IDM object
+ * attributes, compiled once from a migration attributes map.
+ * <p>
+ * Multi-valued legacy attributes are migrated with their first value. Legacy
+ * attributes which are missing, null or empty are skipped, leaving the object
+ * attribute unchanged.
+ * </p>
+ */
+public final class AttributeMappingPlan {
+
+	private final String[] legacyAttributes;
+	private final String[] objectAttributes;
+	private final String fieldsProjection;
+
+	private AttributeMappingPlan(String[] legacyAttributes, String[] objectAttributes) {
+		this.legacyAttributes = legacyAttributes;
+		this.objectAttributes = objectAttributes;
+		this.fieldsProjection = legacyAttributes.length == 0 ? ""
+				: FIELDS_QUERY_PARAM + "=" + Stream.of(legacyAttributes)
+						.map(attribute -> URLEncoder.encode(attribute, StandardCharsets.UTF_8))
+						.collect(Collectors.joining(","));
+	}
+
+	/**
+	 * Compiles a migration attributes map into a plan.
+	 *
+	 * @param attrMap map containing the mapping of legacy attribute names to IDM
+	 *                attribute names
+	 * @return the compiled plan
+	 */
+	public static AttributeMappingPlan compile(Map<String, String> attrMap) {
+		Map<String, String> sortedMap = attrMap == null ? new TreeMap<>() : new TreeMap<>(attrMap);
+		return new AttributeMappingPlan(sortedMap.keySet().toArray(new String[0]),
+				sortedMap.values().toArray(new String[0]));
+	}
+
+	/**
+	 * @return true if the plan maps no attribute, false otherwise
+	 */
+	public boolean isEmpty() {
+		return legacyAttributes.length == 0;
+	}
+
+	/**
+	 * @return the <b>_fields</b> query parameter selecting the mapped legacy
+	 *         attributes, or an empty string if no attribute is mapped
+	 */
+	public String getFieldsProjection() {
+		return fieldsProjection;
+	}
+
+	/**
+	 * Copies the mapped legacy attributes to the object attributes.
+	 *
+	 * @param entity           the legacy profile
+	 * @param objectAttributes the object attributes that are updated
+	 * @return the updated object attributes
+	 */
+	public JsonValue apply(JsonValue entity, JsonValue objectAttributes) {
+		for (int i = 0; i < legacyAttributes.length; i++) {
+			String value = firstValue(entity.get(legacyAttributes[i]));
+			if (value != null) {
+				objectAttributes.put(this.objectAttributes[i], value);
+			}
+		}
+		return objectAttributes;
+	}
+
+	private static String firstValue(JsonValue legacyValue) {
+		if (legacyValue.isList()) {
+			return legacyValue.size() > 0 ? firstValue(legacyValue.get(0)) : null;
+		}
+		if (legacyValue.isNull() || legacyValue.isMap()) {
+			return null;
+		}
+		return legacyValue.isString() ? legacyValue.asString() : legacyValue.getObject().toString();
+	}
+}
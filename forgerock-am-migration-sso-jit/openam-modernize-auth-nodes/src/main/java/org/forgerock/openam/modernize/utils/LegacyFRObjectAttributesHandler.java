@@ -19,6 +19,9 @@ import static org.forgerock.openam.auth.node.api.SharedStateConstants.OBJECT_ATT
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.PASSWORD;
 
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import javax.inject.Singleton;
 
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.TreeContext;
@@ -26,79 +29,69 @@ import org.forgerock.openam.utils.JsonValueBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Copies the legacy user attributes on the OBJECT_ATTRIBUTES of the shared
+ * state. The migration attributes maps are compiled into
+ * {@link AttributeMappingPlan}s, which are cached and shared by all the node
+ * executions using the same mapping.
+ */
+@Singleton
 public class LegacyFRObjectAttributesHandler {
 
 	private static final String DEBUG_FILE = "ObjectAttributesHandler";
+	private static final int MAX_CACHED_PLANS = 64;
 	protected Logger logger = LoggerFactory.getLogger(DEBUG_FILE);
 
-	private static LegacyFRObjectAttributesHandler instance = null;
-
-	private LegacyFRObjectAttributesHandler() {
-	}
+	private final Cache<Map<String, String>, AttributeMappingPlan> mappingPlans = CacheBuilder.newBuilder()
+			.maximumSize(MAX_CACHED_PLANS).build();
 
-	public static LegacyFRObjectAttributesHandler getInstance() {
-		if (instance == null) {
-			instance = new LegacyFRObjectAttributesHandler();
+	/**
+	 * Returns the compiled plan of a migration attributes map. Equal maps share
+	 * the same plan, so a changed node configuration gets a new plan.
+	 *
+	 * @param attrMap map containing the mapping of legacy attribute names to IDM
+	 *                attribute names
+	 * @return the compiled plan
+	 */
+	public AttributeMappingPlan getMappingPlan(Map<String, String> attrMap) {
+		Map<String, String> key = attrMap == null ? ImmutableMap.of() : ImmutableMap.copyOf(attrMap);
+		try {
+			return mappingPlans.get(key, () -> AttributeMappingPlan.compile(key));
+		} catch (ExecutionException e) {
+			// Compiling a plan does not throw checked exceptions
+			return AttributeMappingPlan.compile(key);
 		}
-		return instance;
 	}
 
 	/**
 	 * Adds the user attributes on OBJECT_ATTRIBUTES on Shared State
 	 *
 	 * @param entity      the response body
-	 * @param sharedState the shared state
-	 * @param attrMap     map containing the mapping of legacy attribute names to
-	 *                    IDM attribute names
-	 * @return the updated OBJECT_ATTRIBUTES that will be added or updated on Shared
-	 *         State
+	 * @param sharedState the shared state, which is left unchanged
+	 * @param plan        the compiled mapping of legacy attribute names to IDM
+	 *                    attribute names
+	 * @return the updated copy of OBJECT_ATTRIBUTES that will be added or updated
+	 *         on Shared State
 	 */
-	public JsonValue updateObjectAttributes(JsonValue entity, JsonValue sharedState, Map<String, String> attrMap) {
-		JsonValue userAttributes = JsonValueBuilder.jsonValue().build();
-		if (entity.isNull() || attrMap.isEmpty()) {
-			logger.error(
+	public JsonValue updateObjectAttributes(JsonValue entity, JsonValue sharedState, AttributeMappingPlan plan) {
+		if (entity.isNull() || plan.isEmpty()) {
+			logger.warn(
 					"LegacyFRObjectAttributesHandler::updateObjectAttributes > Null entity or Attribute map is empty.");
 			return null;
 		}
 
+		JsonValue userAttributes;
 		if (sharedState.isDefined(OBJECT_ATTRIBUTES)) {
-			userAttributes = sharedState.get(OBJECT_ATTRIBUTES);
-		}
-
-		for (Map.Entry<String, String> entry : attrMap.entrySet()) {
-			String key = entry.getValue();
-			String value = entity.get(entry.getKey()).get(0).asString();
-
-			userAttributes = addAttribute(userAttributes, key, value);
-		}
-
-		logger.error("LegacyFRObjectAttributesHandler::updateObjectAttributes > Successfully added attributes");
-		return userAttributes;
-	}
-
-	/**
-	 * Adds a new attribute on OBJECT_ATTRIBUTES from Shared State
-	 *
-	 * @param objectAttributes the OBJECT_ATTRIBUTES from Shared State
-	 * @param key              the key to be added
-	 * @param value            the value to be added
-	 * @return the string representing the updated OBJECT_ATTRIBUTES from Shared
-	 *         State
-	 */
-	public JsonValue addAttribute(JsonValue objectAttributes, String key, String value) {
-		if (objectAttributes.isDefined(key)) {
-			logger.info("LegacyFRObjectAttributesHandler::addAttribute > the {} is defined", key);
-			String userCn = objectAttributes.get(key).asString();
-			if (!userCn.equals(value)) {
-				objectAttributes.remove(key);
-				objectAttributes.add(key, value);
-			}
+			userAttributes = sharedState.get(OBJECT_ATTRIBUTES).copy();
 		} else {
-			logger.info("LegacyFRObjectAttributesHandler::addAttribute > the {} is not defined", key);
-			objectAttributes.add(key, value);
+			userAttributes = JsonValueBuilder.jsonValue().build();
 		}
-		logger.info("LegacyFRObjectAttributesHandler::addAttribute > added ({}, {}) ", key, value);
-		return objectAttributes;
+
+		return plan.apply(entity, userAttributes);
 	}
 
 	/**
@@ -45,6 +45,7 @@ public final class NodeConstants {
 
 	// URL constants
 	public static final String SESSION_VALIDATION_ACTION = "_action=validate";
+	public static final String FIELDS_QUERY_PARAM = "_fields";
 
 	// Callback constants
 	public static final String CALLBACKS_KEY = "callbacks";
@@ -53,4 +53,160 @@ public interface LegacyFRService {
 	 */
 	@Attribute(order = 103)
 	String checkLegacyTokenUri();
+
+	/**
+	 * Defines the maximum number of pooled connections kept open to the legacy
+	 * IAM, for each route.
+	 *
+	 * @return the maximum number of connections per route
+	 */
+	@Attribute(order = 104)
+	default Integer legacyMaxConnectionsPerRoute() {
+		return 64;
+	}
+
+	/**
+	 * Defines the timeout, in seconds, for opening a connection to the legacy IAM.
+	 *
+	 * @return the connect timeout in seconds
+	 */
+	@Attribute(order = 105)
+	default Integer legacyConnectTimeout() {
+		return 10;
+	}
+
+	/**
+	 * Defines the timeout, in seconds, for reading a response from the legacy
+	 * IAM.
+	 *
+	 * @return the read timeout in seconds
+	 */
+	@Attribute(order = 106)
+	default Integer legacyReadTimeout() {
+		return 10;
+	}
+
+	/**
+	 * Defines the time, in seconds, after which an unused connection pool to the
+	 * legacy IAM is closed. 0 keeps the connections open indefinitely.
+	 *
+	 * @return the idle connection timeout in seconds
+	 */
+	@Attribute(order = 107)
+	default Integer legacyIdleConnectionTimeout() {
+		return 300;
+	}
+
+	/**
+	 * Defines the time, in seconds, for which a valid legacy session validation
+	 * result is cached. 0 disables the cache.
+	 *
+	 * @return the session validation cache TTL in seconds
+	 */
+	@Attribute(order = 108)
+	default Integer legacySessionCacheTtl() {
+		return 0;
+	}
+
+	/**
+	 * Defines the time, in seconds, for which an invalid legacy session
+	 * validation result is cached.
+	 *
+	 * @return the session validation cache negative TTL in seconds
+	 */
+	@Attribute(order = 109)
+	default Integer legacySessionCacheNegativeTtl() {
+		return 5;
+	}
+
+	/**
+	 * Defines the maximum number of legacy session validation results cached.
+	 *
+	 * @return the session validation cache capacity
+	 */
+	@Attribute(order = 110)
+	default Integer legacySessionCacheCapacity() {
+		return 10000;
+	}
+
+	/**
+	 * Defines if the legacy IAM login is done with a single zero page login
+	 * request, instead of the authentication callbacks. The callbacks are still
+	 * used when the legacy authentication chain requires more than a username and
+	 * a password.
+	 *
+	 * @return true to use the zero page login, false otherwise
+	 */
+	@Attribute(order = 111)
+	default Boolean legacyZeroPageLogin() {
+		return false;
+	}
+
+	/**
+	 * Defines the percentage of failed legacy IAM calls, within the circuit
+	 * breaker window, above which the circuit breaker opens. 0 disables the
+	 * circuit breaker.
+	 *
+	 * @return the failure rate threshold in percent
+	 */
+	@Attribute(order = 112)
+	default Integer legacyCircuitBreakerFailureRateThreshold() {
+		return 50;
+	}
+
+	/**
+	 * Defines the duration, in milliseconds, above which a legacy IAM call is
+	 * considered slow by the circuit breaker.
+	 *
+	 * @return the slow call duration threshold in milliseconds
+	 */
+	@Attribute(order = 113)
+	default Integer legacyCircuitBreakerSlowCallDuration() {
+		return 5000;
+	}
+
+	/**
+	 * Defines the percentage of slow legacy IAM calls, within the circuit breaker
+	 * window, above which the circuit breaker opens. 0 ignores the slow calls.
+	 *
+	 * @return the slow call rate threshold in percent
+	 */
+	@Attribute(order = 114)
+	default Integer legacyCircuitBreakerSlowCallRateThreshold() {
+		return 80;
+	}
+
+	/**
+	 * Defines the number of the most recent legacy IAM calls on which the failure
+	 * and slow call rates are computed.
+	 *
+	 * @return the circuit breaker window size
+	 */
+	@Attribute(order = 115)
+	default Integer legacyCircuitBreakerWindowSize() {
+		return 20;
+	}
+
+	/**
+	 * Defines the time, in seconds, for which an open circuit breaker rejects the
+	 * legacy IAM calls, before letting probe calls through.
+	 *
+	 * @return the open state duration in seconds
+	 */
+	@Attribute(order = 116)
+	default Integer legacyCircuitBreakerOpenDuration() {
+		return 30;
+	}
+
+	/**
+	 * Defines the number of probe calls let through by a half-open circuit
+	 * breaker. The circuit breaker closes when all of them succeed, and opens
+	 * again as soon as one of them fails.
+	 *
+	 * @return the number of half-open probe calls
+	 */
+	@Attribute(order = 117)
+	default Integer legacyCircuitBreakerHalfOpenProbes() {
+		return 3;
+	}
 }
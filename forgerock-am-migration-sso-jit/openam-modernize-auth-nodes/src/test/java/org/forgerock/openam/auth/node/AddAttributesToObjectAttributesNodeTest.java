@@ -141,6 +141,49 @@ public class AddAttributesToObjectAttributesNodeTest {
 		Assert.assertEquals(result.sharedState.get(OBJECT_ATTRIBUTES).get("userName").asString(), USER);
 	}
 
+	@Test
+	public void noMatchingAttributeKeepsStatesTestTrue() {
+		// Given
+		sharedState = JsonValue.json(JsonValue.object(JsonValue.field("other", USER),
+				JsonValue.field(OBJECT_ATTRIBUTES, JsonValue.object(JsonValue.field("key", "value")))));
+		transientState = JsonValue.json(JsonValue.object(JsonValue.field(PASSWORD, USER_PASSWORD),
+				JsonValue.field(OBJECT_ATTRIBUTES, JsonValue.object(JsonValue.field(PASSWORD, USER_PASSWORD)))));
+		context = getContext();
+		Object sharedObjectAttributes = sharedState.get(OBJECT_ATTRIBUTES).getObject();
+		Object transientObjectAttributes = transientState.get(OBJECT_ATTRIBUTES).getObject();
+
+		// When
+		AddAttributesToObjectAttributesNode node = new AddAttributesToObjectAttributesNode(
+				generateConfigs().get(COLLECTION));
+
+		// Then
+		Action result = node.process(context);
+
+		Assert.assertSame(result.sharedState.get(OBJECT_ATTRIBUTES).getObject(), sharedObjectAttributes);
+		Assert.assertSame(result.transientState.get(OBJECT_ATTRIBUTES).getObject(), transientObjectAttributes);
+	}
+
+	@Test
+	public void existingObjectAttributesArePreservedTestTrue() {
+		// Given
+		sharedState = JsonValue.json(JsonValue.object(JsonValue.field("username", USER),
+				JsonValue.field(OBJECT_ATTRIBUTES, JsonValue.object(JsonValue.field("key", "value")))));
+		transientState = JsonValue.json(JsonValue.object());
+		context = getContext();
+		Object sharedObjectAttributes = sharedState.get(OBJECT_ATTRIBUTES).getObject();
+
+		// When
+		AddAttributesToObjectAttributesNode node = new AddAttributesToObjectAttributesNode(
+				generateConfigs().get(COLLECTION));
+
+		// Then
+		Action result = node.process(context);
+
+		Assert.assertNotSame(result.sharedState.get(OBJECT_ATTRIBUTES).getObject(), sharedObjectAttributes);
+		Assert.assertEquals(result.sharedState.get(OBJECT_ATTRIBUTES).get("key").asString(), "value");
+		Assert.assertEquals(result.sharedState.get(OBJECT_ATTRIBUTES).get("userName").asString(), USER);
+	}
+
 	private TreeContext getContext() {
 		return new TreeContext(sharedState, transientState, new ExternalRequestContext.Builder().build(),
 				Collections.emptyList(), Optional.empty());
@@ -22,6 +22,7 @@ import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.forgerock.openam.modernize.utils.NodeConstants.LEGACY_COOKIE_SHARED_STATE_PARAM;
 import static org.forgerock.openam.modernize.utils.NodeConstants.USER_NAME;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -38,6 +39,11 @@ import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.ExternalRequestContext;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.LatencyBudget;
+import org.forgerock.openam.modernize.legacy.LegacyFRHttpClientProvider;
+import org.forgerock.openam.modernize.legacy.LegacyFRMetrics;
+import org.forgerock.openam.modernize.utils.AttributeMappingPlan;
+import org.forgerock.openam.modernize.utils.LegacyFRObjectAttributesHandler;
 import org.forgerock.openam.services.LegacyFRService;
 import org.forgerock.openam.sm.AnnotatedServiceRegistry;
 import org.mockito.Mock;
@@ -72,6 +78,12 @@ public class LegacyFRCreateForgeRockUserTest {
 	@Mock
 	Realm realm;
 
+	LegacyFRMetrics metrics = new LegacyFRMetrics();
+
+	LegacyFRHttpClientProvider httpClientProvider = new LegacyFRHttpClientProvider(metrics);
+
+	LegacyFRObjectAttributesHandler attributesHandler = new LegacyFRObjectAttributesHandler();
+
 	private static final String FALSE_OUTCOME = "false";
 	private static final String TRUE_OUTCOME = "true";
 
@@ -98,7 +110,8 @@ public class LegacyFRCreateForgeRockUserTest {
 
 	@Test
 	public void shouldReturnFalseOutcomeWhenNoCookie() {
-		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry);
+		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry,
+				httpClientProvider, attributesHandler);
 
 		assertEquals(FALSE_OUTCOME, node.process(getContextNoCookies()).outcome);
 	}
@@ -108,16 +121,31 @@ public class LegacyFRCreateForgeRockUserTest {
 		given(serviceRegistry.getRealmSingleton(LegacyFRService.class, realm))
 				.willReturn(generateConfigs().get(INVALID_CONFIG));
 
-		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry);
+		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry,
+				httpClientProvider, attributesHandler);
+
+		assertEquals(FALSE_OUTCOME, node.process(getValidContext()).outcome);
+	}
+
+	@Test
+	public void shouldReturnFalseOutcomeWhenNoResponse() {
+		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry,
+				httpClientProvider, attributesHandler) {
+			@Override
+			public Response getUser(String endpoint, String legacyCookie, LatencyBudget budget) {
+				return null;
+			}
+		};
 
 		assertEquals(FALSE_OUTCOME, node.process(getValidContext()).outcome);
 	}
 
 	@Test
 	public void shouldReturnFalseOutcomeWhenWrongCredentials() throws SMSException, SSOException {
-		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry) {
+		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry,
+				httpClientProvider, attributesHandler) {
 			@Override
-			public Response getUser(String endpoint, String legacyCookie) {
+			public Response getUser(String endpoint, String legacyCookie, LatencyBudget budget) {
 				Response response = new Response(Status.OK);
 				ArrayList<String> arrayList = new ArrayList<>();
 				arrayList.add(USER);
@@ -136,9 +164,10 @@ public class LegacyFRCreateForgeRockUserTest {
 	@Test
 	public void shouldReturnTrueOutcomeWhenWhenEndpointAndCredentialsAreCorrectSetPassword()
 			throws SMSException, SSOException {
-		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry) {
+		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry,
+				httpClientProvider, attributesHandler) {
 			@Override
-			public Response getUser(String endpoint, String legacyCookie) {
+			public Response getUser(String endpoint, String legacyCookie, LatencyBudget budget) {
 				Response response = new Response(Status.OK);
 				ArrayList<String> arrayList = new ArrayList<>();
 				arrayList.add(USER);
@@ -157,9 +186,10 @@ public class LegacyFRCreateForgeRockUserTest {
 	@Test
 	public void shouldReturnTrueOutcomeWhenWhenEndpointAndCredentialsAreCorrectSetPasswordObjectAttributesOnSharedState()
 			throws SMSException, SSOException {
-		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry) {
+		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry,
+				httpClientProvider, attributesHandler) {
 			@Override
-			public Response getUser(String endpoint, String legacyCookie) {
+			public Response getUser(String endpoint, String legacyCookie, LatencyBudget budget) {
 				Response response = new Response(Status.OK);
 				ArrayList<String> arrayList = new ArrayList<>();
 				arrayList.add(USER);
@@ -199,9 +229,10 @@ public class LegacyFRCreateForgeRockUserTest {
 			}
 		};
 
-		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry) {
+		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry,
+				httpClientProvider, attributesHandler) {
 			@Override
-			public Response getUser(String endpoint, String legacyCookie) {
+			public Response getUser(String endpoint, String legacyCookie, LatencyBudget budget) {
 				Response response = new Response(Status.OK);
 				ArrayList<String> arrayList = new ArrayList<>();
 				arrayList.add(USER);
@@ -236,9 +267,10 @@ public class LegacyFRCreateForgeRockUserTest {
 			}
 		};
 
-		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry) {
+		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry,
+				httpClientProvider, attributesHandler) {
 			@Override
-			public Response getUser(String endpoint, String legacyCookie) {
+			public Response getUser(String endpoint, String legacyCookie, LatencyBudget budget) {
 				Response response = new Response(Status.OK);
 				ArrayList<String> arrayList = new ArrayList<>();
 				arrayList.add(USER);
@@ -275,9 +307,10 @@ public class LegacyFRCreateForgeRockUserTest {
 			}
 		};
 
-		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry) {
+		LegacyFRCreateForgeRockUser node = new LegacyFRCreateForgeRockUser(realm, config, serviceRegistry,
+				httpClientProvider, attributesHandler) {
 			@Override
-			public Response getUser(String endpoint, String legacyCookie) {
+			public Response getUser(String endpoint, String legacyCookie, LatencyBudget budget) {
 				Response response = new Response(Status.OK);
 				ArrayList<String> arrayList = new ArrayList<>();
 				arrayList.add(USER);
@@ -293,6 +326,33 @@ public class LegacyFRCreateForgeRockUserTest {
 		assertEquals(TRUE_OUTCOME, node.process(getValidContext()).outcome);
 	}
 
+	@Test
+	public void shouldProjectOnlyMigratedAttributes() {
+		assertEquals("_fields=cn,givenName,sn",
+				attributesHandler.getMappingPlan(config.migrationAttributesMap()).getFieldsProjection());
+	}
+
+	@Test
+	public void shouldNotProjectWhenNoAttributeIsMapped() {
+		assertEquals("", AttributeMappingPlan.compile(Collections.emptyMap()).getFieldsProjection());
+	}
+
+	@Test
+	public void shouldMigrateFirstValueAndSkipMissingAttributes() {
+		JsonValue entity = JsonValue.json(JsonValue.object(JsonValue.field("cn", List.of(USER, "other")),
+				JsonValue.field("sn", List.of())));
+		JsonValue sharedState = JsonValue.json(JsonValue.object(
+				JsonValue.field(OBJECT_ATTRIBUTES, JsonValue.object(JsonValue.field("sn", "previous")))));
+
+		JsonValue userAttributes = attributesHandler.updateObjectAttributes(entity, sharedState,
+				attributesHandler.getMappingPlan(config.migrationAttributesMap()));
+
+		assertEquals(USER, userAttributes.get("cn").asString());
+		assertEquals("previous", userAttributes.get("sn").asString());
+		assertFalse(userAttributes.isDefined("givenName"));
+		assertFalse(sharedState.get(OBJECT_ATTRIBUTES).isDefined("cn"));
+	}
+
 	private List<Optional<LegacyFRService>> generateConfigs() {
 		LegacyFRService validConfigService = new LegacyFRService() {
 			@Override
@@ -32,6 +32,9 @@ import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.ExternalRequestContext;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.LatencyBudget;
+import org.forgerock.openam.modernize.legacy.LegacyFRHttpClientProvider;
+import org.forgerock.openam.modernize.legacy.LegacyFRMetrics;
 import org.forgerock.openam.services.LegacyFRService;
 import org.forgerock.openam.sm.AnnotatedServiceRegistry;
 import org.mockito.Mock;
@@ -53,6 +56,10 @@ public class LegacyFRLoginTest {
 	@Mock
 	Realm realm;
 
+	LegacyFRMetrics metrics = new LegacyFRMetrics();
+
+	LegacyFRHttpClientProvider httpClientProvider = new LegacyFRHttpClientProvider(metrics);
+
 	private static final int VALID_CONFIG = 0;
 	private static final int INVALID_HOST_CONFIG = 1;
 	private static final String FALSE_OUTCOME = "false";
@@ -78,14 +85,14 @@ public class LegacyFRLoginTest {
 		given(serviceRegistry.getRealmSingleton(LegacyFRService.class, realm))
 				.willReturn(generateConfigs().get(INVALID_HOST_CONFIG));
 
-		LegacyFRLogin node = new LegacyFRLogin(realm, frConfig, nodeId, serviceRegistry);
+		LegacyFRLogin node = new LegacyFRLogin(realm, frConfig, nodeId, serviceRegistry, httpClientProvider);
 
 		assertEquals(FALSE_OUTCOME, node.process(getValidContext()).outcome);
 	}
 
 	@Test
 	public void shouldReturnTrueOutcomeWhenWhenEndpointAndCredentialsAreCorrect() {
-		LegacyFRLogin node = new LegacyFRLogin(realm, frConfig, nodeId, serviceRegistry);
+		LegacyFRLogin node = new LegacyFRLogin(realm, frConfig, nodeId, serviceRegistry, httpClientProvider);
 
 		assertEquals(FALSE_OUTCOME, node.process(getValidContext()).outcome);
 	}
@@ -95,9 +102,9 @@ public class LegacyFRLoginTest {
 		given(serviceRegistry.getRealmSingleton(LegacyFRService.class, realm))
 				.willReturn(generateConfigs().get(VALID_CONFIG));
 
-		LegacyFRLogin node = new LegacyFRLogin(realm, frConfig, nodeId, serviceRegistry) {
+		LegacyFRLogin node = new LegacyFRLogin(realm, frConfig, nodeId, serviceRegistry, httpClientProvider) {
 			@Override
-			public String getLegacyCookie(String url, String jsonBody) {
+			public String getLegacyCookie(String url, String jsonBody, LatencyBudget budget) {
 				return LEGACY_COOKIE_VALUE;
 			}
 		};
@@ -105,6 +112,44 @@ public class LegacyFRLoginTest {
 		assertEquals(FALSE_OUTCOME, node.process(getValidContext()).outcome);
 	}
 
+	@Test
+	public void shouldReturnFalseOutcomeWhenWrongHostWithZeroPageLogin() throws Exception {
+		LegacyFRService zeroPageConfigService = new LegacyFRService() {
+
+			@Override
+			public String legacyEnvURL() {
+				return "";
+			}
+
+			@Override
+			public String legacyLoginUri() {
+				return WRONG_LOGIN_URI;
+			}
+
+			@Override
+			public String legacyCookieName() {
+				return LEGACY_COOKIE_NAME;
+			}
+
+			@Override
+			public String checkLegacyTokenUri() {
+				return "";
+			}
+
+			@Override
+			public Boolean legacyZeroPageLogin() {
+				return true;
+			}
+
+		};
+		given(serviceRegistry.getRealmSingleton(LegacyFRService.class, realm))
+				.willReturn(Optional.of(zeroPageConfigService));
+
+		LegacyFRLogin node = new LegacyFRLogin(realm, frConfig, nodeId, serviceRegistry, httpClientProvider);
+
+		assertEquals(FALSE_OUTCOME, node.process(getValidContext()).outcome);
+	}
+
 	private List<Optional<LegacyFRService>> generateConfigs() {
 		LegacyFRService configService = new LegacyFRService() {
 
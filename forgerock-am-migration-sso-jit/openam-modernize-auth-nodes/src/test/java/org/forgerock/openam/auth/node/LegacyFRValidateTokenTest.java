@@ -16,6 +16,7 @@
 package org.forgerock.openam.auth.node;
 
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -25,10 +26,15 @@ import java.util.Map;
 import java.util.Optional;
 
 import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.ExternalRequestContext;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.LegacyFRHttpClientProvider;
+import org.forgerock.openam.modernize.legacy.LegacyFRMetrics;
+import org.forgerock.openam.modernize.legacy.LegacySessionValidationCache;
+import org.forgerock.openam.modernize.legacy.LegacySessionValidationCache.ValidationResult;
 import org.forgerock.openam.services.LegacyFRService;
 import org.forgerock.openam.sm.AnnotatedServiceRegistry;
 import org.mockito.Mock;
@@ -49,7 +55,15 @@ public class LegacyFRValidateTokenTest {
 	@Mock
 	Realm realm;
 
+	LegacyFRMetrics metrics = new LegacyFRMetrics();
+
+	LegacyFRHttpClientProvider httpClientProvider = new LegacyFRHttpClientProvider(metrics);
+
+	LegacySessionValidationCache sessionValidationCache = new LegacySessionValidationCache(metrics);
+
 	private static final String FALSE_OUTCOME = "false";
+	private static final String TRUE_OUTCOME = "true";
+	private static final String USER = "demo";
 	private static final String LEGACY_COOKIE_NAME = "iPlanetDirectoryPro";
 	private static final String LEGACY_COOKIE_VALUE = "UUiMtSW6MGbqRvs_UeEyBF2x8Tk.*AAJTSQACMDEAAlNLABxaLzhUTlEyaUxtTnpMdzhKZnhRQkpxSmNiZWs9AAR0eXBlAANDVFMAAlMxAAA.*";
 	private static final String GOOD_LEGACY_TOKEN_URI = "http://localhost:8080/openam/json/sessions?tokenId=";
@@ -67,7 +81,8 @@ public class LegacyFRValidateTokenTest {
 		given(serviceRegistry.getRealmSingleton(LegacyFRService.class, realm))
 				.willReturn(generateConfigs(GOOD_LEGACY_TOKEN_URI));
 
-		LegacyFRValidateToken node = new LegacyFRValidateToken(realm, config, serviceRegistry);
+		LegacyFRValidateToken node = new LegacyFRValidateToken(realm, config, serviceRegistry, httpClientProvider,
+				sessionValidationCache);
 
 		assertEquals(FALSE_OUTCOME, node.process(getContextWithoutCookies()).outcome);
 
@@ -85,7 +100,8 @@ public class LegacyFRValidateTokenTest {
 		given(serviceRegistry.getRealmSingleton(LegacyFRService.class, realm))
 				.willReturn(generateConfigs(GOOD_LEGACY_TOKEN_URI));
 
-		LegacyFRValidateToken node = new LegacyFRValidateToken(realm, config, serviceRegistry);
+		LegacyFRValidateToken node = new LegacyFRValidateToken(realm, config, serviceRegistry, httpClientProvider,
+				sessionValidationCache);
 
 		assertEquals(FALSE_OUTCOME, node.process(getContextWithCookies()).outcome);
 	}
@@ -95,12 +111,45 @@ public class LegacyFRValidateTokenTest {
 		given(serviceRegistry.getRealmSingleton(LegacyFRService.class, realm))
 				.willReturn(generateConfigs(WRONG_LEGACY_TOKEN_URI));
 
-		LegacyFRValidateToken node = new LegacyFRValidateToken(realm, config, serviceRegistry);
+		LegacyFRValidateToken node = new LegacyFRValidateToken(realm, config, serviceRegistry, httpClientProvider,
+				sessionValidationCache);
+
+		assertEquals(FALSE_OUTCOME, node.process(getContextWithCookies()).outcome);
+	}
+
+	@Test
+	public void shouldReturnTrueOutcomeWhenValidSessionIsCached()
+			throws SMSException, SSOException, NodeProcessException {
+		Optional<LegacyFRService> configService = generateConfigs(WRONG_LEGACY_TOKEN_URI, 30);
+		given(serviceRegistry.getRealmSingleton(LegacyFRService.class, realm)).willReturn(configService);
+		sessionValidationCache.put(realm, configService.get(), LEGACY_COOKIE_VALUE, ValidationResult.valid(USER));
+
+		LegacyFRValidateToken node = new LegacyFRValidateToken(realm, config, serviceRegistry, httpClientProvider,
+				sessionValidationCache);
+
+		Action action = node.process(getContextWithCookies());
+		assertEquals(TRUE_OUTCOME, action.outcome);
+		assertEquals(USER, action.sharedState.get(USERNAME).asString());
+	}
+
+	@Test
+	public void shouldReturnFalseOutcomeWhenInvalidSessionIsCached()
+			throws SMSException, SSOException, NodeProcessException {
+		Optional<LegacyFRService> configService = generateConfigs(GOOD_LEGACY_TOKEN_URI, 30);
+		given(serviceRegistry.getRealmSingleton(LegacyFRService.class, realm)).willReturn(configService);
+		sessionValidationCache.put(realm, configService.get(), LEGACY_COOKIE_VALUE, ValidationResult.invalid());
+
+		LegacyFRValidateToken node = new LegacyFRValidateToken(realm, config, serviceRegistry, httpClientProvider,
+				sessionValidationCache);
 
 		assertEquals(FALSE_OUTCOME, node.process(getContextWithCookies()).outcome);
 	}
 
 	private Optional<LegacyFRService> generateConfigs(String legacyTokenUri) {
+		return generateConfigs(legacyTokenUri, 0);
+	}
+
+	private Optional<LegacyFRService> generateConfigs(String legacyTokenUri, int sessionCacheTtl) {
 		LegacyFRService configService = new LegacyFRService() {
 
 			@Override
@@ -123,6 +172,11 @@ public class LegacyFRValidateTokenTest {
 				return legacyTokenUri;
 			}
 
+			@Override
+			public Integer legacySessionCacheTtl() {
+				return sessionCacheTtl;
+			}
+
 		};
 
 		return Optional.of(configService);
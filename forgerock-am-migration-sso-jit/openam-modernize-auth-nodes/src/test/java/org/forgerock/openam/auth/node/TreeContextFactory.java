@@ -19,6 +19,7 @@ import static java.util.Collections.emptyList;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 
+import java.util.Map;
 import java.util.Optional;
 
 import org.forgerock.json.JsonValue;
@@ -58,6 +59,21 @@ final class TreeContextFactory {
 				Optional.of(TEST_UNIVERSAL_ID));
 	}
 
+	/**
+	 * Creates a {@link TreeContext} with the provided shared state, transient
+	 * state and request cookies.
+	 *
+	 * @param sharedState    The shared state to add to the {@link TreeContext}.
+	 * @param transientState The transient state to add to the {@link TreeContext}.
+	 * @param cookies        The cookies of the request.
+	 * @return The {@link TreeContext}.
+	 */
+	static TreeContext newTreeContext(JsonValue sharedState, JsonValue transientState, Map<String, String> cookies) {
+		return new TreeContext(sharedState, transientState, json(object()),
+				new ExternalRequestContext.Builder().cookies(cookies).build(), emptyList(),
+				Optional.of(TEST_UNIVERSAL_ID));
+	}
+
 	/**
 	 * Creates a {@link TreeContext} with the provided shared state and preferred
 	 * locales.
@@ -0,0 +1,163 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.LegacyFRCircuitBreaker.State;
+import org.forgerock.openam.services.LegacyFRService;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LegacyFRCircuitBreakerTest {
+
+	private static final int WINDOW_SIZE = 4;
+	private static final int SLOW_CALL_DURATION = 1000;
+
+	@Mock
+	Realm realm;
+
+	private LegacyFRCircuitBreaker circuitBreaker;
+
+	@BeforeMethod
+	private void setup() {
+		initMocks(this);
+		given(realm.asPath()).willReturn("/legacy");
+		circuitBreaker = new LegacyFRCircuitBreaker();
+	}
+
+	@Test
+	public void shouldOpenWhenFailureRateIsReached() {
+		LegacyFRService configService = generateConfig(0);
+
+		recordCalls(configService, 2, false, 10);
+		recordCalls(configService, 2, true, 10);
+
+		assertEquals(State.OPEN, circuitBreaker.getState(realm));
+		assertFalse(circuitBreaker.tryAcquire(realm, configService));
+	}
+
+	@Test
+	public void shouldOpenWhenSlowCallRateIsReached() {
+		LegacyFRService configService = generateConfig(0);
+
+		recordCalls(configService, WINDOW_SIZE, false, SLOW_CALL_DURATION);
+
+		assertEquals(State.OPEN, circuitBreaker.getState(realm));
+	}
+
+	@Test
+	public void shouldStayClosedBelowThresholds() {
+		LegacyFRService configService = generateConfig(0);
+
+		recordCalls(configService, 3, false, 10);
+		recordCalls(configService, 1, true, SLOW_CALL_DURATION);
+
+		assertEquals(State.CLOSED, circuitBreaker.getState(realm));
+		assertTrue(circuitBreaker.tryAcquire(realm, configService));
+	}
+
+	@Test
+	public void shouldCloseWhenHalfOpenProbesSucceed() {
+		LegacyFRService configService = generateConfig(0);
+		recordCalls(configService, WINDOW_SIZE, true, 10);
+
+		assertTrue(circuitBreaker.tryAcquire(realm, configService));
+		assertEquals(State.HALF_OPEN, circuitBreaker.getState(realm));
+		assertFalse(circuitBreaker.tryAcquire(realm, configService));
+		circuitBreaker.record(realm, configService, false, 10);
+
+		assertEquals(State.CLOSED, circuitBreaker.getState(realm));
+	}
+
+	@Test
+	public void shouldReopenWhenHalfOpenProbeFails() {
+		LegacyFRService configService = generateConfig(0);
+		recordCalls(configService, WINDOW_SIZE, true, 10);
+
+		assertTrue(circuitBreaker.tryAcquire(realm, configService));
+		circuitBreaker.record(realm, configService, true, 10);
+
+		assertEquals(State.OPEN, circuitBreaker.getState(realm));
+	}
+
+	@Test
+	public void shouldRejectWhileOpen() {
+		LegacyFRService configService = generateConfig(30);
+		recordCalls(configService, WINDOW_SIZE, true, 10);
+
+		assertFalse(circuitBreaker.tryAcquire(realm, configService));
+		assertEquals(State.OPEN, circuitBreaker.getState(realm));
+	}
+
+	private void recordCalls(LegacyFRService configService, int calls, boolean failed, long durationMillis) {
+		for (int i = 0; i < calls; i++) {
+			assertTrue(circuitBreaker.tryAcquire(realm, configService));
+			circuitBreaker.record(realm, configService, failed, durationMillis);
+		}
+	}
+
+	private LegacyFRService generateConfig(int openDuration) {
+		return new LegacyFRService() {
+
+			@Override
+			public String legacyEnvURL() {
+				return "";
+			}
+
+			@Override
+			public String legacyLoginUri() {
+				return "";
+			}
+
+			@Override
+			public String legacyCookieName() {
+				return "";
+			}
+
+			@Override
+			public String checkLegacyTokenUri() {
+				return "";
+			}
+
+			@Override
+			public Integer legacyCircuitBreakerSlowCallDuration() {
+				return SLOW_CALL_DURATION;
+			}
+
+			@Override
+			public Integer legacyCircuitBreakerWindowSize() {
+				return WINDOW_SIZE;
+			}
+
+			@Override
+			public Integer legacyCircuitBreakerOpenDuration() {
+				return openDuration;
+			}
+
+			@Override
+			public Integer legacyCircuitBreakerHalfOpenProbes() {
+				return 1;
+			}
+		};
+	}
+}
@@ -0,0 +1,100 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import org.forgerock.http.HttpApplicationException;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.services.LegacyFRService;
+import org.mockito.Mock;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LegacyFRHttpClientProviderTest {
+
+	@Mock
+	Realm realm;
+
+	@Mock
+	Realm otherRealm;
+
+	private final LegacyFRMetrics metrics = new LegacyFRMetrics();
+	private LegacyFRHttpClientProvider provider;
+
+	@BeforeMethod
+	private void setup() {
+		initMocks(this);
+		given(realm.asPath()).willReturn("/legacy");
+		given(otherRealm.asPath()).willReturn("/other");
+		provider = new LegacyFRHttpClientProvider(metrics);
+	}
+
+	@AfterMethod
+	private void tearDown() {
+		provider.shutdown();
+	}
+
+	@Test
+	public void shouldReuseClientForSameRealmAndSettings() throws HttpApplicationException {
+		assertSame(provider.getClient(realm, generateConfig(10)), provider.getClient(realm, generateConfig(10)));
+	}
+
+	@Test
+	public void shouldUseDistinctClientsForDistinctRealms() throws HttpApplicationException {
+		assertNotSame(provider.getClient(realm, generateConfig(10)),
+				provider.getClient(otherRealm, generateConfig(10)));
+	}
+
+	@Test
+	public void shouldRebuildClientWhenSettingsChange() throws HttpApplicationException {
+		assertNotSame(provider.getClient(realm, generateConfig(10)), provider.getClient(realm, generateConfig(20)));
+	}
+
+	private LegacyFRService generateConfig(int readTimeout) {
+		return new LegacyFRService() {
+
+			@Override
+			public String legacyEnvURL() {
+				return "";
+			}
+
+			@Override
+			public String legacyLoginUri() {
+				return "";
+			}
+
+			@Override
+			public String legacyCookieName() {
+				return "";
+			}
+
+			@Override
+			public String checkLegacyTokenUri() {
+				return "";
+			}
+
+			@Override
+			public Integer legacyReadTimeout() {
+				return readTimeout;
+			}
+		};
+	}
+}
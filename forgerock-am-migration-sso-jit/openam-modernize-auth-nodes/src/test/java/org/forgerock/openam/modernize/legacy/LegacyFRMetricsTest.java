@@ -0,0 +1,95 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.forgerock.openam.modernize.legacy.LegacyFRMetrics.LatencyHistogram;
+import org.forgerock.openam.modernize.legacy.LegacyFRMetrics.LegacyCall;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LegacyFRMetricsTest {
+
+	private LegacyFRMetrics metrics;
+
+	@BeforeMethod
+	private void setup() {
+		metrics = new LegacyFRMetrics();
+	}
+
+	@Test
+	public void shouldPublishLegacyCallsThroughJmx() throws Exception {
+		metrics.recordLegacyCall(LegacyCall.LOGIN, false, MILLISECONDS.toNanos(20), 512);
+		metrics.recordLegacyCall(LegacyCall.LOGIN, false, MILLISECONDS.toNanos(40), 512);
+		metrics.recordLegacyCall(LegacyCall.LOGIN, true, MILLISECONDS.toNanos(60), -1);
+
+		assertEquals(2, readCount("type=LegacyCall,call=\"login\",outcome=\"success\""));
+		assertEquals(1, readCount("type=LegacyCall,call=\"login\",outcome=\"failure\""));
+		assertEquals(1024, readCount("type=LegacyBytesReceived,call=\"login\""));
+		assertEquals(3, readCount("type=LegacyCallLatency,call=\"login\""));
+	}
+
+	@Test
+	public void shouldReplaceMetricsPublishedByAnotherInstance() throws Exception {
+		LegacyFRMetrics previousMetrics = new LegacyFRMetrics();
+		previousMetrics.gauge("Test", () -> 1, "case", "replaced");
+
+		metrics.gauge("Test", () -> 2, "case", "replaced");
+
+		assertEquals(2L, readAttribute("type=Test,case=\"replaced\"", "Value"));
+	}
+
+	@Test
+	public void shouldComputePercentilesFromBuckets() {
+		LatencyHistogram histogram = metrics.histogram("Test", "case", "percentiles");
+		for (int i = 0; i < 98; i++) {
+			histogram.record(MILLISECONDS.toNanos(3));
+		}
+		histogram.record(MILLISECONDS.toNanos(400));
+		histogram.record(MILLISECONDS.toNanos(20000));
+
+		assertEquals(5, histogram.getP50Millis());
+		assertEquals(5, histogram.getP95Millis());
+		assertEquals(500, histogram.getP99Millis());
+		assertEquals(20000, histogram.getMaxMillis());
+	}
+
+	@Test
+	public void shouldPublishGauges() throws Exception {
+		metrics.gauge("Test", () -> 42, "case", "gauge");
+
+		assertEquals(42L, readAttribute("type=Test,case=\"gauge\"", "Value"));
+	}
+
+	private static long readCount(String properties) throws Exception {
+		ObjectName name = new ObjectName(LegacyFRMetrics.DOMAIN + ":" + properties);
+		if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+			return 0;
+		}
+		return (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Count");
+	}
+
+	private static Object readAttribute(String properties, String attribute) throws Exception {
+		return ManagementFactory.getPlatformMBeanServer()
+				.getAttribute(new ObjectName(LegacyFRMetrics.DOMAIN + ":" + properties), attribute);
+	}
+}
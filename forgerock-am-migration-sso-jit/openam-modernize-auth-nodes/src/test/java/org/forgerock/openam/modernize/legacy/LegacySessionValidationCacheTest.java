@@ -0,0 +1,208 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.LegacySessionValidationCache.ValidationResult;
+import org.forgerock.openam.services.LegacyFRService;
+import org.mockito.Mock;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LegacySessionValidationCacheTest {
+
+	private static final String LEGACY_COOKIE = "AQIC5wM2LY4SfcxNzY0MjQ3NzE4MDA2MDQ2ODA0.*";
+	private static final String USER = "demo";
+
+	@Mock
+	Realm realm;
+
+	private final LegacyFRMetrics metrics = new LegacyFRMetrics();
+	private LegacySessionValidationCache cache;
+	private ExecutorService executor;
+
+	@BeforeMethod
+	private void setup() {
+		initMocks(this);
+		given(realm.asPath()).willReturn("/legacy");
+		cache = new LegacySessionValidationCache(metrics);
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@AfterMethod
+	private void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void shouldReturnCachedResultWithoutCallingValidator() throws Exception {
+		LegacyFRService configService = generateConfig(30);
+		AtomicInteger calls = new AtomicInteger();
+
+		cache.validate(realm, configService, LEGACY_COOKIE, LatencyBudget.unbounded(), cookie -> {
+			calls.incrementAndGet();
+			return ValidationResult.valid(USER);
+		});
+		ValidationResult result = cache.validate(realm, configService, LEGACY_COOKIE, LatencyBudget.unbounded(),
+				cookie -> {
+					calls.incrementAndGet();
+					return ValidationResult.valid(USER);
+				});
+
+		assertEquals(USER, result.getUid());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void shouldShareInFlightValidationWithConcurrentCaller() throws Exception {
+		LegacyFRService configService = generateConfig(0);
+		CountDownLatch validationStarted = new CountDownLatch(1);
+		CountDownLatch releaseValidation = new CountDownLatch(1);
+		AtomicInteger calls = new AtomicInteger();
+
+		Future<ValidationResult> leader = executor.submit(() -> cache.validate(realm, configService, LEGACY_COOKIE,
+				LatencyBudget.unbounded(), cookie -> {
+					calls.incrementAndGet();
+					validationStarted.countDown();
+					releaseValidation.await();
+					return ValidationResult.valid(USER);
+				}));
+		assertTrue(validationStarted.await(5, SECONDS));
+
+		Thread releaser = new Thread(() -> {
+			sleepQuietly();
+			releaseValidation.countDown();
+		});
+		releaser.start();
+		ValidationResult result = cache.validate(realm, configService, LEGACY_COOKIE, LatencyBudget.unbounded(),
+				cookie -> {
+					calls.incrementAndGet();
+					return ValidationResult.invalid();
+				});
+
+		assertEquals(USER, result.getUid());
+		assertEquals(USER, leader.get(5, SECONDS).getUid());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void shouldReleaseWaitersWhenValidationFails() throws Exception {
+		LegacyFRService configService = generateConfig(0);
+		CountDownLatch validationStarted = new CountDownLatch(1);
+		CountDownLatch releaseValidation = new CountDownLatch(1);
+
+		Future<ValidationResult> leader = executor.submit(() -> cache.validate(realm, configService, LEGACY_COOKIE,
+				LatencyBudget.unbounded(), cookie -> {
+					validationStarted.countDown();
+					releaseValidation.await();
+					throw new IOException("Legacy IAM unavailable");
+				}));
+		assertTrue(validationStarted.await(5, SECONDS));
+
+		Thread releaser = new Thread(() -> {
+			sleepQuietly();
+			releaseValidation.countDown();
+		});
+		releaser.start();
+
+		assertNull(cache.validate(realm, configService, LEGACY_COOKIE, LatencyBudget.unbounded(),
+				cookie -> ValidationResult.valid(USER)));
+		try {
+			leader.get(5, SECONDS);
+			fail("The failed validation should be reported to its caller");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	public void shouldWaitForConcurrentValidationWithinBudget() throws Exception {
+		LegacyFRService configService = generateConfig(0);
+		CountDownLatch validationStarted = new CountDownLatch(1);
+		CountDownLatch releaseValidation = new CountDownLatch(1);
+
+		Future<ValidationResult> leader = executor.submit(() -> cache.validate(realm, configService, LEGACY_COOKIE,
+				LatencyBudget.unbounded(), cookie -> {
+					validationStarted.countDown();
+					releaseValidation.await();
+					return ValidationResult.valid(USER);
+				}));
+		assertTrue(validationStarted.await(5, SECONDS));
+
+		long start = System.currentTimeMillis();
+		assertNull(cache.validate(realm, configService, LEGACY_COOKIE, LatencyBudget.start(100),
+				cookie -> ValidationResult.invalid()));
+		assertTrue(System.currentTimeMillis() - start < SECONDS.toMillis(5));
+
+		releaseValidation.countDown();
+		assertEquals(USER, leader.get(5, SECONDS).getUid());
+	}
+
+	private static void sleepQuietly() {
+		try {
+			Thread.sleep(500);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private LegacyFRService generateConfig(int sessionCacheTtl) {
+		return new LegacyFRService() {
+
+			@Override
+			public String legacyEnvURL() {
+				return "";
+			}
+
+			@Override
+			public String legacyLoginUri() {
+				return "";
+			}
+
+			@Override
+			public String legacyCookieName() {
+				return "";
+			}
+
+			@Override
+			public String checkLegacyTokenUri() {
+				return "";
+			}
+
+			@Override
+			public Integer legacySessionCacheTtl() {
+				return sessionCacheTtl;
+			}
+		};
+	}
+}
@@ -17,6 +17,7 @@ package org.forgerock.openam.auth.node;
 
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.OBJECT_ATTRIBUTES;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.forgerock.openam.modernize.utils.NodeConstants.LEGACY_USER_DN_SHARED_STATE_PARAM;
 
 import java.util.Map;
 import java.util.Vector;
@@ -31,6 +32,7 @@ import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.auth.node.base.AbstractLegacyCreateForgeRockUserNode;
 import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.SmDirectorySession;
 import org.forgerock.openam.modernize.legacy.SmSdkUtils;
 import org.forgerock.openam.modernize.utils.LegacySMVObjectAttributesHandler;
 import org.forgerock.openam.secrets.Secrets;
@@ -39,33 +41,22 @@ import org.forgerock.openam.services.SiteminderService;
 import org.forgerock.openam.sm.AnnotatedServiceRegistry;
 import org.forgerock.secrets.NoSuchSecretException;
 import org.forgerock.secrets.Purpose;
+import org.forgerock.util.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.inject.assistedinject.Assisted;
 import com.iplanet.sso.SSOException;
-import com.netegrity.sdk.apiutil.SmApiConnection;
 import com.netegrity.sdk.apiutil.SmApiException;
 import com.netegrity.sdk.apiutil.SmApiResult;
-import com.netegrity.sdk.apiutil.SmApiSession;
-import com.netegrity.sdk.dmsapi.SmDmsApi;
-import com.netegrity.sdk.dmsapi.SmDmsApiImpl;
-import com.netegrity.sdk.dmsapi.SmDmsConfig;
 import com.netegrity.sdk.dmsapi.SmDmsDirectory;
 import com.netegrity.sdk.dmsapi.SmDmsDirectoryContext;
 import com.netegrity.sdk.dmsapi.SmDmsObject;
 import com.netegrity.sdk.dmsapi.SmDmsOrganization;
 import com.netegrity.sdk.dmsapi.SmDmsSearch;
-import com.netegrity.sdk.policyapi.SmPolicyApi;
-import com.netegrity.sdk.policyapi.SmPolicyApiImpl;
-import com.netegrity.sdk.policyapi.SmUserDirectory;
 import com.sun.identity.sm.RequiredValueValidator;
 import com.sun.identity.sm.SMSException;
 
-import netegrity.siteminder.javaagent.AgentAPI;
-import netegrity.siteminder.javaagent.InitDef;
-import netegrity.siteminder.javaagent.ServerDef;
-
 /**
  * <p>
  * A node which creates a user in ForgeRock IDM by calling the user endpoint
@@ -78,6 +69,7 @@ public class LegacySMCreateForgeRockUser extends AbstractLegacyCreateForgeRockUs
 
 	private static final Logger logger = LoggerFactory.getLogger(LegacySMCreateForgeRockUser.class);
 	private final LegacyFRConfig config;
+	private final Realm realm;
 
 	private String webAgentSecret;
 	private String smAdminPassword;
@@ -98,6 +90,18 @@ public class LegacySMCreateForgeRockUser extends AbstractLegacyCreateForgeRockUs
 		@Attribute(order = 250, validators = { RequiredValueValidator.class })
 		Map<String, String> migrationAttributesMap();
 
+		/**
+		 * Specifies if the user is read directly by the distinguished name that the
+		 * legacy IAM nodes put on the shared state, instead of being searched from
+		 * the user directory root.
+		 *
+		 * @return true to read the user by distinguished name, false otherwise
+		 */
+		@Attribute(order = 260)
+		default boolean lookupUserByDn() {
+			return true;
+		}
+
 	}
 
 	/**
@@ -113,6 +117,7 @@ public class LegacySMCreateForgeRockUser extends AbstractLegacyCreateForgeRockUs
 	public LegacySMCreateForgeRockUser(@Assisted LegacyFRConfig config, @Assisted Realm realm, Secrets secrets,
 			AnnotatedServiceRegistry serviceRegistry) throws NodeProcessException {
 		this.config = config;
+		this.realm = realm;
 		this.legacySMVObjectAttributesHandler = LegacySMVObjectAttributesHandler.getInstance();
 		SecretsProviderFacade secretsProvider = secrets.getRealmSecrets(realm);
 		try {
@@ -150,9 +155,13 @@ public class LegacySMCreateForgeRockUser extends AbstractLegacyCreateForgeRockUs
 		}
 
 		String userName = context.sharedState.get(USERNAME).asString();
+		String userDn = null;
+		if (config.lookupUserByDn()) {
+			userDn = context.sharedState.get(LEGACY_USER_DN_SHARED_STATE_PARAM).asString();
+		}
 		Map<String, String> userAttributes;
 		try {
-			userAttributes = getUserAttributes(userName);
+			userAttributes = getUserAttributes(userName, userDn);
 
 			if (userAttributes != null) {
 				return updateStates(context, userName, userAttributes);
@@ -210,98 +219,85 @@ public class LegacySMCreateForgeRockUser extends AbstractLegacyCreateForgeRockUs
 	}
 
 	/**
-	 * Gets a user's attributes from the Siteminder directory.
+	 * Gets a user's attributes from the Siteminder directory, through the
+	 * administrator session shared by the nodes of the realm. The user is read by
+	 * distinguished name when it is known, and searched by user name otherwise.
 	 *
 	 * @param userName the user retrieved from the shared state
+	 * @param userDn   the distinguished name of the user retrieved from the shared
+	 *                 state, or null if it is unknown
 	 * @return a map of user attributes, in the format expected by ForgeRock IDM
 	 * @throws SmApiException when an exception occurs
 	 */
-	private Map<String, String> getUserAttributes(String userName) throws SmApiException {
-		// Initialize AgentAPI
-		AgentAPI agentapi = new AgentAPI();
-		ServerDef serverDefinition;
-		InitDef initDefinition = new InitDef();
-
-		// Create SM server and init definitions
-		if (siteminderService.is4xAgent()) {
-			logger.info(
-					"LegacySMCreateForgeRockUser::getUserAttributes > Configuring AgentAPI for using a 4.x web agent.");
-			serverDefinition = SmSdkUtils.createServerDefinition(siteminderService);
-			initDefinition = SmSdkUtils.createInitDefinition(siteminderService.webAgentName(), webAgentSecret, false,
-					serverDefinition);
-		} else {
-			logger.info(
-					"LegacySMCreateForgeRockUser::getUserAttributes > Configuring AgentAPI for using a > 4.x web agent.");
-			int configStatus = agentapi.getConfig(initDefinition, siteminderService.webAgentName(),
-					siteminderService.smHostFilePath());
-			logger.info("LegacySMCreateForgeRockUser::getUserAttributes > getConfig returned status: {}", configStatus);
+	private Map<String, String> getUserAttributes(String userName, String userDn) throws SmApiException {
+		SmDirectorySession directorySession = getDirectorySession();
+		SmDmsObject dmsObj = null;
+		if (userDn != null) {
+			dmsObj = directorySession.execute(dirContext -> readUser(dirContext, userDn));
 		}
-
-		int retCode = agentapi.init(initDefinition);
-
-		if (retCode != AgentAPI.SUCCESS) {
-			logger.error("LegacySMCreateForgeRockUser::getUserAttributes > AgentAPI init failed with return code: {}",
-					retCode);
+		if (dmsObj == null) {
+			dmsObj = directorySession.execute(dirContext -> searchUser(dirContext, userName));
+		}
+		if (dmsObj == null) {
 			return null;
-		} else if (siteminderService.debug()) {
-			logger.info("LegacySMCreateForgeRockUser::getUserAttributes > AgentAPI init SUCCESS.");
 		}
+		return SmSdkUtils.getUserAttributes(dmsObj, config.migrationAttributesMap(), siteminderService.debug());
+	}
 
-		// Connection to the policy server
-		return connectToThePolicyServer(agentapi, userName);
+	/**
+	 * @return the administrator sessions, shared by the nodes of the realm, on
+	 *         which the user directory is read
+	 */
+	SmDirectorySession getDirectorySession() {
+		return SmDirectorySession.forRealm(realm.asPath(), siteminderService, webAgentSecret, smAdminPassword);
 	}
 
 	/**
-	 * Connect to the policy server and get a user's attributes from the Siteminder
-	 * directory.
+	 * Reads a user from the Siteminder directory by distinguished name, with a
+	 * base scope search on the user entry itself. No entry at the distinguished
+	 * name, for instance when the user was renamed or moved since its session was
+	 * created, is an empty result rather than an error, so that the user is
+	 * searched by name right away, on the same session.
 	 *
-	 * @param agent    the agent API
-	 * @param userName the user retrieved from the shared state
-	 * @return a map of user attributes, in the format expected by ForgeRock IDM
+	 * @param dirContext the DMS context of the user directory
+	 * @param userDn     the distinguished name of the user
+	 * @return the result of the search, and the user object, or null if the user
+	 *         was not found
 	 * @throws SmApiException when an exception occurs
 	 */
-	public Map<String, String> connectToThePolicyServer(AgentAPI agent, String userName) throws SmApiException {
-		SmApiConnection apiConnection = new SmApiConnection(agent);
-		SmApiSession apiSession = new SmApiSession(apiConnection);
-		boolean loginResult = SmSdkUtils.adminLogin(apiSession, siteminderService.smAdminUser(),
-				smAdminPassword.toCharArray());
-		logger.info("LegacySMCreateForgeRockUser::connectToThePolicyServer > adminLogin result: {}", loginResult);
-
-		// Get a list of user directories the admin can manage.
-		SmPolicyApi policyApi = new SmPolicyApiImpl(apiSession);
-		Vector<Object> userDirs = new Vector<>();
-
-		// Returns the list of directory names.
-		SmApiResult result = policyApi.getAdminUserDirs(siteminderService.smAdminUser(), userDirs);
-		if (siteminderService.debug()) {
-			SmSdkUtils.printObject(userDirs, result);
-		}
-
-		// Check if the USER_DIR can be found in the list and if found assign it here
-		SmUserDirectory userDir = null;
-		for (Object ob : userDirs) {
-			String dir = (String) ob;
-			if (dir.equals(siteminderService.smUserDirectory())) {
-				userDir = new SmUserDirectory(siteminderService.smUserDirectory());
-				result = policyApi.getUserDirectory(siteminderService.smUserDirectory(), userDir);
-				if (siteminderService.debug()) {
-					SmSdkUtils.printObject(userDir, result);
-				}
-			}
-		}
+	Pair<SmApiResult, SmDmsObject> readUser(SmDmsDirectoryContext dirContext, String userDn)
+			throws SmApiException {
+		SmDmsDirectory dmsDirectory = dirContext.getDmsDirectory();
+		SmDmsOrganization dmsOrg = dmsDirectory.newOrganization(siteminderService.smDirectoryRoot());
+		SmDmsSearch search = new SmDmsSearch("(objectclass=" + siteminderService.smUserSearchClass() + ")", userDn);
 
-		SmDmsApi dmsApi = new SmDmsApiImpl(apiSession);
-		SmDmsDirectoryContext dirContext = new SmDmsDirectoryContext();
-		result = dmsApi.getDirectoryContext(userDir, new SmDmsConfig(), dirContext);
+		// Only the entry of the user
+		search.setScope(0);
+		search.setNextItem(0);
+		search.setMaxItems(1);
+		search.setPreviousItem(0);
+		search.setMaxResults(1);
 
+		SmApiResult result = dmsOrg.search(search, 1);
 		if (!result.isSuccess()) {
-			logger.error("LegacySMCreateForgeRockUser::connectToThePolicyServer > getDirectoryContext STATUS_NOK");
-			agent.unInit();
+			logger.info("LegacySMCreateForgeRockUser::readUser > No such object: {}", userDn);
 			return null;
-		} else {
-			logger.info("LegacySMCreateForgeRockUser::connectToThePolicyServer > getDirectoryContext STATUS_OK");
 		}
+		SmDmsObject dmsObj = getSingleResult(search, result);
+		return Pair.of(result, dmsObj);
+	}
 
+	/**
+	 * Searches a user in the Siteminder directory.
+	 *
+	 * @param dirContext the DMS context of the user directory
+	 * @param userName   the user retrieved from the shared state
+	 * @return the result of the search, and the user object, or null if the user
+	 *         was not found
+	 * @throws SmApiException when an exception occurs
+	 */
+	Pair<SmApiResult, SmDmsObject> searchUser(SmDmsDirectoryContext dirContext, String userName)
+			throws SmApiException {
 		SmDmsDirectory dmsDirectory = dirContext.getDmsDirectory();
 		SmDmsOrganization dmsOrg = dmsDirectory.newOrganization(siteminderService.smDirectoryRoot());
 		String dmsSearch = "(&(objectclass=" + siteminderService.smUserSearchClass() + ") ("
@@ -323,19 +319,30 @@ public class LegacySMCreateForgeRockUser extends AbstractLegacyCreateForgeRockUs
 		// Max items in the result set
 		search.setMaxResults(1);
 
-		result = dmsOrg.search(search, 1);
+		SmApiResult result = dmsOrg.search(search, 1);
+		SmDmsObject dmsObj = getSingleResult(search, result);
+		return Pair.of(result, dmsObj);
+	}
+
+	/**
+	 * Gets the single user object found by a search.
+	 *
+	 * @param search the search made
+	 * @param result the result of the search
+	 * @return the user object, or null if the search did not find exactly one
+	 *         object
+	 */
+	private SmDmsObject getSingleResult(SmDmsSearch search, SmApiResult result) {
 		Vector<Object> vsearch = search.getResults();
 		vsearch.remove(0);
-		SmDmsObject dmsObj;
+		SmDmsObject dmsObj = null;
 		if (vsearch.size() == 1) {
 			dmsObj = (SmDmsObject) vsearch.get(0);
-			logger.info("LegacySMCreateForgeRockUser::connectToThePolicyServer > found object: {}", dmsObj);
+			logger.info("LegacySMCreateForgeRockUser::getSingleResult > found object: {}", dmsObj);
 			if (siteminderService.debug()) {
 				SmSdkUtils.printObject(dmsObj, result);
 			}
-			agent.unInit();
-			return SmSdkUtils.getUserAttributes(dmsObj, config.migrationAttributesMap(), siteminderService.debug());
 		}
-		return null;
+		return dmsObj;
 	}
-}
\ No newline at end of file
+}
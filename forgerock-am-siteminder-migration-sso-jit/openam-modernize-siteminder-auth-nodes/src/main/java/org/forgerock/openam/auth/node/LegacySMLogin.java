@@ -18,6 +18,7 @@ package org.forgerock.openam.auth.node;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.PASSWORD;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.forgerock.openam.modernize.utils.NodeConstants.LEGACY_COOKIE_SHARED_STATE_PARAM;
+import static org.forgerock.openam.modernize.utils.NodeConstants.LEGACY_USER_DN_SHARED_STATE_PARAM;
 import static org.forgerock.openam.modernize.utils.NodeConstants.SESSION_LEGACY_COOKIE_DOMAIN;
 
 import java.util.Enumeration;
@@ -25,6 +26,7 @@ import java.util.UUID;
 
 import javax.inject.Inject;
 
+import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
@@ -33,6 +35,8 @@ import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.auth.node.base.AbstractLegacyLoginNode;
 import org.forgerock.openam.auth.node.treehook.LegacySessionTreeHook;
 import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.AgentApiPool;
+import org.forgerock.openam.modernize.legacy.ProtectedResourceCache;
 import org.forgerock.openam.modernize.legacy.SmSdkUtils;
 import org.forgerock.openam.secrets.Secrets;
 import org.forgerock.openam.secrets.SecretsProviderFacade;
@@ -66,6 +70,7 @@ public class LegacySMLogin extends AbstractLegacyLoginNode {
 	private static final Logger LOGGER = LoggerFactory.getLogger(LegacySMLogin.class);
 	private final LegacyFRConfig config;
 	private final UUID nodeId;
+	private final Realm realm;
 	private String webAgentSecret;
 	SiteminderService siteminderService;
 
@@ -89,6 +94,7 @@ public class LegacySMLogin extends AbstractLegacyLoginNode {
 			AnnotatedServiceRegistry serviceRegistry) throws NodeProcessException {
 		this.config = config;
 		this.nodeId = nodeId;
+		this.realm = realm;
 		SecretsProviderFacade secretsProvider = secrets.getRealmSecrets(realm);
 		try {
 			siteminderService = serviceRegistry.getRealmSingleton(SiteminderService.class, realm).get();
@@ -125,63 +131,80 @@ public class LegacySMLogin extends AbstractLegacyLoginNode {
 		String username = context.sharedState.get(USERNAME).asString();
 		String password = context.transientState.get(PASSWORD).asString();
 
-		AgentAPI agentAPI = SmSdkUtils.initConnectionAgent(siteminderService, webAgentSecret);
-		Pair<SessionDef, AttributeList> session = getSession(agentAPI, username, password);
-
-		if (session == null) {
+		AgentApiPool agentApiPool = AgentApiPool.forRealm(realm.asPath(), siteminderService, webAgentSecret);
+		AgentAPI agentAPI = agentApiPool.borrow();
+		if (agentAPI == null) {
+			LOGGER.error("LegacySMLogin::process > No SM AgentAPI available");
 			return goTo(false).build();
 		}
 
-		SessionDef sessionDef = session.getFirst();
-		AttributeList attrList = session.getSecond();
+		// An agent whose call failed with an error status is discarded rather than
+		// given back to the pool
+		boolean agentFailed = false;
+		try {
+			SessionDef sessionDef = new SessionDef();
+			AttributeList attrList = new AttributeList();
+			int retCode = login(agentAPI, username, password, sessionDef, attrList);
+
+			if (retCode != AgentAPI.YES) {
+				agentFailed = AgentApiPool.isAgentError(retCode);
+				return goTo(false).build();
+			}
 
-		return getToken(agentAPI, sessionDef, attrList, context).build();
+			return getToken(agentAPI, sessionDef, attrList, context).build();
+		} finally {
+			if (agentFailed) {
+				agentApiPool.discard(agentAPI);
+			} else {
+				agentApiPool.release(agentAPI);
+			}
+		}
 	}
 
 	/**
 	 * Logs into the user's account using the given credentials
 	 *
-	 * @param agentAPI successfully initialized AgentAPI instance
-	 * @param username user's name used to authenticate
-	 * @param password user's password used to authenticate
-	 * @return retrieves the attribute list and the session of the user after
-	 *         successfully logging in with the given credentials; null if couldn't
-	 *         log in
+	 * @param agentAPI   successfully initialized AgentAPI instance
+	 * @param username   user's name used to authenticate
+	 * @param password   user's password used to authenticate
+	 * @param sessionDef filled with the session of the user after successfully
+	 *                   logging in
+	 * @param attrList   filled with the attribute list of the user after
+	 *                   successfully logging in
+	 * @return the AgentAPI return code of the login, AgentAPI.YES if the user
+	 *         logged in
 	 */
-	private Pair<SessionDef, AttributeList> getSession(AgentAPI agentAPI, String username, String password) {
-		int retCode;
-
-		// Initialize resource context and verify if the resource is protected
-		ResourceContextDef resCtxDef = new ResourceContextDef(siteminderService.webAgentName(), "",
-				siteminderService.protectedResource(), siteminderService.protectedResourceAction());
-
-		RealmDef realmdef = new RealmDef();
-		retCode = agentAPI.isProtected(siteminderService.policyServerIP(), resCtxDef, realmdef);
-		LOGGER.info("LegacySMLogin::process > AgentAPI return code for isProtected(): {}", retCode);
+	private int login(AgentAPI agentAPI, String username, String password, SessionDef sessionDef,
+			AttributeList attrList) {
+		// Get the resource context and the realm of the protected resource, resolved
+		// once per agent
+		Pair<ResourceContextDef, RealmDef> resource = ProtectedResourceCache
+				.forRealm(realm.asPath(), siteminderService).resolve(agentAPI);
+		if (resource == null) {
+			LOGGER.error("LegacySMLogin::process > AgentAPI isProtected failed");
+			return AgentAPI.FAILURE;
+		}
+		ResourceContextDef resCtxDef = resource.getFirst();
+		RealmDef realmdef = resource.getSecond();
 
 		// Use the user credentials to authenticate on the protected resource
 		UserCredentials userCredentials = new UserCredentials(username, password);
-		SessionDef sessionDef = new SessionDef();
-		AttributeList attrList = new AttributeList();
 
-		retCode = agentAPI.login(siteminderService.policyServerIP(), resCtxDef, realmdef, userCredentials, sessionDef,
-				attrList);
+		int retCode = agentAPI.login(siteminderService.policyServerIP(), resCtxDef, realmdef, userCredentials,
+				sessionDef, attrList);
 		if (retCode != AgentAPI.YES) {
 			LOGGER.error("LegacySMLogin::process > AgentAPI login failed with return code: {}", retCode);
-
-			agentAPI.unInit();
-			return null;
 		} else if (Boolean.TRUE.equals(siteminderService.debug())) {
 			LOGGER.info("LegacySMLogin::process > AgentAPI login SUCCESS.");
 			LOGGER.info("LegacySMLogin::process > SM session id: {}", sessionDef.id);
 			LOGGER.info("LegacySMLogin::process > SM session spec: {}", sessionDef.spec);
 		}
-
-		return Pair.of(sessionDef, attrList);
+		return retCode;
 	}
 
 	/**
-	 * Creates a SSO token and stores on the shared state the cookie
+	 * Creates a SSO token and stores on the shared state the cookie, and the
+	 * distinguished name of the user
 	 *
 	 * @param agentAPI   authenticated and successfully initialized AgentAPI
 	 *                   instance
@@ -190,7 +213,7 @@ public class LegacySMLogin extends AbstractLegacyLoginNode {
 	 * @param context    current's node context
 	 * @return node's unbuilt outcome
 	 */
-	private Action.ActionBuilder getToken(AgentAPI agentAPI, SessionDef sessionDef, AttributeList attrList,
+	Action.ActionBuilder getToken(AgentAPI agentAPI, SessionDef sessionDef, AttributeList attrList,
 			TreeContext context) {
 		Enumeration<Attribute> attrListEnum = attrList.attributes();
 		byte[] userDn = { 0 };
@@ -212,9 +235,6 @@ public class LegacySMLogin extends AbstractLegacyLoginNode {
 
 		StringBuffer ssoToken = new StringBuffer();
 		int retCode = agentAPI.createSSOToken(sessionDef, ssoAttrs, ssoToken);
-
-		// Release agent api
-		agentAPI.unInit();
 		if (retCode != AgentAPI.SUCCESS) {
 			LOGGER.error("LegacySMLogin::process > AgentAPI createSSOToken failed with return code: {}", retCode);
 			return goTo(false);
@@ -226,10 +246,15 @@ public class LegacySMLogin extends AbstractLegacyLoginNode {
 				SmSdkUtils.displayAttributes(ssoAttrs);
 			}
 			String legacyCookie = siteminderService.legacyCookieName() + "=" + ssoToken.toString();
+			JsonValue sharedState = context.sharedState.put(LEGACY_COOKIE_SHARED_STATE_PARAM, legacyCookie);
+			String legacyUserDn = SmSdkUtils.getUserDn(userDn);
+			if (legacyUserDn != null) {
+				sharedState.put(LEGACY_USER_DN_SHARED_STATE_PARAM, legacyUserDn);
+			}
 			return goTo(true).putSessionProperty(SESSION_LEGACY_COOKIE_DOMAIN, siteminderService.legacyCookieDomain())
 					.putSessionProperty(LEGACY_COOKIE_SHARED_STATE_PARAM, legacyCookie)
 					.addSessionHook(LegacySessionTreeHook.class, nodeId, getClass().getSimpleName())
-					.replaceSharedState(context.sharedState.put(LEGACY_COOKIE_SHARED_STATE_PARAM, legacyCookie));
+					.replaceSharedState(sharedState);
 		}
 	}
 }
\ No newline at end of file
@@ -17,19 +17,24 @@ package org.forgerock.openam.auth.node;
 
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.forgerock.openam.modernize.utils.NodeConstants.LEGACY_COOKIE_SHARED_STATE_PARAM;
+import static org.forgerock.openam.modernize.utils.NodeConstants.LEGACY_USER_DN_SHARED_STATE_PARAM;
 
 import java.util.Enumeration;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
+import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.auth.node.base.AbstractValidateTokenNode;
 import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.AgentApiPool;
 import org.forgerock.openam.modernize.legacy.SmSdkUtils;
+import org.forgerock.openam.modernize.legacy.SmSessionCache;
 import org.forgerock.openam.secrets.Secrets;
 import org.forgerock.openam.secrets.SecretsProviderFacade;
 import org.forgerock.openam.services.SiteminderService;
@@ -60,6 +65,7 @@ public class LegacySMValidateToken extends AbstractValidateTokenNode {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(LegacySMValidateToken.class);
 	private final LegacyFRConfig config;
+	private final Realm realm;
 	private String webAgentSecret;
 	SiteminderService siteminderService;
 
@@ -80,6 +86,7 @@ public class LegacySMValidateToken extends AbstractValidateTokenNode {
 	public LegacySMValidateToken(@Assisted LegacyFRConfig config, @Assisted Realm realm, Secrets secrets,
 			AnnotatedServiceRegistry serviceRegistry) throws NodeProcessException {
 		this.config = config;
+		this.realm = realm;
 		try {
 			siteminderService = serviceRegistry.getRealmSingleton(SiteminderService.class, realm).get();
 		} catch (SSOException | SMSException e) {
@@ -121,20 +128,30 @@ public class LegacySMValidateToken extends AbstractValidateTokenNode {
 			return goTo(false).build();
 		}
 
-		AgentAPI agentAPI = SmSdkUtils.initConnectionAgent(siteminderService, webAgentSecret);
-		String uid = validateLegacySession(agentAPI, smCookie);
+		SmSessionCache sessionCache = SmSessionCache.forRealm(realm.asPath(),
+				siteminderService.sessionCacheCapacity(), siteminderService.sessionCacheTtl());
+		SmSessionCache.DecodedSession decodedSession = sessionCache.get(smCookie);
+		if (decodedSession != null) {
+			LOGGER.info("LegacySMValidateToken::process > SM session found in cache");
+		} else {
+			AgentApiPool agentApiPool = AgentApiPool.forRealm(realm.asPath(), siteminderService, webAgentSecret);
+			decodedSession = validateLegacySession(agentApiPool, smCookie, sessionCache);
+		}
 
+		String uid = decodedSession != null ? decodedSession.getUserName() : null;
 		if (uid != null) {
 			// Manage cookie name if absent
 			if (!smCookie.contains(siteminderService.legacyCookieName())) {
 				smCookie = siteminderService.legacyCookieName() + "=" + smCookie;
 			}
 
-			// Put uid and cookie on shared state
-			return goTo(true)
-					.replaceSharedState(
-							context.sharedState.put(USERNAME, uid).put(LEGACY_COOKIE_SHARED_STATE_PARAM, smCookie))
-					.build();
+			// Put uid, cookie and user DN on shared state
+			JsonValue sharedState = context.sharedState.put(USERNAME, uid).put(LEGACY_COOKIE_SHARED_STATE_PARAM,
+					smCookie);
+			if (decodedSession.getUserDn() != null) {
+				sharedState.put(LEGACY_USER_DN_SHARED_STATE_PARAM, decodedSession.getUserDn());
+			}
+			return goTo(true).replaceSharedState(sharedState).build();
 		}
 
 		return goTo(false).build();
@@ -143,35 +160,59 @@ public class LegacySMValidateToken extends AbstractValidateTokenNode {
 	/**
 	 * Validates a legacy IAM cookie by calling the session validation endpoint.
 	 *
+	 * @param agentApiPool the pool of the agents used to decode the token
 	 * @param legacyCookie the user's legacy SSO token
-	 * @return the user id if the session is valid, or <b>null</b> if the session is
-	 *         invalid or something unexpected happened.
+	 * @param sessionCache the cache in which the decoded token is kept
+	 * @return the decoded session, holding the user id, if the session is valid, or
+	 *         <b>null</b> if the session is invalid or something unexpected
+	 *         happened.
 	 */
-	public String validateLegacySession(AgentAPI agentAPI, String legacyCookie) {
+	public SmSessionCache.DecodedSession validateLegacySession(AgentApiPool agentApiPool, String legacyCookie,
+			SmSessionCache sessionCache) {
 		// Validate SM legacy token
 		TokenDescriptor tokenDescriptor = new TokenDescriptor(0, false);
 		StringBuffer token = new StringBuffer();
 		String smUserName = null;
+		String smUserDn = null;
+		long idleTimeout = 0;
+		long maxTimeout = 0;
+		long startTime = 0;
+		long lastTime = 0;
 
+		AgentAPI agentAPI = agentApiPool.borrow();
 		if (agentAPI == null) {
 			LOGGER.error("LegacySMValidateToken::process > Couldn't init agentAPI.");
 			return null;
 		}
 
 		netegrity.siteminder.javaagent.AttributeList attributeList = new netegrity.siteminder.javaagent.AttributeList();
-		int status = agentAPI.decodeSSOToken(legacyCookie, tokenDescriptor, attributeList, false, token);
+		int status = AgentAPI.FAILURE;
+		try {
+			status = agentAPI.decodeSSOToken(legacyCookie, tokenDescriptor, attributeList, false, token);
+		} finally {
+			// An agent which could not reach the policy server is discarded rather than
+			// given back to the pool
+			if (AgentApiPool.isConnectionError(status)) {
+				agentApiPool.discard(agentAPI);
+			} else {
+				agentApiPool.release(agentAPI);
+			}
+		}
 		LOGGER.info("LegacySMValidateToken::process > Token status: {}", status);
 		if (status == AgentAPI.SUCCESS) {
 			LOGGER.info("LegacySMValidateToken::process > SM session decoded successfully");
 		} else {
 			LOGGER.error("LegacySMValidateToken::process > SM session decode failed with: status: {} for cookie {}",
 					status, legacyCookie);
-
-			agentAPI.unInit();
+			// Only a token the agent could not decode is invalid; a policy server which could
+			// not be reached, or did not answer in time, says nothing about the token
+			if (status == AgentAPI.FAILURE) {
+				sessionCache.putInvalid(legacyCookie);
+			}
 			return null;
 		}
 
-		// Get SM user name
+		// Get SM user name and session timeouts
 		@SuppressWarnings("rawtypes")
 		Enumeration attributes = attributeList.attributes();
 		while (attributes.hasMoreElements()) {
@@ -180,13 +221,57 @@ public class LegacySMValidateToken extends AbstractValidateTokenNode {
 			int attrId = attr.id;
 			if (attrId == AgentAPI.ATTR_USERNAME) {
 				smUserName = XMLUtils.removeNullCharAtEnd(new String(attr.value));
-				break;
+			} else if (attrId == AgentAPI.ATTR_USERDN) {
+				smUserDn = SmSdkUtils.getUserDn(attr.value);
+			} else if (attrId == AgentAPI.ATTR_IDLESESSIONTIMEOUT) {
+				idleTimeout = getSeconds(attr);
+			} else if (attrId == AgentAPI.ATTR_MAXSESSIONTIMEOUT) {
+				maxTimeout = getSeconds(attr);
+			} else if (attrId == AgentAPI.ATTR_STARTSESSIONTIME) {
+				startTime = getSeconds(attr);
+			} else if (attrId == AgentAPI.ATTR_LASTSESSIONTIME) {
+				lastTime = getSeconds(attr);
 			}
 		}
 
 		LOGGER.info("LegacySMValidateToken::process > SM user name: {}", smUserName);
-		agentAPI.unInit();
 
-		return smUserName;
+		if (smUserName == null) {
+			return null;
+		}
+		return sessionCache.putValid(legacyCookie, smUserName, smUserDn,
+				getSessionExpiry(idleTimeout, maxTimeout, startTime, lastTime));
+	}
+
+	/**
+	 * Computes the time at which a decoded session expires, whichever comes first
+	 * of its idle and maximum timeouts.
+	 *
+	 * @param idleTimeout the idle timeout of the session, in seconds
+	 * @param maxTimeout  the maximum timeout of the session, in seconds
+	 * @param startTime   the time the session started, in seconds since the epoch
+	 * @param lastTime    the time the session was last used, in seconds since the
+	 *                    epoch
+	 * @return the expiry time of the session in milliseconds since the epoch, or 0
+	 *         if it is unknown
+	 */
+	static long getSessionExpiry(long idleTimeout, long maxTimeout, long startTime, long lastTime) {
+		long expiry = 0;
+		if (idleTimeout > 0 && lastTime > 0) {
+			expiry = lastTime + idleTimeout;
+		}
+		if (maxTimeout > 0 && startTime > 0) {
+			expiry = expiry == 0 ? startTime + maxTimeout : Math.min(expiry, startTime + maxTimeout);
+		}
+		return TimeUnit.SECONDS.toMillis(expiry);
+	}
+
+	private static long getSeconds(netegrity.siteminder.javaagent.Attribute attr) {
+		try {
+			return Long.parseLong(XMLUtils.removeNullCharAtEnd(new String(attr.value)).trim());
+		} catch (NumberFormatException e) {
+			LOGGER.warn("LegacySMValidateToken::getSeconds > Unexpected value for attribute {}", attr.id);
+			return 0;
+		}
 	}
-}
\ No newline at end of file
+}
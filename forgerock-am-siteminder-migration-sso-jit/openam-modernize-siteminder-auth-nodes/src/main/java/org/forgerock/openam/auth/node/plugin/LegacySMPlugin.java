@@ -19,14 +19,18 @@ import static java.util.Arrays.asList;
 
 import java.util.Map;
 
+import org.forgerock.guice.core.InjectorHolder;
 import org.forgerock.openam.auth.node.AddAttributesToObjectAttributesNode;
 import org.forgerock.openam.auth.node.LegacySMCreateForgeRockUser;
 import org.forgerock.openam.auth.node.LegacySMLogin;
 import org.forgerock.openam.auth.node.LegacySMValidateToken;
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
 import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.modernize.legacy.AgentApiPool;
+import org.forgerock.openam.modernize.legacy.SmDirectorySession;
 import org.forgerock.openam.plugins.PluginException;
 import org.forgerock.openam.services.SiteminderService;
+import org.forgerock.util.thread.listener.ShutdownManager;
 
 import com.google.common.collect.ImmutableMap;
 
@@ -61,6 +65,19 @@ public class LegacySMPlugin extends AbstractNodeAmPlugin {
 				LegacySMValidateToken.class, AddAttributesToObjectAttributesNode.class));
 	}
 
+	/**
+	 * Registers the nodes, and the release of the agents and directory sessions
+	 * shared by the nodes when AM shuts down.
+	 */
+	@Override
+	public void onStartup() throws PluginException {
+		super.onStartup();
+		InjectorHolder.getInstance(ShutdownManager.class).addShutdownListener(() -> {
+			AgentApiPool.shutdownAll();
+			SmDirectorySession.closeAll();
+		});
+	}
+
 	/**
 	 * This method will be called when the version returned by
 	 * {@link #getPluginVersion()} is higher than the version already installed.
@@ -0,0 +1,361 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.forgerock.openam.services.SiteminderService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import netegrity.siteminder.javaagent.AgentAPI;
+import netegrity.siteminder.javaagent.AttributeList;
+import netegrity.siteminder.javaagent.ManagementContextDef;
+
+/**
+ * A pool of initialized {@link AgentAPI} instances, shared by the Siteminder
+ * nodes of a realm, so that the agent handshake with the policy server is not
+ * made for every node execution.
+ * <p>
+ * The pool holds at most agentPoolSize agents, initialized one at a time when
+ * out of agents, and a node waits at most timeout seconds for an agent to be
+ * released or for room to initialize a new one. An agent idle for a while is
+ * validated against the policy server before being borrowed again, and an
+ * agent whose call failed with an error status is discarded by the nodes. The
+ * pool of a realm is rebuilt when its configuration changes.
+ * </p>
+ * <p>
+ * The connectionMin, connectionMax and connectionStep settings are left to the
+ * connection pool each agent opens to the policy server, through its
+ * {@link netegrity.siteminder.javaagent.ServerDef}, so a realm may hold up to
+ * agentPoolSize x connectionMax connections.
+ * </p>
+ */
+public final class AgentApiPool {
+	private static final Logger logger = LoggerFactory.getLogger(AgentApiPool.class);
+
+	private static final ConcurrentMap<String, AgentApiPool> POOLS = new ConcurrentHashMap<>();
+	private static final long VALIDATION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+	private static final int DEFAULT_POOL_SIZE = 4;
+	private static final int DEFAULT_TIMEOUT_SECONDS = 60;
+
+	private final String configKey;
+	private final Supplier<AgentAPI> agentFactory;
+	private final int maxAgents;
+	private final long timeoutMillis;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition agentAvailable = lock.newCondition();
+	private final Deque<PooledAgent> idleAgents = new ArrayDeque<>();
+	private int agents;
+	private boolean shutdown;
+
+	/**
+	 * Creates a pool of agents.
+	 *
+	 * @param configKey     the configuration the agents are initialized with
+	 * @param agentFactory  creates an initialized agent, or null if the
+	 *                      initialization failed
+	 * @param maxAgents     the maximum number of agents
+	 * @param timeoutMillis how long to wait for an agent when the pool is
+	 *                      exhausted
+	 */
+	AgentApiPool(String configKey, Supplier<AgentAPI> agentFactory, int maxAgents, long timeoutMillis) {
+		this.configKey = configKey;
+		this.agentFactory = agentFactory;
+		this.maxAgents = Math.max(maxAgents, 1);
+		this.timeoutMillis = Math.max(timeoutMillis, 0);
+	}
+
+	/**
+	 * Gets the pool of agents of a realm, creating it on first use or when the
+	 * Siteminder configuration of the realm has changed.
+	 *
+	 * @param realmPath         the path of the realm
+	 * @param siteminderService the Siteminder service containing all the
+	 *                          configurations for the authentication connection
+	 * @param webAgentSecret    agent secret in string format
+	 * @return the pool of agents of the realm
+	 */
+	public static AgentApiPool forRealm(String realmPath, SiteminderService siteminderService,
+			String webAgentSecret) {
+		String configKey = configKey(siteminderService, webAgentSecret);
+		AgentApiPool[] replaced = new AgentApiPool[1];
+		AgentApiPool pool = POOLS.compute(realmPath == null ? "" : realmPath, (realm, current) -> {
+			if (current != null && current.configKey.equals(configKey)) {
+				return current;
+			}
+			replaced[0] = current;
+			return create(configKey, siteminderService, webAgentSecret);
+		});
+		if (replaced[0] != null) {
+			logger.info("AgentApiPool::forRealm > Siteminder configuration changed for realm {}", realmPath);
+			replaced[0].shutdown();
+		}
+		return pool;
+	}
+
+	/**
+	 * The timeout is only mandatory for 4.x agents, the other agents fall back to
+	 * a default when it is not set.
+	 */
+	private static AgentApiPool create(String configKey, SiteminderService siteminderService,
+			String webAgentSecret) {
+		return new AgentApiPool(configKey, () -> SmSdkUtils.initConnectionAgent(siteminderService, webAgentSecret),
+				valueOrDefault(siteminderService.agentPoolSize(), DEFAULT_POOL_SIZE),
+				TimeUnit.SECONDS.toMillis(valueOrDefault(siteminderService.timeout(), DEFAULT_TIMEOUT_SECONDS)));
+	}
+
+	private static int valueOrDefault(Integer value, int defaultValue) {
+		return value != null && value > 0 ? value : defaultValue;
+	}
+
+	/**
+	 * The secret is part of the key through its hash only, so that it is not held
+	 * in clear.
+	 */
+	private static String configKey(SiteminderService siteminderService, String webAgentSecret) {
+		return String.join("|", siteminderService.policyServerIP(), siteminderService.webAgentName(),
+				String.valueOf(siteminderService.is4xAgent()), String.valueOf(siteminderService.smHostFilePath()),
+				String.valueOf(siteminderService.accountingPort()),
+				String.valueOf(siteminderService.authenticationPort()),
+				String.valueOf(siteminderService.authorizationPort()), String.valueOf(siteminderService.connectionMin()),
+				String.valueOf(siteminderService.connectionMax()), String.valueOf(siteminderService.connectionStep()),
+				String.valueOf(siteminderService.timeout()), String.valueOf(siteminderService.agentPoolSize()),
+				String.valueOf(Objects.hashCode(webAgentSecret)));
+	}
+
+	/**
+	 * Shuts down the pools of all realms. Called by {@link
+	 * org.forgerock.openam.auth.node.plugin.LegacySMPlugin} when AM shuts down.
+	 */
+	public static void shutdownAll() {
+		POOLS.values().forEach(AgentApiPool::shutdown);
+		POOLS.clear();
+	}
+
+	/**
+	 * Borrows an initialized agent, which must be given back with
+	 * {@link #release(AgentAPI)} or {@link #discard(AgentAPI)}.
+	 * <p>
+	 * When the pool is exhausted, the caller waits for an agent to be released,
+	 * or for an agent to be discarded and leave room to initialize a new one.
+	 * </p>
+	 *
+	 * @return the agent, or null if no agent could be initialized or released in
+	 *         time
+	 */
+	public AgentAPI borrow() {
+		long remaining = MILLISECONDS.toNanos(timeoutMillis);
+		try {
+			while (true) {
+				PooledAgent idleAgent;
+				boolean grow = false;
+				lock.lock();
+				try {
+					while ((idleAgent = idleAgents.pollFirst()) == null && !shutdown
+							&& !(grow = agents < maxAgents) && remaining > 0) {
+						remaining = agentAvailable.awaitNanos(remaining);
+					}
+					if (grow) {
+						agents++;
+					}
+				} finally {
+					lock.unlock();
+				}
+
+				if (idleAgent != null) {
+					if (isValid(idleAgent)) {
+						return idleAgent.agent;
+					}
+				} else if (grow) {
+					return initAgent();
+				} else {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		logger.error("AgentApiPool::borrow > No SM AgentAPI available within {} ms", timeoutMillis);
+		return null;
+	}
+
+	/**
+	 * Gives back a borrowed agent to the pool.
+	 *
+	 * @param agent the borrowed agent
+	 */
+	public void release(AgentAPI agent) {
+		if (agent == null) {
+			return;
+		}
+		lock.lock();
+		try {
+			if (!shutdown) {
+				idleAgents.offerFirst(new PooledAgent(agent));
+				agentAvailable.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		destroy(agent);
+	}
+
+	/**
+	 * Gives back a borrowed agent which must not be used anymore, for instance
+	 * after it failed unexpectedly.
+	 *
+	 * @param agent the borrowed agent
+	 */
+	public void discard(AgentAPI agent) {
+		if (agent != null) {
+			destroy(agent);
+		}
+	}
+
+	/**
+	 * Tells whether an agent call failed, rather than answered the request, after
+	 * which the agent must be discarded.
+	 *
+	 * @param status the status returned by the agent call
+	 * @return true if the status is an error of the agent or of its connection to
+	 *         the policy server
+	 */
+	public static boolean isAgentError(int status) {
+		return status == AgentAPI.FAILURE || isConnectionError(status);
+	}
+
+	/**
+	 * Tells whether an agent call failed to reach the policy server.
+	 *
+	 * @param status the status returned by the agent call
+	 * @return true if the policy server could not be reached or did not answer in
+	 *         time
+	 */
+	public static boolean isConnectionError(int status) {
+		return status == AgentAPI.NOCONNECTION || status == AgentAPI.TIMEOUT;
+	}
+
+	/**
+	 * Releases all idle agents, and the borrowed ones as soon as they are given
+	 * back. The callers waiting for an agent get none.
+	 */
+	public void shutdown() {
+		Deque<PooledAgent> agentsToDestroy;
+		lock.lock();
+		try {
+			shutdown = true;
+			agentsToDestroy = new ArrayDeque<>(idleAgents);
+			idleAgents.clear();
+			agentAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		agentsToDestroy.forEach(idleAgent -> destroy(idleAgent.agent));
+	}
+
+	/**
+	 * @return the number of initialized agents, idle or borrowed
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return agents;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Initializes an agent in the room reserved by the borrower, giving the room
+	 * back to the waiting callers if the initialization failed.
+	 */
+	private AgentAPI initAgent() {
+		AgentAPI agent = null;
+		try {
+			agent = agentFactory.get();
+		} catch (RuntimeException e) {
+			logger.error("AgentApiPool::initAgent > SM AgentAPI init failed: ", e);
+		}
+		if (agent == null) {
+			removeAgent();
+		}
+		return agent;
+	}
+
+	/**
+	 * Validates an agent idle for a while with a management request to the policy
+	 * server, destroying it when invalid.
+	 */
+	private boolean isValid(PooledAgent idleAgent) {
+		if (System.nanoTime() - idleAgent.idleSince < VALIDATION_INTERVAL_NANOS) {
+			return true;
+		}
+		int status = idleAgent.agent.doManagement(
+				new ManagementContextDef(ManagementContextDef.MANAGEMENT_GET_AGENT_COMMANDS, ""), new AttributeList());
+		if (status == AgentAPI.SUCCESS) {
+			return true;
+		}
+		logger.warn("AgentApiPool::isValid > Discarding SM AgentAPI, validation returned status {}", status);
+		destroy(idleAgent.agent);
+		return false;
+	}
+
+	private void destroy(AgentAPI agent) {
+		removeAgent();
+		try {
+			agent.unInit();
+		} catch (RuntimeException e) {
+			logger.warn("AgentApiPool::destroy > SM AgentAPI unInit failed: ", e);
+		}
+	}
+
+	/**
+	 * Frees the room of an agent, and wakes up a caller waiting for one.
+	 */
+	private void removeAgent() {
+		lock.lock();
+		try {
+			agents--;
+			agentAvailable.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * An idle agent, with the time it was given back.
+	 */
+	private static final class PooledAgent {
+		private final AgentAPI agent;
+		private final long idleSince = System.nanoTime();
+
+		private PooledAgent(AgentAPI agent) {
+			this.agent = agent;
+		}
+	}
+}
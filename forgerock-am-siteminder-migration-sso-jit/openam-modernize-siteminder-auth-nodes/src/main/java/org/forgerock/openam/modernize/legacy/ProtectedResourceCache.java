@@ -0,0 +1,163 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.forgerock.openam.services.SiteminderService;
+import org.forgerock.util.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import netegrity.siteminder.javaagent.AgentAPI;
+import netegrity.siteminder.javaagent.RealmDef;
+import netegrity.siteminder.javaagent.ResourceContextDef;
+
+/**
+ * Caches, per agent, the resource context and the realm of the protected
+ * resource configured in the {@link SiteminderService}, so that the policy
+ * server is not asked whether the resource is protected before every login.
+ * <p>
+ * The resource is resolved again once the refresh interval has elapsed, or for
+ * every login if the interval is 0. An answer other than protected is never
+ * cached. Agents are held weakly, so the entries of the agents discarded by the
+ * {@link AgentApiPool} go away with them. The cache of a realm is rebuilt when
+ * its configuration changes.
+ * </p>
+ */
+public final class ProtectedResourceCache {
+	private static final Logger logger = LoggerFactory.getLogger(ProtectedResourceCache.class);
+
+	private static final ConcurrentMap<String, ProtectedResourceCache> CACHES = new ConcurrentHashMap<>();
+
+	private final String configKey;
+	private final String policyServerIP;
+	private final String webAgentName;
+	private final String protectedResource;
+	private final String protectedResourceAction;
+	private final long refreshMillis;
+	private final LongSupplier clock;
+	private final Map<AgentAPI, ResolvedResource> resources = new WeakHashMap<>();
+
+	private static final class ResolvedResource {
+		private final Pair<ResourceContextDef, RealmDef> definitions;
+		private final long resolvedAt;
+
+		private ResolvedResource(Pair<ResourceContextDef, RealmDef> definitions, long resolvedAt) {
+			this.definitions = definitions;
+			this.resolvedAt = resolvedAt;
+		}
+	}
+
+	/**
+	 * Creates a cache of protected resource definitions.
+	 *
+	 * @param configKey               the configuration the resource is resolved
+	 *                                with
+	 * @param policyServerIP          the IP address of the policy server
+	 * @param webAgentName            the name of the web agent
+	 * @param protectedResource       the protected resource
+	 * @param protectedResourceAction the action on the protected resource
+	 * @param refreshMillis           how long a resolved resource is kept
+	 * @param clock                   the current time in milliseconds
+	 */
+	ProtectedResourceCache(String configKey, String policyServerIP, String webAgentName, String protectedResource,
+			String protectedResourceAction, long refreshMillis, LongSupplier clock) {
+		this.configKey = configKey;
+		this.policyServerIP = policyServerIP;
+		this.webAgentName = webAgentName;
+		this.protectedResource = protectedResource;
+		this.protectedResourceAction = protectedResourceAction;
+		this.refreshMillis = Math.max(refreshMillis, 0);
+		this.clock = clock;
+	}
+
+	/**
+	 * Gets the cache of a realm, creating it on first use or when the protected
+	 * resource configuration of the realm has changed.
+	 *
+	 * @param realmPath         the path of the realm
+	 * @param siteminderService the Siteminder service containing the protected
+	 *                          resource configuration
+	 * @return the cache of the realm
+	 */
+	public static ProtectedResourceCache forRealm(String realmPath, SiteminderService siteminderService) {
+		Integer refreshSeconds = siteminderService.protectedResourceRefreshInterval();
+		long refreshMillis = refreshSeconds == null ? 0 : TimeUnit.SECONDS.toMillis(refreshSeconds);
+		String configKey = String.join("|", siteminderService.policyServerIP(), siteminderService.webAgentName(),
+				siteminderService.protectedResource(), siteminderService.protectedResourceAction(),
+				String.valueOf(refreshMillis));
+		return CACHES.compute(realmPath == null ? "" : realmPath, (realm, current) -> {
+			if (current != null && current.configKey.equals(configKey)) {
+				return current;
+			}
+			return new ProtectedResourceCache(configKey, siteminderService.policyServerIP(),
+					siteminderService.webAgentName(), siteminderService.protectedResource(),
+					siteminderService.protectedResourceAction(), refreshMillis, System::currentTimeMillis);
+		});
+	}
+
+	/**
+	 * Gets the resource context and the realm of the protected resource for an
+	 * agent, asking the policy server whether the resource is protected if they
+	 * are not cached yet or are due for refresh.
+	 *
+	 * @param agentAPI successfully initialized AgentAPI instance
+	 * @return the resource context and the realm to log in with, or null if the
+	 *         agent failed to ask the policy server, in which case it must be
+	 *         discarded
+	 */
+	public Pair<ResourceContextDef, RealmDef> resolve(AgentAPI agentAPI) {
+		long now = clock.getAsLong();
+		synchronized (resources) {
+			ResolvedResource resolved = resources.get(agentAPI);
+			if (resolved != null && now - resolved.resolvedAt < refreshMillis) {
+				return resolved.definitions;
+			}
+		}
+
+		ResourceContextDef resCtxDef = new ResourceContextDef(webAgentName, "", protectedResource,
+				protectedResourceAction);
+		RealmDef realmDef = new RealmDef();
+		int retCode = agentAPI.isProtected(policyServerIP, resCtxDef, realmDef);
+		logger.info("ProtectedResourceCache::resolve > AgentAPI return code for isProtected(): {}", retCode);
+		if (AgentApiPool.isAgentError(retCode)) {
+			return null;
+		}
+
+		Pair<ResourceContextDef, RealmDef> definitions = Pair.of(resCtxDef, realmDef);
+		if (retCode == AgentAPI.YES && refreshMillis > 0) {
+			synchronized (resources) {
+				resources.put(agentAPI, new ResolvedResource(definitions, now));
+			}
+		}
+		return definitions;
+	}
+
+	/**
+	 * @return the number of agents with a cached resource
+	 */
+	public int size() {
+		synchronized (resources) {
+			return resources.size();
+		}
+	}
+}
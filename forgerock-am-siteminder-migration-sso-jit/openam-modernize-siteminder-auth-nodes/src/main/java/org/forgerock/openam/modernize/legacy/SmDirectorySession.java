@@ -0,0 +1,403 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.Objects;
+import java.util.Vector;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.openam.services.SiteminderService;
+import org.forgerock.util.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netegrity.sdk.apiutil.SmApiConnection;
+import com.netegrity.sdk.apiutil.SmApiException;
+import com.netegrity.sdk.apiutil.SmApiResult;
+import com.netegrity.sdk.apiutil.SmApiSession;
+import com.netegrity.sdk.dmsapi.SmDmsApi;
+import com.netegrity.sdk.dmsapi.SmDmsApiImpl;
+import com.netegrity.sdk.dmsapi.SmDmsConfig;
+import com.netegrity.sdk.dmsapi.SmDmsDirectoryContext;
+import com.netegrity.sdk.policyapi.SmPolicyApi;
+import com.netegrity.sdk.policyapi.SmPolicyApiImpl;
+import com.netegrity.sdk.policyapi.SmUserDirectory;
+
+import netegrity.siteminder.javaagent.AgentAPI;
+
+/**
+ * A small pool of Siteminder administrator sessions, with the DMS context of
+ * the configured user directory, shared by the nodes of a realm which read the
+ * directory.
+ * <p>
+ * Up to directorySessionPoolSize sessions are opened on demand, each on its
+ * own agent, and kept open, so that concurrent operations do not wait for each
+ * other; when they are all in use, an operation waits at most timeout seconds
+ * for one of them. A session is opened again when it has been idle for a
+ * while, or when an operation fails with a session or connection error, which
+ * the SDK reports with an {@link SmApiException}; an operation which only
+ * returns an unsuccessful result, such as an entry not found, keeps its
+ * session. The pool is rebuilt when the administrator, the user directory or
+ * the connection settings change.
+ * </p>
+ */
+public final class SmDirectorySession {
+	private static final Logger logger = LoggerFactory.getLogger(SmDirectorySession.class);
+
+	private static final ConcurrentMap<String, SmDirectorySession> SESSIONS = new ConcurrentHashMap<>();
+	private static final long MAX_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+	private static final int DEFAULT_POOL_SIZE = 4;
+	private static final int DEFAULT_TIMEOUT_SECONDS = 60;
+
+	private final String configKey;
+	private final long timeoutMillis;
+	private final long maxIdleNanos;
+	private final DirectoryConnector connector;
+
+	private final Semaphore permits;
+	private final BlockingDeque<DirectoryConnection> idleConnections = new LinkedBlockingDeque<>();
+	private volatile boolean closed;
+
+	/**
+	 * An operation on the DMS context of the user directory.
+	 *
+	 * @param <T> the type of the result of the operation
+	 */
+	@FunctionalInterface
+	public interface DirectoryOperation<T> {
+
+		/**
+		 * Runs the operation.
+		 *
+		 * @param dirContext the DMS context of the user directory
+		 * @return the result of the Siteminder call, and the result of the
+		 *         operation, or null if the operation found nothing, which is not
+		 *         an error
+		 * @throws SmApiException when an exception occurs
+		 */
+		Pair<SmApiResult, T> apply(SmDmsDirectoryContext dirContext) throws SmApiException;
+	}
+
+	/**
+	 * Opens an administrator session with the DMS context of the user directory.
+	 */
+	@FunctionalInterface
+	interface DirectoryConnector {
+
+		/**
+		 * @return the opened session, or null if it could not be opened
+		 * @throws SmApiException when an exception occurs
+		 */
+		DirectoryConnection open() throws SmApiException;
+	}
+
+	/**
+	 * Creates a pool of directory sessions.
+	 *
+	 * @param configKey     the configuration the sessions are opened with
+	 * @param maxSessions   the maximum number of sessions
+	 * @param timeoutMillis how long to wait for a session when they are all in use
+	 * @param maxIdleNanos  how long a session may stay idle before being opened
+	 *                      again
+	 * @param connector     opens the sessions
+	 */
+	SmDirectorySession(String configKey, int maxSessions, long timeoutMillis, long maxIdleNanos,
+			DirectoryConnector connector) {
+		this.configKey = configKey;
+		this.permits = new Semaphore(Math.max(maxSessions, 1));
+		this.timeoutMillis = Math.max(timeoutMillis, 0);
+		this.maxIdleNanos = maxIdleNanos;
+		this.connector = connector;
+	}
+
+	/**
+	 * Gets the directory session of a realm, creating it on first use or when the
+	 * Siteminder configuration of the realm has changed.
+	 *
+	 * @param realmPath         the path of the realm
+	 * @param siteminderService the Siteminder service containing all the
+	 *                          configurations for the directory connection
+	 * @param webAgentSecret    agent secret in string format
+	 * @param smAdminPassword   the Siteminder administrator user password
+	 * @return the directory session of the realm
+	 */
+	public static SmDirectorySession forRealm(String realmPath, SiteminderService siteminderService,
+			String webAgentSecret, String smAdminPassword) {
+		String configKey = configKey(siteminderService, webAgentSecret, smAdminPassword);
+		SmDirectorySession[] replaced = new SmDirectorySession[1];
+		SmDirectorySession session = SESSIONS.compute(realmPath == null ? "" : realmPath, (realm, current) -> {
+			if (current != null && current.configKey.equals(configKey)) {
+				return current;
+			}
+			replaced[0] = current;
+			return create(configKey, siteminderService, webAgentSecret, smAdminPassword);
+		});
+		if (replaced[0] != null) {
+			logger.info("SmDirectorySession::forRealm > Siteminder configuration changed for realm {}", realmPath);
+			replaced[0].close();
+		}
+		return session;
+	}
+
+	/**
+	 * The timeout is only mandatory for 4.x agents, the other agents fall back to
+	 * a default when it is not set.
+	 */
+	private static SmDirectorySession create(String configKey, SiteminderService siteminderService,
+			String webAgentSecret, String smAdminPassword) {
+		return new SmDirectorySession(configKey,
+				valueOrDefault(siteminderService.directorySessionPoolSize(), DEFAULT_POOL_SIZE),
+				TimeUnit.SECONDS.toMillis(valueOrDefault(siteminderService.timeout(), DEFAULT_TIMEOUT_SECONDS)),
+				MAX_IDLE_NANOS, () -> open(siteminderService, webAgentSecret, smAdminPassword));
+	}
+
+	private static int valueOrDefault(Integer value, int defaultValue) {
+		return value != null && value > 0 ? value : defaultValue;
+	}
+
+	/**
+	 * The secrets are part of the key through their hash only, so that they are
+	 * not held in clear.
+	 */
+	private static String configKey(SiteminderService siteminderService, String webAgentSecret,
+			String smAdminPassword) {
+		return String.join("|", siteminderService.policyServerIP(), siteminderService.webAgentName(),
+				String.valueOf(siteminderService.is4xAgent()), String.valueOf(siteminderService.smHostFilePath()),
+				String.valueOf(siteminderService.accountingPort()),
+				String.valueOf(siteminderService.authenticationPort()),
+				String.valueOf(siteminderService.authorizationPort()), String.valueOf(siteminderService.timeout()),
+				String.valueOf(siteminderService.directorySessionPoolSize()), siteminderService.smAdminUser(),
+				siteminderService.smUserDirectory(), String.valueOf(Objects.hashCode(webAgentSecret)),
+				String.valueOf(Objects.hashCode(smAdminPassword)));
+	}
+
+	/**
+	 * Closes the directory sessions of all realms. Called by {@link
+	 * org.forgerock.openam.auth.node.plugin.LegacySMPlugin} when AM shuts down.
+	 */
+	public static void closeAll() {
+		SESSIONS.values().forEach(SmDirectorySession::close);
+		SESSIONS.clear();
+	}
+
+	/**
+	 * Runs an operation on the DMS context of the user directory, on an idle
+	 * session of the pool, or on a new one if none is idle. When the operation
+	 * fails with a session or connection error, the session is opened again and
+	 * the operation retried once.
+	 *
+	 * @param operation the operation
+	 * @param <T>       the type of the result of the operation
+	 * @return the result of the operation, or null if no session could be opened
+	 *         in time or the operation did not succeed
+	 * @throws SmApiException when an exception occurs
+	 */
+	public <T> T execute(DirectoryOperation<T> operation) throws SmApiException {
+		if (closed) {
+			logger.error("SmDirectorySession::execute > Session closed");
+			return null;
+		}
+		try {
+			if (!permits.tryAcquire(timeoutMillis, MILLISECONDS)) {
+				logger.error("SmDirectorySession::execute > No directory session available within {} ms",
+						timeoutMillis);
+				return null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		DirectoryConnection connection = null;
+		boolean broken = true;
+		try {
+			connection = idleConnection();
+			if (connection == null) {
+				connection = connector.open();
+			}
+			if (connection == null) {
+				return null;
+			}
+
+			T result;
+			try {
+				result = connection.run(operation);
+			} catch (SmApiException e) {
+				logger.warn("SmDirectorySession::execute > Operation failed, logging in again: ", e);
+				connection.disconnect();
+				connection = connector.open();
+				if (connection == null) {
+					return null;
+				}
+				result = connection.run(operation);
+			}
+			broken = false;
+			return result;
+		} finally {
+			if (connection != null) {
+				if (broken || closed) {
+					connection.disconnect();
+				} else {
+					idleConnections.offerFirst(connection);
+					if (closed) {
+						close();
+					}
+				}
+			}
+			permits.release();
+		}
+	}
+
+	/**
+	 * @return the most recently used idle session, or null if none is idle; the
+	 *         sessions idle for too long are closed
+	 */
+	private DirectoryConnection idleConnection() {
+		DirectoryConnection connection;
+		while ((connection = idleConnections.pollFirst()) != null) {
+			if (System.nanoTime() - connection.lastUsed <= maxIdleNanos) {
+				return connection;
+			}
+			connection.disconnect();
+		}
+		return null;
+	}
+
+	/**
+	 * Logs in as the Siteminder administrator and gets the DMS context of the
+	 * configured user directory.
+	 *
+	 * @return the opened session, or null if it could not be opened
+	 */
+	private static DirectoryConnection open(SiteminderService siteminderService, String webAgentSecret,
+			String smAdminPassword) throws SmApiException {
+		AgentAPI agent = SmSdkUtils.initConnectionAgent(siteminderService, webAgentSecret);
+		if (agent == null) {
+			return null;
+		}
+
+		DirectoryConnection connection = new DirectoryConnection(agent, new SmApiSession(new SmApiConnection(agent)));
+		boolean opened = false;
+		try {
+			boolean loginResult = SmSdkUtils.adminLogin(connection.apiSession, siteminderService.smAdminUser(),
+					smAdminPassword == null ? new char[0] : smAdminPassword.toCharArray());
+			logger.info("SmDirectorySession::open > adminLogin result: {}", loginResult);
+			if (!loginResult) {
+				return null;
+			}
+
+			// Get the list of user directories the admin can manage, which must contain the configured one
+			SmPolicyApi policyApi = new SmPolicyApiImpl(connection.apiSession);
+			Vector<Object> userDirs = new Vector<>();
+			SmApiResult result = policyApi.getAdminUserDirs(siteminderService.smAdminUser(), userDirs);
+			if (Boolean.TRUE.equals(siteminderService.debug())) {
+				SmSdkUtils.printObject(userDirs, result);
+			}
+			if (!userDirs.contains(siteminderService.smUserDirectory())) {
+				logger.error("SmDirectorySession::open > User directory {} not managed by the administrator",
+						siteminderService.smUserDirectory());
+				return null;
+			}
+
+			SmUserDirectory userDir = new SmUserDirectory(siteminderService.smUserDirectory());
+			result = policyApi.getUserDirectory(siteminderService.smUserDirectory(), userDir);
+			if (Boolean.TRUE.equals(siteminderService.debug())) {
+				SmSdkUtils.printObject(userDir, result);
+			}
+
+			SmDmsApi dmsApi = new SmDmsApiImpl(connection.apiSession);
+			SmDmsDirectoryContext context = new SmDmsDirectoryContext();
+			result = dmsApi.getDirectoryContext(userDir, new SmDmsConfig(), context);
+			if (!result.isSuccess()) {
+				logger.error("SmDirectorySession::open > getDirectoryContext STATUS_NOK");
+				return null;
+			}
+			logger.info("SmDirectorySession::open > getDirectoryContext STATUS_OK");
+
+			connection.dirContext = context;
+			opened = true;
+			return connection;
+		} finally {
+			if (!opened) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Closes the idle sessions, and the sessions in use as soon as their
+	 * operation completes.
+	 */
+	public void close() {
+		closed = true;
+		DirectoryConnection connection;
+		while ((connection = idleConnections.pollFirst()) != null) {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * An administrator session, on its own agent, used by one operation at a time.
+	 */
+	static final class DirectoryConnection {
+		private final AgentAPI agent;
+		private final SmApiSession apiSession;
+		private SmDmsDirectoryContext dirContext;
+		private long lastUsed = System.nanoTime();
+
+		private DirectoryConnection(AgentAPI agent, SmApiSession apiSession) {
+			this.agent = agent;
+			this.apiSession = apiSession;
+		}
+
+		/**
+		 * Creates an opened session.
+		 *
+		 * @param agent      the agent of the session
+		 * @param apiSession the administrator session
+		 * @param dirContext the DMS context of the user directory
+		 */
+		DirectoryConnection(AgentAPI agent, SmApiSession apiSession, SmDmsDirectoryContext dirContext) {
+			this(agent, apiSession);
+			this.dirContext = dirContext;
+		}
+
+		private <T> T run(DirectoryOperation<T> operation) throws SmApiException {
+			Pair<SmApiResult, T> result = operation.apply(dirContext);
+			lastUsed = System.nanoTime();
+			if (result == null) {
+				return null;
+			}
+			return result.getFirst().isSuccess() ? result.getSecond() : null;
+		}
+
+		private void disconnect() {
+			try {
+				apiSession.logout();
+			} catch (Exception e) {
+				logger.warn("SmDirectorySession::disconnect > Logout failed: ", e);
+			}
+			agent.unInit();
+		}
+	}
+}
@@ -100,17 +100,17 @@ public final class SmSdkUtils {
 			initDefinition = SmSdkUtils.createInitDefinition(siteminderService.webAgentName(), webAgentSecret, false,
 					serverDefinition);
 		} else {
-			logger.info("LegacySMValidateToken::process > Configuring AgentAPI for using a > 4.x web agent.");
+			logger.info("SmSdkUtils::initConnectionAgent > Configuring AgentAPI for using a > 4.x web agent.");
 			int configStatus = agentAPI.getConfig(initDefinition, siteminderService.webAgentName(),
 					siteminderService.smHostFilePath());
-			logger.info("LegacySMValidateToken::process > getConfig returned status: {}", configStatus);
+			logger.info("SmSdkUtils::initConnectionAgent > getConfig returned status: {}", configStatus);
 		}
 
 		int retCode = agentAPI.init(initDefinition);
 		if (retCode == AgentAPI.SUCCESS) {
-			logger.info("LegacySMValidateToken::process > SM AgentAPI init successfully");
+			logger.info("SmSdkUtils::initConnectionAgent > SM AgentAPI init successfully");
 		} else {
-			logger.error("LegacySMValidateToken::process > SM AgentAPI init failed with status {}", retCode);
+			logger.error("SmSdkUtils::initConnectionAgent > SM AgentAPI init failed with status {}", retCode);
 			agentAPI.unInit();
 			agentAPI = null;
 		}
@@ -137,6 +137,22 @@ public final class SmSdkUtils {
 		}
 	}
 
+	/**
+	 * Reads the distinguished name of a user from the value of an
+	 * {@link AgentAPI#ATTR_USERDN} attribute.
+	 *
+	 * @param value the value of the attribute, which may be terminated by null
+	 *              characters
+	 * @return the distinguished name of the user, or null if the value is empty
+	 */
+	public static String getUserDn(byte[] value) {
+		if (value == null) {
+			return null;
+		}
+		String userDn = new String(value).replace("\0", "").trim();
+		return userDn.isEmpty() ? null : userDn;
+	}
+
 	/**
 	 * Prints an object retrieved via DMS API.
 	 *
@@ -0,0 +1,215 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of the decoded Siteminder SSO tokens, shared by the nodes of a
+ * realm, so that a browser presenting the same SMSESSION cookie on many
+ * requests does not cost a decode request to the policy server each time.
+ * <p>
+ * The tokens are keyed by their SHA-256 digest, so that the cache does not hold
+ * live tokens. A valid token is kept for the configured TTL, and never beyond
+ * the idle or the maximum timeout of its session. An invalid token is kept for
+ * a few seconds only. The cache is a least recently used map bounded by the
+ * configured capacity; a capacity of 0 disables it.
+ * </p>
+ */
+public final class SmSessionCache {
+
+	private static final ConcurrentMap<String, SmSessionCache> CACHES = new ConcurrentHashMap<>();
+	private static final long NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+	private final int capacity;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+	private final LongSupplier clock;
+	private final Map<String, DecodedSession> sessions;
+
+	/**
+	 * A decoded token.
+	 */
+	public static final class DecodedSession {
+		private final String userName;
+		private final String userDn;
+		private final long expiresAt;
+
+		private DecodedSession(String userName, String userDn, long expiresAt) {
+			this.userName = userName;
+			this.userDn = userDn;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * @return the name of the user of the session, or null if the token is
+		 *         invalid
+		 */
+		public String getUserName() {
+			return userName;
+		}
+
+		/**
+		 * @return the distinguished name of the user of the session, or null if it
+		 *         is unknown
+		 */
+		public String getUserDn() {
+			return userDn;
+		}
+	}
+
+	/**
+	 * Creates a cache of decoded tokens.
+	 *
+	 * @param capacity          the maximum number of tokens kept
+	 * @param ttlMillis         how long a valid token is kept at most
+	 * @param negativeTtlMillis how long an invalid token is kept
+	 * @param clock             the current time in milliseconds
+	 */
+	SmSessionCache(int capacity, long ttlMillis, long negativeTtlMillis, LongSupplier clock) {
+		this.capacity = Math.max(capacity, 0);
+		this.ttlMillis = Math.max(ttlMillis, 0);
+		this.negativeTtlMillis = Math.min(Math.max(negativeTtlMillis, 0), this.ttlMillis);
+		this.clock = clock;
+		this.sessions = new LinkedHashMap<String, DecodedSession>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DecodedSession> eldest) {
+				return size() > SmSessionCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Gets the cache of a realm, creating it on first use or when its
+	 * configuration has changed.
+	 *
+	 * @param realmPath  the path of the realm
+	 * @param capacity   the maximum number of tokens kept
+	 * @param ttlSeconds how long a valid token is kept at most, in seconds
+	 * @return the cache of the realm
+	 */
+	public static SmSessionCache forRealm(String realmPath, Integer capacity, Integer ttlSeconds) {
+		int cacheCapacity = capacity == null ? 0 : capacity;
+		long ttlMillis = ttlSeconds == null ? 0 : TimeUnit.SECONDS.toMillis(ttlSeconds);
+		return CACHES.compute(realmPath == null ? "" : realmPath, (realm, current) -> {
+			if (current != null && current.capacity == cacheCapacity && current.ttlMillis == ttlMillis) {
+				return current;
+			}
+			return new SmSessionCache(cacheCapacity, ttlMillis, NEGATIVE_TTL_MILLIS, System::currentTimeMillis);
+		});
+	}
+
+	/**
+	 * Returns the cached decoded token.
+	 *
+	 * @param token the Siteminder SSO token
+	 * @return the decoded token, or null if it must be decoded by the policy server
+	 */
+	public DecodedSession get(String token) {
+		if (!isEnabled() || token == null) {
+			return null;
+		}
+		String key = digest(token);
+		synchronized (sessions) {
+			DecodedSession session = sessions.get(key);
+			if (session == null) {
+				return null;
+			}
+			if (session.expiresAt <= clock.getAsLong()) {
+				sessions.remove(key);
+				return null;
+			}
+			return session;
+		}
+	}
+
+	/**
+	 * Caches a token decoded successfully.
+	 *
+	 * @param token         the Siteminder SSO token
+	 * @param userName      the name of the user of the session
+	 * @param userDn        the distinguished name of the user of the session, or
+	 *                      null if it is unknown
+	 * @param sessionExpiry the time at which the session expires, either idle or
+	 *                      at its maximum, in milliseconds since the epoch; 0 if
+	 *                      unknown
+	 * @return the decoded token
+	 */
+	public DecodedSession putValid(String token, String userName, String userDn, long sessionExpiry) {
+		long expiresAt = clock.getAsLong() + ttlMillis;
+		if (sessionExpiry > 0) {
+			expiresAt = Math.min(expiresAt, sessionExpiry);
+		}
+		DecodedSession session = new DecodedSession(userName, userDn, expiresAt);
+		put(token, session);
+		return session;
+	}
+
+	/**
+	 * Caches a token the policy server could not decode.
+	 *
+	 * @param token the Siteminder SSO token
+	 */
+	public void putInvalid(String token) {
+		put(token, new DecodedSession(null, null, clock.getAsLong() + negativeTtlMillis));
+	}
+
+	/**
+	 * @return true if the cache keeps tokens, false otherwise
+	 */
+	public boolean isEnabled() {
+		return capacity > 0 && ttlMillis > 0;
+	}
+
+	/**
+	 * @return the number of cached tokens
+	 */
+	public int size() {
+		synchronized (sessions) {
+			return sessions.size();
+		}
+	}
+
+	private void put(String token, DecodedSession session) {
+		if (!isEnabled() || token == null || session.expiresAt <= clock.getAsLong()) {
+			return;
+		}
+		String key = digest(token);
+		synchronized (sessions) {
+			sessions.put(key, session);
+		}
+	}
+
+	private static String digest(String token) {
+		try {
+			MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+			return Base64.getEncoder().encodeToString(messageDigest.digest(token.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported", e);
+		}
+	}
+}
@@ -32,6 +32,7 @@ public final class NodeConstants {
 
 	// Shared state & headers
 	public static final String LEGACY_COOKIE_SHARED_STATE_PARAM = "legacyCookie";
+	public static final String LEGACY_USER_DN_SHARED_STATE_PARAM = "legacyUserDn";
 
 	// IDM attributes
 	public static final String USER_FORCE_PASSWORD_RESET = "forcePasswordReset";
@@ -230,4 +230,59 @@ public interface SiteminderService {
 	 */
 	@Attribute(order = 230)
 	String legacyCookieName();
+
+	/**
+	 * Defines the maximum number of decoded legacy SSO tokens cached by the
+	 * nodes of the realm, 0 to decode every token with the policy server
+	 *
+	 * @return the configured session cache capacity
+	 */
+	@Attribute(order = 240)
+	default Integer sessionCacheCapacity() {
+		return 10000;
+	}
+
+	/**
+	 * Defines how long, in seconds, a decoded legacy SSO token is cached at most
+	 *
+	 * @return the configured session cache TTL
+	 */
+	@Attribute(order = 250)
+	default Integer sessionCacheTtl() {
+		return 60;
+	}
+
+	/**
+	 * Defines how long, in seconds, the protection of the protected resource is
+	 * kept before being checked again with the policy server, 0 to check it
+	 * before every login
+	 *
+	 * @return the configured protected resource refresh interval
+	 */
+	@Attribute(order = 260)
+	default Integer protectedResourceRefreshInterval() {
+		return 300;
+	}
+
+	/**
+	 * Defines the maximum number of initialized agents shared by the nodes of the
+	 * realm, each of them opening its own connections to the policy server
+	 *
+	 * @return the configured agent pool size
+	 */
+	@Attribute(order = 270)
+	default Integer agentPoolSize() {
+		return 4;
+	}
+
+	/**
+	 * Defines the maximum number of Siteminder administrator sessions shared by
+	 * the nodes of the realm which read the user directory
+	 *
+	 * @return the configured directory session pool size
+	 */
+	@Attribute(order = 280)
+	default Integer directorySessionPoolSize() {
+		return 4;
+	}
 }
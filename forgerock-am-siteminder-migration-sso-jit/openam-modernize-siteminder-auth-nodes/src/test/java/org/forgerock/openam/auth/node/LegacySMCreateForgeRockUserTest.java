@@ -15,32 +15,54 @@
  ***************************************************************************/
 package org.forgerock.openam.auth.node;
 
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.OBJECT_ATTRIBUTES;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.PASSWORD;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.forgerock.openam.modernize.utils.NodeConstants.LEGACY_USER_DN_SHARED_STATE_PARAM;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 import java.util.Collections;
+import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
 import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.ExternalRequestContext;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.SmTestFixtures;
 import org.forgerock.openam.secrets.Secrets;
 import org.forgerock.openam.services.SiteminderService;
 import org.forgerock.openam.sm.AnnotatedServiceRegistry;
+import org.forgerock.util.Pair;
 import org.mockito.Mock;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import com.google.common.collect.ImmutableMap;
 import com.iplanet.sso.SSOException;
+import com.netegrity.sdk.apiutil.SmApiException;
+import com.netegrity.sdk.apiutil.SmApiResult;
+import com.netegrity.sdk.dmsapi.SmDmsDirectoryContext;
+import com.netegrity.sdk.dmsapi.SmDmsObject;
 import com.sun.identity.sm.SMSException;
 
 public class LegacySMCreateForgeRockUserTest {
@@ -61,6 +83,9 @@ public class LegacySMCreateForgeRockUserTest {
 	private static final int INVALID_CONFIG = 1;
 	private static final int INVALID_AGENT_CONFIG = 2;
 	private static final String LEGACY_COOKIE_NAME = "SMSESSION";
+	private static final String TRUE_OUTCOME = "true";
+	private static final String FALSE_OUTCOME = "false";
+	private static final String USER_DN = "cn=demo,ou=users,dc=kapstone,dc=com";
 
 	private final UUID nodeId = UUID.randomUUID();
 
@@ -115,6 +140,85 @@ public class LegacySMCreateForgeRockUserTest {
 
 	}
 
+	@Test
+	public void shouldReadUserByDnWhenKnown() throws NodeProcessException, SmApiException {
+		given(smConfig.lookupUserByDn()).willReturn(true);
+		LegacySMCreateForgeRockUser node = spyNode();
+		doReturn(foundUser()).when(node).readUser(any(SmDmsDirectoryContext.class), eq(USER_DN));
+
+		Action action = node.process(getContextWithUserDn());
+
+		assertEquals(TRUE_OUTCOME, action.outcome);
+		assertEquals("demo@kapstone.com", action.sharedState.get(OBJECT_ATTRIBUTES).get("mail").asString());
+		verify(node, never()).searchUser(any(SmDmsDirectoryContext.class), anyString());
+	}
+
+	@Test
+	public void shouldSearchUserWhenNotFoundByDn() throws NodeProcessException, SmApiException {
+		given(smConfig.lookupUserByDn()).willReturn(true);
+		LegacySMCreateForgeRockUser node = spyNode();
+		doReturn(null).when(node).readUser(any(SmDmsDirectoryContext.class), eq(USER_DN));
+		doReturn(foundUser()).when(node).searchUser(any(SmDmsDirectoryContext.class), eq("demo"));
+
+		Action action = node.process(getContextWithUserDn());
+
+		assertEquals(TRUE_OUTCOME, action.outcome);
+		assertEquals("demo@kapstone.com", action.sharedState.get(OBJECT_ATTRIBUTES).get("mail").asString());
+	}
+
+	@Test
+	public void shouldSearchUserWhenDnIsUnknown() throws NodeProcessException, SmApiException {
+		given(smConfig.lookupUserByDn()).willReturn(true);
+		LegacySMCreateForgeRockUser node = spyNode();
+		doReturn(foundUser()).when(node).searchUser(any(SmDmsDirectoryContext.class), eq("demo"));
+
+		Action action = node.process(getMutableContext(json(object(field(USERNAME, "demo"), field(REALM, "/")))));
+
+		assertEquals(TRUE_OUTCOME, action.outcome);
+		verify(node, never()).readUser(any(SmDmsDirectoryContext.class), anyString());
+	}
+
+	@Test
+	public void shouldSearchUserWhenLookupByDnIsDisabled() throws NodeProcessException, SmApiException {
+		given(smConfig.lookupUserByDn()).willReturn(false);
+		LegacySMCreateForgeRockUser node = spyNode();
+		doReturn(foundUser()).when(node).searchUser(any(SmDmsDirectoryContext.class), eq("demo"));
+
+		Action action = node.process(getContextWithUserDn());
+
+		assertEquals(TRUE_OUTCOME, action.outcome);
+		verify(node, never()).readUser(any(SmDmsDirectoryContext.class), anyString());
+	}
+
+	@Test
+	public void shouldReturnFalseOutcomeWhenUserIsNotFound() throws NodeProcessException, SmApiException {
+		given(smConfig.lookupUserByDn()).willReturn(true);
+		LegacySMCreateForgeRockUser node = spyNode();
+		doReturn(null).when(node).readUser(any(SmDmsDirectoryContext.class), eq(USER_DN));
+		doReturn(null).when(node).searchUser(any(SmDmsDirectoryContext.class), eq("demo"));
+
+		assertEquals(FALSE_OUTCOME, node.process(getContextWithUserDn()).outcome);
+	}
+
+	private LegacySMCreateForgeRockUser spyNode() throws NodeProcessException {
+		given(smConfig.migrationAttributesMap()).willReturn(Map.of("mail", "mail"));
+		LegacySMCreateForgeRockUser node = spy(
+				new LegacySMCreateForgeRockUser(smConfig, realm, secrets, serviceRegistry));
+		doReturn(SmTestFixtures.directorySession(mock(SmDmsDirectoryContext.class))).when(node)
+				.getDirectorySession();
+		return node;
+	}
+
+	private Pair<SmApiResult, SmDmsObject> foundUser() {
+		SmApiResult result = mock(SmApiResult.class);
+		given(result.isSuccess()).willReturn(true);
+		Hashtable<String, String> attributes = new Hashtable<>();
+		attributes.put("mail", "demo@kapstone.com");
+		SmDmsObject dmsObj = mock(SmDmsObject.class);
+		given(dmsObj.getAttributes()).willReturn(attributes);
+		return Pair.of(result, dmsObj);
+	}
+
 	private List<Optional<SiteminderService>> generateConfigs() {
 		SiteminderService validConfigService = new SiteminderService() {
 			@Override
@@ -476,6 +580,16 @@ public class LegacySMCreateForgeRockUserTest {
 				Collections.emptyList(), Optional.empty());
 	}
 
+	private TreeContext getContextWithUserDn() {
+		return getMutableContext(json(object(field(USERNAME, "demo"), field(REALM, "/"),
+				field(LEGACY_USER_DN_SHARED_STATE_PARAM, USER_DN))));
+	}
+
+	private TreeContext getMutableContext(JsonValue sharedState) {
+		return new TreeContext(sharedState, json(object()), new ExternalRequestContext.Builder().build(),
+				Collections.emptyList(), Optional.empty());
+	}
+
 	private TreeContext getContextNoPassword() {
 		return new TreeContext(sharedState, JsonValue.json(""), new ExternalRequestContext.Builder().build(),
 				Collections.emptyList(), Optional.empty());
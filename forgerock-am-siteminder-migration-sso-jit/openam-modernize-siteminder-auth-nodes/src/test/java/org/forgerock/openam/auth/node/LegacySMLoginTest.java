@@ -15,11 +15,19 @@
  ***************************************************************************/
 package org.forgerock.openam.auth.node;
 
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.PASSWORD;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.forgerock.openam.modernize.utils.NodeConstants.LEGACY_COOKIE_SHARED_STATE_PARAM;
+import static org.forgerock.openam.modernize.utils.NodeConstants.LEGACY_USER_DN_SHARED_STATE_PARAM;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -30,6 +38,7 @@ import java.util.Optional;
 import java.util.UUID;
 
 import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.ExternalRequestContext;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
@@ -46,7 +55,9 @@ import com.iplanet.sso.SSOException;
 import com.sun.identity.sm.SMSException;
 
 import netegrity.siteminder.javaagent.AgentAPI;
+import netegrity.siteminder.javaagent.AttributeList;
 import netegrity.siteminder.javaagent.InitDef;
+import netegrity.siteminder.javaagent.SessionDef;
 
 public class LegacySMLoginTest {
 
@@ -135,6 +146,43 @@ public class LegacySMLoginTest {
 
 	}
 
+	@Test
+	public void shouldPutUserDnOnSharedState() throws NodeProcessException {
+		AttributeList attrList = new AttributeList();
+		attrList.addAttribute(AgentAPI.ATTR_USERDN, 0, 0, "", "cn=demo,dc=kapstone,dc=com\0".getBytes());
+		LegacySMLogin node = new LegacySMLogin(smConfig, nodeId, realm, secrets, serviceRegistry);
+
+		Action action = node.getToken(tokenAgent(), mock(SessionDef.class), attrList, getMutableContext()).build();
+
+		assertEquals(TRUE_OUTCOME, action.outcome);
+		assertEquals(LEGACY_COOKIE_NAME + "=token",
+				action.sharedState.get(LEGACY_COOKIE_SHARED_STATE_PARAM).asString());
+		assertEquals("cn=demo,dc=kapstone,dc=com",
+				action.sharedState.get(LEGACY_USER_DN_SHARED_STATE_PARAM).asString());
+	}
+
+	@Test
+	public void shouldNotPutUserDnOnSharedStateWhenUnknown() throws NodeProcessException {
+		LegacySMLogin node = new LegacySMLogin(smConfig, nodeId, realm, secrets, serviceRegistry);
+
+		Action action = node.getToken(tokenAgent(), mock(SessionDef.class), new AttributeList(), getMutableContext())
+				.build();
+
+		assertEquals(TRUE_OUTCOME, action.outcome);
+		assertFalse(action.sharedState.isDefined(LEGACY_USER_DN_SHARED_STATE_PARAM));
+	}
+
+	private AgentAPI tokenAgent() {
+		AgentAPI agent = mock(AgentAPI.class);
+		given(agent.createSSOToken(any(SessionDef.class), any(AttributeList.class), any(StringBuffer.class)))
+				.willAnswer(invocation -> {
+					StringBuffer token = invocation.getArgument(2);
+					token.append("token");
+					return AgentAPI.SUCCESS;
+				});
+		return agent;
+	}
+
 	private List<Optional<SiteminderService>> generateConfigs() {
 		SiteminderService validConfigService = new SiteminderService() {
 			@Override
@@ -497,6 +545,12 @@ public class LegacySMLoginTest {
 				new ArrayList<>(), Optional.of("universalId"));
 	}
 
+	private TreeContext getMutableContext() {
+		return new TreeContext(json(object(field(USERNAME, "demo"), field(REALM, "/"))), json(object()),
+				JsonValue.json(""), new ExternalRequestContext.Builder().build(), new ArrayList<>(),
+				Optional.of("universalId"));
+	}
+
 	private TreeContext getContextNoCookies() {
 		return new TreeContext(sharedState, transientState, JsonValue.json(""),
 				new ExternalRequestContext.Builder().build(), new ArrayList<>(), Optional.of("universalId"));
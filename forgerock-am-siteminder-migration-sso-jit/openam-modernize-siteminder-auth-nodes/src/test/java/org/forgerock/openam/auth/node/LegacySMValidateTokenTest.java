@@ -15,10 +15,18 @@
  ***************************************************************************/
 package org.forgerock.openam.auth.node;
 
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.forgerock.openam.modernize.utils.NodeConstants.LEGACY_USER_DN_SHARED_STATE_PARAM;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 import java.util.ArrayList;
@@ -27,10 +35,13 @@ import java.util.Map;
 import java.util.Optional;
 
 import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.ExternalRequestContext;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.modernize.legacy.SmSessionCache;
+import org.forgerock.openam.modernize.legacy.SmTestFixtures;
 import org.forgerock.openam.secrets.Secrets;
 import org.forgerock.openam.services.SiteminderService;
 import org.forgerock.openam.sm.AnnotatedServiceRegistry;
@@ -42,6 +53,10 @@ import com.google.common.collect.ImmutableMap;
 import com.iplanet.sso.SSOException;
 import com.sun.identity.sm.SMSException;
 
+import netegrity.siteminder.javaagent.AgentAPI;
+import netegrity.siteminder.javaagent.AttributeList;
+import netegrity.siteminder.javaagent.TokenDescriptor;
+
 public class LegacySMValidateTokenTest {
 
 	@Mock
@@ -60,6 +75,8 @@ public class LegacySMValidateTokenTest {
 	private static final int INVALID_CONFIG = 1;
 	private static final int INVALID_AGENT_CONFIG = 2;
 	private static final String FALSE_OUTCOME = "false";
+	private static final String TRUE_OUTCOME = "true";
+	private static final String USER_DN = "cn=demo,ou=users,dc=kapstone,dc=com";
 	private static final String LEGACY_COOKIE_NAME = "SMSESSION";
 	private final JsonValue sharedState = JsonValue.json(ImmutableMap.of(USERNAME, "kp-test", REALM, "/"));
 
@@ -115,6 +132,62 @@ public class LegacySMValidateTokenTest {
 
 	}
 
+	@Test
+	public void shouldPutCachedUserDnOnSharedState() throws NodeProcessException {
+		given(realm.asPath()).willReturn("/cached-user-dn");
+		SmSessionCache.forRealm("/cached-user-dn", 10000, 60).putValid("SomeCookieValue", "demo", USER_DN, 0);
+		LegacySMValidateToken node = new LegacySMValidateToken(smConfig, realm, secrets, serviceRegistry);
+
+		Action action = node.process(getMutableContextWithCookies());
+
+		assertEquals(TRUE_OUTCOME, action.outcome);
+		assertEquals("demo", action.sharedState.get(USERNAME).asString());
+		assertEquals(USER_DN, action.sharedState.get(LEGACY_USER_DN_SHARED_STATE_PARAM).asString());
+	}
+
+	@Test
+	public void shouldDecodeUserDnAndSessionExpiry() throws NodeProcessException {
+		AgentAPI agent = mock(AgentAPI.class);
+		given(agent.decodeSSOToken(eq("SomeCookieValue"), any(TokenDescriptor.class), any(AttributeList.class),
+				anyBoolean(), any(StringBuffer.class))).willAnswer(invocation -> {
+					AttributeList attributes = invocation.getArgument(2);
+					attributes.addAttribute(AgentAPI.ATTR_USERNAME, 0, 0, "", "demo\0".getBytes());
+					attributes.addAttribute(AgentAPI.ATTR_USERDN, 0, 0, "", (USER_DN + "\0").getBytes());
+					return AgentAPI.SUCCESS;
+				});
+		SmSessionCache sessionCache = SmSessionCache.forRealm("/decoded-user-dn", 10000, 60);
+		LegacySMValidateToken node = new LegacySMValidateToken(smConfig, realm, secrets, serviceRegistry);
+
+		SmSessionCache.DecodedSession session = node.validateLegacySession(SmTestFixtures.agentApiPool(agent),
+				"SomeCookieValue", sessionCache);
+
+		assertEquals("demo", session.getUserName());
+		assertEquals(USER_DN, session.getUserDn());
+		assertEquals(1, sessionCache.size());
+	}
+
+	@Test
+	public void testSessionExpiryFromIdleTimeout() {
+		assertEquals(2800000, LegacySMValidateToken.getSessionExpiry(1800, 0, 0, 1000));
+	}
+
+	@Test
+	public void testSessionExpiryFromMaxTimeout() {
+		assertEquals(8200000, LegacySMValidateToken.getSessionExpiry(0, 7200, 1000, 0));
+	}
+
+	@Test
+	public void testSessionExpiryIsTheFirstOfIdleAndMaxTimeouts() {
+		assertEquals(3800000, LegacySMValidateToken.getSessionExpiry(1800, 7200, 1000, 2000));
+		assertEquals(8200000, LegacySMValidateToken.getSessionExpiry(1800, 7200, 1000, 7000));
+	}
+
+	@Test
+	public void testSessionExpiryIsUnknownWithoutTimes() {
+		assertEquals(0, LegacySMValidateToken.getSessionExpiry(0, 0, 0, 0));
+		assertEquals(0, LegacySMValidateToken.getSessionExpiry(1800, 7200, 0, 0));
+	}
+
 	private List<Optional<SiteminderService>> generateConfigs() {
 		SiteminderService validConfigService = new SiteminderService() {
 			@Override
@@ -477,6 +550,12 @@ public class LegacySMValidateTokenTest {
 				new ArrayList<>(), Optional.of("universalId"));
 	}
 
+	private TreeContext getMutableContextWithCookies() {
+		return new TreeContext(json(object(field(REALM, "/"))), json(object()), JsonValue.json(""),
+				new ExternalRequestContext.Builder().cookies(Map.of(LEGACY_COOKIE_NAME, "SomeCookieValue")).build(),
+				new ArrayList<>(), Optional.of("universalId"));
+	}
+
 	private TreeContext getContextWithoutCookies() {
 		return new TreeContext(sharedState, JsonValue.json(""), JsonValue.json(""),
 				new ExternalRequestContext.Builder().build(), new ArrayList<>(), Optional.of("universalId"));
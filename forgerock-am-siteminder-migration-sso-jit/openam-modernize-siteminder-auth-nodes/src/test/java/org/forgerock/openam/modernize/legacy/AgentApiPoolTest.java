@@ -0,0 +1,115 @@
+/***************************************************************************
+ *  Copyright 2019-2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.testng.annotations.Test;
+
+import netegrity.siteminder.javaagent.AgentAPI;
+
+public class AgentApiPoolTest {
+
+	@Test
+	public void testReleasedAgentIsReused() {
+		AtomicInteger initializedAgents = new AtomicInteger();
+		AgentApiPool pool = new AgentApiPool("config", countingFactory(initializedAgents), 2, 0);
+
+		AgentAPI agent = pool.borrow();
+		pool.release(agent);
+
+		assertSame(agent, pool.borrow());
+		assertEquals(1, initializedAgents.get());
+		verify(agent, never()).unInit();
+	}
+
+	@Test
+	public void testPoolDoesNotGrowBeyondMaximum() {
+		AgentApiPool pool = new AgentApiPool("config", countingFactory(new AtomicInteger()), 2, 10);
+
+		pool.borrow();
+		pool.borrow();
+
+		assertNull(pool.borrow());
+		assertEquals(2, pool.size());
+	}
+
+	@Test
+	public void testFailedInitializationIsNotCounted() {
+		AgentApiPool pool = new AgentApiPool("config", () -> null, 2, 0);
+
+		assertNull(pool.borrow());
+		assertEquals(0, pool.size());
+	}
+
+	@Test
+	public void testWaitingBorrowerInitializesAnAgentWhenOneIsDiscarded() throws Exception {
+		AtomicInteger initializedAgents = new AtomicInteger();
+		AgentApiPool pool = new AgentApiPool("config", countingFactory(initializedAgents), 1, 10000);
+		AgentAPI failedAgent = pool.borrow();
+
+		CompletableFuture<AgentAPI> waitingBorrower = CompletableFuture.supplyAsync(pool::borrow);
+		pool.discard(failedAgent);
+
+		assertNotNull(waitingBorrower.get(5, TimeUnit.SECONDS));
+		assertEquals(2, initializedAgents.get());
+		assertEquals(1, pool.size());
+	}
+
+	@Test
+	public void testWaitingBorrowerGetsNoAgentOnShutdown() throws Exception {
+		AgentApiPool pool = new AgentApiPool("config", countingFactory(new AtomicInteger()), 1, 10000);
+		pool.borrow();
+
+		CompletableFuture<AgentAPI> waitingBorrower = CompletableFuture.supplyAsync(pool::borrow);
+		pool.shutdown();
+
+		assertNull(waitingBorrower.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testAgentsAreReleasedOnShutdown() {
+		AgentApiPool pool = new AgentApiPool("config", countingFactory(new AtomicInteger()), 2, 0);
+		AgentAPI idleAgent = pool.borrow();
+		AgentAPI borrowedAgent = pool.borrow();
+		pool.release(idleAgent);
+
+		pool.shutdown();
+		verify(idleAgent).unInit();
+
+		pool.release(borrowedAgent);
+		verify(borrowedAgent).unInit();
+		assertEquals(0, pool.size());
+	}
+
+	private Supplier<AgentAPI> countingFactory(AtomicInteger initializedAgents) {
+		return () -> {
+			initializedAgents.incrementAndGet();
+			return mock(AgentAPI.class);
+		};
+	}
+}
@@ -0,0 +1,98 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.forgerock.util.Pair;
+import org.testng.annotations.Test;
+
+import netegrity.siteminder.javaagent.AgentAPI;
+import netegrity.siteminder.javaagent.RealmDef;
+import netegrity.siteminder.javaagent.ResourceContextDef;
+
+public class ProtectedResourceCacheTest {
+
+	@Test
+	public void testResourceIsResolvedOncePerAgent() {
+		AgentAPI firstAgent = protectedAgent(AgentAPI.YES);
+		AgentAPI secondAgent = protectedAgent(AgentAPI.YES);
+		ProtectedResourceCache cache = newCache(60000, () -> 1000);
+
+		Pair<ResourceContextDef, RealmDef> resource = cache.resolve(firstAgent);
+
+		assertSame(resource, cache.resolve(firstAgent));
+		cache.resolve(secondAgent);
+		verify(firstAgent, times(1)).isProtected(anyString(), any(ResourceContextDef.class), any(RealmDef.class));
+		verify(secondAgent, times(1)).isProtected(anyString(), any(ResourceContextDef.class), any(RealmDef.class));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testResourceIsResolvedAgainAfterRefreshInterval() {
+		AgentAPI agent = protectedAgent(AgentAPI.YES);
+		AtomicLong clock = new AtomicLong(1000);
+		ProtectedResourceCache cache = newCache(60000, clock::get);
+
+		cache.resolve(agent);
+		clock.set(61000);
+		cache.resolve(agent);
+
+		verify(agent, times(2)).isProtected(anyString(), any(ResourceContextDef.class), any(RealmDef.class));
+	}
+
+	@Test
+	public void testUnprotectedResourceIsNotCached() {
+		AgentAPI agent = protectedAgent(AgentAPI.NO);
+		ProtectedResourceCache cache = newCache(60000, () -> 1000);
+
+		cache.resolve(agent);
+		cache.resolve(agent);
+
+		verify(agent, times(2)).isProtected(anyString(), any(ResourceContextDef.class), any(RealmDef.class));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testAgentErrorIsReported() {
+		AgentAPI agent = protectedAgent(AgentAPI.NOCONNECTION);
+		ProtectedResourceCache cache = newCache(60000, () -> 1000);
+
+		assertNull(cache.resolve(agent));
+		assertEquals(0, cache.size());
+	}
+
+	private ProtectedResourceCache newCache(long refreshMillis, LongSupplier clock) {
+		return new ProtectedResourceCache("config", "127.0.0.1", "agent", "/protected", "GET", refreshMillis, clock);
+	}
+
+	private AgentAPI protectedAgent(int answer) {
+		AgentAPI agent = mock(AgentAPI.class);
+		when(agent.isProtected(anyString(), any(ResourceContextDef.class), any(RealmDef.class))).thenReturn(answer);
+		return agent;
+	}
+}
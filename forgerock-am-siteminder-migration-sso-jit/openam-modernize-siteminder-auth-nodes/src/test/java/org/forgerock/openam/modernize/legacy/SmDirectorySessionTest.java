@@ -0,0 +1,162 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.openam.services.SiteminderService;
+import org.forgerock.util.Pair;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import com.netegrity.sdk.apiutil.SmApiException;
+import com.netegrity.sdk.apiutil.SmApiResult;
+import com.netegrity.sdk.apiutil.SmApiSession;
+import com.netegrity.sdk.dmsapi.SmDmsDirectoryContext;
+
+import netegrity.siteminder.javaagent.AgentAPI;
+
+public class SmDirectorySessionTest {
+
+	private final List<AgentAPI> openedAgents = new ArrayList<>();
+
+	@AfterMethod
+	public void after() {
+		SmDirectorySession.closeAll();
+	}
+
+	@Test
+	public void testSessionErrorLogsInAgainAndRetriesOnce() throws SmApiException {
+		SmDirectorySession session = newSession(TimeUnit.MINUTES.toNanos(10));
+		SmApiException sessionExpired = mock(SmApiException.class);
+		int[] calls = new int[1];
+
+		String user = session.execute(dirContext -> {
+			if (calls[0]++ == 0) {
+				throw sessionExpired;
+			}
+			return Pair.of(result(true), "demo");
+		});
+
+		assertEquals("demo", user);
+		assertEquals(2, calls[0]);
+		assertEquals(2, openedAgents.size());
+		verify(openedAgents.get(0)).unInit();
+		verify(openedAgents.get(1), never()).unInit();
+	}
+
+	@Test
+	public void testSessionErrorIsThrownWhenTheRetryFails() {
+		SmDirectorySession session = newSession(TimeUnit.MINUTES.toNanos(10));
+		SmApiException sessionExpired = mock(SmApiException.class);
+		int[] calls = new int[1];
+
+		try {
+			session.execute(dirContext -> {
+				calls[0]++;
+				throw sessionExpired;
+			});
+			fail("The session error should be thrown");
+		} catch (SmApiException e) {
+			assertSame(sessionExpired, e);
+		}
+
+		assertEquals(2, calls[0]);
+		assertEquals(2, openedAgents.size());
+		verify(openedAgents.get(1)).unInit();
+	}
+
+	@Test
+	public void testUnsuccessfulOrEmptyResultKeepsTheSession() throws SmApiException {
+		SmDirectorySession session = newSession(TimeUnit.MINUTES.toNanos(10));
+
+		assertNull(session.execute(dirContext -> Pair.of(result(false), "demo")));
+		assertNull(session.execute(dirContext -> null));
+		assertEquals("demo", session.execute(dirContext -> Pair.of(result(true), "demo")));
+
+		assertEquals(1, openedAgents.size());
+		verify(openedAgents.get(0), never()).unInit();
+	}
+
+	@Test
+	public void testIdleSessionIsOpenedAgain() throws SmApiException {
+		SmDirectorySession session = newSession(0);
+
+		session.execute(dirContext -> Pair.of(result(true), "demo"));
+		session.execute(dirContext -> Pair.of(result(true), "demo"));
+
+		assertEquals(2, openedAgents.size());
+		verify(openedAgents.get(0)).unInit();
+	}
+
+	@Test
+	public void testSessionsAreClosedOnClose() throws SmApiException {
+		SmDirectorySession session = newSession(TimeUnit.MINUTES.toNanos(10));
+		session.execute(dirContext -> Pair.of(result(true), "demo"));
+
+		session.close();
+
+		verify(openedAgents.get(0)).unInit();
+		assertNull(session.execute(dirContext -> Pair.of(result(true), "demo")));
+		assertEquals(1, openedAgents.size());
+	}
+
+	@Test
+	public void testPoolIsRebuiltWhenTheConfigurationChanges() throws SmApiException {
+		SiteminderService siteminderService = mock(SiteminderService.class);
+		when(siteminderService.smAdminUser()).thenReturn("siteminder");
+		when(siteminderService.smUserDirectory()).thenReturn("ad");
+
+		SmDirectorySession session = SmDirectorySession.forRealm("/sm", siteminderService, "secret", "password");
+		assertSame(session, SmDirectorySession.forRealm("/sm", siteminderService, "secret", "password"));
+
+		when(siteminderService.smUserDirectory()).thenReturn("ldap");
+		SmDirectorySession rebuiltSession = SmDirectorySession.forRealm("/sm", siteminderService, "secret",
+				"password");
+
+		assertNotSame(session, rebuiltSession);
+		// The replaced pool is closed, so it does not open any session anymore
+		assertNull(session.execute(dirContext -> Pair.of(result(true), "demo")));
+		assertNotSame(rebuiltSession, SmDirectorySession.forRealm("/sm", siteminderService, "secret", "other"));
+	}
+
+	private SmDirectorySession newSession(long maxIdleNanos) {
+		return new SmDirectorySession("config", 2, 0, maxIdleNanos, () -> {
+			AgentAPI agent = mock(AgentAPI.class);
+			openedAgents.add(agent);
+			return new SmDirectorySession.DirectoryConnection(agent, mock(SmApiSession.class),
+					mock(SmDmsDirectoryContext.class));
+		});
+	}
+
+	private static SmApiResult result(boolean success) {
+		SmApiResult result = mock(SmApiResult.class);
+		when(result.isSuccess()).thenReturn(success);
+		return result;
+	}
+}
@@ -0,0 +1,110 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+public class SmSessionCacheTest {
+
+	@Test
+	public void testValidTokenIsCachedUntilTtl() {
+		AtomicLong clock = new AtomicLong(1000);
+		SmSessionCache cache = new SmSessionCache(10, 60000, 5000, clock::get);
+
+		cache.putValid("token", "user", null, 0);
+
+		assertEquals("user", cache.get("token").getUserName());
+		clock.set(60999);
+		assertEquals("user", cache.get("token").getUserName());
+		clock.set(61000);
+		assertNull(cache.get("token"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testValidTokenIsNotCachedBeyondSessionExpiry() {
+		AtomicLong clock = new AtomicLong(1000);
+		SmSessionCache cache = new SmSessionCache(10, 60000, 5000, clock::get);
+
+		cache.putValid("token", "user", null, 11000);
+
+		clock.set(11000);
+		assertNull(cache.get("token"));
+	}
+
+	@Test
+	public void testUserDnIsCached() {
+		SmSessionCache cache = new SmSessionCache(10, 60000, 5000, () -> 1000);
+
+		cache.putValid("token", "user", "cn=user,dc=example,dc=com", 0);
+
+		assertEquals("cn=user,dc=example,dc=com", cache.get("token").getUserDn());
+	}
+
+	@Test
+	public void testInvalidTokenIsCachedShortly() {
+		AtomicLong clock = new AtomicLong(1000);
+		SmSessionCache cache = new SmSessionCache(10, 60000, 5000, clock::get);
+
+		cache.putInvalid("token");
+
+		SmSessionCache.DecodedSession session = cache.get("token");
+		assertNotNull(session);
+		assertNull(session.getUserName());
+		clock.set(6000);
+		assertNull(cache.get("token"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedTokenIsEvicted() {
+		SmSessionCache cache = new SmSessionCache(2, 60000, 5000, () -> 1000);
+
+		cache.putValid("first", "user1", null, 0);
+		cache.putValid("second", "user2", null, 0);
+		cache.get("first");
+		cache.putValid("third", "user3", null, 0);
+
+		assertEquals(2, cache.size());
+		assertNull(cache.get("second"));
+		assertEquals("user1", cache.get("first").getUserName());
+	}
+
+	@Test
+	public void testZeroCapacityDisablesTheCache() {
+		SmSessionCache cache = new SmSessionCache(0, 60000, 5000, () -> 1000);
+
+		cache.putValid("token", "user", null, 0);
+
+		assertFalse(cache.isEnabled());
+		assertNull(cache.get("token"));
+	}
+
+	@Test
+	public void testRealmCacheIsRebuiltWhenConfigurationChanges() {
+		SmSessionCache cache = SmSessionCache.forRealm("/test", 10, 60);
+
+		assertSame(cache, SmSessionCache.forRealm("/test", 10, 60));
+		assertFalse(cache == SmSessionCache.forRealm("/test", 20, 60));
+	}
+}
@@ -0,0 +1,51 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openam.modernize.legacy;
+
+import static org.mockito.Mockito.mock;
+
+import com.netegrity.sdk.apiutil.SmApiSession;
+import com.netegrity.sdk.dmsapi.SmDmsDirectoryContext;
+
+import netegrity.siteminder.javaagent.AgentAPI;
+
+/**
+ * Builds the agent and directory session pools of the nodes tests around mocked
+ * Siteminder SDK objects, without connecting to a policy server.
+ */
+public final class SmTestFixtures {
+
+	private SmTestFixtures() {
+	}
+
+	/**
+	 * @param agentAPI the agent lent by the pool
+	 * @return a pool lending a single, already initialized, agent
+	 */
+	public static AgentApiPool agentApiPool(AgentAPI agentAPI) {
+		return new AgentApiPool("test", () -> agentAPI, 1, 0);
+	}
+
+	/**
+	 * @param dirContext the DMS context on which the directory is read
+	 * @return a pool of a single administrator session opened on the context
+	 */
+	public static SmDirectorySession directorySession(SmDmsDirectoryContext dirContext) {
+		return new SmDirectorySession("test", 1, 0, Long.MAX_VALUE,
+				() -> new SmDirectorySession.DirectoryConnection(mock(AgentAPI.class), mock(SmApiSession.class),
+						dirContext));
+	}
+}
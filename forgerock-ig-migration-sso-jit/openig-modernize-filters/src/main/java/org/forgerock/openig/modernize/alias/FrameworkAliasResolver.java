@@ -20,6 +20,7 @@ import java.util.Map;
 
 import org.forgerock.openig.alias.ClassAliasResolver;
 import org.forgerock.openig.modernize.filter.MigrationSsoFilter;
+import org.forgerock.openig.modernize.tracing.StageMetricsHandler;
 
 public class FrameworkAliasResolver implements ClassAliasResolver {
 
@@ -27,6 +28,7 @@ public class FrameworkAliasResolver implements ClassAliasResolver {
 
 	static {
 		ALIASES.put("MigrationSsoFilter", MigrationSsoFilter.class);
+		ALIASES.put("StageMetricsHandler", StageMetricsHandler.class);
 	}
 
 	/**
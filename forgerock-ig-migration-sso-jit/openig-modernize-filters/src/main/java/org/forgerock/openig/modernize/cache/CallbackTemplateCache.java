@@ -0,0 +1,161 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.cache;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Pool of AM authentication callback templates, fetched ahead of the logins.
+ * <p>
+ * A template is the NameCallback/PasswordCallback skeleton returned by the
+ * first, empty, POST to an AM authenticate URL. Its authId identifies an
+ * authentication session in AM, so a template is handed out once only, and
+ * discarded once older than the configured maximum age, before AM times the
+ * authentication session out. Templates are pooled per authenticate URL,
+ * which selects the realm and the tree, and per Accept-API-Version.
+ * </p>
+ * <p>
+ * A pool size of 0 disables the cache.
+ * </p>
+ */
+public class CallbackTemplateCache {
+
+	private static final CallbackTemplateCache DISABLED = new CallbackTemplateCache(0, 0, TimeService.SYSTEM);
+
+	private final int poolSize;
+	private final long maxAgeMillis;
+	private final TimeService time;
+	private final ConcurrentMap<String, Deque<Template>> pools = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a callback template cache.
+	 *
+	 * @param poolSize     - maximum number of templates kept per authenticate URL
+	 * @param maxAgeMillis - time in milliseconds after which a template is discarded
+	 * @param time         - time service used to expire the templates
+	 */
+	public CallbackTemplateCache(int poolSize, long maxAgeMillis, TimeService time) {
+		this.poolSize = Math.max(poolSize, 0);
+		this.maxAgeMillis = maxAgeMillis;
+		this.time = time;
+	}
+
+	/**
+	 * @return - a cache that keeps nothing
+	 */
+	public static CallbackTemplateCache disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * @return - true if templates are cached, false otherwise
+	 */
+	public boolean isEnabled() {
+		return poolSize > 0 && maxAgeMillis > 0;
+	}
+
+	/**
+	 *
+	 * Builds the key of the templates of an authenticate URL.
+	 *
+	 * @param openAmAuthenticateURL		  - the authentication URL for OpenAM, selecting the realm and tree
+	 * @param acceptApiVersionHeaderValue - Accept API version header value
+	 * @return - the key of the templates
+	 */
+	public static String key(String openAmAuthenticateURL, String acceptApiVersionHeaderValue) {
+		return openAmAuthenticateURL + '|' + acceptApiVersionHeaderValue;
+	}
+
+	/**
+	 *
+	 * Removes a template from the pool, to be filled in and submitted once.
+	 *
+	 * @param key - the key of the templates
+	 * @return - the callbacks of the template, or null if no fresh template is available
+	 */
+	public JsonValue take(String key) {
+		Deque<Template> pool = pools.get(key);
+		if (pool == null) {
+			return null;
+		}
+		long now = time.now();
+		Template template;
+		while ((template = pool.pollFirst()) != null) {
+			if (now - template.fetchedAt < maxAgeMillis) {
+				return template.callbacks;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 * Tells whether the pool of an authenticate URL has room for another template.
+	 *
+	 * @param key - the key of the templates
+	 * @return - true if a template should be fetched ahead, false otherwise
+	 */
+	public boolean needsTemplate(String key) {
+		if (!isEnabled()) {
+			return false;
+		}
+		Deque<Template> pool = pools.get(key);
+		return pool == null || pool.size() < poolSize;
+	}
+
+	/**
+	 *
+	 * Adds a freshly fetched template to the pool, unless the pool is full.
+	 *
+	 * @param key       - the key of the templates
+	 * @param callbacks - the callbacks returned by AM
+	 */
+	public void offer(String key, JsonValue callbacks) {
+		if (!isEnabled()) {
+			return;
+		}
+		Deque<Template> pool = pools.computeIfAbsent(key, k -> new ConcurrentLinkedDeque<>());
+		if (pool.size() < poolSize) {
+			pool.offerLast(new Template(callbacks, time.now()));
+		}
+	}
+
+	/**
+	 *
+	 * Discards all the templates of an authenticate URL, after AM rejected one of them.
+	 *
+	 * @param key - the key of the templates
+	 */
+	public void invalidate(String key) {
+		pools.remove(key);
+	}
+
+	private static final class Template {
+		private final JsonValue callbacks;
+		private final long fetchedAt;
+
+		private Template(JsonValue callbacks, long fetchedAt) {
+			this.callbacks = callbacks;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.cache;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable, compact index of the user names migrated in IDM.
+ * <p>
+ * The user names are sorted and packed in a single char array, indexed by an
+ * array of offsets, which costs a few bytes per user instead of a String
+ * object each. A Bloom filter in front of the binary search answers most
+ * lookups of users not migrated after a handful of bit tests. Lookups do not
+ * allocate.
+ * </p>
+ */
+public final class MigratedUsersIndex {
+
+	private static final MigratedUsersIndex EMPTY = new MigratedUsersIndex(new char[0], new int[] { 0 }, new long[1]);
+
+	/** Number of bits set in the Bloom filter for each user, ~1% false positives with 10 bits per user */
+	private static final int BLOOM_HASHES = 7;
+	private static final int BLOOM_BITS_PER_USER = 10;
+
+	private final char[] userNames;
+	private final int[] offsets;
+	private final long[] bloom;
+	private final long bloomBits;
+
+	private MigratedUsersIndex(char[] userNames, int[] offsets, long[] bloom) {
+		this.userNames = userNames;
+		this.offsets = offsets;
+		this.bloom = bloom;
+		this.bloomBits = (long) bloom.length * Long.SIZE;
+	}
+
+	/**
+	 * @return - an index containing no user
+	 */
+	public static MigratedUsersIndex empty() {
+		return EMPTY;
+	}
+
+	/**
+	 *
+	 * Builds an index of the given user names.
+	 *
+	 * @param migratedUserNames - the migrated user names, in any order and possibly duplicated
+	 * @return - the index
+	 */
+	public static MigratedUsersIndex of(Collection<String> migratedUserNames) {
+		Builder builder = builder();
+		for (String userName : migratedUserNames) {
+			builder.add(userName);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @return - a builder to which the user names can be added as they are fetched
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 *
+	 * Tells whether a user name is in the index.
+	 *
+	 * @param userName - the user name
+	 * @return - true if the user is known to be migrated, false otherwise
+	 */
+	public boolean contains(String userName) {
+		if (userName == null || size() == 0 || !mightContain(userName)) {
+			return false;
+		}
+
+		int low = 0;
+		int high = size() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = compare(middle, userName);
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return - the number of users in the index
+	 */
+	public int size() {
+		return offsets.length - 1;
+	}
+
+	private boolean mightContain(String userName) {
+		int hash1 = userName.hashCode();
+		int hash2 = secondHash(userName, 0, userName.length());
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			long bit = Math.floorMod(hash1 + (long) i * hash2, bloomBits);
+			if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compares the indexed user name at the given position with a user name, in
+	 * the {@link String#compareTo(String)} order used to sort the index.
+	 */
+	private int compare(int position, String userName) {
+		int start = offsets[position];
+		int length = offsets[position + 1] - start;
+		int commonLength = Math.min(length, userName.length());
+		for (int i = 0; i < commonLength; i++) {
+			char indexed = userNames[start + i];
+			char searched = userName.charAt(i);
+			if (indexed != searched) {
+				return indexed - searched;
+			}
+		}
+		return length - userName.length();
+	}
+
+	/**
+	 * FNV-1a hash of the user name chars, independent of {@link String#hashCode()}.
+	 * Forced odd so that the successive Bloom filter probes never collapse.
+	 */
+	private static int secondHash(CharSequence chars, int start, int end) {
+		int hash = 0x811c9dc5;
+		for (int i = start; i < end; i++) {
+			hash ^= chars.charAt(i);
+			hash *= 0x01000193;
+		}
+		return hash | 1;
+	}
+
+	/**
+	 * Collects user names into a packed char buffer, so that no String is kept per
+	 * user while the index is loaded, then sorts and deduplicates them into an index.
+	 * A builder is not thread-safe.
+	 */
+	public static final class Builder {
+		private StringBuilder chars = new StringBuilder();
+		private int[] offsets = new int[] { 0 };
+		private int count;
+
+		private Builder() {
+		}
+
+		/**
+		 *
+		 * Adds a user name to the index.
+		 *
+		 * @param userName - the migrated user name; null is ignored
+		 * @return - this builder
+		 */
+		public Builder add(String userName) {
+			if (userName == null) {
+				return this;
+			}
+			if (count + 1 == offsets.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			}
+			chars.append(userName);
+			offsets[count + 1] = chars.length();
+			count++;
+			return this;
+		}
+
+		/**
+		 * @return - the index of the user names added so far
+		 */
+		public MigratedUsersIndex build() {
+			if (count == 0) {
+				return EMPTY;
+			}
+			int[] order = new int[count];
+			for (int i = 0; i < count; i++) {
+				order[i] = i;
+			}
+			heapSort(order);
+
+			int length = 0;
+			int unique = 0;
+			for (int i = 0; i < count; i++) {
+				if (i == 0 || compare(order[i - 1], order[i]) != 0) {
+					length += offsets[order[i] + 1] - offsets[order[i]];
+					unique++;
+				}
+			}
+
+			char[] userNames = new char[length];
+			int[] indexOffsets = new int[unique + 1];
+			long[] bloom = new long[(int) Math.max(1,
+					((long) unique * BLOOM_BITS_PER_USER + Long.SIZE - 1) / Long.SIZE)];
+			long bloomBits = (long) bloom.length * Long.SIZE;
+
+			int index = 0;
+			for (int i = 0; i < count; i++) {
+				if (i > 0 && compare(order[i - 1], order[i]) == 0) {
+					continue;
+				}
+				int start = offsets[order[i]];
+				int end = offsets[order[i] + 1];
+				chars.getChars(start, end, userNames, indexOffsets[index]);
+				indexOffsets[index + 1] = indexOffsets[index] + end - start;
+				index++;
+
+				int hash1 = stringHash(start, end);
+				int hash2 = secondHash(chars, start, end);
+				for (int h = 0; h < BLOOM_HASHES; h++) {
+					long bit = Math.floorMod(hash1 + (long) h * hash2, bloomBits);
+					bloom[(int) (bit >>> 6)] |= 1L << bit;
+				}
+			}
+			return new MigratedUsersIndex(userNames, indexOffsets, bloom);
+		}
+
+		/**
+		 * Same value as {@link String#hashCode()} for the chars of the range.
+		 */
+		private int stringHash(int start, int end) {
+			int hash = 0;
+			for (int i = start; i < end; i++) {
+				hash = 31 * hash + chars.charAt(i);
+			}
+			return hash;
+		}
+
+		/**
+		 * Compares two added user names in the {@link String#compareTo(String)} order.
+		 */
+		private int compare(int first, int second) {
+			int firstStart = offsets[first];
+			int firstLength = offsets[first + 1] - firstStart;
+			int secondStart = offsets[second];
+			int secondLength = offsets[second + 1] - secondStart;
+			int commonLength = Math.min(firstLength, secondLength);
+			for (int i = 0; i < commonLength; i++) {
+				char firstChar = chars.charAt(firstStart + i);
+				char secondChar = chars.charAt(secondStart + i);
+				if (firstChar != secondChar) {
+					return firstChar - secondChar;
+				}
+			}
+			return firstLength - secondLength;
+		}
+
+		/**
+		 * Sorts the positions of the added user names without boxing them.
+		 */
+		private void heapSort(int[] order) {
+			for (int i = order.length / 2 - 1; i >= 0; i--) {
+				siftDown(order, i, order.length);
+			}
+			for (int end = order.length - 1; end > 0; end--) {
+				int top = order[0];
+				order[0] = order[end];
+				order[end] = top;
+				siftDown(order, 0, end);
+			}
+		}
+
+		private void siftDown(int[] order, int root, int end) {
+			while (2 * root + 1 < end) {
+				int child = 2 * root + 1;
+				if (child + 1 < end && compare(order[child], order[child + 1]) < 0) {
+					child++;
+				}
+				if (compare(order[root], order[child]) >= 0) {
+					return;
+				}
+				int swapped = order[root];
+				order[root] = order[child];
+				order[child] = swapped;
+				root = child;
+			}
+		}
+	}
+}
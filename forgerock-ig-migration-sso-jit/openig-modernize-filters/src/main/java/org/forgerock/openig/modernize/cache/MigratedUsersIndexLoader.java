@@ -0,0 +1,97 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.cache;
+
+import static org.forgerock.openig.modernize.utils.FilterConstants.Attributes.USER_NAME;
+
+import java.io.IOException;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.modernize.provider.ForgeRockProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the {@link MigratedUsersIndex} by paging through the user names of all
+ * the users in IDM.
+ * <p>
+ * The handler used for the queries must authorize them, for example with a
+ * ClientCredentialsOAuth2ClientFilter, since they are not made on behalf of a
+ * request.
+ * </p>
+ */
+public class MigratedUsersIndexLoader {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MigratedUsersIndexLoader.class);
+
+	private final String getUserMigrationStatusEndpoint;
+	private final int pageSize;
+	private final Handler httpClientHandler;
+
+	/**
+	 * Creates a loader of the migrated users index.
+	 *
+	 * @param getUserMigrationStatusEndpoint - the IDM managed users end-point
+	 * @param pageSize                       - the number of users fetched per query
+	 * @param httpClientHandler              - the handler sending the authorized queries to IDM
+	 */
+	public MigratedUsersIndexLoader(String getUserMigrationStatusEndpoint, int pageSize, Handler httpClientHandler) {
+		this.getUserMigrationStatusEndpoint = getUserMigrationStatusEndpoint;
+		this.pageSize = pageSize;
+		this.httpClientHandler = httpClientHandler;
+	}
+
+	/**
+	 *
+	 * Fetches all the migrated user names from IDM, page by page, and builds their index.
+	 *
+	 * @return - the index of the migrated users
+	 * @throws IOException          - if a page could not be fetched or read
+	 * @throws InterruptedException - if the loading thread is interrupted
+	 */
+	public MigratedUsersIndex load() throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		MigratedUsersIndex.Builder builder = MigratedUsersIndex.builder();
+		String pagedResultsCookie = null;
+
+		do {
+			try (Response response = ForgeRockProvider.queryMigratedUsers(getUserMigrationStatusEndpoint, pageSize,
+					pagedResultsCookie, httpClientHandler).getOrThrow()) {
+				if (!response.getStatus().isSuccessful()) {
+					throw new IOException("Migrated users query failed with status " + response.getStatus());
+				}
+
+				JsonValue page = JsonValue.json(response.getEntity().getJson());
+				JsonValue result = page.get("result");
+				for (JsonValue user : result) {
+					builder.add(user.get(USER_NAME).asString());
+				}
+
+				pagedResultsCookie = page.get("pagedResultsCookie").asString();
+				if (result.size() == 0) {
+					pagedResultsCookie = null;
+				}
+			}
+		} while (pagedResultsCookie != null && !pagedResultsCookie.isEmpty());
+
+		MigratedUsersIndex index = builder.build();
+		LOGGER.info("MigratedUsersIndexLoader::load > Indexed {} migrated users in {} ms", index.size(),
+				System.currentTimeMillis() - start);
+		return index;
+	}
+}
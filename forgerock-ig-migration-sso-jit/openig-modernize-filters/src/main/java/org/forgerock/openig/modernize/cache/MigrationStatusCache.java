@@ -0,0 +1,178 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Bounded cache of the users' migration status in IDM.
+ * <p>
+ * The migration status is monotonic: once migrated, a user stays migrated.
+ * Migrated users are therefore kept until evicted by newer entries, while
+ * users not yet migrated are kept for the negative TTL only, so that users
+ * provisioned by another IG instance are eventually seen as migrated.
+ * </p>
+ * <p>
+ * Both sets are concurrent maps bounded by the configured capacity: lookups
+ * take no lock, and only stamp the entry with its last access. Beyond the
+ * capacity, the least recently used of a sample of the entries is evicted,
+ * which approximates a least recently used eviction. A capacity of 0 disables
+ * the cache.
+ * </p>
+ */
+public class MigrationStatusCache {
+
+	private static final MigrationStatusCache DISABLED = new MigrationStatusCache(0, 0, TimeService.SYSTEM);
+	private static final int EVICTION_SAMPLE_SIZE = 16;
+
+	private final int capacity;
+	private final long negativeTtlMillis;
+	private final TimeService time;
+	private final AtomicLong accessClock = new AtomicLong();
+	private final ConcurrentMap<String, Entry> migratedUsers = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Entry> notMigratedUsers = new ConcurrentHashMap<>();
+
+	/**
+	 * A cached status, with the time at which it expires and the order of its last access.
+	 */
+	private static final class Entry {
+		private final long expiresAt;
+		private volatile long lastAccess;
+
+		private Entry(long expiresAt, long lastAccess) {
+			this.expiresAt = expiresAt;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	/**
+	 * Creates a migration status cache.
+	 *
+	 * @param capacity          - maximum number of migrated, and of not migrated, users kept
+	 * @param negativeTtlMillis - time in milliseconds for which a not migrated user is kept
+	 * @param time              - time service used to expire the not migrated users
+	 */
+	public MigrationStatusCache(int capacity, long negativeTtlMillis, TimeService time) {
+		this.capacity = Math.max(capacity, 0);
+		this.negativeTtlMillis = Math.max(negativeTtlMillis, 0);
+		this.time = time;
+	}
+
+	/**
+	 * @return - a cache that keeps nothing
+	 */
+	public static MigrationStatusCache disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 *
+	 * Returns the cached migration status of a user.
+	 *
+	 * @param userName - the user name
+	 * @return - true if the user is migrated, false if the user was recently found not migrated,
+	 * 			null if the status must be asked to IDM
+	 */
+	public Boolean get(String userName) {
+		if (capacity == 0 || userName == null) {
+			return null;
+		}
+		Entry migrated = migratedUsers.get(userName);
+		if (migrated != null) {
+			migrated.lastAccess = accessClock.incrementAndGet();
+			return Boolean.TRUE;
+		}
+		Entry notMigrated = notMigratedUsers.get(userName);
+		if (notMigrated == null) {
+			return null;
+		}
+		if (notMigrated.expiresAt <= time.now()) {
+			notMigratedUsers.remove(userName, notMigrated);
+			return null;
+		}
+		notMigrated.lastAccess = accessClock.incrementAndGet();
+		return Boolean.FALSE;
+	}
+
+	/**
+	 *
+	 * Caches the migration status returned by IDM for a user.
+	 *
+	 * @param userName - the user name
+	 * @param migrated - true if the user is migrated, false otherwise
+	 */
+	public void put(String userName, boolean migrated) {
+		if (migrated) {
+			markMigrated(userName);
+		} else if (capacity > 0 && negativeTtlMillis > 0 && userName != null) {
+			long now = time.now();
+			long expiresAt = negativeTtlMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + negativeTtlMillis;
+			putBounded(notMigratedUsers, userName, expiresAt);
+		}
+	}
+
+	/**
+	 *
+	 * Records that a user is migrated, typically right after it was provisioned in IDM.
+	 *
+	 * @param userName - the user name
+	 */
+	public void markMigrated(String userName) {
+		if (capacity == 0 || userName == null) {
+			return;
+		}
+		notMigratedUsers.remove(userName);
+		putBounded(migratedUsers, userName, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @return - the number of cached migrated and not migrated users
+	 */
+	public int size() {
+		return migratedUsers.size() + notMigratedUsers.size();
+	}
+
+	private void putBounded(ConcurrentMap<String, Entry> users, String userName, long expiresAt) {
+		users.put(userName, new Entry(expiresAt, accessClock.incrementAndGet()));
+		while (users.size() > capacity && evictLeastRecentlyUsed(users, userName)) {
+			// Evicts until the capacity is honoured again
+		}
+	}
+
+	/**
+	 * Evicts the least recently used of a sample of the entries, other than the one just added.
+	 *
+	 * @return - true if an entry was evicted, false if the sample had no other entry
+	 */
+	private static boolean evictLeastRecentlyUsed(ConcurrentMap<String, Entry> users, String addedUserName) {
+		Map.Entry<String, Entry> eldest = null;
+		Iterator<Map.Entry<String, Entry>> entries = users.entrySet().iterator();
+		for (int i = 0; i < EVICTION_SAMPLE_SIZE && entries.hasNext(); i++) {
+			Map.Entry<String, Entry> candidate = entries.next();
+			if (!candidate.getKey().equals(addedUserName)
+					&& (eldest == null || candidate.getValue().lastAccess < eldest.getValue().lastAccess)) {
+				eldest = candidate;
+			}
+		}
+		return eldest != null && users.remove(eldest.getKey(), eldest.getValue());
+	}
+}
@@ -0,0 +1,169 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.filter;
+
+import static org.forgerock.openig.modernize.utils.FilterConstants.Headers.CONTENT_LENGTH;
+import static org.forgerock.openig.modernize.utils.FilterConstants.Headers.CONTENT_TYPE;
+import static org.forgerock.openig.modernize.utils.FilterConstants.Methods.POST;
+
+import java.util.List;
+
+import org.forgerock.http.protocol.Request;
+
+/**
+ * Tells which requests may be authentication requests, and are worth reading
+ * the credentials from. The other requests are passed straight to the next
+ * handler.
+ * <p>
+ * Only POST requests with a body are authentication requests. When
+ * configured, their path must match one of the path patterns, their content
+ * type one of the content types, their Content-Length must not exceed the
+ * maximum body size, and they must carry the marker header. A path pattern
+ * ending with <b>*</b> matches the paths starting with it, and any other
+ * pattern matches the exact path. A content type matches the media type of the
+ * Content-Type header, ignoring its parameters and case.
+ * </p>
+ * <p>
+ * The criteria are compiled once, and evaluating a request does not allocate.
+ * </p>
+ */
+public final class AuthenticationRequestClassifier {
+
+	private static final AuthenticationRequestClassifier ANY_POST = new AuthenticationRequestClassifier(
+			List.of(), List.of(), -1, null, null);
+
+	private final String[] exactPaths;
+	private final String[] pathPrefixes;
+	private final String[] contentTypes;
+	private final long maxBodySize;
+	private final String markerHeader;
+	private final String markerHeaderValue;
+
+	/**
+	 * Creates a classifier of the authentication requests.
+	 *
+	 * @param pathPatterns      - the paths of the authentication requests; empty to accept any path
+	 * @param contentTypes      - the media types of the authentication requests; empty to accept any
+	 * @param maxBodySize       - the maximum Content-Length of the authentication requests; negative for no limit
+	 * @param markerHeader      - the header the authentication requests carry; null if not required
+	 * @param markerHeaderValue - the value of the marker header; null to accept any value
+	 */
+	public AuthenticationRequestClassifier(List<String> pathPatterns, List<String> contentTypes, long maxBodySize,
+			String markerHeader, String markerHeaderValue) {
+		this.exactPaths = pathPatterns.stream().filter(pattern -> !pattern.endsWith("*")).toArray(String[]::new);
+		this.pathPrefixes = pathPatterns.stream().filter(pattern -> pattern.endsWith("*"))
+				.map(pattern -> pattern.substring(0, pattern.length() - 1)).toArray(String[]::new);
+		this.contentTypes = contentTypes.stream().map(String::trim).toArray(String[]::new);
+		this.maxBodySize = maxBodySize;
+		this.markerHeader = markerHeader;
+		this.markerHeaderValue = markerHeaderValue;
+	}
+
+	/**
+	 * @return - a classifier accepting any POST request with a body
+	 */
+	public static AuthenticationRequestClassifier anyPost() {
+		return ANY_POST;
+	}
+
+	/**
+	 *
+	 * Tells whether a request may be an authentication request.
+	 *
+	 * @param request - the request
+	 * @return - true if the credentials should be read from the request, false otherwise
+	 */
+	public boolean isAuthenticationRequest(Request request) {
+		return POST.equalsIgnoreCase(request.getMethod())
+				&& matchesPath(request)
+				&& matchesMarkerHeader(request)
+				&& matchesContentType(request)
+				&& matchesBodySize(request)
+				&& !request.getEntity().isRawContentEmpty();
+	}
+
+	private boolean matchesPath(Request request) {
+		if (exactPaths.length == 0 && pathPrefixes.length == 0) {
+			return true;
+		}
+		String path = request.getUri().getPath();
+		if (path == null) {
+			return false;
+		}
+		for (String exactPath : exactPaths) {
+			if (exactPath.equals(path)) {
+				return true;
+			}
+		}
+		for (String pathPrefix : pathPrefixes) {
+			if (path.startsWith(pathPrefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matchesMarkerHeader(Request request) {
+		if (markerHeader == null) {
+			return true;
+		}
+		String value = request.getHeaders().getFirst(markerHeader);
+		return value != null && (markerHeaderValue == null || markerHeaderValue.equals(value));
+	}
+
+	private boolean matchesContentType(Request request) {
+		if (contentTypes.length == 0) {
+			return true;
+		}
+		String contentType = request.getHeaders().getFirst(CONTENT_TYPE);
+		if (contentType == null) {
+			return false;
+		}
+		int mediaTypeEnd = contentType.indexOf(';');
+		int mediaTypeLength = mediaTypeEnd < 0 ? contentType.length() : mediaTypeEnd;
+		// Ignores the spaces around the media type without trimming, which would allocate
+		int start = 0;
+		while (start < mediaTypeLength && contentType.charAt(start) == ' ') {
+			start++;
+		}
+		while (mediaTypeLength > start && contentType.charAt(mediaTypeLength - 1) == ' ') {
+			mediaTypeLength--;
+		}
+		for (String expected : contentTypes) {
+			if (expected.length() == mediaTypeLength - start
+					&& contentType.regionMatches(true, start, expected, 0, expected.length())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matchesBodySize(Request request) {
+		if (maxBodySize < 0) {
+			return true;
+		}
+		String contentLength = request.getHeaders().getFirst(CONTENT_LENGTH);
+		if (contentLength == null) {
+			// Chunked bodies have no announced size, and are streamed when reading the credentials
+			return true;
+		}
+		try {
+			return Long.parseLong(contentLength.trim()) <= maxBodySize;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+}
@@ -19,12 +19,17 @@ import static org.forgerock.openig.modernize.provider.ForgeRockProvider.getError
 import static org.forgerock.openig.modernize.utils.FilterConstants.Attributes.PASSWORD;
 import static org.forgerock.openig.modernize.utils.FilterConstants.Attributes.USERNAME;
 import static org.forgerock.openig.modernize.utils.FilterConstants.Headers.AUTHORIZATION;
-import static org.forgerock.openig.modernize.utils.FilterConstants.Methods.POST;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.json.JsonValueFunctions.duration;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
@@ -36,13 +41,25 @@ import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
 import org.forgerock.openig.heap.Keys;
 import org.forgerock.openig.modernize.LegacyIAMProvider;
+import org.forgerock.openig.modernize.cache.CallbackTemplateCache;
+import org.forgerock.openig.modernize.cache.MigratedUsersIndex;
+import org.forgerock.openig.modernize.cache.MigratedUsersIndexLoader;
+import org.forgerock.openig.modernize.cache.MigrationStatusCache;
 import org.forgerock.openig.modernize.impl.LegacyOpenSSOProvider;
+import org.forgerock.openig.modernize.limiter.AdaptiveConcurrencyLimiter;
 import org.forgerock.openig.modernize.provider.ForgeRockProvider;
+import org.forgerock.openig.modernize.provisioning.ProvisioningQueue;
+import org.forgerock.openig.modernize.provisioning.ProvisioningQueue.Outcome;
+import org.forgerock.openig.modernize.provisioning.SingleFlight;
+import org.forgerock.openig.modernize.tracing.LoginTrace;
+import org.forgerock.openig.modernize.tracing.Stage;
+import org.forgerock.openig.modernize.tracing.StageMetrics;
 import org.forgerock.services.context.Context;
 import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.Promises;
+import org.forgerock.util.time.TimeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,40 +78,126 @@ public class MigrationSsoFilter implements Filter {
 
 	private Map<String, Object> userAttributesMapping;
 	private Handler httpClientHandler;
+	private MigrationStatusCache migrationStatusCache = MigrationStatusCache.disabled();
+	private volatile MigratedUsersIndex migratedUsersIndex = MigratedUsersIndex.empty();
+	private ProvisioningQueue provisioningQueue;
+	private Handler provisioningClientHandler;
+	private CallbackTemplateCache callbackTemplateCache = CallbackTemplateCache.disabled();
+	private AuthenticationRequestClassifier authenticationRequestClassifier = AuthenticationRequestClassifier.anyPost();
+	private AdaptiveConcurrencyLimiter idmConcurrencyLimiter = AdaptiveConcurrencyLimiter.unlimited();
+	private SingleFlight<FirstLoginResult> firstLoginProvisioning = new SingleFlight<>(0);
+	private final StageMetrics stageMetrics = new StageMetrics();
+
+	/**
+	 * Creates a filter configured by its heaplet.
+	 */
+	public MigrationSsoFilter() {
+	}
+
+	/**
+	 * Creates a filter sharing the provisioning of concurrent first logins, with the given collaborators.
+	 *
+	 * @param legacyIAMProvider                - the provider of the legacy IAM
+	 * @param httpClientHandler                - the handler of the calls to the legacy IAM, AM and IDM
+	 * @param provisioningSingleFlightCapacity - the maximum number of first logins shared at the same time
+	 */
+	MigrationSsoFilter(LegacyIAMProvider legacyIAMProvider, Handler httpClientHandler,
+			int provisioningSingleFlightCapacity) {
+		this.legacyIAMProvider = legacyIAMProvider;
+		this.httpClientHandler = httpClientHandler;
+		this.firstLoginProvisioning = new SingleFlight<>(provisioningSingleFlightCapacity);
+	}
+
+	/**
+	 * Sets the IDM end-points, and the mapping of the legacy user attributes over the IDM schema.
+	 *
+	 * @param getUserMigrationStatusEndpoint - the IDM managed users end-point queried for the migration status
+	 * @param provisionUserEndpoint          - the IDM end-point creating the users
+	 * @param userAttributesMapping          - mapping of the legacy user attributes over the IDM schema
+	 */
+	void setIdmEndpoints(String getUserMigrationStatusEndpoint, String provisionUserEndpoint,
+			Map<String, Object> userAttributesMapping) {
+		this.getUserMigrationStatusEndpoint = getUserMigrationStatusEndpoint;
+		this.provisionUserEndpoint = provisionUserEndpoint;
+		this.userAttributesMapping = userAttributesMapping;
+	}
+
+	/**
+	 * Sets how the users are authenticated in AM.
+	 *
+	 * @param openAmAuthenticateURL       - the authentication URL for OpenAM
+	 * @param openAmCookieName            - the name of the AM session cookie
+	 * @param acceptApiVersionHeader      - Accept API Version header name
+	 * @param acceptApiVersionHeaderValue - Accept API version header value
+	 * @param setCookieHeader             - the header carrying the AM session cookie
+	 * @param callbackTemplateCache       - the cache of the callback templates
+	 */
+	void setAmAuthentication(String openAmAuthenticateURL, String openAmCookieName, String acceptApiVersionHeader,
+			String acceptApiVersionHeaderValue, String setCookieHeader, CallbackTemplateCache callbackTemplateCache) {
+		this.openAmAuthenticateURL = openAmAuthenticateURL;
+		this.openAmCookieName = openAmCookieName;
+		this.acceptApiVersionHeader = acceptApiVersionHeader;
+		this.acceptApiVersionHeaderValue = acceptApiVersionHeaderValue;
+		this.setCookieHeader = setCookieHeader;
+		this.callbackTemplateCache = callbackTemplateCache;
+	}
+
+	/**
+	 * @param idmConcurrencyLimiter - the limiter of the concurrent calls to IDM
+	 */
+	void setIdmConcurrencyLimiter(AdaptiveConcurrencyLimiter idmConcurrencyLimiter) {
+		this.idmConcurrencyLimiter = idmConcurrencyLimiter;
+	}
+
+	/**
+	 * Provisions the first logins in the background.
+	 *
+	 * @param provisioningQueue         - the queue of the background provisioning
+	 * @param provisioningClientHandler - the handler authorizing the background provisioning requests to IDM
+	 */
+	void setAsyncProvisioning(ProvisioningQueue provisioningQueue, Handler provisioningClientHandler) {
+		this.provisioningQueue = provisioningQueue;
+		this.provisioningClientHandler = provisioningClientHandler;
+	}
 
 	/**
 	 * Main method that processes the IG filter chain
 	 */
 	@Override
 	public Promise<Response, NeverThrowsException> filter(Context context, Request request, Handler next) {
-		String requestMethod = request.getMethod();
-
-		// Authentication calls should only use POST method
-		if (POST.equalsIgnoreCase(requestMethod) && !request.getEntity().isRawContentEmpty()) {
+		// Authentication calls should only use POST method, and match the configured criteria
+		if (authenticationRequestClassifier.isAuthenticationRequest(request)) {
 			LOGGER.info("MigrationSsoFilter::filter > Started authentication request filtering");
+			LoginTrace trace = LoginTrace.start(request, stageMetrics);
+			long extractionStart = System.nanoTime();
 			JsonValue user = ForgeRockProvider.getUserCredentials(legacyIAMProvider, request);
+			trace.record(Stage.CREDENTIAL_EXTRACTION, extractionStart);
 
 			// Continue normal authentication in legacy IAM if no user found
 			if (user == null) {
-				return next.handle(context, request);
+				return passThrough(trace, next, context, request);
 			}
 			String authorizationToken = request.getHeaders().getFirst(AUTHORIZATION);
 
 			// Verify if user is already migrated in IDM
-			Promise<Boolean, NeverThrowsException> isUserMigrated = ForgeRockProvider.userMigrated(
-					getUserMigrationStatusEndpoint, user.get(USERNAME).asString(), authorizationToken,
-					httpClientHandler);
+			Promise<Boolean, NeverThrowsException> isUserMigrated = trace.time(Stage.MIGRATION_CHECK,
+					() -> userMigrated(user.get(USERNAME).asString(), authorizationToken, trace));
 
 			return isUserMigrated.thenAsync(resultMigrated -> {
-				if (Boolean.TRUE.equals(resultMigrated)) {
+				if (resultMigrated == null) {
+					LOGGER.warn("MigrationSsoFilter::filter > IDM concurrency limit reached - "
+							+ "continuing on legacy only");
+
+					return passThrough(trace, next, context, request);
+				} else if (Boolean.TRUE.equals(resultMigrated)) {
 					LOGGER.info("MigrationSsoFilter::filter > User is migrated - processing migrated user request");
 
-					return processMigratedAccess(user, next, context, request);
+					return processMigratedAccess(user, next, context, request, trace);
 				} else {
 					LOGGER.info("MigrationSsoFilter::filter > User is not migrated - allowing request to pass");
 
-					Promise<Response, NeverThrowsException> promise = next.handle(context, request);
-					return promise.thenAsync(response -> processFirstLogin(response, user, authorizationToken));
+					Promise<Response, NeverThrowsException> promise = passThrough(trace, next, context, request);
+					return promise.thenAsync(response -> processFirstLogin(response, user, authorizationToken, trace));
 				}
 			});
 		}
@@ -103,52 +206,132 @@ public class MigrationSsoFilter implements Filter {
 	}
 
 	/**
-	 * Authenticates and manages an already migrated user's access
+	 *
+	 * Lets the authentication request pass further to the legacy system, carrying the trace context of the login.
+	 *
+	 * @param trace   - the trace of the login
+	 * @param next    - filter's handler
+	 * @param context - current filter's context
+	 * @param request - current filter's request
+	 * @return - the response of the legacy system
+	 */
+	private Promise<Response, NeverThrowsException> passThrough(LoginTrace trace, Handler next, Context context,
+			Request request) {
+		trace.propagateTo(request);
+		return trace.time(Stage.LEGACY_PASS_THROUGH, () -> next.handle(context, request));
+	}
+
+	/**
+	 *
+	 * Verifies if the user is migrated, asking IDM only when the migration status is neither cached
+	 * nor found in the preloaded index of the migrated users.
+	 *
+	 * @param userName			 - the user name
+	 * @param authorizationToken - token used to query IDM
+	 * @param trace				 - the trace of the login
+	 * @return - a promise of a boolean telling whether or not the user is migrated, or of null if IDM
+	 * 			could not be asked within its concurrency limit
+	 */
+	private Promise<Boolean, NeverThrowsException> userMigrated(String userName, String authorizationToken,
+			LoginTrace trace) {
+		Boolean cachedStatus = migrationStatusCache.get(userName);
+		if (cachedStatus != null) {
+			LOGGER.debug("MigrationSsoFilter::userMigrated > Using cached migration status: {}", cachedStatus);
+			return Promises.newResultPromise(cachedStatus);
+		}
+		if (migratedUsersIndex.contains(userName)) {
+			LOGGER.debug("MigrationSsoFilter::userMigrated > User found in the migrated users index");
+			return Promises.newResultPromise(true);
+		}
+
+		if (!idmConcurrencyLimiter.tryAcquire()) {
+			return Promises.newResultPromise(null);
+		}
+		long start = System.nanoTime();
+		return ForgeRockProvider.userMigrated(getUserMigrationStatusEndpoint, userName, authorizationToken,
+				trace.propagating(httpClientHandler)).then(migrated -> {
+					// IDM failing, or timing out, lowers the limit like a slow answer
+					idmConcurrencyLimiter.release(System.nanoTime() - start, migrated == null);
+					if (migrated == null) {
+						// IDM could not tell: handled as not migrated, as before, but not cached
+						return Boolean.FALSE;
+					}
+					migrationStatusCache.put(userName, migrated);
+					return migrated;
+				});
+	}
+
+	/**
+	 *
+	 * Provisions the user in IDM, within the IDM concurrency limit.
+	 *
+	 * @param extendedUserProfile - the user to provision
+	 * @param authorizationToken  - token needed to for the IDM provisioning request, or null when the handler
+	 * 								authorizes the request itself
+	 * @param idmClientHandler    - the handler sending the provisioning request to IDM
+	 * @param trace               - the trace of the login
+	 * @return - the promise of the IDM response, or null if IDM could not be called within its concurrency limit
+	 */
+	private Promise<Response, NeverThrowsException> provisionUserInIdm(JsonValue extendedUserProfile,
+			String authorizationToken, Handler idmClientHandler, LoginTrace trace) {
+		if (!idmConcurrencyLimiter.tryAcquire()) {
+			LOGGER.warn("MigrationSsoFilter::provisionUserInIdm > IDM concurrency limit reached ({} calls in flight)",
+					idmConcurrencyLimiter.getInFlight());
+			return null;
+		}
+		long start = System.nanoTime();
+		return ForgeRockProvider.provisionUser(extendedUserProfile, authorizationToken, provisionUserEndpoint,
+				trace.timing(Stage.PROVISIONING, idmClientHandler))
+				.thenOnResult(response -> idmConcurrencyLimiter.release(System.nanoTime() - start,
+						response.getStatus().isServerError()));
+	}
+
+	/**
+	 * Authenticates and manages an already migrated user's access. The user is authenticated in AM while the
+	 * request is passed further to the legacy system, and both responses are joined once available.
 	 *
 	 * @param user    - user to authenticate
 	 * @param next    - filter's handler
 	 * @param context - current filter's context
 	 * @param request - current filter's request managed so far
+	 * @param trace   - the trace of the login
 	 * @return - the authentication result response
 	 */
 	private Promise<Response, NeverThrowsException> processMigratedAccess(JsonValue user, Handler next, Context context,
-			Request request) {
+			Request request, LoginTrace trace) {
 
 		Promise<Response, NeverThrowsException> openAmCookie = ForgeRockProvider.authenticateUser(user,
-				openAmAuthenticateURL, acceptApiVersionHeader, acceptApiVersionHeaderValue, httpClientHandler);
-		return openAmCookie.thenAsync(setCookies(next, context, request));
+				openAmAuthenticateURL, acceptApiVersionHeader, acceptApiVersionHeaderValue, httpClientHandler,
+				callbackTemplateCache, trace);
+		// Let the request pass further at the same time, obtaining the legacy cookie
+		Promise<Response, NeverThrowsException> legacyResponse = passThrough(trace, next, context, request);
+
+		return Promises.when(openAmCookie, legacyResponse)
+				.thenAsync(responses -> setCookies(responses.get(0), responses.get(1)));
 	}
 
 	/**
 	 *
-	 * Executed when user is already migrated, this async function authenticates the user in AM by passing
-	 * the request to the end of the filter chain, then fetching and setting the obtained cookie on top of the
-	 * legacy cookie the response.
+	 * Executed when user is already migrated, once both the user is authenticated in AM and the request is
+	 * handled by the legacy system. Sets the obtained AM cookie on top of the legacy cookie of the response.
 	 *
-	 * @param next	  - handler to the next filter in chain
-	 * @param context - current's filter context
-	 * @param request - current's filter request
-	 * @return - the final response containing both cookies
+	 * @param cookieResponse - the response of the AM authentication
+	 * @param legacyResponse - the response of the legacy system
+	 * @return - the final response containing both cookies, or unauthorized if the AM authentication failed
 	 */
-	private AsyncFunction<Response, Response, NeverThrowsException> setCookies(Handler next, Context context, Request request) {
-		return cookieResponse -> {
-			String openAmCookie = ForgeRockProvider.extractCookie(cookieResponse, openAmCookieName);
-
-			LOGGER.info("MigrationSsoFilter::setCookies > Extracted OpenAmCookie: {}", openAmCookie);
-			if (openAmCookie != null) {
-				// Let the request pass further, obtaining the legacy cookie
-				Promise<Response, NeverThrowsException> promise = next.handle(context, request);
-
-				// Then return response with the added extracted cookie alongside the legacy cookie
-				return promise.thenAsync(legacyResponse -> {
-					legacyResponse.getHeaders().add(setCookieHeader, openAmCookie);
-					return Promises.newResultPromise(legacyResponse);
-				});
-			}
+	private Promise<Response, NeverThrowsException> setCookies(Response cookieResponse, Response legacyResponse) {
+		String openAmCookie = ForgeRockProvider.extractCookie(cookieResponse, openAmCookieName);
+
+		LOGGER.info("MigrationSsoFilter::setCookies > Extracted OpenAmCookie: {}", openAmCookie);
+		if (openAmCookie != null) {
+			// Return response with the added extracted cookie alongside the legacy cookie
+			legacyResponse.getHeaders().add(setCookieHeader, openAmCookie);
+			return Promises.newResultPromise(legacyResponse);
+		}
 
-			LOGGER.error("MigrationSsoFilter::setCookies > Authentication failed. Username or password invalid");
-			return getErrorResponse(Status.UNAUTHORIZED);
-		};
+		LOGGER.error("MigrationSsoFilter::setCookies > Authentication failed. Username or password invalid");
+		legacyResponse.close();
+		return getErrorResponse(Status.UNAUTHORIZED);
 	}
 
 	/**
@@ -161,74 +344,191 @@ public class MigrationSsoFilter implements Filter {
 	 * @param response           - response of the legacy system
 	 * @param user               - user to authenticate
 	 * @param authorizationToken - token used to authenticate the user
+	 * @param trace              - the trace of the login
 	 */
-	private Promise<Response, NeverThrowsException> processFirstLogin(Response response, JsonValue user, String authorizationToken) {
+	private Promise<Response, NeverThrowsException> processFirstLogin(Response response, JsonValue user,
+			String authorizationToken, LoginTrace trace) {
 		LOGGER.info("MigrationSsoFilter::processFirstLogin > Received authentication response: {}",
 				response.getHeaders().asMapOfHeaders());
 
+		// In asynchronous mode, the legacy response is returned right away, and the user gets the AM cookie
+		// on the next authentication, once provisioned
+		if (provisioningQueue != null && response.getStatus().isSuccessful()) {
+			Response legacyAuthentication = new Response(response.getStatus());
+			legacyAuthentication.getHeaders().addAll(response.getHeaders().asMapOfHeaders());
+			if (provisioningQueue.submit(user.get(USERNAME).asString(),
+					() -> provisionInBackground(legacyAuthentication, user, trace))) {
+				return Promises.newResultPromise(response);
+			}
+			LOGGER.warn("MigrationSsoFilter::processFirstLogin > Provisioning queue full - provisioning inline");
+		}
+
+		// A failed legacy login is returned untouched, and never joins the provisioning of a concurrent
+		// successful login of the same user, whose AM cookie it would otherwise get
+		if (!response.getStatus().isSuccessful()) {
+			return Promises.newResultPromise(response);
+		}
+
+		// Concurrent successful first logins of the same user share a single provisioning, and all get its AM cookie
+		return firstLoginProvisioning.execute(user.get(USERNAME).asString(),
+				() -> provisionAndAuthenticate(response, user, authorizationToken, trace))
+				.thenAsync(result -> completeFirstLogin(result, response));
+	}
+
+	/**
+	 *
+	 * Retrieves the extended user profile, provisions the user in IDM and authenticates it in AM.
+	 *
+	 * @param response           - response of the legacy system
+	 * @param user               - user to provision
+	 * @param authorizationToken - token needed to for the IDM provisioning request
+	 * @param trace              - the trace of the login
+	 * @return - the result of the first login, shared with the concurrent first logins of the same user
+	 */
+	private Promise<FirstLoginResult, NeverThrowsException> provisionAndAuthenticate(Response response, JsonValue user,
+			String authorizationToken, LoginTrace trace) {
 		// Authentication successful, therefore retrieving extended user profile
 		Promise<Response, NeverThrowsException> extendedUserProfile = ForgeRockProvider.getExtendedUserProfile(response,
-				user, legacyIAMProvider, httpClientHandler);
-		return extendedUserProfile.thenAsync(provisionUser(response, user, authorizationToken));
+				user, legacyIAMProvider, trace.timing(Stage.EXTENDED_PROFILE_FETCH, httpClientHandler));
+		return extendedUserProfile.thenAsync(provisionUser(user, authorizationToken, trace));
+	}
+
+	/**
+	 *
+	 * Builds the response of a first login out of its legacy response and of the result of the provisioning.
+	 *
+	 * @param result   - the result of the provisioning, null if it failed unexpectedly
+	 * @param response - response of the legacy system
+	 * @return - the final response handled by this filter
+	 */
+	private Promise<Response, NeverThrowsException> completeFirstLogin(FirstLoginResult result, Response response) {
+		if (result == null || Status.BAD_REQUEST.equals(result.errorStatus)) {
+			return Promises.newResultPromise(new Response(Status.BAD_REQUEST));
+		}
+		if (result.errorStatus != null) {
+			return getErrorResponse(result.errorStatus);
+		}
+		if (result.authenticationCookie != null) {
+			response.getHeaders().add(setCookieHeader, result.authenticationCookie);
+		}
+		return Promises.newResultPromise(response);
 	}
 
 	/**
 	 *
 	 * This async method is executed when the user is not migrated, right after the filter has obtained
-	 * the extended user profile. Creates the user entry in IDM, authenticates the said user and sets
-	 * the obtained authentication cookie on the request.
+	 * the extended user profile. Creates the user entry in IDM and authenticates the said user.
 	 *
-	 * @param resultResponse	 - the final response that will be returned by this filter, containing the legacy cookie
 	 * @param user				 - JsonValue describing the user to provision
 	 * @param authorizationToken - token needed to for the IDM provisioning request
-	 * @return - the final response handled by this filter, containing both cookies
+	 * @param trace				 - the trace of the login
+	 * @return - the result of the first login, holding the authentication cookie when successful
 	 */
-	private AsyncFunction<Response, Response, NeverThrowsException> provisionUser(Response resultResponse, JsonValue user,
-			String authorizationToken) {
+	private AsyncFunction<Response, FirstLoginResult, NeverThrowsException> provisionUser(JsonValue user,
+			String authorizationToken, LoginTrace trace) {
 		LOGGER.info("MigrationSsoFilter::provisionUser > Start");
 
 		return response -> {
 			if (!response.getStatus().isSuccessful()) {
-				return Promises.newResultPromise(new Response(Status.BAD_REQUEST));
+				return Promises.newResultPromise(FirstLoginResult.failed(Status.BAD_REQUEST));
 			}
 
-			JsonValue extendedUserProfile = setUserProperties(response, userAttributesMapping);
-			LOGGER.info("MigrationSsoFilter::provisionUser > extendedUserProfile: {}", extendedUserProfile);
+			JsonValue extendedUserProfile = createUserProfile(response, user);
 
 			if (extendedUserProfile != null) {
-				extendedUserProfile.remove(PASSWORD);
-				extendedUserProfile.add(PASSWORD, user.get(PASSWORD).asString());
-
-				// Provision user in IDM
-				Promise<Response, NeverThrowsException> provisionResponse = ForgeRockProvider.provisionUser(
-						extendedUserProfile, authorizationToken, provisionUserEndpoint, httpClientHandler);
+				// Provision user in IDM, or let the user continue on legacy only when IDM is saturated
+				Promise<Response, NeverThrowsException> provisionResponse = provisionUserInIdm(extendedUserProfile,
+						authorizationToken, httpClientHandler, trace);
+				if (provisionResponse == null) {
+					return Promises.newResultPromise(FirstLoginResult.SHED);
+				}
 
-				Promise<Response, NeverThrowsException> authenticationResponse =
-						provisionResponse.thenAsync(authenticateProvisionedUser(user));
-				return authenticationResponse.thenAsync(setAuthenticationCookie(resultResponse));
+				return provisionResponse.thenAsync(authenticateProvisionedUser(user, trace)).then(authenticationResponse -> {
+					String cookie = authenticationResponse.getHeaders().getFirst(setCookieHeader);
+					if (cookie == null) {
+						LOGGER.error("MigrationSsoFilter::provisionUser > No authentication cookie, status: {}",
+								authenticationResponse.getStatus());
+						return FirstLoginResult.failed(authenticationResponse.getStatus());
+					}
+					return FirstLoginResult.authenticated(cookie);
+				});
 			}
 
-			return Promises.newResultPromise(new Response(Status.BAD_REQUEST));
+			return Promises.newResultPromise(FirstLoginResult.failed(Status.BAD_REQUEST));
 		};
 	}
 
+	/**
+	 *
+	 * Attempt of the provisioning queue, which retrieves the extended user profile and creates the user
+	 * entry in IDM. The user is authenticated in AM on its next login. The attempt may run long after the
+	 * request, or be retried, so IDM is called through the provisioning handler, which authorizes the
+	 * request itself, rather than with the authorization token of the request.
+	 *
+	 * @param legacyAuthentication - the response of the legacy system to the user's authentication
+	 * @param user				   - JsonValue describing the user to provision
+	 * @param trace				   - the trace of the login
+	 * @return - the outcome of the provisioning; retried when the legacy system or IDM failed
+	 */
+	private Promise<Outcome, NeverThrowsException> provisionInBackground(Response legacyAuthentication, JsonValue user,
+			LoginTrace trace) {
+		return ForgeRockProvider.getExtendedUserProfile(legacyAuthentication, user, legacyIAMProvider,
+				trace.timing(Stage.EXTENDED_PROFILE_FETCH, httpClientHandler))
+				.thenAsync(response -> {
+					if (!response.getStatus().isSuccessful()) {
+						return Promises.newResultPromise(failedOutcome(response.getStatus()));
+					}
+
+					JsonValue extendedUserProfile = createUserProfile(response, user);
+					if (extendedUserProfile == null) {
+						return Promises.newResultPromise(Outcome.FAILED);
+					}
+
+					Promise<Response, NeverThrowsException> provisionResponse = provisionUserInIdm(extendedUserProfile,
+							null, provisioningClientHandler, trace);
+					if (provisionResponse == null) {
+						return Promises.newResultPromise(Outcome.RETRY);
+					}
+					return provisionResponse.then(provisionedResponse -> {
+						Status status = provisionedResponse.getStatus();
+						// A conflict means a concurrent login already provisioned the user
+						if (Status.CREATED.equals(status) || Status.CONFLICT.equals(status)) {
+							migrationStatusCache.markMigrated(user.get(USERNAME).asString());
+							return Outcome.SUCCEEDED;
+						}
+						return failedOutcome(status);
+					});
+				});
+	}
+
+	/**
+	 * Server errors are transient, and worth retrying, whereas client errors would fail again.
+	 */
+	private static Outcome failedOutcome(Status status) {
+		return status.isServerError() ? Outcome.RETRY : Outcome.FAILED;
+	}
+
 	/**
 	 *
 	 * Async method executed when the user is not provisioned, called after the provisioning of the user.
 	 * Authenticates the recently provisioned user.
 	 *
-	 * @param user - user to authenticate
+	 * @param user  - user to authenticate
+	 * @param trace - the trace of the login
 	 * @return - response containing the authentication cookie
 	 */
-	private AsyncFunction<Response, Response, NeverThrowsException> authenticateProvisionedUser(JsonValue user) {
+	private AsyncFunction<Response, Response, NeverThrowsException> authenticateProvisionedUser(JsonValue user,
+			LoginTrace trace) {
 		return provisionedResponse -> {
 			LOGGER.info("MigrationSsoFilter::authenticateProvisionedUser > User provisioning response status: {}",
 					provisionedResponse.getStatus());
 
 			if (provisionedResponse.getStatus().equals(Status.CREATED)) {
+				migrationStatusCache.markMigrated(user.get(USERNAME).asString());
+
 				// Authenticate the user that was just provisioned
 				return ForgeRockProvider.authenticateUser(user, openAmAuthenticateURL, acceptApiVersionHeader,
-						acceptApiVersionHeaderValue, httpClientHandler);
+						acceptApiVersionHeaderValue, httpClientHandler, callbackTemplateCache, trace);
 			}
 
 			return getErrorResponse(Status.UNAUTHORIZED);
@@ -237,17 +537,22 @@ public class MigrationSsoFilter implements Filter {
 
 	/**
 	 *
-	 * Async method that adds the cookie of the previous response (caller promise) to the given response.
+	 * Creates the User object that will be provisioned into the IDM platform, with the password the user
+	 * authenticated with.
 	 *
-	 * @param cookieDestination - response where to add the cookie
-	 * @return - cookieDestination containing the cookie of the caller's resulted response
+	 * @param responseEntity - response containing the user attributes on the entity
+	 * @param user			 - the user, holding its password
+	 * @return - JsonValue describing the user's attributes, or null if the response entity is invalid
 	 */
-	private AsyncFunction<Response, Response, NeverThrowsException> setAuthenticationCookie(Response cookieDestination) {
-		return response -> {
-			cookieDestination.getHeaders().add(setCookieHeader,
-					response.getHeaders().asMapOfHeaders().get(setCookieHeader).getFirstValue());
-			return Promises.newResultPromise(cookieDestination);
-		};
+	private JsonValue createUserProfile(Response responseEntity, JsonValue user) {
+		JsonValue extendedUserProfile = setUserProperties(responseEntity, userAttributesMapping);
+		LOGGER.info("MigrationSsoFilter::createUserProfile > extendedUserProfile: {}", extendedUserProfile);
+
+		if (extendedUserProfile != null) {
+			extendedUserProfile.remove(PASSWORD);
+			extendedUserProfile.add(PASSWORD, user.get(PASSWORD).asString());
+		}
+		return extendedUserProfile;
 	}
 
 	/**
@@ -285,11 +590,89 @@ public class MigrationSsoFilter implements Filter {
 		return null;
 	}
 
+	/**
+	 * @return - the durations of the stages of the logins handled by this filter
+	 */
+	public StageMetrics getStageMetrics() {
+		return stageMetrics;
+	}
+
+	/**
+	 * @return - the limiter of the concurrent calls to IDM
+	 */
+	public AdaptiveConcurrencyLimiter getIdmConcurrencyLimiter() {
+		return idmConcurrencyLimiter;
+	}
+
+	/**
+	 *
+	 * Reloads the index of the migrated users, keeping the current one if IDM could not be queried.
+	 *
+	 * @param loader - the loader of the index
+	 */
+	private void refreshMigratedUsersIndex(MigratedUsersIndexLoader loader) {
+		try {
+			migratedUsersIndex = loader.load();
+		} catch (IOException e) {
+			LOGGER.error("MigrationSsoFilter::refreshMigratedUsersIndex > Failed to load the migrated users: ", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Result of the provisioning of a first login, shared by the concurrent first logins of the same user: either
+	 * the AM authentication cookie, the shedding of the provisioning, or the status of the failure.
+	 */
+	private static final class FirstLoginResult {
+
+		private static final FirstLoginResult SHED = new FirstLoginResult(null, null);
+
+		private final String authenticationCookie;
+		private final Status errorStatus;
+
+		private FirstLoginResult(String authenticationCookie, Status errorStatus) {
+			this.authenticationCookie = authenticationCookie;
+			this.errorStatus = errorStatus;
+		}
+
+		private static FirstLoginResult authenticated(String authenticationCookie) {
+			return new FirstLoginResult(authenticationCookie, null);
+		}
+
+		private static FirstLoginResult failed(Status errorStatus) {
+			return new FirstLoginResult(null, errorStatus);
+		}
+	}
+
 	/**
 	 * Create and initialize the filter, based on the configuration. The filter
 	 * object is stored in the heap.
 	 */
 	public static class Heaplet extends GenericHeaplet {
+
+		private static final int DEFAULT_MIGRATION_STATUS_CACHE_CAPACITY = 10000;
+		private static final String DEFAULT_MIGRATION_STATUS_CACHE_NEGATIVE_TTL = "10 seconds";
+		private static final int DEFAULT_MIGRATED_USERS_INDEX_PAGE_SIZE = 1000;
+		private static final String DEFAULT_MIGRATED_USERS_INDEX_REFRESH_INTERVAL = "15 minutes";
+
+		private static final int DEFAULT_IDM_CONCURRENCY_INITIAL_LIMIT = 20;
+		private static final int DEFAULT_IDM_CONCURRENCY_MIN_LIMIT = 2;
+		private static final String DEFAULT_IDM_CONCURRENCY_LATENCY_THRESHOLD = "1 second";
+		private static final double DEFAULT_IDM_CONCURRENCY_BACKOFF_RATIO = 0.9;
+		private static final int DEFAULT_CALLBACK_TEMPLATE_POOL_SIZE = 4;
+		private static final String DEFAULT_CALLBACK_TEMPLATE_MAX_AGE = "1 minute";
+		private static final int DEFAULT_PROVISIONING_SINGLE_FLIGHT_CAPACITY = 10000;
+		private static final int DEFAULT_ASYNC_PROVISIONING_QUEUE_CAPACITY = 1000;
+		private static final int DEFAULT_ASYNC_PROVISIONING_CONCURRENCY = 4;
+		private static final int DEFAULT_ASYNC_PROVISIONING_MAX_ATTEMPTS = 5;
+		private static final String DEFAULT_ASYNC_PROVISIONING_INITIAL_BACKOFF = "1 second";
+		private static final String DEFAULT_ASYNC_PROVISIONING_ATTEMPT_TIMEOUT = "30 seconds";
+
+		private ProvisioningQueue provisioningQueue;
+		private ScheduledExecutorService migratedUsersIndexExecutor;
+		private ScheduledFuture<?> migratedUsersIndexRefresh;
+
 		/**
 		 * Create the filter object in the heap, setting the header name and value for
 		 * the filter, based on the configuration.
@@ -318,7 +701,105 @@ public class MigrationSsoFilter implements Filter {
 			filter.httpClientHandler = config.get("migrationClientHandler")
 					.defaultTo(Keys.FORGEROCK_CLIENT_HANDLER_HEAP_KEY).as(requiredHeapObject(heap, Handler.class));
 
+			int migrationStatusCacheCapacity = config.get("migrationStatusCacheCapacity")
+					.as(evaluatedWithHeapProperties()).defaultTo(DEFAULT_MIGRATION_STATUS_CACHE_CAPACITY).asInteger();
+			long migrationStatusCacheNegativeTtl = config.get("migrationStatusCacheNegativeTtl")
+					.as(evaluatedWithHeapProperties()).defaultTo(DEFAULT_MIGRATION_STATUS_CACHE_NEGATIVE_TTL)
+					.as(duration()).to(MILLISECONDS);
+			filter.migrationStatusCache = new MigrationStatusCache(migrationStatusCacheCapacity,
+					migrationStatusCacheNegativeTtl, heap.get(Keys.TIME_SERVICE_HEAP_KEY, TimeService.class));
+
+			filter.authenticationRequestClassifier = new AuthenticationRequestClassifier(
+					config.get("authenticationRequestPaths").as(evaluatedWithHeapProperties()).defaultTo(List.of())
+							.asList(String.class),
+					config.get("authenticationRequestContentTypes").as(evaluatedWithHeapProperties())
+							.defaultTo(List.of()).asList(String.class),
+					config.get("authenticationRequestMaxBodySize").as(evaluatedWithHeapProperties()).defaultTo(-1)
+							.asLong(),
+					config.get("authenticationRequestMarkerHeader").as(evaluatedWithHeapProperties()).asString(),
+					config.get("authenticationRequestMarkerHeaderValue").as(evaluatedWithHeapProperties())
+							.asString());
+
+			// The IDM calls are only limited when a maximum limit is set
+			filter.idmConcurrencyLimiter = new AdaptiveConcurrencyLimiter(
+					config.get("idmConcurrencyInitialLimit").as(evaluatedWithHeapProperties())
+							.defaultTo(DEFAULT_IDM_CONCURRENCY_INITIAL_LIMIT).asInteger(),
+					config.get("idmConcurrencyMinLimit").as(evaluatedWithHeapProperties())
+							.defaultTo(DEFAULT_IDM_CONCURRENCY_MIN_LIMIT).asInteger(),
+					config.get("idmConcurrencyMaxLimit").as(evaluatedWithHeapProperties()).defaultTo(0).asInteger(),
+					config.get("idmConcurrencyLatencyThreshold").as(evaluatedWithHeapProperties())
+							.defaultTo(DEFAULT_IDM_CONCURRENCY_LATENCY_THRESHOLD).as(duration()).to(MILLISECONDS),
+					config.get("idmConcurrencyBackoffRatio").as(evaluatedWithHeapProperties())
+							.defaultTo(DEFAULT_IDM_CONCURRENCY_BACKOFF_RATIO).asDouble());
+
+			filter.callbackTemplateCache = new CallbackTemplateCache(
+					config.get("callbackTemplatePoolSize").as(evaluatedWithHeapProperties())
+							.defaultTo(DEFAULT_CALLBACK_TEMPLATE_POOL_SIZE).asInteger(),
+					config.get("callbackTemplateMaxAge").as(evaluatedWithHeapProperties())
+							.defaultTo(DEFAULT_CALLBACK_TEMPLATE_MAX_AGE).as(duration()).to(MILLISECONDS),
+					heap.get(Keys.TIME_SERVICE_HEAP_KEY, TimeService.class));
+
+			filter.firstLoginProvisioning = new SingleFlight<>(config.get("provisioningSingleFlightCapacity")
+					.as(evaluatedWithHeapProperties()).defaultTo(DEFAULT_PROVISIONING_SINGLE_FLIGHT_CAPACITY)
+					.asInteger());
+
+			// The background provisioning is only enabled with a handler authorizing the IDM requests
+			if (config.get("asyncProvisioning").as(evaluatedWithHeapProperties()).defaultTo(false).asBoolean()) {
+				filter.provisioningClientHandler = config.get("asyncProvisioningHandler").required()
+						.as(requiredHeapObject(heap, Handler.class));
+				filter.provisioningQueue = new ProvisioningQueue(
+						config.get("asyncProvisioningQueueCapacity").as(evaluatedWithHeapProperties())
+								.defaultTo(DEFAULT_ASYNC_PROVISIONING_QUEUE_CAPACITY).asInteger(),
+						config.get("asyncProvisioningConcurrency").as(evaluatedWithHeapProperties())
+								.defaultTo(DEFAULT_ASYNC_PROVISIONING_CONCURRENCY).asInteger(),
+						config.get("asyncProvisioningMaxAttempts").as(evaluatedWithHeapProperties())
+								.defaultTo(DEFAULT_ASYNC_PROVISIONING_MAX_ATTEMPTS).asInteger(),
+						config.get("asyncProvisioningInitialBackoff").as(evaluatedWithHeapProperties())
+								.defaultTo(DEFAULT_ASYNC_PROVISIONING_INITIAL_BACKOFF).as(duration()).to(MILLISECONDS),
+						config.get("asyncProvisioningAttemptTimeout").as(evaluatedWithHeapProperties())
+								.defaultTo(DEFAULT_ASYNC_PROVISIONING_ATTEMPT_TIMEOUT).as(duration()).to(MILLISECONDS),
+						heap.get(Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY, ScheduledExecutorService.class));
+				provisioningQueue = filter.provisioningQueue;
+			}
+
+			// The index of the migrated users is only loaded when a handler authorizing the IDM queries is set
+			if (config.isDefined("migratedUsersIndexHandler")) {
+				Handler indexHandler = config.get("migratedUsersIndexHandler")
+						.as(requiredHeapObject(heap, Handler.class));
+				int pageSize = config.get("migratedUsersIndexPageSize").as(evaluatedWithHeapProperties())
+						.defaultTo(DEFAULT_MIGRATED_USERS_INDEX_PAGE_SIZE).asInteger();
+				long refreshInterval = config.get("migratedUsersIndexRefreshInterval")
+						.as(evaluatedWithHeapProperties()).defaultTo(DEFAULT_MIGRATED_USERS_INDEX_REFRESH_INTERVAL)
+						.as(duration()).to(MILLISECONDS);
+
+				MigratedUsersIndexLoader loader = new MigratedUsersIndexLoader(filter.getUserMigrationStatusEndpoint,
+						pageSize, indexHandler);
+				// The reload blocks on every page, so it runs on its own thread rather than on the shared executor
+				migratedUsersIndexExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+					Thread thread = new Thread(runnable, "MigratedUsersIndexLoader");
+					thread.setDaemon(true);
+					return thread;
+				});
+				migratedUsersIndexRefresh = migratedUsersIndexExecutor.scheduleWithFixedDelay(
+						() -> filter.refreshMigratedUsersIndex(loader), 0, refreshInterval, MILLISECONDS);
+			}
+
 			return filter;
 		}
+
+		@Override
+		public void destroy() {
+			if (migratedUsersIndexRefresh != null) {
+				migratedUsersIndexRefresh.cancel(true);
+			}
+			if (migratedUsersIndexExecutor != null) {
+				migratedUsersIndexExecutor.shutdownNow();
+			}
+			// The users still waiting to be provisioned are reported to the dead-letter log
+			if (provisioningQueue != null) {
+				provisioningQueue.shutdown();
+			}
+			super.destroy();
+		}
 	}
 }
@@ -16,7 +16,6 @@
 package org.forgerock.openig.modernize.impl;
 
 import static org.forgerock.openig.modernize.provider.ForgeRockProvider.getErrorResponse;
-import static org.forgerock.openig.modernize.provider.ForgeRockProvider.validCallback;
 import static org.forgerock.openig.modernize.utils.FilterConstants.Attributes.PASSWORD;
 import static org.forgerock.openig.modernize.utils.FilterConstants.Attributes.USERNAME;
 import static org.forgerock.openig.modernize.utils.FilterConstants.Headers.APPLICATION_JSON;
@@ -24,6 +23,7 @@ import static org.forgerock.openig.modernize.utils.FilterConstants.Headers.CONTE
 import static org.forgerock.openig.modernize.utils.FilterConstants.Methods.GET;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Map;
@@ -31,11 +31,13 @@ import java.util.ResourceBundle;
 
 import org.forgerock.http.Client;
 import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Entity;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openig.modernize.LegacyIAMProvider;
+import org.forgerock.openig.modernize.utils.CallbackCredentialsReader;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 import org.slf4j.Logger;
@@ -55,34 +57,44 @@ public class LegacyOpenSSOProvider implements LegacyIAMProvider {
 	private static final String CONFIG_LEGACY_COOKIE_NAME = "legacyIamCookieName";
 	private static final String CONFIG_COOKIE_HEADER = "cookieHeader";
 
+	// The configuration is read once, rather than on every request
+	private static final String SET_COOKIE_HEADER = rb.getString(CONFIG_SET_COOKIE_HEADER);
+	private static final String USER_DETAILS_URL = rb.getString(CONFIG_USER_DETAILS_URL);
+	private static final String LEGACY_COOKIE_NAME = rb.getString(CONFIG_LEGACY_COOKIE_NAME);
+	private static final String COOKIE_HEADER = rb.getString(CONFIG_COOKIE_HEADER);
+	private static final CallbackCredentialsReader CREDENTIALS_READER = new CallbackCredentialsReader(
+			rb.getString(CONFIG_CALLBACKS), rb.getString(CONFIG_CALLBACKS_INPUT),
+			rb.getString(CONFIG_CALLBACKS_INPUT_VALUE));
+
 	/**
 	 * {@inheritDoc}
+	 * <p>
+	 * The body is streamed up to the credentials only, and stays readable by the next handlers.
+	 * </p>
 	 */
 	public JsonValue getUserCredentials(Request request) {
-		final String callbackParam = rb.getString(CONFIG_CALLBACKS);
-		final String callbackInputParam = rb.getString(CONFIG_CALLBACKS_INPUT);
-		final String callbackInputValueParam = rb.getString(CONFIG_CALLBACKS_INPUT_VALUE);
-
-		try {
-			LOGGER.info("LegacyOpenSSOProvider::getUserCredentials > Start");
-			JsonValue entity = JsonValue.json(request.getEntity().getJson());
-			JsonValue userCredentials = JsonValue.json(JsonValue.object());
-			LOGGER.info("LegacyOpenSSOProvider::getUserCredentials > Entity: {}", entity);
-
-			if (validCallback(entity)) {
-				userCredentials.add(USERNAME,
-						entity.get(callbackParam).get(0).get(callbackInputParam).get(0).get(callbackInputValueParam).asString());
-				userCredentials.add(PASSWORD,
-						entity.get(callbackParam).get(1).get(callbackInputParam).get(0).get(callbackInputValueParam).asString());
-
-				return userCredentials;
-			}
+		LOGGER.debug("LegacyOpenSSOProvider::getUserCredentials > Start");
+		Entity entity = request.getEntity();
+		String[] credentials = null;
+
+		entity.push();
+		try (InputStream content = entity.getNewDecodedContentInputStream()) {
+			credentials = CREDENTIALS_READER.read(content);
 		} catch (IOException e) {
-			LOGGER.error("LegacyOpenSSOProvider::getUserCredentials > Something went wrong while " +
-					"intercepting and reading the user credentials from the request's body. Exception: {0}", e);
+			LOGGER.debug("LegacyOpenSSOProvider::getUserCredentials > Request body is not a callbacks body: {}",
+					e.getMessage());
+		} finally {
+			entity.pop();
 		}
 
-		return null;
+		if (credentials == null) {
+			return null;
+		}
+
+		JsonValue userCredentials = JsonValue.json(JsonValue.object());
+		userCredentials.add(USERNAME, credentials[0]);
+		userCredentials.add(PASSWORD, credentials[1]);
+		return userCredentials;
 	}
 
 	/**
@@ -91,8 +103,7 @@ public class LegacyOpenSSOProvider implements LegacyIAMProvider {
 	public Promise<Response, NeverThrowsException> getExtendedUserAttributes(Response response, String userName,
 			Handler httpClientHandler) {
 
-		String legacyCookie = getLegacyCookie(response.getHeaders().copyAsMultiMapOfStrings(),
-				rb.getString(CONFIG_LEGACY_COOKIE_NAME));
+		String legacyCookie = getLegacyCookie(response.getHeaders().copyAsMultiMapOfStrings(), LEGACY_COOKIE_NAME);
 		LOGGER.info("LegacyOpenSSOProvider::getExtendedUserAttributes > legacyCookie: {}", legacyCookie);
 
 		return getExtendedUserProfile(userName, legacyCookie, httpClientHandler);
@@ -107,7 +118,7 @@ public class LegacyOpenSSOProvider implements LegacyIAMProvider {
 	 * @return - the extracted cookie from the given header map
 	 */
 	private String getLegacyCookie(Map<String, List<String>> responseHeadersMap, String legacyIamCookieName) {
-		List<String> cookieValues = responseHeadersMap.get(rb.getString(CONFIG_SET_COOKIE_HEADER));
+		List<String> cookieValues = responseHeadersMap.get(SET_COOKIE_HEADER);
 		for (String cookie : cookieValues) {
 			if (cookie != null && cookie.contains(legacyIamCookieName)) {
 				return cookie;
@@ -128,7 +139,7 @@ public class LegacyOpenSSOProvider implements LegacyIAMProvider {
 	private Promise<Response, NeverThrowsException> getExtendedUserProfile(String username, String cookie,
 			Handler httpClientHandler) {
 
-		String legacyGetUserDetailsEndpoint = rb.getString(CONFIG_USER_DETAILS_URL) + username;
+		String legacyGetUserDetailsEndpoint = USER_DETAILS_URL + username;
 		return callUserDetailsEndpoint(legacyGetUserDetailsEndpoint, cookie, httpClientHandler);
 	}
 
@@ -147,7 +158,7 @@ public class LegacyOpenSSOProvider implements LegacyIAMProvider {
 		try (Request request = new Request()) {
 			request.setMethod(GET).setUri(legacyGetUserDetailsEndpoint);
 
-			request.getHeaders().add(rb.getString(CONFIG_COOKIE_HEADER), cookie);
+			request.getHeaders().add(COOKIE_HEADER, cookie);
 			request.getHeaders().add(CONTENT_TYPE, APPLICATION_JSON);
 
 			Client client = new Client(httpClientHandler);
@@ -0,0 +1,125 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.limiter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of concurrent calls to a backend, adapting the limit to
+ * the observed latency with an additive increase, multiplicative decrease
+ * (AIMD) algorithm.
+ * <p>
+ * Each call completing within the latency threshold raises the limit by one
+ * per limit's worth of calls, so by about one per round trip. Each call slower
+ * than the threshold, or failing, multiplies the limit by the backoff ratio.
+ * The limit stays between the configured minimum and maximum. Calls beyond the
+ * limit are rejected rather than queued, leaving it to the caller to shed them.
+ * </p>
+ */
+public class AdaptiveConcurrencyLimiter {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+	private static final AdaptiveConcurrencyLimiter UNLIMITED = new AdaptiveConcurrencyLimiter(0, 0, 0, 0, 1);
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final long latencyThresholdNanos;
+	private final double backoffRatio;
+
+	private double limit;
+	private int inFlight;
+
+	/**
+	 * Creates an adaptive concurrency limiter.
+	 *
+	 * @param initialLimit           - the limit before any call completes
+	 * @param minLimit               - the lowest limit
+	 * @param maxLimit               - the highest limit; 0 for no limit at all
+	 * @param latencyThresholdMillis - the latency above which a call decreases the limit
+	 * @param backoffRatio           - the ratio applied to the limit when it decreases, between 0 and 1
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThresholdMillis,
+			double backoffRatio) {
+		this.maxLimit = Math.max(maxLimit, 0);
+		this.minLimit = Math.max(1, Math.min(minLimit, this.maxLimit));
+		this.latencyThresholdNanos = latencyThresholdMillis * 1_000_000L;
+		this.backoffRatio = backoffRatio <= 0 || backoffRatio >= 1 ? 0.9 : backoffRatio;
+		this.limit = Math.max(this.minLimit, Math.min(initialLimit, this.maxLimit));
+	}
+
+	/**
+	 * @return - a limiter which never rejects a call
+	 */
+	public static AdaptiveConcurrencyLimiter unlimited() {
+		return UNLIMITED;
+	}
+
+	/**
+	 *
+	 * Acquires a slot for a call.
+	 *
+	 * @return - true if the call may proceed, and must then be released, false if it must be shed
+	 */
+	public synchronized boolean tryAcquire() {
+		if (maxLimit == 0) {
+			return true;
+		}
+		if (inFlight >= (int) limit) {
+			return false;
+		}
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 *
+	 * Releases the slot of a completed call, adapting the limit to its outcome.
+	 *
+	 * @param latencyNanos - the duration of the call
+	 * @param failed       - true if the backend failed to handle the call, false otherwise
+	 */
+	public synchronized void release(long latencyNanos, boolean failed) {
+		if (maxLimit == 0) {
+			return;
+		}
+		inFlight--;
+		double previousLimit = limit;
+		if (failed || latencyNanos > latencyThresholdNanos) {
+			limit = Math.max(minLimit, limit * backoffRatio);
+		} else {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+		if ((int) limit != (int) previousLimit) {
+			LOGGER.debug("AdaptiveConcurrencyLimiter::release > Limit changed to {} with {} calls in flight",
+					(int) limit, inFlight);
+		}
+	}
+
+	/**
+	 * @return - the current limit of concurrent calls, or 0 if calls are not limited
+	 */
+	public synchronized int getLimit() {
+		return maxLimit == 0 ? 0 : (int) limit;
+	}
+
+	/**
+	 * @return - the number of calls in flight
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+}
@@ -25,6 +25,8 @@ import static org.forgerock.openig.modernize.utils.FilterConstants.Methods.POST;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.util.List;
 import java.util.Map;
@@ -38,10 +40,14 @@ import org.forgerock.http.protocol.Status;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.JsonValueException;
 import org.forgerock.openig.modernize.LegacyIAMProvider;
+import org.forgerock.openig.modernize.cache.CallbackTemplateCache;
+import org.forgerock.openig.modernize.tracing.LoginTrace;
+import org.forgerock.openig.modernize.tracing.Stage;
 import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.Promises;
+import org.forgerock.util.promise.ResultHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +56,13 @@ public final class ForgeRockProvider {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(ForgeRockProvider.class);
 	private static final String QUERY = "?_queryFilter=userName+eq+%22{0}%22";
+	private static final String MIGRATED_USERS_QUERY = "?_queryFilter=true&_fields=userName&_pageSize={0}";
+	private static final String PAGED_RESULTS_COOKIE_PARAM = "&_pagedResultsCookie=";
+	/** AMAuthErrorCode.AUTH_TIMEOUT, returned by AM when the authentication session of an authId expired */
+	private static final String AM_AUTH_TIMEOUT_ERROR_CODE = "110";
+	private static final String AM_AUTH_TIMEOUT_MESSAGE = "Session has timed out";
+	/** Returned by AM, lower-cased, when it cannot verify the authId JWT */
+	private static final String AM_INVALID_AUTH_ID_MESSAGE = "authid";
 
 	private ForgeRockProvider() {
 		throw new IllegalStateException("Instantiation is not allowed");
@@ -77,7 +90,7 @@ public final class ForgeRockProvider {
 	 * @param userName                       - the userName of the current requesting user
 	 * @param authorizationToken             - the authorization token
 	 * @param httpClientHandler              - the ForgeRock HTTP client handler
-	 * @return - true if user is migrated, false otherwise
+	 * @return - true if user is migrated, false otherwise, or null if IDM could not tell
 	 */
 	public static Promise<Boolean, NeverThrowsException> userMigrated(String getUserMigrationStatusEndpoint,
 			String userName, String authorizationToken, Handler httpClientHandler) {
@@ -90,7 +103,9 @@ public final class ForgeRockProvider {
 			request.setMethod(GET).setUri(getUserPathWithQuery);
 
 			request.getHeaders().add(CONTENT_TYPE, APPLICATION_JSON);
-			request.getHeaders().add(AUTHORIZATION, authorizationToken);
+			if (authorizationToken != null) {
+				request.getHeaders().add(AUTHORIZATION, authorizationToken);
+			}
 
 			Client client = new Client(httpClientHandler);
 			return client.send(request).thenAsync(userMigrated());
@@ -98,7 +113,41 @@ public final class ForgeRockProvider {
 			LOGGER.error("ForgeRockProvider::userMigrated > URISyntaxException: ", e);
 		}
 
-		return Promises.newResultPromise(false);
+		return Promises.newResultPromise(null);
+	}
+
+	/**
+	 *
+	 * Calls IDM to get one page of the user names of all migrated users
+	 *
+	 * @param getUserMigrationStatusEndpoint - the IDM end-point where we check if the user is migrated
+	 * @param pageSize                       - the number of users per page
+	 * @param pagedResultsCookie             - the cookie returned with the previous page; null for the first page
+	 * @param httpClientHandler              - the ForgeRock HTTP client handler, which authorizes the request
+	 * @return - promise of a response whose entity lists the user names and the cookie of the next page
+	 */
+	public static Promise<Response, NeverThrowsException> queryMigratedUsers(String getUserMigrationStatusEndpoint,
+			int pageSize, String pagedResultsCookie, Handler httpClientHandler) {
+
+		StringBuilder queryPath = new StringBuilder(getUserMigrationStatusEndpoint)
+				.append(MessageFormat.format(MIGRATED_USERS_QUERY, String.valueOf(pageSize)));
+		if (pagedResultsCookie != null) {
+			queryPath.append(PAGED_RESULTS_COOKIE_PARAM)
+					.append(URLEncoder.encode(pagedResultsCookie, StandardCharsets.UTF_8));
+		}
+		LOGGER.debug("ForgeRockProvider::queryMigratedUsers > Calling endpoint: {}", queryPath);
+
+		try (Request request = new Request()) {
+			request.setMethod(GET).setUri(queryPath.toString());
+			request.getHeaders().add(CONTENT_TYPE, APPLICATION_JSON);
+
+			Client client = new Client(httpClientHandler);
+			return client.send(request);
+		} catch (URISyntaxException e) {
+			LOGGER.error("ForgeRockProvider::queryMigratedUsers > URISyntaxException: ", e);
+		}
+
+		return getErrorResponse(Status.BAD_REQUEST);
 	}
 
 	/**
@@ -106,23 +155,28 @@ public final class ForgeRockProvider {
 	 * Async method that returns, when available, the response on whether or not
 	 * the user is already migrated based on the caller's response
 	 *
-	 * @return - a promise of a boolean telling whether or not the user is migrated
+	 * @return - a promise of a boolean telling whether or not the user is migrated, or of null if the
+	 * 			response is not a successful query result
 	 */
 	private static AsyncFunction<Response, Boolean, NeverThrowsException> userMigrated() {
 		return response -> {
 			LOGGER.error("ForgeRockProvider::userMigrated > response: {}", response.getEntity());
-			JsonValue entity;
+			if (!response.getStatus().isSuccessful()) {
+				LOGGER.error("ForgeRockProvider::userMigrated > IDM query failed with status: {}",
+						response.getStatus());
+				return Promises.newResultPromise(null);
+			}
 
 			try {
-				entity = JsonValue.json(response.getEntity().getJson());
-				if (entity.isNotNull() && entity.isDefined("resultCount") && entity.get("resultCount").asInteger() > 0) {
-					return Promises.newResultPromise(true);
+				JsonValue entity = JsonValue.json(response.getEntity().getJson());
+				if (entity.isNotNull() && entity.isDefined("resultCount")) {
+					return Promises.newResultPromise(entity.get("resultCount").asInteger() > 0);
 				}
 			} catch (IOException e) {
 				LOGGER.error("ForgeRockProvider::userMigrated > IOException: {0}", e);
 			}
 
-			return Promises.newResultPromise(false);
+			return Promises.newResultPromise(null);
 		};
 	}
 
@@ -140,12 +194,135 @@ public final class ForgeRockProvider {
 	 */
 	public static Promise<Response, NeverThrowsException> authenticateUser(JsonValue user, String openAmAuthenticateURL,
 			String acceptApiVersionHeader, String acceptApiVersionHeaderValue, Handler httpClientHandler) {
+		return authenticateUser(user, openAmAuthenticateURL, acceptApiVersionHeader, acceptApiVersionHeaderValue,
+				httpClientHandler, httpClientHandler);
+	}
+
+	/**
+	 *
+	 * Authenticates the user in AM, fetching the callbacks and submitting them through their own handlers.
+	 *
+	 * @param user 						  - user object that holds credentials for authentication
+	 * @param openAmAuthenticateURL       - the authentication URL for OpenAM
+	 * @param acceptApiVersionHeader      - Accept API Version header name
+	 * @param acceptApiVersionHeaderValue - Accept API version header value
+	 * @param callbacksHandler            - the ForgeRock HTTP client handler fetching the callbacks
+	 * @param authenticationHandler       - the ForgeRock HTTP client handler submitting the callbacks
+	 * @return - the promise of a response as the result of the authentication which contains the session cookie
+	 */
+	private static Promise<Response, NeverThrowsException> authenticateUser(JsonValue user,
+			String openAmAuthenticateURL, String acceptApiVersionHeader, String acceptApiVersionHeaderValue,
+			Handler callbacksHandler, Handler authenticationHandler) {
 
 		Promise<Response, NeverThrowsException> entity = getCallbacks(openAmAuthenticateURL, acceptApiVersionHeader,
-				acceptApiVersionHeaderValue, httpClientHandler);
+				acceptApiVersionHeaderValue, callbacksHandler);
 
 		return entity.thenAsync(getAuthResponse(openAmAuthenticateURL, acceptApiVersionHeader, acceptApiVersionHeaderValue,
-				user, httpClientHandler));
+				user, authenticationHandler));
+	}
+
+	/**
+	 *
+	 * Authenticates the user in AM with a callback template fetched ahead, saving the first authenticate
+	 * request, and fetches another template for the next authentication. Falls back to the full callback
+	 * flow when no template is available, or when AM rejects the template's authId. The AM calls carry the
+	 * trace context of the login, and the callback fetch and the authentication are timed as two stages.
+	 *
+	 * @param user 						  - user object that holds credentials for authentication
+	 * @param openAmAuthenticateURL       - the authentication URL for OpenAM
+	 * @param acceptApiVersionHeader      - Accept API Version header name
+	 * @param acceptApiVersionHeaderValue - Accept API version header value
+	 * @param httpClientHandler           - The ForgeRock HTTP client handler
+	 * @param callbackTemplates           - the cache of the callback templates
+	 * @param trace                       - the trace of the login
+	 * @return - the promise of a response as the result of the authentication which contains the session cookie
+	 */
+	public static Promise<Response, NeverThrowsException> authenticateUser(JsonValue user, String openAmAuthenticateURL,
+			String acceptApiVersionHeader, String acceptApiVersionHeaderValue, Handler httpClientHandler,
+			CallbackTemplateCache callbackTemplates, LoginTrace trace) {
+
+		Handler callbacksHandler = trace.timing(Stage.AM_CALLBACK_FETCH, httpClientHandler);
+		Handler authenticationHandler = trace.timing(Stage.AM_AUTHENTICATION, httpClientHandler);
+		if (!callbackTemplates.isEnabled()) {
+			return authenticateUser(user, openAmAuthenticateURL, acceptApiVersionHeader, acceptApiVersionHeaderValue,
+					callbacksHandler, authenticationHandler);
+		}
+
+		String templateKey = CallbackTemplateCache.key(openAmAuthenticateURL, acceptApiVersionHeaderValue);
+		JsonValue callbacks = callbackTemplates.take(templateKey);
+		if (callbackTemplates.needsTemplate(templateKey)) {
+			// Fetched for a next login, out of the stages of this one
+			getCallbacks(openAmAuthenticateURL, acceptApiVersionHeader, acceptApiVersionHeaderValue,
+					trace.propagating(httpClientHandler))
+					.thenOnResult(offerCallbackTemplate(callbackTemplates, templateKey));
+		}
+
+		if (callbacks == null) {
+			return authenticateUser(user, openAmAuthenticateURL, acceptApiVersionHeader, acceptApiVersionHeaderValue,
+					callbacksHandler, authenticationHandler);
+		}
+
+		return submitCallbacks(openAmAuthenticateURL, acceptApiVersionHeader, acceptApiVersionHeaderValue, user,
+				callbacks, authenticationHandler).thenAsync(response -> {
+					if (staleAuthIdRejection(response)) {
+						LOGGER.warn("ForgeRockProvider::authenticateUser > Callback template rejected - "
+								+ "falling back to a fresh authentication");
+						callbackTemplates.invalidate(templateKey);
+						response.close();
+						return authenticateUser(user, openAmAuthenticateURL, acceptApiVersionHeader,
+								acceptApiVersionHeaderValue, callbacksHandler, authenticationHandler);
+					}
+					return Promises.newResultPromise(response);
+				});
+	}
+
+	/**
+	 * Keeps the callbacks fetched ahead when AM returned a valid template.
+	 */
+	private static ResultHandler<Response> offerCallbackTemplate(
+			CallbackTemplateCache callbackTemplates, String templateKey) {
+		return response -> {
+			try {
+				if (response.getStatus().isSuccessful()) {
+					JsonValue callbacks = JsonValue.json(response.getEntity().getJson());
+					if (validCallback(callbacks)) {
+						callbackTemplates.offer(templateKey, callbacks);
+					}
+				}
+			} catch (IOException | JsonValueException e) {
+				LOGGER.warn("ForgeRockProvider::offerCallbackTemplate > Invalid callback template: {}", e.getMessage());
+			} finally {
+				response.close();
+			}
+		};
+	}
+
+	/**
+	 *
+	 * Tells whether AM rejected the submitted callbacks because their authId is no longer valid, as opposed to
+	 * rejecting the user's credentials, which must not be submitted twice. AM answers an expired authentication
+	 * session with a 401 carrying the AUTH_TIMEOUT error code, and an authId it cannot verify with a 400 naming
+	 * the authId. Any other rejection is returned to the caller unchanged.
+	 *
+	 * @param response - the response of AM to the submitted callbacks
+	 * @return - true if the authentication should be restarted with fresh callbacks, false otherwise
+	 */
+	private static boolean staleAuthIdRejection(Response response) {
+		Status status = response.getStatus();
+		if (!Status.BAD_REQUEST.equals(status) && !Status.UNAUTHORIZED.equals(status)) {
+			return false;
+		}
+		try {
+			JsonValue error = JsonValue.json(response.getEntity().getJson());
+			if (Status.UNAUTHORIZED.equals(status)) {
+				return AM_AUTH_TIMEOUT_ERROR_CODE.equals(String.valueOf(error.get("detail").get("errorCode").getObject()))
+						|| AM_AUTH_TIMEOUT_MESSAGE.equalsIgnoreCase(error.get("message").asString());
+			}
+			String message = error.get("message").asString();
+			return message != null && message.toLowerCase().contains(AM_INVALID_AUTH_ID_MESSAGE);
+		} catch (IOException | JsonValueException e) {
+			return false;
+		}
 	}
 
 	/**
@@ -192,21 +369,10 @@ public final class ForgeRockProvider {
 			String acceptApiVersionHeader, String acceptApiVersionHeaderValue, JsonValue user, Handler httpClientHandler) {
 
 		return response -> {
-			try (Request request = new Request()) {
-				request.setMethod(POST).setUri(openAmAuthenticateURL);
-
-				// Header cleanup - setting entity on the request automatically adds
-				// content-length which can cause problems in some legacy systems
-				request.getHeaders().clear();
-				request.getHeaders().add(acceptApiVersionHeader, acceptApiVersionHeaderValue);
-				request.getHeaders().add(CONTENT_TYPE, APPLICATION_JSON);
-
-				JsonValue callbacks = extractCredentials(user, JsonValue.json(response.getEntity().getJson()));
-				request.setEntity(callbacks);
-
-				Client client = new Client(httpClientHandler);
-				return client.send(request);
-			} catch (URISyntaxException | IOException | JsonValueException e) {
+			try {
+				return submitCallbacks(openAmAuthenticateURL, acceptApiVersionHeader, acceptApiVersionHeaderValue,
+						user, JsonValue.json(response.getEntity().getJson()), httpClientHandler);
+			} catch (IOException | JsonValueException e) {
 				LOGGER.error("ForgeRockProvider::getAuthResponse > {}: {} ", e.getMessage(), e);
 			}
 
@@ -214,6 +380,42 @@ public final class ForgeRockProvider {
 		};
 	}
 
+	/**
+	 *
+	 * Fills the user's credentials in the authentication callbacks and submits them to OpenAM.
+	 *
+	 * @param openAmAuthenticateURL       - the authentication URL for OpenAM
+	 * @param acceptApiVersionHeader      - Accept API Version header name
+	 * @param acceptApiVersionHeaderValue - Accept API version header value
+	 * @param user                        - user object that holds credentials for authentication
+	 * @param callbacks                   - the callbacks returned by OpenAM, which are filled in
+	 * @param httpClientHandler           - the ForgeRock HTTP client handler
+	 * @return - the response of OpenAM to the submitted callbacks
+	 */
+	private static Promise<Response, NeverThrowsException> submitCallbacks(String openAmAuthenticateURL,
+			String acceptApiVersionHeader, String acceptApiVersionHeaderValue, JsonValue user, JsonValue callbacks,
+			Handler httpClientHandler) {
+
+		try (Request request = new Request()) {
+			request.setMethod(POST).setUri(openAmAuthenticateURL);
+
+			// Header cleanup - setting entity on the request automatically adds
+			// content-length which can cause problems in some legacy systems
+			request.getHeaders().clear();
+			request.getHeaders().add(acceptApiVersionHeader, acceptApiVersionHeaderValue);
+			request.getHeaders().add(CONTENT_TYPE, APPLICATION_JSON);
+
+			request.setEntity(extractCredentials(user, callbacks));
+
+			Client client = new Client(httpClientHandler);
+			return client.send(request);
+		} catch (URISyntaxException | JsonValueException e) {
+			LOGGER.error("ForgeRockProvider::submitCallbacks > {}: {} ", e.getMessage(), e);
+		}
+
+		return getErrorResponse(Status.BAD_REQUEST);
+	}
+
 	/**
 	 * Extracts user's cookie from the response entity
 	 *
@@ -225,6 +427,10 @@ public final class ForgeRockProvider {
 		Headers responseHeaders = response.getHeaders();
 		Map<String, List<String>> headersMap = responseHeaders.copyAsMultiMapOfStrings();
 		List<String> cookies = headersMap.get("Set-Cookie");
+		// A failed authentication sets no cookie at all
+		if (cookies == null) {
+			return null;
+		}
 		String cookie = cookies.stream().filter(x -> x.contains(openAmCookieName)).findFirst().orElse(null);
 
 		LOGGER.info("ForgeRockProvider::extractCookie > Cookie: {}", cookie);
@@ -279,7 +485,8 @@ public final class ForgeRockProvider {
 	 * Calls IDM user URL in order to create a user
 	 * 
 	 * @param user                  - user object with userName, userPassword set, and extended user profile attributes
-	 * @param authorizationToken	- string representing the authorization token used to provision the user
+	 * @param authorizationToken	- string representing the authorization token used to provision the user, or
+	 * 								  null when the handler authorizes the request itself
 	 * @param provisionUserEndpoint - IDMs create user URL
 	 * @param httpClientHandler     - ForgeRock HTTP client handler
 	 * @return - promise of a response as the result of the user creation request in IDM
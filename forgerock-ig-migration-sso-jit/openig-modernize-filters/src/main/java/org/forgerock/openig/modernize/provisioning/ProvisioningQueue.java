@@ -0,0 +1,271 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.provisioning;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded, in-memory queue provisioning the users in the background.
+ * <p>
+ * At most the configured number of tasks run at the same time. A task asking
+ * to be retried is rescheduled with an exponential backoff, until the maximum
+ * number of attempts is reached. An attempt that does not complete within the
+ * attempt timeout is cancelled and retried like a failed one, so that a hung
+ * call cannot hold a running slot forever. Tasks that fail for good are reported to the
+ * dead-letter log, <b>org.forgerock.openig.modernize.provisioning.DeadLetter</b>,
+ * so that the users can be migrated again from it.
+ * </p>
+ * <p>
+ * Once shut down, the queue accepts no more tasks and starts none, and the tasks
+ * still queued or waiting for a retry are reported to the dead-letter log.
+ * </p>
+ */
+public class ProvisioningQueue {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ProvisioningQueue.class);
+	private static final Logger DEAD_LETTER_LOGGER = LoggerFactory
+			.getLogger("org.forgerock.openig.modernize.provisioning.DeadLetter");
+
+	private final Queue<QueuedTask> queue = new ConcurrentLinkedQueue<>();
+	private final Set<QueuedTask> waitingForRetry = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger running = new AtomicInteger();
+	private final Semaphore capacity;
+	private final int concurrency;
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long attemptTimeoutMillis;
+	private final ScheduledExecutorService executor;
+	private volatile boolean shutdown;
+
+	/**
+	 * Creates a provisioning queue.
+	 *
+	 * @param capacity             - maximum number of tasks queued, running or waiting for a retry
+	 * @param concurrency          - maximum number of tasks running at the same time
+	 * @param maxAttempts          - maximum number of attempts of a task
+	 * @param initialBackoffMillis - delay before the first retry, doubled for each next retry
+	 * @param attemptTimeoutMillis - maximum duration of an attempt, 0 for no limit
+	 * @param executor             - executor scheduling the retries and the attempt timeouts
+	 */
+	public ProvisioningQueue(int capacity, int concurrency, int maxAttempts, long initialBackoffMillis,
+			long attemptTimeoutMillis, ScheduledExecutorService executor) {
+		this.capacity = new Semaphore(Math.max(capacity, 0));
+		this.concurrency = Math.max(concurrency, 1);
+		this.maxAttempts = Math.max(maxAttempts, 1);
+		this.initialBackoffMillis = Math.max(initialBackoffMillis, 0);
+		this.attemptTimeoutMillis = Math.max(attemptTimeoutMillis, 0);
+		this.executor = executor;
+	}
+
+	/**
+	 *
+	 * Queues the provisioning of a user.
+	 *
+	 * @param userName - the user name, used to report the task
+	 * @param task     - the provisioning task
+	 * @return - true if the task is queued, false if the queue is full or shut down
+	 */
+	public boolean submit(String userName, ProvisioningTask task) {
+		if (shutdown) {
+			LOGGER.warn("ProvisioningQueue::submit > Queue shut down, not queuing the provisioning of {}", userName);
+			return false;
+		}
+		if (!capacity.tryAcquire()) {
+			LOGGER.warn("ProvisioningQueue::submit > Queue full, not queuing the provisioning of {}", userName);
+			return false;
+		}
+		queue.add(new QueuedTask(userName, task));
+		dispatch();
+		// A task queued while the queue was being shut down is not left behind
+		if (shutdown) {
+			drain();
+		}
+		return true;
+	}
+
+	/**
+	 * @return - the number of tasks queued, running or waiting for a retry
+	 */
+	public int getPendingCount() {
+		return queue.size() + waitingForRetry.size() + running.get();
+	}
+
+	/**
+	 *
+	 * Shuts the queue down: no task is started anymore, and the tasks queued or waiting for a retry are
+	 * reported to the dead-letter log. The running tasks complete, but are not retried.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		drain();
+	}
+
+	private void drain() {
+		QueuedTask queuedTask;
+		while ((queuedTask = queue.poll()) != null) {
+			deadLetter(queuedTask, "queue shut down");
+		}
+		for (QueuedTask waitingTask : waitingForRetry) {
+			if (waitingForRetry.remove(waitingTask)) {
+				deadLetter(waitingTask, "queue shut down");
+			}
+		}
+	}
+
+	private void dispatch() {
+		while (!shutdown && !queue.isEmpty()) {
+			int current = running.get();
+			if (current >= concurrency) {
+				return;
+			}
+			if (!running.compareAndSet(current, current + 1)) {
+				continue;
+			}
+			QueuedTask queuedTask = queue.poll();
+			if (queuedTask == null) {
+				running.decrementAndGet();
+			} else {
+				run(queuedTask);
+			}
+		}
+	}
+
+	private void run(QueuedTask queuedTask) {
+		queuedTask.attempts++;
+		Promise<Outcome, NeverThrowsException> outcome;
+		try {
+			outcome = queuedTask.task.provision();
+		} catch (RuntimeException e) {
+			LOGGER.error("ProvisioningQueue::run > Provisioning of {} failed: ", queuedTask.userName, e);
+			outcome = null;
+		}
+
+		if (outcome == null) {
+			completed(queuedTask, Outcome.RETRY);
+			return;
+		}
+
+		// The attempt completes once, either with its outcome or with its timeout
+		AtomicBoolean attemptCompleted = new AtomicBoolean();
+		ScheduledFuture<?> timeout = null;
+		if (attemptTimeoutMillis > 0) {
+			Promise<Outcome, NeverThrowsException> attempt = outcome;
+			timeout = executor.schedule(() -> {
+				if (attemptCompleted.compareAndSet(false, true)) {
+					LOGGER.warn("ProvisioningQueue::run > Provisioning of {} timed out after {} ms",
+							queuedTask.userName, attemptTimeoutMillis);
+					attempt.cancel(true);
+					completed(queuedTask, Outcome.RETRY);
+				}
+			}, attemptTimeoutMillis, MILLISECONDS);
+		}
+		ScheduledFuture<?> scheduledTimeout = timeout;
+		outcome.thenOnResult(result -> {
+			if (attemptCompleted.compareAndSet(false, true)) {
+				if (scheduledTimeout != null) {
+					scheduledTimeout.cancel(false);
+				}
+				completed(queuedTask, result);
+			}
+		});
+	}
+
+	private void completed(QueuedTask queuedTask, Outcome outcome) {
+		running.decrementAndGet();
+		if (outcome == Outcome.SUCCEEDED) {
+			LOGGER.info("ProvisioningQueue::completed > Provisioned {} after {} attempt(s)", queuedTask.userName,
+					queuedTask.attempts);
+			capacity.release();
+		} else if (outcome == Outcome.RETRY && queuedTask.attempts < maxAttempts && !shutdown) {
+			long backoff = initialBackoffMillis << Math.min(queuedTask.attempts - 1, 20);
+			LOGGER.warn("ProvisioningQueue::completed > Provisioning of {} failed, retrying in {} ms",
+					queuedTask.userName, backoff);
+			// The retried task keeps its capacity permit while it waits, unless the queue is shut down meanwhile
+			waitingForRetry.add(queuedTask);
+			executor.schedule(() -> {
+				if (waitingForRetry.remove(queuedTask)) {
+					queue.add(queuedTask);
+					dispatch();
+				}
+			}, backoff, MILLISECONDS);
+			if (shutdown && waitingForRetry.remove(queuedTask)) {
+				deadLetter(queuedTask, "queue shut down");
+			}
+		} else {
+			deadLetter(queuedTask, shutdown ? "queue shut down" : "last attempt failed");
+		}
+		dispatch();
+	}
+
+	private void deadLetter(QueuedTask queuedTask, String reason) {
+		DEAD_LETTER_LOGGER.error("ProvisioningQueue::deadLetter > Giving up the provisioning of {} after {} "
+				+ "attempt(s): {}", queuedTask.userName, queuedTask.attempts, reason);
+		capacity.release();
+	}
+
+	/**
+	 * The outcome of a provisioning attempt.
+	 */
+	public enum Outcome {
+		/** The user is provisioned */
+		SUCCEEDED,
+		/** The attempt failed for a transient reason and can be retried */
+		RETRY,
+		/** The attempt failed and retrying it would fail too */
+		FAILED
+	}
+
+	/**
+	 * An attempt to provision a user, which can be run several times.
+	 */
+	@FunctionalInterface
+	public interface ProvisioningTask {
+
+		/**
+		 *
+		 * Provisions the user.
+		 *
+		 * @return - the promise of the outcome of the attempt
+		 */
+		Promise<Outcome, NeverThrowsException> provision();
+	}
+
+	private static final class QueuedTask {
+		private final String userName;
+		private final ProvisioningTask task;
+		private int attempts;
+
+		private QueuedTask(String userName, ProvisioningTask task) {
+			this.userName = userName;
+			this.task = task;
+		}
+	}
+}
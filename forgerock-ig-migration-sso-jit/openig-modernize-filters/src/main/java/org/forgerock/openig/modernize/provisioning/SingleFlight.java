@@ -0,0 +1,98 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.provisioning;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces the concurrent asynchronous calls made for the same key: while a
+ * call is in flight, the other callers with the same key share its promise
+ * instead of making the call again.
+ * <p>
+ * A key is forgotten as soon as its call completes. At most the configured
+ * number of keys are tracked at the same time; beyond that, calls are made
+ * without being coalesced.
+ * </p>
+ *
+ * @param <V> - the type of the result of the calls
+ */
+public class SingleFlight<V> {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SingleFlight.class);
+
+	private final ConcurrentMap<String, Promise<V, NeverThrowsException>> flights = new ConcurrentHashMap<>();
+	private final int maxFlights;
+
+	/**
+	 * Creates a single-flight group.
+	 *
+	 * @param maxFlights - the maximum number of keys tracked at the same time; 0 to never coalesce calls
+	 */
+	public SingleFlight(int maxFlights) {
+		this.maxFlights = Math.max(maxFlights, 0);
+	}
+
+	/**
+	 *
+	 * Makes a call, unless a call with the same key is in flight, whose promise is then returned.
+	 *
+	 * @param key  - the key of the call
+	 * @param call - the call
+	 * @return - the promise of the result of the call, which is null if the call failed with a runtime exception
+	 */
+	public Promise<V, NeverThrowsException> execute(String key, Supplier<Promise<V, NeverThrowsException>> call) {
+		if (key == null || flights.size() >= maxFlights) {
+			return call.get();
+		}
+
+		PromiseImpl<V, NeverThrowsException> flight = PromiseImpl.create();
+		Promise<V, NeverThrowsException> currentFlight = flights.putIfAbsent(key, flight);
+		if (currentFlight != null) {
+			LOGGER.info("SingleFlight::execute > Joining the call in flight for {}", key);
+			return currentFlight;
+		}
+
+		try {
+			call.get().thenOnResult(result -> {
+				flights.remove(key, flight);
+				flight.handleResult(result);
+			}).thenOnRuntimeException(e -> {
+				flights.remove(key, flight);
+				flight.handleResult(null);
+			});
+		} catch (RuntimeException e) {
+			flights.remove(key, flight);
+			flight.handleResult(null);
+			throw e;
+		}
+		return flight;
+	}
+
+	/**
+	 * @return - the number of calls in flight
+	 */
+	public int size() {
+		return flights.size();
+	}
+}
@@ -0,0 +1,184 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.tracing;
+
+import static org.forgerock.openig.modernize.utils.FilterConstants.Headers.TRACEPARENT;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Trace of a login handled by the migration filter, which times its stages and propagates its W3C trace
+ * context to the outbound calls.
+ * <p>
+ * The login joins the trace of the incoming request when it carries a valid {@code traceparent} header, and
+ * starts a new trace otherwise. Each outbound call gets its own span identifier within the trace.
+ * </p>
+ */
+public class LoginTrace {
+
+	private static final String VERSION = "00";
+	private static final String SAMPLED = "01";
+	private static final int TRACEPARENT_LENGTH = 55;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final StageMetrics metrics;
+	private final String traceId;
+	private final String traceFlags;
+
+	private LoginTrace(StageMetrics metrics, String traceId, String traceFlags) {
+		this.metrics = metrics;
+		this.traceId = traceId;
+		this.traceFlags = traceFlags;
+	}
+
+	/**
+	 *
+	 * Starts the trace of a login, within the trace of the incoming request if any.
+	 *
+	 * @param request - the incoming request
+	 * @param metrics - where to record the durations of the stages
+	 * @return - the trace of the login
+	 */
+	public static LoginTrace start(Request request, StageMetrics metrics) {
+		String traceparent = request.getHeaders().getFirst(TRACEPARENT);
+		if (isValid(traceparent)) {
+			return new LoginTrace(metrics, traceparent.substring(3, 35), traceparent.substring(53));
+		}
+		return new LoginTrace(metrics, randomHex(16), SAMPLED);
+	}
+
+	/**
+	 * Only the version 00 is parsed; the trace identifier is lower case hexadecimal, and not all zeros.
+	 */
+	private static boolean isValid(String traceparent) {
+		if (traceparent == null || traceparent.length() != TRACEPARENT_LENGTH || !traceparent.startsWith(VERSION)
+				|| traceparent.charAt(2) != '-' || traceparent.charAt(35) != '-' || traceparent.charAt(52) != '-') {
+			return false;
+		}
+		boolean zeroTraceId = true;
+		for (int i = 3; i < TRACEPARENT_LENGTH; i++) {
+			char c = traceparent.charAt(i);
+			if (i == 35 || i == 52) {
+				continue;
+			}
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+			if (i < 35 && c != '0') {
+				zeroTraceId = false;
+			}
+		}
+		return !zeroTraceId;
+	}
+
+	private static String randomHex(int bytes) {
+		char[] hex = new char[bytes * 2];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < hex.length; i++) {
+			hex[i] = HEX[random.nextInt(16)];
+		}
+		// An all zeros identifier is invalid
+		if (hex[hex.length - 1] == '0') {
+			hex[hex.length - 1] = '1';
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * @return - the trace identifier
+	 */
+	public String getTraceId() {
+		return traceId;
+	}
+
+	/**
+	 * @return - a {@code traceparent} header value for a new outbound call of the trace
+	 */
+	public String newTraceparent() {
+		return VERSION + '-' + traceId + '-' + randomHex(8) + '-' + traceFlags;
+	}
+
+	/**
+	 *
+	 * Sets the {@code traceparent} header of a request sent further by the filter.
+	 *
+	 * @param request - the request
+	 */
+	public void propagateTo(Request request) {
+		request.getHeaders().put(TRACEPARENT, newTraceparent());
+	}
+
+	/**
+	 *
+	 * Wraps a client handler, so that the requests it sends carry the trace context.
+	 *
+	 * @param handler - the client handler
+	 * @return - the handler propagating the trace context
+	 */
+	public Handler propagating(Handler handler) {
+		return (context, request) -> {
+			propagateTo(request);
+			return handler.handle(context, request);
+		};
+	}
+
+	/**
+	 *
+	 * Wraps a client handler, so that the requests it sends carry the trace context, and are timed as a stage.
+	 *
+	 * @param stage   - the stage of the requests
+	 * @param handler - the client handler
+	 * @return - the handler propagating the trace context and timing the requests
+	 */
+	public Handler timing(Stage stage, Handler handler) {
+		return (context, request) -> {
+			propagateTo(request);
+			long start = System.nanoTime();
+			return handler.handle(context, request).thenOnResult(response -> record(stage, start));
+		};
+	}
+
+	/**
+	 *
+	 * Times an asynchronous stage, until its promise completes.
+	 *
+	 * @param stage - the stage
+	 * @param call  - the call starting the stage
+	 * @param <V>   - the type of the result of the stage
+	 * @return - the promise of the result of the stage
+	 */
+	public <V> Promise<V, NeverThrowsException> time(Stage stage, Supplier<Promise<V, NeverThrowsException>> call) {
+		long start = System.nanoTime();
+		return call.get().thenOnResult(result -> record(stage, start));
+	}
+
+	/**
+	 *
+	 * Records a stage which started at the given time, and ends now.
+	 *
+	 * @param stage      - the stage
+	 * @param startNanos - the {@link System#nanoTime()} at the start of the stage
+	 */
+	public void record(Stage stage, long startNanos) {
+		metrics.record(stage, System.nanoTime() - startNanos);
+	}
+}
@@ -0,0 +1,42 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.tracing;
+
+/**
+ * The stages of a login handled by the migration filter, each timed separately.
+ */
+public enum Stage {
+	CREDENTIAL_EXTRACTION("credential_extraction"),
+	MIGRATION_CHECK("migration_check"),
+	AM_CALLBACK_FETCH("am_callback_fetch"),
+	AM_AUTHENTICATION("am_authentication"),
+	LEGACY_PASS_THROUGH("legacy_pass_through"),
+	EXTENDED_PROFILE_FETCH("extended_profile_fetch"),
+	PROVISIONING("provisioning");
+
+	private final String label;
+
+	Stage(String label) {
+		this.label = label;
+	}
+
+	/**
+	 * @return - the name of the stage, as exported in the metrics
+	 */
+	public String getLabel() {
+		return label;
+	}
+}
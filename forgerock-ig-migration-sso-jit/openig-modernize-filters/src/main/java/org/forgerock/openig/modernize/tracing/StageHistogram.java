@@ -0,0 +1,87 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.tracing;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of the durations of a stage, over fixed buckets going from 1 millisecond to 10 seconds.
+ * <p>
+ * Recording a duration only increments counters, so that timing the stages does not contend
+ * between the concurrent logins.
+ * </p>
+ */
+public class StageHistogram {
+
+	static final double[] BUCKET_BOUNDS_SECONDS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5,
+			5, 10 };
+	private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS_SECONDS.length];
+
+	static {
+		for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+			BUCKET_BOUNDS_NANOS[i] = (long) (BUCKET_BOUNDS_SECONDS[i] * 1_000_000_000L);
+		}
+	}
+
+	// The last bucket holds the durations above the highest bound
+	private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_NANOS.length + 1];
+	private final LongAdder sumNanos = new LongAdder();
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public StageHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 *
+	 * Records the duration of a stage.
+	 *
+	 * @param durationNanos - the duration, in nanoseconds
+	 */
+	public void record(long durationNanos) {
+		long duration = Math.max(durationNanos, 0);
+		int bucket = 0;
+		while (bucket < BUCKET_BOUNDS_NANOS.length && duration > BUCKET_BOUNDS_NANOS[bucket]) {
+			bucket++;
+		}
+		buckets[bucket].increment();
+		sumNanos.add(duration);
+	}
+
+	/**
+	 * @return - the cumulative counts of the durations up to each bound, the last one counting all durations
+	 */
+	public long[] getCumulativeCounts() {
+		long[] counts = new long[buckets.length];
+		long count = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			count += buckets[i].sum();
+			counts[i] = count;
+		}
+		return counts;
+	}
+
+	/**
+	 * @return - the sum of the recorded durations, in seconds
+	 */
+	public double getSumSeconds() {
+		return sumNanos.sum() / 1_000_000_000d;
+	}
+}
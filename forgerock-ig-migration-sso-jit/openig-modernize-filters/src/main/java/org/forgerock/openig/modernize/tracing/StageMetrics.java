@@ -0,0 +1,107 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.tracing;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.forgerock.json.JsonValue;
+
+/**
+ * Durations of the stages of the logins handled by the migration filter, one histogram per stage.
+ */
+public class StageMetrics {
+
+	static final String METRIC_NAME = "ig_migration_sso_stage_seconds";
+
+	private final Map<Stage, StageHistogram> histograms = new EnumMap<>(Stage.class);
+
+	/**
+	 * Creates the histograms of all the stages.
+	 */
+	public StageMetrics() {
+		for (Stage stage : Stage.values()) {
+			histograms.put(stage, new StageHistogram());
+		}
+	}
+
+	/**
+	 *
+	 * Records the duration of a stage.
+	 *
+	 * @param stage         - the stage
+	 * @param durationNanos - the duration, in nanoseconds
+	 */
+	public void record(Stage stage, long durationNanos) {
+		histograms.get(stage).record(durationNanos);
+	}
+
+	/**
+	 * @param stage - the stage
+	 * @return - the histogram of the durations of the stage
+	 */
+	public StageHistogram getHistogram(Stage stage) {
+		return histograms.get(stage);
+	}
+
+	/**
+	 * @return - the histograms in the Prometheus text exposition format
+	 */
+	public String toPrometheus() {
+		StringBuilder text = new StringBuilder(4096);
+		text.append("# HELP ").append(METRIC_NAME).append(" Duration of the stages of the migration logins\n");
+		text.append("# TYPE ").append(METRIC_NAME).append(" histogram\n");
+		for (Map.Entry<Stage, StageHistogram> entry : histograms.entrySet()) {
+			String stage = entry.getKey().getLabel();
+			long[] counts = entry.getValue().getCumulativeCounts();
+			for (int i = 0; i < counts.length; i++) {
+				String bound = i < StageHistogram.BUCKET_BOUNDS_SECONDS.length
+						? Double.toString(StageHistogram.BUCKET_BOUNDS_SECONDS[i]) : "+Inf";
+				text.append(METRIC_NAME).append("_bucket{stage=\"").append(stage).append("\",le=\"").append(bound)
+						.append("\"} ").append(counts[i]).append('\n');
+			}
+			text.append(METRIC_NAME).append("_sum{stage=\"").append(stage).append("\"} ")
+					.append(entry.getValue().getSumSeconds()).append('\n');
+			text.append(METRIC_NAME).append("_count{stage=\"").append(stage).append("\"} ")
+					.append(counts[counts.length - 1]).append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @return - the histograms as JSON, keyed by stage, with the cumulative count of each bucket
+	 */
+	public JsonValue toJson() {
+		JsonValue stages = json(object());
+		for (Map.Entry<Stage, StageHistogram> entry : histograms.entrySet()) {
+			long[] counts = entry.getValue().getCumulativeCounts();
+			JsonValue buckets = json(object());
+			for (int i = 0; i < counts.length; i++) {
+				buckets.put(i < StageHistogram.BUCKET_BOUNDS_SECONDS.length
+						? Double.toString(StageHistogram.BUCKET_BOUNDS_SECONDS[i]) : "+Inf", counts[i]);
+			}
+			stages.put(entry.getKey().getLabel(), object(
+					field("count", counts[counts.length - 1]),
+					field("sum", entry.getValue().getSumSeconds()),
+					field("buckets", buckets.getObject())));
+		}
+		return stages;
+	}
+}
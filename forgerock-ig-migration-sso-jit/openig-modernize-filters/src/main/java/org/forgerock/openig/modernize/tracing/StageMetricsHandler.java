@@ -0,0 +1,104 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.tracing;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.modernize.utils.FilterConstants.Headers.APPLICATION_JSON;
+import static org.forgerock.openig.modernize.utils.FilterConstants.Headers.CONTENT_TYPE;
+import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.modernize.filter.MigrationSsoFilter;
+import org.forgerock.openig.modernize.limiter.AdaptiveConcurrencyLimiter;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+
+/**
+ * Exposes the stage histograms of a migration filter, and the current limit and calls in flight of its IDM
+ * concurrency limiter, in the Prometheus text exposition format, or as JSON when the request accepts JSON.
+ */
+public class StageMetricsHandler implements Handler {
+
+	private static final String ACCEPT = "Accept";
+	private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	static final String IDM_CONCURRENCY_LIMIT_METRIC_NAME = "ig_migration_sso_idm_concurrency_limit";
+	static final String IDM_CONCURRENCY_IN_FLIGHT_METRIC_NAME = "ig_migration_sso_idm_concurrency_in_flight";
+
+	private final StageMetrics metrics;
+	private final AdaptiveConcurrencyLimiter idmConcurrencyLimiter;
+
+	/**
+	 * Creates a handler exposing the given stage histograms and IDM concurrency limiter.
+	 *
+	 * @param metrics               - the stage histograms
+	 * @param idmConcurrencyLimiter - the limiter of the concurrent calls to IDM
+	 */
+	public StageMetricsHandler(StageMetrics metrics, AdaptiveConcurrencyLimiter idmConcurrencyLimiter) {
+		this.metrics = metrics;
+		this.idmConcurrencyLimiter = idmConcurrencyLimiter;
+	}
+
+	@Override
+	public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+		Response response = new Response(Status.OK);
+		String accept = request.getHeaders().getFirst(ACCEPT);
+		if (accept != null && accept.contains(APPLICATION_JSON)) {
+			JsonValue json = metrics.toJson();
+			json.put("idmConcurrency", object(field("limit", idmConcurrencyLimiter.getLimit()),
+					field("inFlight", idmConcurrencyLimiter.getInFlight())));
+			response.setEntity(json.getObject());
+		} else {
+			response.setEntity(metrics.toPrometheus() + idmConcurrencyToPrometheus());
+			response.getHeaders().put(CONTENT_TYPE, PROMETHEUS_CONTENT_TYPE);
+		}
+		return Promises.newResultPromise(response);
+	}
+
+	/**
+	 * @return - the limit and the calls in flight of the IDM concurrency limiter, as Prometheus gauges
+	 */
+	String idmConcurrencyToPrometheus() {
+		return "# HELP " + IDM_CONCURRENCY_LIMIT_METRIC_NAME
+				+ " Current limit of the concurrent calls to IDM, 0 if not limited\n"
+				+ "# TYPE " + IDM_CONCURRENCY_LIMIT_METRIC_NAME + " gauge\n"
+				+ IDM_CONCURRENCY_LIMIT_METRIC_NAME + " " + idmConcurrencyLimiter.getLimit() + "\n"
+				+ "# HELP " + IDM_CONCURRENCY_IN_FLIGHT_METRIC_NAME + " Number of calls to IDM in flight\n"
+				+ "# TYPE " + IDM_CONCURRENCY_IN_FLIGHT_METRIC_NAME + " gauge\n"
+				+ IDM_CONCURRENCY_IN_FLIGHT_METRIC_NAME + " " + idmConcurrencyLimiter.getInFlight() + "\n";
+	}
+
+	/**
+	 * Creates the handler, based on the configuration, exposing the stage histograms of the referenced filter.
+	 */
+	public static class Heaplet extends GenericHeaplet {
+
+		@Override
+		public Object create() throws HeapException {
+			MigrationSsoFilter filter = config.get("migrationSsoFilter").as(requiredHeapObject(heap,
+					MigrationSsoFilter.class));
+			return new StageMetricsHandler(filter.getStageMetrics(), filter.getIdmConcurrencyLimiter());
+		}
+	}
+}
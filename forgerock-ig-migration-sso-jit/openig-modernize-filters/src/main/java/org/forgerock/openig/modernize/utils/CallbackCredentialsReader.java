@@ -0,0 +1,150 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Streaming reader of the credentials submitted in an authentication callbacks
+ * body, such as:
+ *
+ * <pre>
+ * {"authId": "...", "callbacks": [
+ *     {"type": "NameCallback", "input": [{"name": "IDToken1", "value": "demo"}], ...},
+ *     {"type": "PasswordCallback", "input": [{"name": "IDToken2", "value": "password"}], ...}]}
+ * </pre>
+ *
+ * Only the first input value of the first two callbacks is read. The parsing
+ * stops as soon as both values are read, or as soon as the body is found not
+ * to be a callbacks body, without building a JSON tree.
+ */
+public final class CallbackCredentialsReader {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final String callbacksParam;
+	private final String inputParam;
+	private final String valueParam;
+
+	/**
+	 * Creates a reader of the callbacks credentials.
+	 *
+	 * @param callbacksParam - name of the callbacks array
+	 * @param inputParam     - name of the input array of a callback
+	 * @param valueParam     - name of the value of an input
+	 */
+	public CallbackCredentialsReader(String callbacksParam, String inputParam, String valueParam) {
+		this.callbacksParam = callbacksParam;
+		this.inputParam = inputParam;
+		this.valueParam = valueParam;
+	}
+
+	/**
+	 *
+	 * Reads the user name and password from a callbacks body.
+	 *
+	 * @param content - the body
+	 * @return - the user name and the password, or null if the body is not a callbacks body with two
+	 * 			callbacks having an input
+	 * @throws IOException - if the body could not be read or is not valid JSON
+	 */
+	public String[] read(InputStream content) throws IOException {
+		try (JsonParser parser = JSON_FACTORY.createParser(content)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return null;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (callbacksParam.equals(field)) {
+					return value == JsonToken.START_ARRAY ? readCallbacks(parser) : null;
+				}
+				parser.skipChildren();
+			}
+			return null;
+		}
+	}
+
+	private String[] readCallbacks(JsonParser parser) throws IOException {
+		String[] credentials = new String[2];
+		for (int i = 0; i < credentials.length; i++) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return null;
+			}
+			InputValue input = readCallback(parser);
+			if (input == null) {
+				return null;
+			}
+			credentials[i] = input.value;
+		}
+		return credentials;
+	}
+
+	/**
+	 * Reads a callback object up to its end, returning its first input value.
+	 */
+	private InputValue readCallback(JsonParser parser) throws IOException {
+		InputValue input = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if (input == null && inputParam.equals(field) && value == JsonToken.START_ARRAY) {
+				input = readFirstInput(parser);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return input;
+	}
+
+	/**
+	 * Reads an input array up to its end, returning the value of its first element.
+	 */
+	private InputValue readFirstInput(JsonParser parser) throws IOException {
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			return null;
+		}
+		InputValue input = new InputValue();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if (valueParam.equals(field) && value == JsonToken.VALUE_STRING) {
+				input.value = parser.getText();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		// Skips the other inputs
+		JsonToken token;
+		while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+			if (token == null) {
+				throw new IOException("Unexpected end of the callbacks body");
+			}
+			parser.skipChildren();
+		}
+		return input;
+	}
+
+	private static final class InputValue {
+		private String value;
+	}
+}
@@ -30,7 +30,9 @@ public final class FilterConstants {
 	public static final class Headers {
 		// Header names
 		public static final String CONTENT_TYPE = "Content-Type";
+		public static final String CONTENT_LENGTH = "Content-Length";
 		public static final String AUTHORIZATION = "Authorization";
+		public static final String TRACEPARENT = "traceparent";
 
 		// Header values
 		public static final String APPLICATION_JSON = "application/json";
@@ -42,6 +44,7 @@ public final class FilterConstants {
 	public static final class Attributes {
 		public static final String USERNAME = "username";
 		public static final String PASSWORD = "password";
+		public static final String USER_NAME = "userName";
 
 		private Attributes() {
 		}
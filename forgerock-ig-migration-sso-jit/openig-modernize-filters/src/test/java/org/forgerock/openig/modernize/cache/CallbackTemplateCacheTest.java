@@ -0,0 +1,100 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class CallbackTemplateCacheTest {
+
+	private static final String KEY = CallbackTemplateCache.key("https://openam.example.com/openam/json/authenticate",
+			"resource=2.0, protocol=1.0");
+
+	@Mock
+	private TimeService time;
+
+	@BeforeMethod
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		when(time.now()).thenReturn(1000L);
+	}
+
+	@Test
+	public void testTemplateIsHandedOutOnce() {
+		CallbackTemplateCache cache = new CallbackTemplateCache(2, 60000, time);
+		JsonValue callbacks = template("authId1");
+		cache.offer(KEY, callbacks);
+
+		assertThat(cache.take(KEY)).isSameAs(callbacks);
+		assertThat(cache.take(KEY)).isNull();
+	}
+
+	@Test
+	public void testPoolIsBounded() {
+		CallbackTemplateCache cache = new CallbackTemplateCache(2, 60000, time);
+		assertThat(cache.needsTemplate(KEY)).isTrue();
+		cache.offer(KEY, template("authId1"));
+		cache.offer(KEY, template("authId2"));
+		cache.offer(KEY, template("authId3"));
+
+		assertThat(cache.needsTemplate(KEY)).isFalse();
+		assertThat(cache.take(KEY).get("authId").asString()).isEqualTo("authId1");
+		assertThat(cache.take(KEY).get("authId").asString()).isEqualTo("authId2");
+		assertThat(cache.take(KEY)).isNull();
+	}
+
+	@Test
+	public void testExpiredTemplateIsDiscarded() {
+		CallbackTemplateCache cache = new CallbackTemplateCache(2, 60000, time);
+		cache.offer(KEY, template("authId1"));
+
+		when(time.now()).thenReturn(61000L);
+		assertThat(cache.take(KEY)).isNull();
+	}
+
+	@Test
+	public void testInvalidateDiscardsAllTemplates() {
+		CallbackTemplateCache cache = new CallbackTemplateCache(2, 60000, time);
+		cache.offer(KEY, template("authId1"));
+		cache.invalidate(KEY);
+
+		assertThat(cache.take(KEY)).isNull();
+	}
+
+	@Test
+	public void testDisabledCacheKeepsNothing() {
+		CallbackTemplateCache cache = CallbackTemplateCache.disabled();
+		cache.offer(KEY, template("authId1"));
+
+		assertThat(cache.isEnabled()).isFalse();
+		assertThat(cache.needsTemplate(KEY)).isFalse();
+		assertThat(cache.take(KEY)).isNull();
+	}
+
+	private static JsonValue template(String authId) {
+		return json(object(field("authId", authId)));
+	}
+}
@@ -0,0 +1,124 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.testng.annotations.Test;
+
+public class MigratedUsersIndexTest {
+
+	private static final String ENDPOINT = "http://openidm.example.com/openidm/managed/user";
+
+	@Test
+	public void testIndexContainsOnlyMigratedUsers() {
+		MigratedUsersIndex index = MigratedUsersIndex.of(Arrays.asList("mike", "alice", "bob", "alice", "\u00c9mile"));
+
+		assertThat(index.size()).isEqualTo(4);
+		assertThat(index.contains("alice")).isTrue();
+		assertThat(index.contains("bob")).isTrue();
+		assertThat(index.contains("mike")).isTrue();
+		assertThat(index.contains("\u00c9mile")).isTrue();
+		assertThat(index.contains("ali")).isFalse();
+		assertThat(index.contains("alice2")).isFalse();
+		assertThat(index.contains("Alice")).isFalse();
+		assertThat(index.contains(null)).isFalse();
+	}
+
+	@Test
+	public void testLargeIndexHasNoFalseNegatives() {
+		List<String> userNames = new ArrayList<>();
+		for (int i = 0; i < 50000; i++) {
+			userNames.add("user" + i);
+		}
+		MigratedUsersIndex index = MigratedUsersIndex.of(userNames);
+
+		for (String userName : userNames) {
+			assertThat(index.contains(userName)).isTrue();
+		}
+		assertThat(index.contains("user50000")).isFalse();
+	}
+
+	@Test
+	public void testEmptyIndexContainsNothing() {
+		assertThat(MigratedUsersIndex.empty().contains("alice")).isFalse();
+		assertThat(MigratedUsersIndex.of(new ArrayList<>()).size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testLoaderPagesThroughAllUsers() throws Exception {
+		Handler handler = (context, request) -> {
+			Response response = new Response(Status.OK);
+			if (request.getUri().getRawQuery().contains("_pagedResultsCookie=page2")) {
+				response.setEntity(object(field("result", array(object(field("userName", "carol")))),
+						field("pagedResultsCookie", null)));
+			} else {
+				response.setEntity(object(field("result", array(object(field("userName", "alice")),
+						object(field("userName", "bob")))), field("pagedResultsCookie", "page2")));
+			}
+			return newResultPromise(response);
+		};
+
+		MigratedUsersIndex index = new MigratedUsersIndexLoader(ENDPOINT, 2, handler).load();
+
+		assertThat(index.size()).isEqualTo(3);
+		assertThat(index.contains("carol")).isTrue();
+	}
+
+	@Test
+	public void testBuilderIndexesUserNamesAddedPageByPage() {
+		MigratedUsersIndex index = MigratedUsersIndex.builder().add("mike").add("alice").add(null).add("bob")
+				.add("alice").add("\u00c9mile").build();
+
+		assertThat(index.size()).isEqualTo(4);
+		assertThat(index.contains("alice")).isTrue();
+		assertThat(index.contains("\u00c9mile")).isTrue();
+		assertThat(index.contains("alic")).isFalse();
+		assertThat(MigratedUsersIndex.builder().build().size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testLoaderFailsWhenIdmRejectsTheQuery() throws Exception {
+		AtomicBoolean closed = new AtomicBoolean();
+		Handler handler = (context, request) -> newResultPromise(new Response(Status.UNAUTHORIZED)
+				.setEntity(new ByteArrayInputStream(new byte[0]) {
+					@Override
+					public void close() throws IOException {
+						closed.set(true);
+						super.close();
+					}
+				}));
+
+		assertThatThrownBy(() -> new MigratedUsersIndexLoader(ENDPOINT, 2, handler).load())
+				.isInstanceOf(IOException.class);
+		assertThat(closed).isTrue();
+	}
+}
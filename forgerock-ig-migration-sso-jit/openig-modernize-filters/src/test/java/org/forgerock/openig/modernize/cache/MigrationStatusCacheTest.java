@@ -0,0 +1,104 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class MigrationStatusCacheTest {
+
+	private static final String USER = "demo";
+
+	@Mock
+	private TimeService time;
+
+	@BeforeMethod
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		when(time.now()).thenReturn(1000L);
+	}
+
+	@Test
+	public void testMigratedUserIsKeptIndefinitely() {
+		MigrationStatusCache cache = new MigrationStatusCache(10, 5000, time);
+		cache.put(USER, true);
+
+		when(time.now()).thenReturn(Long.MAX_VALUE - 1);
+		assertThat(cache.get(USER)).isTrue();
+	}
+
+	@Test
+	public void testNotMigratedUserExpiresAfterNegativeTtl() {
+		MigrationStatusCache cache = new MigrationStatusCache(10, 5000, time);
+		cache.put(USER, false);
+		assertThat(cache.get(USER)).isFalse();
+
+		when(time.now()).thenReturn(6000L);
+		assertThat(cache.get(USER)).isNull();
+		assertThat(cache.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testProvisionedUserReplacesNotMigratedStatus() {
+		MigrationStatusCache cache = new MigrationStatusCache(10, 5000, time);
+		cache.put(USER, false);
+		cache.markMigrated(USER);
+
+		assertThat(cache.get(USER)).isTrue();
+		assertThat(cache.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedUserIsEvicted() {
+		MigrationStatusCache cache = new MigrationStatusCache(2, 5000, time);
+		cache.markMigrated("user1");
+		cache.markMigrated("user2");
+		cache.get("user1");
+		cache.markMigrated("user3");
+
+		assertThat(cache.get("user1")).isTrue();
+		assertThat(cache.get("user2")).isNull();
+		assertThat(cache.get("user3")).isTrue();
+	}
+
+	@Test
+	public void testCapacityIsHonoured() {
+		MigrationStatusCache cache = new MigrationStatusCache(100, 5000, time);
+		for (int i = 0; i < 1000; i++) {
+			cache.markMigrated("user" + i);
+			cache.put("other" + i, false);
+		}
+
+		assertThat(cache.size()).isEqualTo(200);
+		assertThat(cache.get("user999")).isTrue();
+		assertThat(cache.get("other999")).isFalse();
+	}
+
+	@Test
+	public void testDisabledCacheKeepsNothing() {
+		MigrationStatusCache cache = new MigrationStatusCache(0, 5000, time);
+		cache.markMigrated(USER);
+
+		assertThat(cache.get(USER)).isNull();
+		assertThat(MigrationStatusCache.disabled().get(USER)).isNull();
+	}
+}
@@ -0,0 +1,83 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.filter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.forgerock.http.protocol.Request;
+import org.testng.annotations.Test;
+
+public class AuthenticationRequestClassifierTest {
+
+	private static final String BODY = "{\"callbacks\":[]}";
+
+	private final AuthenticationRequestClassifier classifier = new AuthenticationRequestClassifier(
+			List.of("/openam/json/authenticate", "/login/*"), List.of("application/json"), 1024, "X-Legacy-Login",
+			null);
+
+	@Test
+	public void testMatchingRequestIsAnAuthenticationRequest() throws Exception {
+		assertThat(classifier.isAuthenticationRequest(newRequest("POST", "/openam/json/authenticate"))).isTrue();
+		assertThat(classifier.isAuthenticationRequest(newRequest("POST", "/login/form"))).isTrue();
+	}
+
+	@Test
+	public void testRequestsNotMatchingAreRejected() throws Exception {
+		assertThat(classifier.isAuthenticationRequest(newRequest("GET", "/openam/json/authenticate"))).isFalse();
+		assertThat(classifier.isAuthenticationRequest(newRequest("POST", "/openam/json/authenticate/other")))
+				.isFalse();
+		assertThat(classifier.isAuthenticationRequest(newRequest("POST", "/upload"))).isFalse();
+
+		Request withoutMarker = newRequest("POST", "/login/form");
+		withoutMarker.getHeaders().remove("X-Legacy-Login");
+		assertThat(classifier.isAuthenticationRequest(withoutMarker)).isFalse();
+
+		Request form = newRequest("POST", "/login/form");
+		form.getHeaders().put("Content-Type", "application/x-www-form-urlencoded");
+		assertThat(classifier.isAuthenticationRequest(form)).isFalse();
+
+		Request large = newRequest("POST", "/login/form");
+		large.getHeaders().put("Content-Length", "4096");
+		assertThat(classifier.isAuthenticationRequest(large)).isFalse();
+	}
+
+	@Test
+	public void testContentTypeParametersAreIgnored() throws Exception {
+		Request request = newRequest("POST", "/login/form");
+		request.getHeaders().put("Content-Type", " Application/JSON ; charset=UTF-8");
+
+		assertThat(classifier.isAuthenticationRequest(request)).isTrue();
+	}
+
+	@Test
+	public void testDefaultClassifierAcceptsAnyPostWithABody() throws Exception {
+		AuthenticationRequestClassifier anyPost = AuthenticationRequestClassifier.anyPost();
+
+		assertThat(anyPost.isAuthenticationRequest(newRequest("POST", "/upload"))).isTrue();
+		assertThat(anyPost.isAuthenticationRequest(new Request().setMethod("POST")
+				.setUri("http://openig.forgerock.org/upload"))).isFalse();
+	}
+
+	private Request newRequest(String method, String path) throws Exception {
+		Request request = new Request().setMethod(method).setUri("http://openig.forgerock.org" + path);
+		request.setEntity(BODY);
+		request.getHeaders().put("Content-Type", "application/json");
+		request.getHeaders().put("X-Legacy-Login", "true");
+		return request;
+	}
+}
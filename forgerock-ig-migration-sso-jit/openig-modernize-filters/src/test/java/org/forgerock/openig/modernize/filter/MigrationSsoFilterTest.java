@@ -16,40 +16,79 @@
 package org.forgerock.openig.modernize.filter;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.forgerock.json.JsonValue.array;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.forgerock.http.Handler;
 import org.forgerock.http.header.SetCookieHeader;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.modernize.LegacyIAMProvider;
+import org.forgerock.openig.modernize.cache.CallbackTemplateCache;
+import org.forgerock.openig.modernize.limiter.AdaptiveConcurrencyLimiter;
+import org.forgerock.openig.modernize.provisioning.ProvisioningQueue;
 import org.forgerock.services.context.AttributesContext;
 import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.TimeService;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 public class MigrationSsoFilterTest {
 
 	private static final String LEGACY_COOKIE = "legacyCookie";
+	private static final String AM_COOKIE = "iPlanetDirectoryPro";
+	private static final String IDM_USERS = "http://idm.example.com/openidm/managed/user";
+	private static final String AM_AUTHENTICATE = "http://am.example.com/openam/json/authenticate";
+	private static final String API_VERSION_HEADER = "Accept-API-Version";
+	private static final String API_VERSION = "resource=2.0, protocol=1.0";
+	private static final String STALE_AUTH_ID = "staleAuthId";
 
 	@Mock
 	private Handler handler;
 
+	@Mock
+	private LegacyIAMProvider legacyIAMProvider;
+
 	private AttributesContext attributesContext;
 	private Context context;
+	private ScheduledExecutorService executor;
 
 	@BeforeMethod
 	public void setUp() throws Exception {
 		attributesContext = new AttributesContext(new RootContext());
 		context = attributesContext;
 		MockitoAnnotations.initMocks(this);
+		executor = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		executor.shutdownNow();
 	}
 
 	@Test
@@ -85,6 +124,264 @@ public class MigrationSsoFilterTest {
 		assertThat(response.getHeaders().get(SetCookieHeader.NAME)).isNull();
 	}
 
+	@Test
+	public void testFailedFirstLoginDoesNotShareConcurrentSuccessfulProvisioning() throws Exception {
+		JsonValue user = json(object(field("username", "demo"), field("password", "changeit")));
+		when(legacyIAMProvider.getUserCredentials(any(Request.class))).thenReturn(user);
+		PromiseImpl<Response, NeverThrowsException> extendedProfile = PromiseImpl.create();
+		when(legacyIAMProvider.getExtendedUserAttributes(any(Response.class), eq("demo"), any(Handler.class)))
+				.thenReturn(extendedProfile);
+		Handler idm = (context, request) -> newResultPromise(new Response(Status.OK)
+				.setEntity(object(field("resultCount", 0))));
+		MigrationSsoFilter filter = new MigrationSsoFilter(legacyIAMProvider, idm, 10);
+
+		Request successfulLogin = newAuthenticationRequest();
+		Request failedLogin = newAuthenticationRequest();
+		when(handler.handle(context, successfulLogin)).then(invocation -> {
+			Response response = new Response(Status.OK);
+			response.getHeaders().put(SetCookieHeader.NAME, LEGACY_COOKIE + "=AQIC5wM2LY4Sfcw.*");
+			return newResultPromise(response);
+		});
+		when(handler.handle(context, failedLogin))
+				.then(invocation -> newResultPromise(new Response(Status.UNAUTHORIZED)));
+
+		Promise<Response, NeverThrowsException> successful = filter.filter(context, successfulLogin, handler);
+		Response failed = filter.filter(context, failedLogin, handler).get();
+
+		// The failed login gets its legacy response while the successful one is still being provisioned
+		assertThat(successful.isDone()).isFalse();
+		assertThat(failed.getStatus()).isEqualTo(Status.UNAUTHORIZED);
+		assertThat(failed.getHeaders().get(SetCookieHeader.NAME)).isNull();
+		verify(legacyIAMProvider, times(1)).getExtendedUserAttributes(any(Response.class), eq("demo"),
+				any(Handler.class));
+
+		extendedProfile.handleResult(new Response(Status.BAD_REQUEST));
+		assertThat(successful.get().getStatus()).isEqualTo(Status.BAD_REQUEST);
+	}
+
+	@Test
+	public void testMigratedUserGetsBothCookies() throws Exception {
+		ForgeRockStub forgeRock = new ForgeRockStub(true);
+		MigrationSsoFilter filter = newFilter(forgeRock);
+		Request request = newAuthenticationRequest();
+		when(handler.handle(context, request)).then(invocation -> newResultPromise(newLegacyResponse()));
+
+		Response response = filter.filter(context, request, handler).get();
+
+		assertThat(response.getStatus()).isEqualTo(Status.OK);
+		List<String> setCookies = response.getHeaders().copyAsMultiMapOfStrings().get(SetCookieHeader.NAME);
+		assertThat(setCookies).hasSize(2);
+		assertThat(setCookies.get(0)).startsWith(LEGACY_COOKIE);
+		assertThat(setCookies.get(1)).startsWith(AM_COOKIE);
+	}
+
+	@Test
+	public void testMigratedUserFailingAmAuthenticationIsUnauthorized() throws Exception {
+		ForgeRockStub forgeRock = new ForgeRockStub(true);
+		forgeRock.amStatus = Status.UNAUTHORIZED;
+		MigrationSsoFilter filter = newFilter(forgeRock);
+		Request request = newAuthenticationRequest();
+		Response legacyResponse = spy(newLegacyResponse());
+		when(handler.handle(context, request)).then(invocation -> newResultPromise(legacyResponse));
+
+		Response response = filter.filter(context, request, handler).get();
+
+		assertThat(response.getStatus()).isEqualTo(Status.UNAUTHORIZED);
+		assertThat(response.getHeaders().get(SetCookieHeader.NAME)).isNull();
+		verify(legacyResponse).close();
+	}
+
+	@Test
+	public void testRejectedCallbackTemplateFallsBackToFreshCallbacks() throws Exception {
+		ForgeRockStub forgeRock = new ForgeRockStub(true);
+		CallbackTemplateCache callbackTemplates = new CallbackTemplateCache(1, 60000, TimeService.SYSTEM);
+		callbackTemplates.offer(CallbackTemplateCache.key(AM_AUTHENTICATE, API_VERSION), callbacks(STALE_AUTH_ID));
+		MigrationSsoFilter filter = newFilter(forgeRock);
+		filter.setAmAuthentication(AM_AUTHENTICATE, AM_COOKIE, API_VERSION_HEADER, API_VERSION,
+				SetCookieHeader.NAME, callbackTemplates);
+		Request request = newAuthenticationRequest();
+		when(handler.handle(context, request)).then(invocation -> newResultPromise(newLegacyResponse()));
+
+		Response response = filter.filter(context, request, handler).get();
+
+		// The template is rejected, and the credentials are submitted again with fresh callbacks
+		assertThat(forgeRock.submittedAuthIds).hasSize(2);
+		assertThat(forgeRock.submittedAuthIds.get(0)).isEqualTo(STALE_AUTH_ID);
+		assertThat(forgeRock.submittedAuthIds.get(1)).isNotEqualTo(STALE_AUTH_ID);
+		assertThat(response.getStatus()).isEqualTo(Status.OK);
+		assertThat(response.getHeaders().copyAsMultiMapOfStrings().get(SetCookieHeader.NAME)).hasSize(2);
+	}
+
+	@Test
+	public void testSaturatedIdmLetsTheLoginContinueOnLegacyOnly() throws Exception {
+		ForgeRockStub forgeRock = new ForgeRockStub(true);
+		MigrationSsoFilter filter = newFilter(forgeRock);
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1, 1000, 0.9);
+		filter.setIdmConcurrencyLimiter(limiter);
+		assertThat(limiter.tryAcquire()).isTrue();
+		Request request = newAuthenticationRequest();
+		when(handler.handle(context, request)).then(invocation -> newResultPromise(newLegacyResponse()));
+
+		Response response = filter.filter(context, request, handler).get();
+
+		// Neither IDM nor AM are called, and the legacy response is returned as is
+		assertThat(forgeRock.migrationChecks).isEqualTo(0);
+		assertThat(forgeRock.submittedAuthIds).isEmpty();
+		assertThat(response.getStatus()).isEqualTo(Status.OK);
+		assertThat(response.getHeaders().copyAsMultiMapOfStrings().get(SetCookieHeader.NAME)).hasSize(1);
+	}
+
+	@Test
+	public void testSaturatedIdmLetsTheFirstLoginContinueWithoutProvisioning() throws Exception {
+		ForgeRockStub forgeRock = new ForgeRockStub(false);
+		MigrationSsoFilter filter = newFilter(forgeRock);
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1, 1000, 0.9);
+		filter.setIdmConcurrencyLimiter(limiter);
+		// IDM becomes saturated once the migration check is answered, while the extended profile is fetched
+		when(legacyIAMProvider.getExtendedUserAttributes(any(Response.class), eq("demo"), any(Handler.class)))
+				.then(invocation -> {
+					limiter.tryAcquire();
+					return newResultPromise(newExtendedProfile());
+				});
+		Request request = newAuthenticationRequest();
+		when(handler.handle(context, request)).then(invocation -> newResultPromise(newLegacyResponse()));
+
+		Response response = filter.filter(context, request, handler).get();
+
+		assertThat(forgeRock.migrationChecks).isEqualTo(1);
+		assertThat(forgeRock.provisioningAuthorizations).isEmpty();
+		assertThat(response.getStatus()).isEqualTo(Status.OK);
+		assertThat(response.getHeaders().copyAsMultiMapOfStrings().get(SetCookieHeader.NAME)).hasSize(1);
+	}
+
+	@Test
+	public void testFirstLoginIsProvisionedInTheBackground() throws Exception {
+		ForgeRockStub forgeRock = new ForgeRockStub(false);
+		ForgeRockStub provisioningForgeRock = new ForgeRockStub(false);
+		MigrationSsoFilter filter = newFilter(forgeRock);
+		filter.setAsyncProvisioning(new ProvisioningQueue(10, 1, 1, 0, 0, executor), provisioningForgeRock);
+		when(legacyIAMProvider.getExtendedUserAttributes(any(Response.class), eq("demo"), any(Handler.class)))
+				.then(invocation -> newResultPromise(newExtendedProfile()));
+		Request request = newAuthenticationRequest();
+		when(handler.handle(context, request)).then(invocation -> newResultPromise(newLegacyResponse()));
+
+		Response response = filter.filter(context, request, handler).get();
+
+		// The legacy response is returned without the AM cookie, which the user gets on its next login
+		assertThat(response.getHeaders().copyAsMultiMapOfStrings().get(SetCookieHeader.NAME)).hasSize(1);
+		assertThat(forgeRock.submittedAuthIds).isEmpty();
+		// The provisioning handler authorizes the request itself, instead of the token of the login
+		assertThat(forgeRock.provisioningAuthorizations).isEmpty();
+		assertThat(provisioningForgeRock.provisioningAuthorizations).containsExactly((String) null);
+	}
+
+	@Test
+	public void testFirstLoginIsProvisionedInlineWhenTheQueueIsFull() throws Exception {
+		ForgeRockStub forgeRock = new ForgeRockStub(false);
+		ForgeRockStub provisioningForgeRock = new ForgeRockStub(false);
+		MigrationSsoFilter filter = newFilter(forgeRock);
+		filter.setAsyncProvisioning(new ProvisioningQueue(0, 1, 1, 0, 0, executor), provisioningForgeRock);
+		when(legacyIAMProvider.getExtendedUserAttributes(any(Response.class), eq("demo"), any(Handler.class)))
+				.then(invocation -> newResultPromise(newExtendedProfile()));
+		Request request = newAuthenticationRequest();
+		when(handler.handle(context, request)).then(invocation -> newResultPromise(newLegacyResponse()));
+
+		Response response = filter.filter(context, request, handler).get();
+
+		assertThat(provisioningForgeRock.provisioningAuthorizations).isEmpty();
+		assertThat(forgeRock.provisioningAuthorizations).containsExactly("Bearer token");
+		List<String> setCookies = response.getHeaders().copyAsMultiMapOfStrings().get(SetCookieHeader.NAME);
+		assertThat(setCookies).hasSize(2);
+		assertThat(setCookies.get(1)).startsWith(AM_COOKIE);
+	}
+
+	private MigrationSsoFilter newFilter(ForgeRockStub forgeRock) {
+		JsonValue user = json(object(field("username", "demo"), field("password", "changeit")));
+		when(legacyIAMProvider.getUserCredentials(any(Request.class))).thenReturn(user);
+		MigrationSsoFilter filter = new MigrationSsoFilter(legacyIAMProvider, forgeRock, 10);
+		filter.setIdmEndpoints(IDM_USERS, IDM_USERS, Map.of("mail", "mail"));
+		filter.setAmAuthentication(AM_AUTHENTICATE, AM_COOKIE, API_VERSION_HEADER, API_VERSION, SetCookieHeader.NAME,
+				CallbackTemplateCache.disabled());
+		return filter;
+	}
+
+	private static Response newLegacyResponse() {
+		Response response = new Response(Status.OK);
+		response.getHeaders().add(SetCookieHeader.NAME, LEGACY_COOKIE + "=AQIC5wM2LY4Sfcw.*");
+		return response;
+	}
+
+	private static Response newExtendedProfile() {
+		return new Response(Status.OK).setEntity(object(field("mail", "demo@example.com")));
+	}
+
+	private static JsonValue callbacks(String authId) {
+		return json(object(field("authId", authId),
+				field("callbacks", array(
+						object(field("type", "NameCallback"),
+								field("input", array(object(field("name", "IDToken1"), field("value", ""))))),
+						object(field("type", "PasswordCallback"),
+								field("input", array(object(field("name", "IDToken2"), field("value", "")))))))));
+	}
+
+	/**
+	 * Stands for IDM and AM: answers the migration checks, provisions the users, hands out the authentication
+	 * callbacks and authenticates the users, rejecting the stale authId.
+	 */
+	private static final class ForgeRockStub implements Handler {
+
+		private final boolean migrated;
+		private final List<String> provisioningAuthorizations = new ArrayList<>();
+		private final List<String> submittedAuthIds = new ArrayList<>();
+		private Status amStatus = Status.OK;
+		private int migrationChecks;
+		private int callbackFetches;
+
+		private ForgeRockStub(boolean migrated) {
+			this.migrated = migrated;
+		}
+
+		@Override
+		public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+			String uri = request.getUri().toString();
+			if (uri.startsWith(IDM_USERS) && "GET".equals(request.getMethod())) {
+				migrationChecks++;
+				return newResultPromise(
+						new Response(Status.OK).setEntity(object(field("resultCount", migrated ? 1 : 0))));
+			}
+			if (uri.startsWith(IDM_USERS)) {
+				provisioningAuthorizations.add(request.getHeaders().getFirst("Authorization"));
+				return newResultPromise(new Response(Status.CREATED));
+			}
+			if (request.getEntity().isRawContentEmpty()) {
+				return newResultPromise(new Response(Status.OK).setEntity(callbacks("authId" + ++callbackFetches)));
+			}
+			try {
+				String authId = JsonValue.json(request.getEntity().getJson()).get("authId").asString();
+				submittedAuthIds.add(authId);
+				if (STALE_AUTH_ID.equals(authId)) {
+					return newResultPromise(new Response(Status.BAD_REQUEST)
+							.setEntity(object(field("code", 400), field("message", "Invalid authId"))));
+				}
+			} catch (IOException e) {
+				return newResultPromise(new Response(Status.BAD_REQUEST));
+			}
+			if (!Status.OK.equals(amStatus)) {
+				return newResultPromise(new Response(amStatus).setEntity(
+						object(field("code", amStatus.getCode()), field("message", "Authentication Failed"))));
+			}
+			Response response = new Response(Status.OK).setEntity(object(field("tokenId", "AQIC5wM2LY4Sfcz.*")));
+			response.getHeaders().add(SetCookieHeader.NAME, AM_COOKIE + "=AQIC5wM2LY4Sfcz.*; Path=/");
+			return newResultPromise(response);
+		}
+	}
+
+	private Request newAuthenticationRequest() throws Exception {
+		Request request = new Request().setMethod("POST").setUri("http://openig.forgerock.org/login");
+		request.getHeaders().put("Authorization", "Bearer token");
+		return request;
+	}
+
 	private Request newRequest() throws Exception {
 		Request request = new Request();
 		request.setUri("http://openig.forgerock.org");
@@ -0,0 +1,53 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openig.modernize.utils.FilterConstants.Attributes.PASSWORD;
+import static org.forgerock.openig.modernize.utils.FilterConstants.Attributes.USERNAME;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.json.JsonValue;
+import org.testng.annotations.Test;
+
+public class LegacyOpenSSOProviderTest {
+
+	private static final String CALLBACKS_BODY = "{\"callbacks\":[{\"input\":[{\"value\":\"demo\"}]},"
+			+ "{\"input\":[{\"value\":\"changeit\"}]}]}";
+
+	private final LegacyOpenSSOProvider provider = new LegacyOpenSSOProvider();
+
+	@Test
+	public void testRequestBodyIsReplayableAfterReadingCredentials() throws Exception {
+		Request request = new Request().setMethod("POST").setUri("http://openig.forgerock.org");
+		request.setEntity(CALLBACKS_BODY);
+
+		JsonValue user = provider.getUserCredentials(request);
+
+		assertThat(user.get(USERNAME).asString()).isEqualTo("demo");
+		assertThat(user.get(PASSWORD).asString()).isEqualTo("changeit");
+		assertThat(request.getEntity().getString()).isEqualTo(CALLBACKS_BODY);
+	}
+
+	@Test
+	public void testFormBodyHasNoCredentials() throws Exception {
+		Request request = new Request().setMethod("POST").setUri("http://openig.forgerock.org");
+		request.setEntity("username=demo&password=changeit");
+
+		assertThat(provider.getUserCredentials(request)).isNull();
+		assertThat(request.getEntity().getString()).isEqualTo("username=demo&password=changeit");
+	}
+}
@@ -0,0 +1,77 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.limiter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.testng.annotations.Test;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+	private static final long FAST_CALL = 10_000_000L;
+	private static final long SLOW_CALL = 2_000_000_000L;
+
+	@Test
+	public void testCallsBeyondTheLimitAreRejected() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10, 1000, 0.5);
+
+		assertThat(limiter.tryAcquire()).isTrue();
+		assertThat(limiter.tryAcquire()).isTrue();
+		assertThat(limiter.tryAcquire()).isFalse();
+		assertThat(limiter.getInFlight()).isEqualTo(2);
+	}
+
+	@Test
+	public void testFastCallsIncreaseTheLimit() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10, 1000, 0.5);
+
+		for (int i = 0; i < 10; i++) {
+			assertThat(limiter.tryAcquire()).isTrue();
+			limiter.release(FAST_CALL, false);
+		}
+
+		assertThat(limiter.getLimit()).isGreaterThan(2).isLessThanOrEqualTo(10);
+	}
+
+	@Test
+	public void testSlowOrFailedCallsDecreaseTheLimit() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 1, 10, 1000, 0.5);
+
+		limiter.tryAcquire();
+		limiter.release(SLOW_CALL, false);
+		assertThat(limiter.getLimit()).isEqualTo(4);
+
+		limiter.tryAcquire();
+		limiter.release(FAST_CALL, true);
+		assertThat(limiter.getLimit()).isEqualTo(2);
+
+		for (int i = 0; i < 5; i++) {
+			limiter.tryAcquire();
+			limiter.release(SLOW_CALL, false);
+		}
+		assertThat(limiter.getLimit()).isEqualTo(1);
+	}
+
+	@Test
+	public void testUnlimitedLimiterNeverRejects() {
+		AdaptiveConcurrencyLimiter limiter = AdaptiveConcurrencyLimiter.unlimited();
+
+		for (int i = 0; i < 1000; i++) {
+			assertThat(limiter.tryAcquire()).isTrue();
+		}
+		assertThat(limiter.getLimit()).isEqualTo(0);
+	}
+}
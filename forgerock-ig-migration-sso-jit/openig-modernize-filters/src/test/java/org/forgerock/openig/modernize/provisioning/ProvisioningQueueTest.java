@@ -0,0 +1,170 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.provisioning;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.openig.modernize.provisioning.ProvisioningQueue.Outcome;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.PromiseImpl;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ProvisioningQueueTest {
+
+	private static final String USER = "demo";
+
+	private ScheduledExecutorService executor;
+
+	@BeforeMethod
+	public void setUp() {
+		executor = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testTaskIsRetriedUntilItSucceeds() throws Exception {
+		ProvisioningQueue queue = new ProvisioningQueue(10, 1, 5, 10, 0, executor);
+		AtomicInteger attempts = new AtomicInteger();
+		CountDownLatch provisioned = new CountDownLatch(1);
+
+		assertThat(queue.submit(USER, () -> {
+			if (attempts.incrementAndGet() < 3) {
+				return newResultPromise(Outcome.RETRY);
+			}
+			provisioned.countDown();
+			return newResultPromise(Outcome.SUCCEEDED);
+		})).isTrue();
+
+		assertThat(provisioned.await(5, SECONDS)).isTrue();
+		assertThat(attempts.get()).isEqualTo(3);
+	}
+
+	@Test
+	public void testFailedTaskIsNotRetried() {
+		ProvisioningQueue queue = new ProvisioningQueue(10, 1, 5, 10, 0, executor);
+		AtomicInteger attempts = new AtomicInteger();
+
+		queue.submit(USER, () -> {
+			attempts.incrementAndGet();
+			return newResultPromise(Outcome.FAILED);
+		});
+
+		assertThat(attempts.get()).isEqualTo(1);
+		assertThat(queue.getPendingCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testHungAttemptTimesOutAndIsRetried() throws Exception {
+		ProvisioningQueue queue = new ProvisioningQueue(10, 1, 5, 10, 50, executor);
+		AtomicInteger attempts = new AtomicInteger();
+		CountDownLatch provisioned = new CountDownLatch(1);
+
+		queue.submit(USER, () -> {
+			if (attempts.incrementAndGet() == 1) {
+				return PromiseImpl.create();
+			}
+			provisioned.countDown();
+			return newResultPromise(Outcome.SUCCEEDED);
+		});
+
+		assertThat(provisioned.await(5, SECONDS)).isTrue();
+		assertThat(attempts.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void testQueueRejectsTasksBeyondItsCapacity() {
+		ProvisioningQueue queue = new ProvisioningQueue(2, 1, 5, 10, 0, executor);
+		PromiseImpl<Outcome, NeverThrowsException> pending = PromiseImpl.create();
+
+		assertThat(queue.submit("user1", () -> pending)).isTrue();
+		assertThat(queue.submit("user2", () -> pending)).isTrue();
+		assertThat(queue.submit("user3", () -> pending)).isFalse();
+		assertThat(queue.getPendingCount()).isEqualTo(2);
+
+		pending.handleResult(Outcome.SUCCEEDED);
+		assertThat(queue.getPendingCount()).isEqualTo(0);
+		assertThat(queue.submit("user3", () -> newResultPromise(Outcome.SUCCEEDED))).isTrue();
+	}
+
+	@Test
+	public void testShutdownDropsQueuedTasksAndRejectsNewOnes() {
+		ProvisioningQueue queue = new ProvisioningQueue(10, 1, 5, 10, 0, executor);
+		PromiseImpl<Outcome, NeverThrowsException> running = PromiseImpl.create();
+		AtomicInteger queuedAttempts = new AtomicInteger();
+
+		queue.submit("user1", () -> running);
+		queue.submit("user2", () -> {
+			queuedAttempts.incrementAndGet();
+			return newResultPromise(Outcome.SUCCEEDED);
+		});
+		queue.shutdown();
+
+		assertThat(queue.getPendingCount()).isEqualTo(1);
+		assertThat(queue.submit("user3", () -> newResultPromise(Outcome.SUCCEEDED))).isFalse();
+
+		// The running task completes, without starting the dropped one
+		running.handleResult(Outcome.SUCCEEDED);
+		assertThat(queue.getPendingCount()).isEqualTo(0);
+		assertThat(queuedAttempts.get()).isEqualTo(0);
+	}
+
+	@Test
+	public void testShutdownDropsTasksWaitingForRetry() throws Exception {
+		ProvisioningQueue queue = new ProvisioningQueue(10, 1, 5, 100, 0, executor);
+		AtomicInteger attempts = new AtomicInteger();
+
+		queue.submit(USER, () -> {
+			attempts.incrementAndGet();
+			return newResultPromise(Outcome.RETRY);
+		});
+		assertThat(queue.getPendingCount()).isEqualTo(1);
+		queue.shutdown();
+
+		assertThat(queue.getPendingCount()).isEqualTo(0);
+		Thread.sleep(300);
+		assertThat(attempts.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void testRunningTaskIsNotRetriedAfterShutdown() {
+		ProvisioningQueue queue = new ProvisioningQueue(10, 1, 5, 10, 0, executor);
+		PromiseImpl<Outcome, NeverThrowsException> running = PromiseImpl.create();
+		AtomicInteger attempts = new AtomicInteger();
+
+		queue.submit(USER, () -> {
+			attempts.incrementAndGet();
+			return running;
+		});
+		queue.shutdown();
+		running.handleResult(Outcome.RETRY);
+
+		assertThat(queue.getPendingCount()).isEqualTo(0);
+		assertThat(attempts.get()).isEqualTo(1);
+	}
+}
@@ -0,0 +1,94 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.provisioning;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.testng.annotations.Test;
+
+public class SingleFlightTest {
+
+	@Test
+	public void testConcurrentCallsWithTheSameKeyAreCoalesced() throws Exception {
+		SingleFlight<String> singleFlight = new SingleFlight<>(10);
+		PromiseImpl<String, NeverThrowsException> call = PromiseImpl.create();
+		AtomicInteger calls = new AtomicInteger();
+
+		Promise<String, NeverThrowsException> first = singleFlight.execute("jdoe", counting(calls, call));
+		Promise<String, NeverThrowsException> second = singleFlight.execute("jdoe", counting(calls, call));
+		assertThat(singleFlight.size()).isEqualTo(1);
+
+		call.handleResult("cookie");
+
+		assertThat(calls.get()).isEqualTo(1);
+		assertThat(first.get()).isEqualTo("cookie");
+		assertThat(second.get()).isEqualTo("cookie");
+		assertThat(singleFlight.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testCallsWithOtherKeysOrAfterCompletionAreMade() throws Exception {
+		SingleFlight<String> singleFlight = new SingleFlight<>(10);
+		AtomicInteger calls = new AtomicInteger();
+
+		PromiseImpl<String, NeverThrowsException> call = PromiseImpl.create();
+		singleFlight.execute("jdoe", counting(calls, call));
+		singleFlight.execute("asmith", counting(calls, PromiseImpl.create()));
+		call.handleResult("cookie");
+		singleFlight.execute("jdoe", counting(calls, PromiseImpl.create()));
+
+		assertThat(calls.get()).isEqualTo(3);
+	}
+
+	@Test
+	public void testCallsBeyondTheCapacityAreNotCoalesced() throws Exception {
+		SingleFlight<String> singleFlight = new SingleFlight<>(1);
+		AtomicInteger calls = new AtomicInteger();
+
+		singleFlight.execute("jdoe", counting(calls, PromiseImpl.create()));
+		singleFlight.execute("asmith", counting(calls, PromiseImpl.create()));
+		singleFlight.execute("asmith", counting(calls, PromiseImpl.create()));
+
+		assertThat(calls.get()).isEqualTo(3);
+		assertThat(singleFlight.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void testFailedCallIsForgotten() throws Exception {
+		SingleFlight<String> singleFlight = new SingleFlight<>(10);
+		PromiseImpl<String, NeverThrowsException> call = PromiseImpl.create();
+
+		Promise<String, NeverThrowsException> first = singleFlight.execute("jdoe", () -> call);
+		call.handleRuntimeException(new IllegalStateException());
+
+		assertThat(first.get()).isNull();
+		assertThat(singleFlight.size()).isEqualTo(0);
+	}
+
+	private static Supplier<Promise<String, NeverThrowsException>> counting(AtomicInteger calls,
+			Promise<String, NeverThrowsException> promise) {
+		return () -> {
+			calls.incrementAndGet();
+			return promise;
+		};
+	}
+}
@@ -0,0 +1,115 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.tracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.modernize.limiter.AdaptiveConcurrencyLimiter;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.Test;
+
+public class LoginTraceTest {
+
+	private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+	private static final String TRACEPARENT = "00-" + TRACE_ID + "-00f067aa0ba902b7-01";
+
+	@Test
+	public void testIncomingTraceIsJoined() throws Exception {
+		Request request = newRequest(TRACEPARENT);
+
+		LoginTrace trace = LoginTrace.start(request, new StageMetrics());
+
+		assertThat(trace.getTraceId()).isEqualTo(TRACE_ID);
+		assertThat(trace.newTraceparent()).startsWith("00-" + TRACE_ID + "-").endsWith("-01")
+				.isNotEqualTo(TRACEPARENT).hasSize(55);
+	}
+
+	@Test
+	public void testInvalidIncomingTraceIsReplaced() throws Exception {
+		for (String traceparent : new String[] { null, "garbage", TRACEPARENT.toUpperCase(),
+				"00-00000000000000000000000000000000-00f067aa0ba902b7-01" }) {
+			LoginTrace trace = LoginTrace.start(newRequest(traceparent), new StageMetrics());
+
+			assertThat(trace.getTraceId()).hasSize(32).isNotEqualTo(TRACE_ID)
+					.isNotEqualTo("00000000000000000000000000000000");
+		}
+	}
+
+	@Test
+	public void testTimedHandlerPropagatesTheTraceAndRecordsTheStage() throws Exception {
+		StageMetrics metrics = new StageMetrics();
+		LoginTrace trace = LoginTrace.start(newRequest(TRACEPARENT), metrics);
+		AtomicReference<String> sentTraceparent = new AtomicReference<>();
+		Handler client = (context, request) -> {
+			sentTraceparent.set(request.getHeaders().getFirst("traceparent"));
+			return newResultPromise(new Response(Status.OK));
+		};
+
+		trace.timing(Stage.AM_AUTHENTICATION, client).handle(new RootContext(), new Request()).get();
+
+		assertThat(sentTraceparent.get()).startsWith("00-" + TRACE_ID + "-");
+		long[] counts = metrics.getHistogram(Stage.AM_AUTHENTICATION).getCumulativeCounts();
+		assertThat(counts[counts.length - 1]).isEqualTo(1);
+		long[] otherCounts = metrics.getHistogram(Stage.PROVISIONING).getCumulativeCounts();
+		assertThat(otherCounts[otherCounts.length - 1]).isEqualTo(0);
+	}
+
+	@Test
+	public void testHistogramsAreExportedInThePrometheusFormat() {
+		StageMetrics metrics = new StageMetrics();
+		metrics.record(Stage.MIGRATION_CHECK, 3_000_000L);
+		metrics.record(Stage.MIGRATION_CHECK, 20_000_000_000L);
+
+		String text = metrics.toPrometheus();
+
+		assertThat(text).contains("# TYPE ig_migration_sso_stage_seconds histogram")
+				.contains("ig_migration_sso_stage_seconds_bucket{stage=\"migration_check\",le=\"0.0025\"} 0")
+				.contains("ig_migration_sso_stage_seconds_bucket{stage=\"migration_check\",le=\"0.005\"} 1")
+				.contains("ig_migration_sso_stage_seconds_bucket{stage=\"migration_check\",le=\"10.0\"} 1")
+				.contains("ig_migration_sso_stage_seconds_bucket{stage=\"migration_check\",le=\"+Inf\"} 2")
+				.contains("ig_migration_sso_stage_seconds_count{stage=\"migration_check\"} 2")
+				.contains("ig_migration_sso_stage_seconds_count{stage=\"provisioning\"} 0");
+	}
+
+	@Test
+	public void testIdmConcurrencyIsExportedAlongsideTheHistograms() throws Exception {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(5, 1, 10, 1000, 0.5);
+		limiter.tryAcquire();
+		StageMetricsHandler handler = new StageMetricsHandler(new StageMetrics(), limiter);
+
+		String text = handler.handle(new RootContext(), new Request()).get().getEntity().getString();
+
+		assertThat(text).contains("ig_migration_sso_stage_seconds_count{stage=\"provisioning\"} 0")
+				.contains("# TYPE ig_migration_sso_idm_concurrency_limit gauge")
+				.contains("ig_migration_sso_idm_concurrency_limit 5\n")
+				.contains("ig_migration_sso_idm_concurrency_in_flight 1\n");
+	}
+
+	private Request newRequest(String traceparent) throws Exception {
+		Request request = new Request().setMethod("POST").setUri("http://openig.forgerock.org/login");
+		if (traceparent != null) {
+			request.getHeaders().put("traceparent", traceparent);
+		}
+		return request;
+	}
+}
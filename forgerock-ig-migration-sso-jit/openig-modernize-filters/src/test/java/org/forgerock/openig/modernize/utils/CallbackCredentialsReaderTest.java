@@ -0,0 +1,67 @@
+/***************************************************************************
+ *  Copyright 2021 ForgeRock AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ***************************************************************************/
+package org.forgerock.openig.modernize.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+public class CallbackCredentialsReaderTest {
+
+	private final CallbackCredentialsReader reader = new CallbackCredentialsReader("callbacks", "input", "value");
+
+	@Test
+	public void testCredentialsAreReadFromCallbacks() throws Exception {
+		String body = "{\"authId\":\"eyJ0eXAiOiJKV1Qi\",\"template\":\"\",\"stage\":\"DataStore1\","
+				+ "\"callbacks\":[{\"type\":\"NameCallback\",\"output\":[{\"name\":\"prompt\",\"value\":\"User Name:\"}],"
+				+ "\"input\":[{\"name\":\"IDToken1\",\"value\":\"demo\"}]},"
+				+ "{\"type\":\"PasswordCallback\",\"output\":[{\"name\":\"prompt\",\"value\":\"Password:\"}],"
+				+ "\"input\":[{\"name\":\"IDToken2\",\"value\":\"changeit\"}]}]}";
+
+		assertThat(read(body)).containsExactly("demo", "changeit");
+	}
+
+	@Test
+	public void testReadingStopsAfterTheCredentials() throws Exception {
+		// The rest of the body is never parsed
+		String body = "{\"callbacks\":[{\"input\":[{\"value\":\"demo\"}]},{\"input\":[{\"value\":\"changeit\"}]},"
+				+ "not json";
+
+		assertThat(read(body)).containsExactly("demo", "changeit");
+	}
+
+	@Test
+	public void testNonCallbacksBodiesAreRejected() throws Exception {
+		assertThat(read("{\"username\":\"demo\",\"password\":\"changeit\"}")).isNull();
+		assertThat(read("[1, 2, 3]")).isNull();
+		assertThat(read("{\"callbacks\":{}}")).isNull();
+		assertThat(read("{\"callbacks\":[{\"input\":[{\"value\":\"demo\"}]}]}")).isNull();
+		assertThat(read("{\"callbacks\":[{\"output\":[]},{\"input\":[{\"value\":\"changeit\"}]}]}")).isNull();
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void testInvalidJsonIsReported() throws Exception {
+		read("username=demo&password=changeit");
+	}
+
+	private String[] read(String body) throws IOException {
+		return reader.read(new ByteArrayInputStream(body.getBytes(UTF_8)));
+	}
+}